@@ -1,13 +1,31 @@
 package bankapp;
 
+import bankapp.cache.AccountVersions;
 import bankapp.dto.*;
+import bankapp.events.EventHub;
+import bankapp.export.CsvHistoryWriter;
+import bankapp.export.HistoryWriter;
+import bankapp.export.JsonHistoryWriter;
+import bankapp.export.NdjsonHistoryWriter;
 import bankapp.handlers.*;
+import bankapp.ledger.Ledger;
+import bankapp.metrics.Metrics;
+import bankapp.metrics.PrometheusExporter;
+import bankapp.security.Admission;
 import bankapp.security.JwtUtil;
 import bankapp.security.UnauthorizedException;
 import bankapp.security.Auth;
+import bankapp.shard.Shards;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import spark.Request;
+import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
+import java.io.IOException;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Map;
 
 import static spark.Spark.*;
@@ -25,8 +43,12 @@ public class BankServer {
      */
     public static void main(String[] args) {
 
+        configureThreads();
+
         port(5230);                 // HTTP server port
+        enableMetrics();            // Request counters and timings for /metrics
         enableCORS("*", "*", "*");  // Cross-origin request settings
+        enableAdmission();          // Rate limits and per-route concurrency caps (429)
 
         // Handles authentication failures (invalid or missing JWT)
         exception(UnauthorizedException.class, (e, req, res) -> {
@@ -35,6 +57,22 @@ public class BankServer {
             res.body(gson.toJson(Map.of("error", e.getMessage())));
         });
 
+        // Handles request bodies that are not valid JSON or contain an invalid amount
+        exception(JsonParseException.class, (e, req, res) -> {
+            String message = e instanceof Money.InvalidAmountException ? e.getMessage() : "Invalid request body.";
+            res.status(400);
+            res.type("application/json");
+            res.body(gson.toJson(new ActionResult(false, message)));
+        });
+
+        // Handles overload (e.g. the bcrypt pool is saturated)
+        exception(ServiceUnavailableException.class, (e, req, res) -> {
+            res.status(503);
+            res.type("application/json");
+            res.header("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            res.body(gson.toJson(Map.of("error", e.getMessage())));
+        });
+
         // Handles unexpected server errors
         exception(Exception.class, (e, req, res) -> {
             res.status(500);
@@ -43,6 +81,19 @@ public class BankServer {
             e.printStackTrace();
         });
 
+        // Group commit and the ledger keep all accounts in one database
+        if (Shards.isEnabled() && (GroupCommit.isEnabled() || Ledger.isEnabled())) {
+            throw new IllegalStateException("GROUP_COMMIT and LEDGER_ENGINE cannot be combined with DB_SHARDS.");
+        }
+
+        // Open the pool's minimum connections before serving traffic
+        Database.warmUp();
+        HotAccounts.startFolding();   // background folding of HOT_ACCOUNTS' striped balances
+        IdempotencyKeys.startPurging();
+        ShardOutbox.startRelay();     // credits of transfers between shards, if DB_SHARDS is set
+        Replicas.startMonitor();      // lag checks of read replicas, if any are configured
+        Ledger.start();               // in-memory ledger and its projection, if LEDGER_ENGINE=true
+
         System.out.println("HTTP BankServer running on http://localhost:5230");
 
         // Basic status check
@@ -51,108 +102,417 @@ public class BankServer {
             return gson.toJson(Map.of("status", "online"));
         });
 
+        // Request, database and transaction metrics in Prometheus text format
+        get("/metrics", (req, res) -> {
+            res.type(PrometheusExporter.CONTENT_TYPE);
+            return PrometheusExporter.scrape();
+        });
+
         // Authentication and account routes
         post("/login", (req, res) -> {
 
             // Parse JSON request body into a LoginRequest object
-            LoginRequest data = gson.fromJson(req.body(), LoginRequest.class);
+            LoginRequest data = parseBody(req, LoginRequest.class);
+            // The same spelling picks the shard and is looked up on it
+            String username = Accounts.normalize(data.username);
 
-            try (Connection conn = Database.getConnection()) {
+            // Perform authentication; the handler borrows a connection only around its queries
+            LoginResult result = LoginHandler.authenticate(username, data.password);
 
-                // Perform authentication
-                LoginResult result = LoginHandler.authenticate(conn, data.username, data.password);
+            // If login successful, create token and attach it. The token carries the stored
+            // spelling of the username so per-user caches agree with the database.
+            if (result.success) {
+                result.token = JwtUtil.createToken(result.username);
+            }
 
-                // If login successful, create token and attach it
-                if (result.success) {
-                    result.token = JwtUtil.createToken(data.username);
+            // Return JSON result
+            res.type("application/json");
+            return gson.toJson(result);
+        });
+
+        post("/register", (req, res) -> {
+
+            RegisterRequest data = parseBody(req, RegisterRequest.class);
+            // Registered on the shard the trimmed name hashes to, where logins will look for it
+            String username = Accounts.normalize(data.username);
+
+            RegisterResult result = RegisterHandler.register(username, data.password);
+
+            res.type("application/json");
+            return gson.toJson(result);
+        });
+
+        // Revokes the caller's token so it cannot be used again, even though it has not expired
+        post("/logout", (req, res) -> {
+            JwtUtil.revokeToken(Auth.requireToken(req));
+
+            res.type("application/json");
+            return gson.toJson(new ActionResult(true, "Logged out."));
+        });
+
+        // Account operations
+        get("/balance", (req, res) -> {
+            String username = Auth.requireUsername(req);
+
+            // Ledger and cached balances are answered without borrowing a connection
+            BalanceResult result = Ledger.isEnabled() ? Ledger.balance(username) : null;
+            if (result == null) {
+                result = BalanceHandler.cachedBalance(username);
+            }
+            if (result == null) {
+                Account account = Auth.requireAccount(req);
+                // Before the connection is chosen: a replica picked before a write must not fill the cache
+                long stamp = BalanceHandler.stamp(username);
+                try (Connection conn = Database.getReadConnection(username)) {
+                    result = BalanceHandler.getBalance(conn, account, stamp);
                 }
+            }
 
-                // Return JSON result
-                res.type("application/json");
-                return gson.toJson(result);
+            // The ETag comes from the balance itself, so it matches the body wherever that was read
+            if (result.success && notModified(req, res, AccountChanges.balanceEtag(result.balance))) {
+                return "";
             }
+
+            res.type("application/json");
+            return gson.toJson(result);
         });
 
-        post("/register", (req, res) -> {
+        // Live "balance" and "transaction" events for the caller (Server-Sent Events).
+        // The connection stays open without holding a request thread.
+        get("/events", (req, res) -> {
+            String username = Auth.requireUsername(req);
+
+            EventHub.subscribe(username, req.raw(), res.raw());
+            return "";
+        });
 
-            RegisterRequest data = gson.fromJson(req.body(), RegisterRequest.class);
+        post("/deposit", (req, res) -> {
+            String username = Auth.requireUsername(req);
 
-            try (Connection conn = Database.getConnection()) {
+            DepositRequest data = parseBody(req, DepositRequest.class);
+            String key = idempotencyKey(req, res);
 
-                RegisterResult result = RegisterHandler.register(conn, data.username, data.password);
+            res.type("application/json");
 
-                res.type("application/json");
+            if (Ledger.isEnabled()) {
+                return gson.toJson(Ledger.deposit(username, data.amount, key));
+            }
+
+            Account account = Auth.requireAccount(req);
+
+            // With group commit the deposit joins the next batch instead of committing on its own.
+            // Requests with an idempotency key take the regular path, which records the key.
+            if (GroupCommit.isEnabled() && key == null) {
+                return gson.toJson(GroupCommit.deposit(account, data.amount));
+            }
+
+            try (Connection conn = Database.getConnection(username)) {
+                ActionResult result = DepositHandler.deposit(conn, account, data.amount, key);
                 return gson.toJson(result);
             }
         });
 
-        // Account operations
-        get("/balance", (req, res) -> {
+        post("/withdraw", (req, res) -> {
             String username = Auth.requireUsername(req);
 
-            try (Connection conn = Database.getConnection()) {
+            WithdrawRequest data = parseBody(req, WithdrawRequest.class);
+            String key = idempotencyKey(req, res);
+
+            res.type("application/json");
+
+            if (Ledger.isEnabled()) {
+                return gson.toJson(Ledger.withdraw(username, data.amount, key));
+            }
+
+            Account account = Auth.requireAccount(req);
+
+            if (GroupCommit.isEnabled() && key == null) {
+                return gson.toJson(GroupCommit.withdraw(account, data.amount));
+            }
+
+            try (Connection conn = Database.getConnection(username)) {
+                ActionResult result = WithdrawHandler.withdraw(conn, account, data.amount, key);
+                return gson.toJson(result);
+            }
+        });
+
+        post("/transfer", (req, res) -> {
+            String fromUser = Auth.requireUsername(req);
+
+            TransferRequest data = parseBody(req, TransferRequest.class);
+            String key = idempotencyKey(req, res);
+
+            if (Ledger.isEnabled()) {
+                res.type("application/json");
+                return gson.toJson(Ledger.transfer(fromUser, data.toUser, data.amount, key));
+            }
+
+            Account from = Auth.requireAccount(req);
+
+            try (Connection conn = Database.getConnection(fromUser)) {
 
-                BalanceResult result = BalanceHandler.getBalance(conn, username);
+                ActionResult result = TransferHandler.transfer(conn, from, data.toUser, data.amount, key);
 
                 res.type("application/json");
                 return gson.toJson(result);
             }
         });
 
-        post("/deposit", (req, res) -> {
-            String username = Auth.requireUsername(req);
+        // Pays many recipients from the caller's account in one all-or-nothing transaction
+        post("/transfer/batch", (req, res) -> {
+            String fromUser = Auth.requireUsername(req);
+
+            BatchTransferRequest data = parseBody(req, BatchTransferRequest.class);
+
+            if (Ledger.isEnabled()) {
+                res.type("application/json");
+                return gson.toJson(Ledger.transferBatch(fromUser, data.legs));
+            }
+
+            Account from = Auth.requireAccount(req);
 
-            DepositRequest data = gson.fromJson(req.body(), DepositRequest.class);
+            try (Connection conn = Database.getConnection(fromUser)) {
 
-            try (Connection conn = Database.getConnection()) {
-                ActionResult result = DepositHandler.deposit(conn, username, data.amount);
+                BatchTransferResult result = BatchTransferHandler.transfer(conn, from, data.legs);
 
                 res.type("application/json");
                 return gson.toJson(result);
             }
         });
 
-        post("/withdraw", (req, res) -> {
+        // Transaction history, streamed straight from the database to the response
+        get("/history", (req, res) -> {
             String username = Auth.requireUsername(req);
 
-            WithdrawRequest data = gson.fromJson(req.body(), WithdrawRequest.class);
+            // Paging and filters: ?after=&limit=&from=&to=&type=&order=
+            HistoryQuery query;
+            try {
+                query = parseHistoryQuery(req);
+            } catch (IllegalArgumentException e) {
+                res.status(400);
+                res.type("application/json");
+                return gson.toJson(new HistoryResult(false, e.getMessage(), new ArrayList<>()));
+            }
 
-            try (Connection conn = Database.getConnection()) {
-                ActionResult result = WithdrawHandler.withdraw(conn, username, data.amount);
+            Account account = Auth.requireAccount(req);
+
+            try (Connection conn = Database.getReadConnection(username)) {
+                if (notModified(req, res, accountEtag(conn, account))) {
+                    return "";
+                }
 
                 res.type("application/json");
+
+                HistoryResult result = HistoryHandler.streamHistory(conn, account, query,
+                        new JsonHistoryWriter(res.raw().getOutputStream()));
+
+                if (result.success) {
+                    return "";
+                }
+
+                // Nothing has been written yet if the lookup failed
+                res.raw().setHeader("ETag", null);
                 return gson.toJson(result);
             }
         });
 
-        post("/transfer", (req, res) -> {
-            String fromUser = Auth.requireUsername(req);
+        // Statement download of every matching transaction: ?format=csv|ndjson plus the /history filters
+        get("/history/export", (req, res) -> {
+            Account account = Auth.requireAccount(req);
 
-            TransferRequest data = gson.fromJson(req.body(), TransferRequest.class);
+            String format = req.queryParams("format") == null ? "csv" : req.queryParams("format");
+            HistoryQuery query;
+            try {
+                if (!format.equals("csv") && !format.equals("ndjson")) {
+                    throw new IllegalArgumentException("Format must be 'csv' or 'ndjson'.");
+                }
+                query = parseHistoryQuery(req);
+            } catch (IllegalArgumentException e) {
+                res.status(400);
+                res.type("application/json");
+                return gson.toJson(new HistoryResult(false, e.getMessage(), new ArrayList<>()));
+            }
 
-            try (Connection conn = Database.getConnection()) {
+            // Exports cover the whole range unless a limit is given explicitly
+            if (req.queryParams("limit") == null) {
+                query.limit = HistoryQuery.UNLIMITED;
+            }
+
+            try (Connection conn = Database.getReadConnection(account.username())) {
+                HistoryWriter writer;
+                if (format.equals("csv")) {
+                    res.type("text/csv; charset=utf-8");
+                    res.header("Content-Disposition", "attachment; filename=\"history.csv\"");
+                    writer = new CsvHistoryWriter(res.raw().getOutputStream());
+                } else {
+                    res.type("application/x-ndjson");
+                    res.header("Content-Disposition", "attachment; filename=\"history.ndjson\"");
+                    writer = new NdjsonHistoryWriter(res.raw().getOutputStream());
+                }
 
-                ActionResult result = TransferHandler.transfer(conn, fromUser, data.toUser, data.amount);
+                HistoryResult result;
+                try {
+                    result = HistoryHandler.streamHistory(conn, account, query, writer);
+                } catch (IOException e) {
+                    // An error answered before any row was sent is not a download either
+                    res.raw().setHeader("Content-Disposition", null);
+                    throw e;
+                }
+                if (result.success) {
+                    return "";
+                }
 
                 res.type("application/json");
+                res.raw().setHeader("Content-Disposition", null); // not a download after all
                 return gson.toJson(result);
             }
         });
 
-        // Transaction history
-        get("/history", (req, res) -> {
+        // Totals by transaction type over a date range: ?from=&to=&by=day|month
+        get("/summary", (req, res) -> {
             String username = Auth.requireUsername(req);
 
-            try (Connection conn = Database.getConnection()) {
+            SummaryQuery query;
+            try {
+                query = SummaryQuery.parse(req.queryParams("from"), req.queryParams("to"), req.queryParams("by"));
+            } catch (IllegalArgumentException e) {
+                res.status(400);
+                res.type("application/json");
+                return gson.toJson(new SummaryResult(false, e.getMessage()));
+            }
 
-                HistoryResult result = HistoryHandler.history(conn, username);
+            Account account = Auth.requireAccount(req);
 
+            try (Connection conn = Database.getReadConnection(username)) {
+                // Without 'to' the range moves with the date, so the account's ETag alone would not do
+                if (req.queryParams("to") != null && notModified(req, res, accountEtag(conn, account))) {
+                    return "";
+                }
+
+                SummaryResult result = SummaryHandler.summary(conn, account, query);
+                if (!result.success) {
+                    res.raw().setHeader("ETag", null);
+                }
                 res.type("application/json");
                 return gson.toJson(result);
             }
         });
     }
 
+    /**
+     * Parses the JSON request body. A missing or empty body, or a literal null, is answered
+     * with 400 like malformed JSON instead of reaching the route as null.
+     */
+    private static <T> T parseBody(Request req, Class<T> type) {
+        T data = gson.fromJson(req.body(), type);
+        if (data == null) {
+            throw new JsonParseException("Request body is empty.");
+        }
+        return data;
+    }
+
+    // Reads the /history paging and filter parameters from the request.
+    private static HistoryQuery parseHistoryQuery(Request req) {
+        return HistoryQuery.parse(req.queryParams("after"), req.queryParams("limit"),
+                req.queryParams("from"), req.queryParams("to"),
+                req.queryParams("type"), req.queryParams("order"));
+    }
+
+    /**
+     * Returns the ETag for an account's balance and history. With the ledger engine, which runs
+     * on a single server, it comes from the versions kept in memory; otherwise it is read from
+     * the database on conn, so every server agrees on it.
+     */
+    private static String accountEtag(Connection conn, Account account) {
+        return Ledger.isEnabled() ? AccountChanges.etag(account.username()) : AccountChanges.etag(conn, account);
+    }
+
+    /**
+     * Tags the response with the ETag and answers 304 Not Modified if the client's
+     * If-None-Match already has it. The ETag must be taken before the data is read. A null
+     * ETag (it could not be read) sends no tag.
+     *
+     * @return true if the response is a 304 and nothing else should be done
+     */
+    private static boolean notModified(Request req, Response res, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        res.header("ETag", etag);
+        res.header("Cache-Control", "private, no-cache");
+
+        if (AccountVersions.matches(req.headers("If-None-Match"), etag)) {
+            res.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the request's Idempotency-Key header, or null if it has none. A key that is
+     * empty, too long or not visible ASCII is answered with 400.
+     */
+    private static String idempotencyKey(Request req, Response res) {
+        String key = req.headers("Idempotency-Key");
+        if (key == null) {
+            return null;
+        }
+
+        key = key.trim();
+        if (key.isEmpty() || key.length() > IdempotencyKeys.MAX_KEY_LENGTH
+                || !key.chars().allMatch(c -> c > ' ' && c < 0x7f)) {
+            res.type("application/json");
+            halt(400, gson.toJson(new ActionResult(false,
+                    "Idempotency-Key must be 1 to " + IdempotencyKeys.MAX_KEY_LENGTH + " visible ASCII characters.")));
+        }
+        return key;
+    }
+
+    /**
+     * Chooses how requests are executed, based on SERVER_THREADS:
+     * "platform" (default) uses Jetty's bounded thread pool, "virtual" runs each request on a
+     * virtual thread. SERVER_MAX_THREADS sizes the platform pool.
+     */
+    private static void configureThreads() {
+        String mode = Config.get("SERVER_THREADS", "platform");
+
+        if (mode.equalsIgnoreCase("virtual")) {
+            EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+            System.out.println("Request handling on virtual threads");
+        } else {
+            int maxThreads = Config.getInt("SERVER_MAX_THREADS", 0);
+            if (maxThreads > 0) {
+                threadPool(maxThreads);
+            }
+        }
+    }
+
+    /**
+     * Times every request from the first filter until the response is complete,
+     * including requests that end in an exception.
+     */
+    private static void enableMetrics() {
+        before((req, res) -> Metrics.requestStarted());
+        afterAfter((req, res) -> Metrics.requestFinished(req.requestMethod(), req.pathInfo(), res.raw().getStatus()));
+    }
+
+    /**
+     * Turns away requests over their user's, address's or route's limit with a 429 before any
+     * work is done. Registered after the CORS filter so browsers can read the rejection.
+     */
+    private static void enableAdmission() {
+        before((req, res) -> {
+            Admission.Rejection rejected = Admission.admit(req);
+            if (rejected != null) {
+                res.type("application/json");
+                res.header("Retry-After", String.valueOf(rejected.retryAfterSeconds()));
+                halt(429, gson.toJson(Map.of("error", "Too many requests. Please try again later.")));
+            }
+        });
+        afterAfter((req, res) -> Admission.release(req));
+    }
+
     /**
      * Configures Cross-Origin Resource Sharing headers for all requests.
      *
@@ -179,6 +539,7 @@ public class BankServer {
             res.header("Access-Control-Allow-Origin", origin);
             res.header("Access-Control-Allow-Methods", methods);
             res.header("Access-Control-Allow-Headers", headers);
+            res.header("Access-Control-Expose-Headers", "ETag, Retry-After");
         });
     }
 }
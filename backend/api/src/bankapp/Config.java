@@ -0,0 +1,60 @@
+package bankapp;
+
+import io.github.cdimascio.dotenv.Dotenv;
+
+/**
+ * Reads optional settings from JVM system properties (-DKEY=value), the .env file, or the
+ * system environment, in that order. Missing or malformed values fall back to the given default.
+ */
+public final class Config {
+    private static final Dotenv DOTENV = Dotenv.configure().ignoreIfMissing().load();
+
+    private Config() {}
+
+    /**
+     * Returns the raw value for a key, or null if it is not set.
+     */
+    public static String get(String key) {
+        String value = System.getProperty(key);
+        if (value == null) value = DOTENV.get(key);
+        if (value == null) value = System.getenv(key);
+
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    public static String get(String key, String def) {
+        String value = get(key);
+        return value == null ? def : value;
+    }
+
+    public static int getInt(String key, int def) {
+        String value = get(key);
+        if (value == null) {
+            return def;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static long getLong(String key, long def) {
+        String value = get(key);
+        if (value == null) {
+            return def;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        String value = get(key);
+        return value == null ? def : value.equalsIgnoreCase("true") || value.equals("1");
+    }
+}
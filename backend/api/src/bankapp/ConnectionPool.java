@@ -0,0 +1,453 @@
+package bankapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of JDBC connections. Physical connections are opened once and handed out
+ * as wrappers whose close() returns them to the pool instead of closing the socket,
+ * so handlers keep using try-with-resources exactly as before.
+ *
+ * Idle connections are reused most-recently-returned first, validated on borrow when they
+ * have been idle for a while, and closed by a background task once they exceed the idle
+ * timeout (never dropping below the minimum size). Connections held longer than the leak
+ * threshold are reported with the borrowing thread's name and how long they were held; with
+ * leak tracing on, the stack trace of the code that borrowed them is captured on every borrow
+ * and reported as well.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final long validateAfterMillis;
+    private final long leakThresholdMillis;
+    private final boolean leakTrace;
+    private final int maxWaiters;
+
+    // Limits the number of connections that may be borrowed at once to maxSize
+    private final Semaphore permits;
+
+    // Front of the deque holds the most recently returned connection
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger physicalCount = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final ScheduledExecutorService housekeeper;
+
+    private volatile Listener listener = Listener.NONE;
+
+    // Metrics
+    private final LongAdder borrowCount = new LongAdder();
+    private final LongAdder waitNanosTotal = new LongAdder();
+    private final AtomicLong waitNanosMax = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder createdCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder validationFailureCount = new LongAdder();
+    private final LongAdder leakCount = new LongAdder();
+
+    public ConnectionPool(String url, String user, String password, int minSize, int maxSize, long maxWaitMillis,
+                          long idleTimeoutMillis, long validateAfterMillis, long leakThresholdMillis,
+                          boolean leakTrace, int maxWaiters) {
+        if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validateAfterMillis = validateAfterMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.leakTrace = leakTrace;
+        this.maxWaiters = maxWaiters;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long period = Math.max(1000L, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+        housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Callbacks for timing borrows. Both run on the thread that borrowed or returned the connection.
+     */
+    public interface Listener {
+        Listener NONE = new Listener() {
+            @Override
+            public void acquired(long waitNanos) {
+            }
+
+            @Override
+            public void released(long heldNanos) {
+            }
+        };
+
+        void acquired(long waitNanos);
+
+        void released(long heldNanos);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener == null ? Listener.NONE : listener;
+    }
+
+    /**
+     * Opens connections until the pool holds at least the configured minimum, so the first
+     * requests after startup do not pay the connect and authentication round trips.
+     */
+    public void warmUp() throws SQLException {
+        while (physicalCount.get() < minSize) {
+            idle.offerLast(openPhysical());
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured maximum wait if the pool is exhausted.
+     * Since maxSize caps concurrent borrowers, this also limits how many requests can be
+     * talking to the database at once, however many request threads there are. Callers
+     * beyond the waiter limit are turned away immediately rather than queueing.
+     *
+     * @return a pooled connection; closing it returns it to the pool
+     * @throws SQLTransientConnectionException if the pool is saturated or no connection became available in time
+     * @throws SQLException if a new connection could not be opened
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+
+        boolean acquired = permits.tryAcquire();
+        if (!acquired) {
+            if (waiters.incrementAndGet() > maxWaiters) {
+                waiters.decrementAndGet();
+                rejectedCount.increment();
+                throw new SQLTransientConnectionException("Too many requests waiting for a database connection.");
+            }
+
+            try {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection.", e);
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        if (!acquired) {
+            timeoutCount.increment();
+            throw new SQLTransientConnectionException(
+                    "Timed out after " + maxWaitMillis + " ms waiting for a database connection.");
+        }
+
+        try {
+            PooledConnection pc = takeIdleOrOpen();
+            long now = System.nanoTime();
+            recordWait(now - start);
+            listener.acquired(now - start);
+
+            pc.borrowedNanos = now;
+            pc.borrowedAt = System.currentTimeMillis();
+            pc.borrowThread = Thread.currentThread().getName();
+            // A stack trace per borrow is costly, so it is only captured when asked for
+            pc.borrowSite = leakTrace ? new Throwable("Connection borrowed here") : null;
+            pc.leakReported = false;
+            borrowed.add(pc);
+            borrowCount.increment();
+
+            return pc.newHandle();
+
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the housekeeping task. Borrowed connections are
+     * closed when they are returned.
+     */
+    public void shutdown() {
+        housekeeper.shutdownNow();
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            closePhysical(pc);
+        }
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    public int getTotalCount() {
+        return physicalCount.get();
+    }
+
+    public int getWaitingCount() {
+        return waiters.get();
+    }
+
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    public long getWaitNanosTotal() {
+        return waitNanosTotal.sum();
+    }
+
+    public long getWaitNanosMax() {
+        return waitNanosMax.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.sum();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailureCount.sum();
+    }
+
+    public long getLeakCount() {
+        return leakCount.sum();
+    }
+
+    // Reuses the most recently returned idle connection, validating it if it sat unused for a while.
+    // Opens a new physical connection when nothing usable is idle.
+    private PooledConnection takeIdleOrOpen() throws SQLException {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            long idleFor = System.currentTimeMillis() - pc.returnedAt;
+            if (idleFor < validateAfterMillis || isUsable(pc)) {
+                return pc;
+            }
+            validationFailureCount.increment();
+            closePhysical(pc);
+        }
+        return openPhysical();
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+        try {
+            return !pc.physical.isClosed() && pc.physical.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private PooledConnection openPhysical() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, user, password);
+        physicalCount.incrementAndGet();
+        createdCount.increment();
+        return new PooledConnection(physical);
+    }
+
+    private void closePhysical(PooledConnection pc) {
+        physicalCount.decrementAndGet();
+        try {
+            pc.physical.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Called when a handler closes its wrapper. Resets per-session state so the next borrower
+    // starts from a clean connection, or discards the connection if the reset fails.
+    private void release(PooledConnection pc) {
+        listener.released(System.nanoTime() - pc.borrowedNanos);
+        borrowed.remove(pc);
+        pc.borrowSite = null;
+
+        try {
+            boolean healthy = !pc.physical.isClosed();
+            if (healthy && !pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+
+            if (healthy && !housekeeper.isShutdown()) {
+                pc.returnedAt = System.currentTimeMillis();
+                idle.offerFirst(pc);
+            } else {
+                closePhysical(pc);
+            }
+        } catch (SQLException e) {
+            closePhysical(pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void recordWait(long nanos) {
+        waitNanosTotal.add(nanos);
+        long prev;
+        while (nanos > (prev = waitNanosMax.get())) {
+            if (waitNanosMax.compareAndSet(prev, nanos)) {
+                break;
+            }
+        }
+    }
+
+    // Evicts connections idle past the timeout (oldest first, keeping the minimum),
+    // reports leaked connections, and tops the pool back up to its minimum size.
+    private void housekeep() {
+        try {
+            long now = System.currentTimeMillis();
+
+            PooledConnection oldest;
+            while (physicalCount.get() > minSize && (oldest = idle.peekLast()) != null
+                    && now - oldest.returnedAt > idleTimeoutMillis) {
+                if (idle.removeLastOccurrence(oldest)) {
+                    evictedCount.increment();
+                    closePhysical(oldest);
+                }
+            }
+
+            for (PooledConnection pc : borrowed) {
+                if (!pc.leakReported && now - pc.borrowedAt > leakThresholdMillis) {
+                    pc.leakReported = true;
+                    leakCount.increment();
+                    System.err.println("Possible connection leak: held for " + (now - pc.borrowedAt) + " ms by thread "
+                            + pc.borrowThread + (leakTrace ? "" : " (set DB_POOL_LEAK_TRACE=true for the borrow site)"));
+                    Throwable site = pc.borrowSite;
+                    if (site != null) {
+                        site.printStackTrace();
+                    }
+                }
+            }
+
+            warmUp();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A physical connection plus the bookkeeping the pool needs about it.
+     */
+    private final class PooledConnection {
+        final Connection physical;
+        volatile long returnedAt = System.currentTimeMillis();
+        volatile long borrowedAt;
+        volatile long borrowedNanos;
+        volatile String borrowThread;
+        volatile Throwable borrowSite;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        // Each borrow gets its own handle so a stale reference closed twice cannot
+        // return the connection while someone else is using it.
+        Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Handle(this));
+        }
+    }
+
+    /**
+     * Forwards every call to the physical connection except close() and isClosed(),
+     * which act on this borrow only.
+     *
+     * Calls are serialized with a ReentrantLock rather than synchronized: they include
+     * commits and queries that wait on the network, and on JDK 21 a virtual thread blocked
+     * inside synchronized pins its carrier thread (SERVER_THREADS=virtual).
+     */
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pc;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean closed;
+
+        Handle(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            lock.lock();
+            try {
+                if (name.equals("close")) {
+                    if (!closed) {
+                        closed = true;
+                        release(pc);
+                    }
+                    return null;
+                }
+
+                if (name.equals("isClosed")) {
+                    return closed || pc.physical.isClosed();
+                }
+
+                if (closed) {
+                    throw new SQLException("Connection has already been returned to the pool.");
+                }
+
+                try {
+                    return method.invoke(pc.physical, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
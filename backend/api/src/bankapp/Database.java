@@ -1,33 +1,173 @@
 package bankapp;
 
-import io.github.cdimascio.dotenv.Dotenv;
+import bankapp.metrics.Metrics;
+import bankapp.shard.Shards;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /**
- * Handles connection to the local MySQL database.
+ * Handles connection to the local MySQL database. Connections come from a shared pool
+ * so requests do not pay a new TCP and authentication handshake each time.
+ * With DB_PROFILE=embedded the pool connects to an in-process database instead
+ * (see {@link EmbeddedDatabase}).
+ *
+ * With DB_SHARDS there is one pool per shard, each sized by the DB_POOL_* settings, and
+ * connections are borrowed for the shard that holds a given account (see {@link Shards}).
+ * Read-only requests can borrow from a read replica instead (see {@link Replicas}).
  *
  * @author Ryan Stencavage
  */
 public class Database {
-    private static final Dotenv dotenv = Dotenv.load();
+    private static final boolean EMBEDDED = Config.get("DB_PROFILE", "mysql").equalsIgnoreCase("embedded");
 
-    private static final String URL = dotenv.get("DB_URL");
-    private static final String USER = dotenv.get("DB_USER");
-    private static final String PASSWORD = dotenv.get("DB_PASSWORD");
+    // Shard name -> pool, in DB_SHARDS order
+    private static final Map<String, ConnectionPool> POOLS = createPools();
 
     /**
-     * Opens and returns a new connection to the database. It is called by the handlers when they need to run SQL.
+     * Borrows a connection from the pool. It is called by the handlers when they need to run SQL.
+     * Closing the returned connection hands it back to the pool.
      *
-     * @return a fresh Connection object
+     * @return a pooled Connection object
+     * @throws ServiceUnavailableException if the pool is saturated
+     * @throws IllegalStateException       with DB_SHARDS; use {@link #getConnection(String)}
      */
     public static Connection getConnection() {
+        if (Shards.isEnabled()) {
+            throw new IllegalStateException("With DB_SHARDS, connections are borrowed for an account's shard.");
+        }
+        return getShardConnection(Shards.names().get(0));
+    }
+
+    /**
+     * Borrows a connection to the database that holds the user's account.
+     *
+     * @throws ServiceUnavailableException if that shard's pool is saturated
+     */
+    public static Connection getConnection(String username) {
+        return getShardConnection(Shards.of(username));
+    }
+
+    /**
+     * Borrows a connection to the named shard.
+     *
+     * @throws ServiceUnavailableException if the shard's pool is saturated
+     */
+    public static Connection getShardConnection(String shard) {
+        return borrow(pool(shard));
+    }
+
+    /**
+     * Borrows a connection for reading the user's balance or history: from one of the
+     * shard's read replicas if one is caught up with the user's recent writes, otherwise from
+     * the primary as {@link #getConnection(String)} does. Nothing may be written through it.
+     *
+     * @throws ServiceUnavailableException if the chosen pool is saturated
+     */
+    public static Connection getReadConnection(String username) {
+        ConnectionPool replica = Replicas.choose(username);
+        return replica != null ? borrow(replica) : getConnection(username);
+    }
+
+    private static Connection borrow(ConnectionPool pool) {
         try {
-            return DriverManager.getConnection(URL, USER, PASSWORD);
+            return pool.getConnection();
+        } catch (SQLTransientConnectionException e) {
+            throw new ServiceUnavailableException("Server is busy. Please try again.", 1);
         } catch (SQLException e) {
             throw new RuntimeException("Failed to connect to database.", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Opens every pool's minimum number of connections. Called once at server startup.
+     */
+    public static void warmUp() {
+        try {
+            for (ConnectionPool pool : POOLS.values()) {
+                pool.warmUp();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to connect to database.", e);
+        }
+    }
+
+    /**
+     * Returns true if the server runs on the embedded database.
+     */
+    public static boolean isEmbedded() {
+        return EMBEDDED;
+    }
+
+    /**
+     * Returns the first shard's pool (the only one without DB_SHARDS), mainly so its metrics
+     * can be reported.
+     */
+    public static ConnectionPool pool() {
+        return pool(Shards.names().get(0));
+    }
+
+    /**
+     * Returns a shard's pool, mainly so its metrics can be reported.
+     */
+    public static ConnectionPool pool(String shard) {
+        ConnectionPool pool = POOLS.get(shard);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown shard: " + shard);
+        }
+        return pool;
+    }
+
+    private static Map<String, ConnectionPool> createPools() {
+        Map<String, ConnectionPool> pools = new LinkedHashMap<>();
+        for (String shard : Shards.names()) {
+            String url = EMBEDDED ? EmbeddedDatabase.start(shard) : requireUrl(shard);
+            pools.put(shard, createPool(shard, url));
+        }
+        return pools;
+    }
+
+    // A pool for the shard's primary or one of its replicas, with the shard's credentials
+    static ConnectionPool createPool(String shard, String url) {
+        String user = EMBEDDED ? EmbeddedDatabase.USER : Objects.requireNonNullElse(Shards.setting(shard, "USER"), "");
+        String password = EMBEDDED ? EmbeddedDatabase.PASSWORD
+                : Objects.requireNonNullElse(Shards.setting(shard, "PASSWORD"), "");
+
+        ConnectionPool pool = new ConnectionPool(url, user, password,
+                Config.getInt("DB_POOL_MIN", 4),
+                Config.getInt("DB_POOL_MAX", 20),
+                Config.getInt("DB_POOL_MAX_WAIT_MS", 5000),
+                Config.getInt("DB_POOL_IDLE_TIMEOUT_MS", 600_000),
+                Config.getInt("DB_POOL_VALIDATE_AFTER_MS", 1000),
+                Config.getInt("DB_POOL_LEAK_THRESHOLD_MS", 30_000),
+                Config.getBoolean("DB_POOL_LEAK_TRACE", false),
+                Config.getInt("DB_POOL_MAX_WAITERS", 200));
+
+        // Report connection wait and hold times to the current request's metrics
+        pool.setListener(new ConnectionPool.Listener() {
+            @Override
+            public void acquired(long waitNanos) {
+                Metrics.connectionAcquired(waitNanos);
+            }
+
+            @Override
+            public void released(long heldNanos) {
+                Metrics.connectionReleased(heldNanos);
+            }
+        });
+        return pool;
+    }
+
+    private static String requireUrl(String shard) {
+        String url = Shards.setting(shard, "URL");
+        if (url == null) {
+            throw new IllegalStateException("Missing required environment variable: " + Shards.settingName(shard, "URL")
+                    + " (or set DB_PROFILE=embedded to run without MySQL)");
+        }
+        return url;
+    }
+}
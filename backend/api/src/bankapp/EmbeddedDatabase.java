@@ -0,0 +1,260 @@
+package bankapp;
+
+import bankapp.handlers.Rollups;
+import bankapp.security.PasswordHasher;
+import bankapp.shard.Shards;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process H2 database for running the server without MySQL (DB_PROFILE=embedded), e.g.
+ * for load tests on a single machine. H2 runs in MySQL mode, so the handlers' SQL works
+ * unchanged, including SELECT ... FOR UPDATE.
+ *
+ * Every start creates the tables from db/schema.sql and can seed EMBEDDED_SEED_CUSTOMERS
+ * customers (user1, user2, ... with password EMBEDDED_SEED_PASSWORD) and
+ * EMBEDDED_SEED_TRANSACTIONS transactions between them. Seeding uses a fixed random seed, so
+ * the same settings always give the same data. Timings are not comparable with MySQL; use
+ * them to compare runs with each other.
+ *
+ * With DB_SHARDS each shard is a separate database, seeded with the customers the ring
+ * assigns to it; together they hold the same data as a single database would.
+ */
+public final class EmbeddedDatabase {
+
+    public static final String USER = "sa";
+    public static final String PASSWORD = "";
+
+    private static final int SEED_BATCH = 10_000;
+
+    private EmbeddedDatabase() {}
+
+    /**
+     * Creates and seeds a shard's database.
+     *
+     * @return the JDBC URL to connect to it
+     */
+    public static String start(String shard) {
+        String name = shard.equals(Shards.DEFAULT) ? "bankdb" : "bankdb_" + shard;
+        String path = Config.get("EMBEDDED_DB_PATH");
+        String url = (path == null ? "jdbc:h2:mem:" + name
+                : "jdbc:h2:file:" + Path.of(path).toAbsolutePath() + (shard.equals(Shards.DEFAULT) ? "" : "_" + shard))
+                // IGNORECASE: text compares case-insensitively, as with MySQL's default collation
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;IGNORECASE=TRUE;DB_CLOSE_DELAY=-1"
+                + ";LOCK_TIMEOUT=" + Config.getInt("EMBEDDED_LOCK_TIMEOUT_MS", 10_000);
+
+        // Held open until everything is loaded
+        try (Connection conn = DriverManager.getConnection(url, USER, PASSWORD)) {
+            createSchema(conn, schemaFile());
+            seed(conn, shard, Config.getInt("EMBEDDED_SEED_CUSTOMERS", 0),
+                    Config.getLong("EMBEDDED_SEED_TRANSACTIONS", 0));
+        } catch (SQLException | IOException e) {
+            throw new RuntimeException("Failed to start the embedded database.", e);
+        }
+
+        System.out.println("Using the embedded database " + url);
+        return url;
+    }
+
+    // EMBEDDED_SCHEMA, or db/schema.sql in the working directory or one above it.
+    private static Path schemaFile() throws IOException {
+        String configured = Config.get("EMBEDDED_SCHEMA");
+        if (configured != null) {
+            return Path.of(configured);
+        }
+
+        for (Path dir = Path.of("").toAbsolutePath(); dir != null; dir = dir.getParent()) {
+            Path candidate = dir.resolve("db").resolve("schema.sql");
+            if (Files.isRegularFile(candidate)) {
+                return candidate;
+            }
+        }
+        throw new IOException("db/schema.sql not found; set EMBEDDED_SCHEMA to its path.");
+    }
+
+    // Runs the schema's statements, leaving out the MySQL-only database selection.
+    private static void createSchema(Connection conn, Path schema) throws IOException, SQLException {
+        try (Statement st = conn.createStatement()) {
+            for (String sql : statements(Files.readString(schema))) {
+                String upper = sql.toUpperCase(Locale.ROOT);
+                if (upper.startsWith("CREATE DATABASE") || upper.startsWith("USE ")) {
+                    continue;
+                }
+                st.execute(sql);
+            }
+        }
+    }
+
+    // Splits a script on semicolons, dropping "--" comments. The schema has no string
+    // literals containing either.
+    private static List<String> statements(String script) {
+        StringBuilder sql = new StringBuilder();
+        for (String line : script.split("\n")) {
+            int comment = line.indexOf("--");
+            sql.append(comment < 0 ? line : line.substring(0, comment)).append('\n');
+        }
+
+        List<String> statements = new ArrayList<>();
+        for (String statement : sql.toString().split(";")) {
+            if (!statement.isBlank()) {
+                statements.add(statement.trim());
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Inserts customers user1..userN and a mix of roughly 25% deposits, 25% withdrawals and
+     * 50% transfers of 1.00 to 500.00 between them, spread over the past year in TXN_ID order.
+     * Balances end up as EMBEDDED_SEED_BALANCE plus each customer's transactions; a
+     * withdrawal or transfer that would overdraw is recorded as a deposit instead.
+     *
+     * Only the shard's own customers are inserted. Every shard draws the same transactions
+     * and keeps its side of each; a transfer between shards is recorded on both, each row
+     * naming the other party in TXN_COUNTERPARTY as a cross-shard transfer would.
+     */
+    private static void seed(Connection conn, String shard, int customers, long transactions) throws SQLException {
+        if (customers <= 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Random random = new Random(Config.getLong("EMBEDDED_SEED_RANDOM", 42));
+        long[] balances = new long[customers];
+        Arrays.fill(balances, Config.getLong("EMBEDDED_SEED_BALANCE", 1_000_000) * 100);
+
+        // CUS_ID of each customer on this shard, 0 for those elsewhere. The tables were just
+        // created, so ids are handed out 1, 2, ... in insertion order.
+        long[] ids = new long[customers];
+        int local = 0;
+        for (int i = 0; i < customers; i++) {
+            if (Shards.of("user" + (i + 1)).equals(shard)) {
+                ids[i] = ++local;
+            }
+        }
+
+        // One hash for everyone; hashing per customer would take minutes at production cost
+        String hash = PasswordHasher.hash(Config.get("EMBEDDED_SEED_PASSWORD", "password"));
+
+        String txnSql = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_DATETIME, " +
+                "TXN_COUNTERPARTY) VALUES (?, ?, ?, ?, ?)";
+        String customerSql = "INSERT INTO CUSTOMER (CUS_UNAME, CUS_PASSWD_HASH, CUS_BALANCE) VALUES (?, ?, ?)";
+
+        boolean oldAutoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long rows = 0;
+        try {
+            // Customers first with a placeholder balance, as the records refer to them
+            try (PreparedStatement insert = conn.prepareStatement(customerSql)) {
+                for (int i = 0; i < customers; i++) {
+                    if (ids[i] == 0) {
+                        continue;
+                    }
+                    insert.setString(1, "user" + (i + 1));
+                    insert.setString(2, hash);
+                    insert.setBigDecimal(3, BigDecimal.ZERO);
+                    insert.addBatch();
+                    if (ids[i] % SEED_BATCH == 0) {
+                        insert.executeBatch();
+                        conn.commit();
+                    }
+                }
+                insert.executeBatch();
+                conn.commit();
+            }
+
+            long now = System.currentTimeMillis();
+            long span = TimeUnit.DAYS.toMillis(365);
+
+            try (PreparedStatement insert = conn.prepareStatement(txnSql)) {
+                for (long n = 0; n < transactions; n++) {
+                    int source = random.nextInt(customers);
+                    int dest = random.nextInt(customers);
+                    long amount = 100 + random.nextInt(49_901);
+                    int kind = random.nextInt(4);   // 0 deposit, 1 withdrawal, 2-3 transfer
+
+                    if (kind > 0 && balances[source] < amount) {
+                        kind = 0;
+                    }
+                    if (kind >= 2 && source == dest) {
+                        dest = (dest + 1) % customers;
+                    }
+
+                    boolean debit = kind > 0;
+                    boolean credit = kind != 1;
+                    if (debit) balances[source] -= amount;
+                    if (credit) balances[dest] += amount;
+
+                    boolean localSource = debit && ids[source] != 0;
+                    boolean localDest = credit && ids[dest] != 0;
+                    if (!localSource && !localDest) {
+                        continue;
+                    }
+
+                    String counterparty = null;
+                    if (debit && credit && !localSource) {
+                        counterparty = "user" + (source + 1);
+                    } else if (debit && credit && !localDest) {
+                        counterparty = "user" + (dest + 1);
+                    }
+
+                    insert.setObject(1, localSource ? ids[source] : null, Types.BIGINT);
+                    insert.setObject(2, localDest ? ids[dest] : null, Types.BIGINT);
+                    insert.setBigDecimal(3, BigDecimal.valueOf(amount, 2));
+                    insert.setTimestamp(4, new Timestamp(now - span + span * n / transactions));
+                    insert.setString(5, counterparty);
+                    insert.addBatch();
+                    if (++rows % SEED_BATCH == 0) {
+                        insert.executeBatch();
+                        conn.commit();
+                    }
+                }
+                insert.executeBatch();
+                conn.commit();
+            }
+
+            try (PreparedStatement update = conn.prepareStatement(
+                    "UPDATE CUSTOMER SET CUS_BALANCE = ? WHERE CUS_ID = ?")) {
+                for (int i = 0; i < customers; i++) {
+                    if (ids[i] == 0) {
+                        continue;
+                    }
+                    update.setBigDecimal(1, BigDecimal.valueOf(balances[i], 2));
+                    update.setLong(2, ids[i]);
+                    update.addBatch();
+                    if (ids[i] % SEED_BATCH == 0) {
+                        update.executeBatch();
+                        conn.commit();
+                    }
+                }
+                update.executeBatch();
+                conn.commit();
+            }
+
+            // /summary totals of the rows just loaded
+            Rollups.rebuild(conn);
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(oldAutoCommit);
+        }
+
+        System.out.printf("Seeded %d customers and %d transactions in %d ms%n", local, rows,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
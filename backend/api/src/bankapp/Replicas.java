@@ -0,0 +1,271 @@
+package bankapp;
+
+import bankapp.shard.Shards;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read replicas of the database (DB_REPLICA_URLS, or DB_SHARD_A_REPLICA_URLS per shard with
+ * DB_SHARDS), used for GET /balance and /history so those reads stay off the primary that
+ * transfers lock rows on. Replicas use the credentials of their primary.
+ *
+ * Every DB_REPLICA_CHECK_INTERVAL_MS a monitor thread stamps the primary's REPLICA_HEARTBEAT
+ * row with the primary's clock and reads the row back from each replica. How far the copy
+ * trails the original is the replica's lag. A replica lagging by more than
+ * DB_REPLICA_MAX_LAG_MS, or that could not be read, gets no reads until a later check finds
+ * it caught up; with none left, reads go to the primary.
+ *
+ * Reads are session consistent on each server: once a write of a user's commits here, that
+ * user's reads go to a replica only after a check shows it has applied everything committed
+ * before the write, and to the primary until then. Writes are remembered for
+ * DB_REPLICA_READ_YOUR_WRITES_MS (at least the maximum lag plus the check interval), after
+ * which every replica within the lag limit has them anyway.
+ */
+public final class Replicas {
+
+    private static final long MAX_LAG_MS = Config.getLong("DB_REPLICA_MAX_LAG_MS", 1000);
+    private static final long CHECK_INTERVAL_MS = Math.max(10, Config.getLong("DB_REPLICA_CHECK_INTERVAL_MS", 250));
+    private static final long WINDOW_MS =
+            Math.max(Config.getLong("DB_REPLICA_READ_YOUR_WRITES_MS", 5000), MAX_LAG_MS + CHECK_INTERVAL_MS);
+
+    // Shard -> its replicas, in DB_SHARDS order; shards without replicas are left out
+    private static final Map<String, List<Replica>> REPLICAS = createReplicas();
+
+    // Username -> time of their last write on this server, while within the window
+    private static final Map<String, Long> WRITES = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger NEXT = new AtomicInteger();
+
+    private static final LongAdder REPLICA_READS = new LongAdder();
+    private static final LongAdder RECENT_WRITE_READS = new LongAdder();
+    private static final LongAdder LAGGING_READS = new LongAdder();
+
+    private Replicas() {}
+
+    /**
+     * One replica of a shard, with what its last check found.
+     */
+    public static final class Replica {
+        private final String shard;
+        private final int index;
+        private final ConnectionPool pool;
+
+        // -1 until the first successful check and after a failed one
+        private volatile long lagMillis = -1;
+        // Writes committed before this time (on this server's clock) have been applied
+        private volatile long caughtUpTo = Long.MIN_VALUE;
+        // Whether the last check failed, so a failure is only logged once
+        private boolean down;
+
+        private Replica(String shard, int index, ConnectionPool pool) {
+            this.shard = shard;
+            this.index = index;
+            this.pool = pool;
+        }
+
+        public String shard() {
+            return shard;
+        }
+
+        /**
+         * Position of the replica in its shard's DB_REPLICA_URLS, from 0.
+         */
+        public int index() {
+            return index;
+        }
+
+        public ConnectionPool pool() {
+            return pool;
+        }
+
+        /**
+         * Returns the lag found by the last check in milliseconds, or -1 if it failed.
+         */
+        public long lagMillis() {
+            return lagMillis;
+        }
+
+        private boolean usable() {
+            return lagMillis >= 0 && lagMillis <= MAX_LAG_MS;
+        }
+    }
+
+    /**
+     * Returns true if any shard has read replicas.
+     */
+    public static boolean isEnabled() {
+        return !REPLICAS.isEmpty();
+    }
+
+    /**
+     * Returns every replica, by shard in DB_SHARDS order.
+     */
+    public static List<Replica> all() {
+        List<Replica> all = new ArrayList<>();
+        REPLICAS.values().forEach(all::addAll);
+        return all;
+    }
+
+    /**
+     * Starts checking replica lag in the background. Until the first check, reads go to the
+     * primary. Does nothing without replicas.
+     */
+    public static void startMonitor() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        monitor.scheduleWithFixedDelay(Replicas::checkAll, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a change to the user's balance or history has committed on the primary,
+     * so the user's next reads wait for a replica that has it.
+     */
+    public static void written(String username) {
+        if (isEnabled()) {
+            WRITES.put(username, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Picks a replica for reading the user's data, taking turns between those that qualify.
+     *
+     * @return the replica's pool, or null if the read has to go to the primary
+     */
+    static ConnectionPool choose(String username) {
+        List<Replica> replicas = REPLICAS.get(Shards.of(username));
+        if (replicas == null) {
+            return null;
+        }
+
+        Long written = WRITES.get(username);
+        boolean lagging = true;
+        int start = Math.floorMod(NEXT.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica r = replicas.get((start + i) % replicas.size());
+            if (!r.usable()) {
+                continue;
+            }
+            lagging = false;
+            if (written == null || r.caughtUpTo >= written) {
+                REPLICA_READS.increment();
+                return r.pool;
+            }
+        }
+
+        (lagging ? LAGGING_READS : RECENT_WRITE_READS).increment();
+        return null;
+    }
+
+    public static long getReplicaReadCount() {
+        return REPLICA_READS.sum();
+    }
+
+    /**
+     * Reads sent to the primary because no usable replica had the user's recent write yet.
+     */
+    public static long getRecentWriteReadCount() {
+        return RECENT_WRITE_READS.sum();
+    }
+
+    /**
+     * Reads sent to the primary because every replica lagged too far or could not be read.
+     */
+    public static long getLaggingReadCount() {
+        return LAGGING_READS.sum();
+    }
+
+    private static void checkAll() {
+        for (Map.Entry<String, List<Replica>> e : REPLICAS.entrySet()) {
+            check(e.getKey(), e.getValue());
+        }
+
+        long forgetBefore = System.currentTimeMillis() - WINDOW_MS;
+        WRITES.values().removeIf(time -> time < forgetBefore);
+    }
+
+    private static void check(String shard, List<Replica> replicas) {
+        String stampSql = "UPDATE REPLICA_HEARTBEAT SET HB_TIME = CURRENT_TIMESTAMP(6) WHERE HB_ID = 1";
+        String createSql = "INSERT INTO REPLICA_HEARTBEAT (HB_ID, HB_TIME) VALUES (1, CURRENT_TIMESTAMP(6))";
+        String readSql = "SELECT HB_TIME FROM REPLICA_HEARTBEAT WHERE HB_ID = 1";
+
+        // Taken before the stamp, so everything committed before it precedes the stamp on the primary
+        long start = System.currentTimeMillis();
+        Timestamp stamp;
+        try (Connection conn = Database.getShardConnection(shard)) {
+            try (PreparedStatement ps = conn.prepareStatement(stampSql)) {
+                if (ps.executeUpdate() == 0) {
+                    try (PreparedStatement create = conn.prepareStatement(createSql)) {
+                        create.executeUpdate();
+                    }
+                }
+            }
+            stamp = readHeartbeat(conn, readSql);
+        } catch (SQLException | RuntimeException e) {
+            // Without a fresh stamp the replicas cannot be judged; the last results stand
+            System.err.println("Replica check could not update the heartbeat on shard " + shard + ": " + e);
+            return;
+        }
+
+        for (Replica r : replicas) {
+            try (Connection conn = r.pool.getConnection()) {
+                Timestamp seen = readHeartbeat(conn, readSql);
+                long lag = seen == null ? -1 : Math.max(0, stamp.getTime() - seen.getTime());
+                // Order matters for choose(): a stale caughtUpTo only sends reads to the primary
+                r.caughtUpTo = lag < 0 ? Long.MIN_VALUE : start - lag;
+                r.lagMillis = lag;
+                r.down = false;
+            } catch (SQLException | RuntimeException e) {
+                if (!r.down) {
+                    System.err.println("Replica " + r.index + " of shard " + shard + " is unavailable: " + e);
+                }
+                r.lagMillis = -1;
+                r.down = true;
+            }
+        }
+    }
+
+    private static Timestamp readHeartbeat(Connection conn, String sql) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getTimestamp("HB_TIME") : null;
+        }
+    }
+
+    private static Map<String, List<Replica>> createReplicas() {
+        Map<String, List<Replica>> replicas = new LinkedHashMap<>();
+        for (String shard : Shards.names()) {
+            String urls = Config.get(Shards.settingName(shard, "REPLICA_URLS"), "");
+            List<Replica> list = new ArrayList<>();
+            for (String url : urls.split(",")) {
+                if (!url.isBlank()) {
+                    list.add(new Replica(shard, list.size(), Database.createPool(shard, url.trim())));
+                }
+            }
+            if (!list.isEmpty()) {
+                replicas.put(shard, List.copyOf(list));
+            }
+        }
+        return replicas;
+    }
+}
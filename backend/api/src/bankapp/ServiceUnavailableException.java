@@ -0,0 +1,18 @@
+package bankapp;
+
+/**
+ * Thrown when the server is too busy to take on a request. Reported to the client as a 503
+ * with a Retry-After header.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+    private final int retryAfterSeconds;
+
+    public ServiceUnavailableException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,108 @@
+package bankapp.cache;
+
+import bankapp.dto.Account;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process map from username to account id, so requests can refer to accounts by
+ * CUS_ID without looking the username up every time.
+ *
+ * A username's id never changes and accounts are never deleted, so entries are never
+ * invalidated, only evicted to stay within maxEntries. Usernames compare case-insensitively
+ * in the database, so entries are keyed by the lower-case name. Unknown usernames are not
+ * remembered, since they may be registered at any time.
+ */
+public class AccountIdCache {
+
+    // Rough per-entry cost of a map node, the key and stored name strings and the record
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final int maxEntries;
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries upper bound on cached accounts; 0 disables caching
+     */
+    public AccountIdCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached account, or null if it must be looked up in the database.
+     */
+    public Account get(String username) {
+        Account account = maxEntries <= 0 ? null : accounts.get(key(username));
+        if (account == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return account;
+    }
+
+    /**
+     * Remembers an account read from the database.
+     */
+    public void put(Account account) {
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        if (accounts.size() >= maxEntries) {
+            makeRoom();
+        }
+        accounts.put(key(account.username()), account);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     * Approximate heap used by the cached entries.
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Account account : accounts.values()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * account.username().length();
+        }
+        return bytes;
+    }
+
+    // Drops an arbitrary tenth of the cache.
+    private void makeRoom() {
+        int toDrop = accounts.size() - maxEntries + Math.max(1, maxEntries / 10);
+        Iterator<String> it = accounts.keySet().iterator();
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,94 @@
+package bankapp.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks a version per account that changes whenever the account's balance or history changes,
+ * so clients can revalidate /balance and /history with an ETag instead of downloading them again.
+ *
+ * Versions are drawn from one process-wide sequence and the ETag also carries the server's
+ * start time. An account seen for the first time, or evicted and seen again, simply gets a new
+ * version, so a full response is sent where a 304 would have done.
+ *
+ * Only changes made through this process move a version; a write handled by another server
+ * does not. The versions are therefore only correct where a single server makes every change,
+ * as with the ledger engine. Other deployments derive ETags from the database instead.
+ */
+public class AccountVersions {
+
+    private final int maxEntries;
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxEntries upper bound on tracked accounts
+     */
+    public AccountVersions(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * Returns the ETag for an account's current version. Take it before reading the data it
+     * describes, so the tag is never newer than the response.
+     */
+    public String etag(String username) {
+        Long version = versions.get(username);
+        if (version == null) {
+            if (versions.size() >= maxEntries) {
+                makeRoom();
+            }
+            version = versions.computeIfAbsent(username, k -> sequence.incrementAndGet());
+        }
+        return "\"" + epoch + "-" + Long.toString(version, 36) + "\"";
+    }
+
+    /**
+     * Moves an account to a new version. Called after a committed change to it.
+     *
+     * @return the new version; versions only grow, so they also order changes
+     */
+    public long bump(String username) {
+        long version = sequence.incrementAndGet();
+        versions.put(username, version);
+        return version;
+    }
+
+    /**
+     * Returns true if an If-None-Match header lists the given ETag (or is "*").
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    // Forgets an arbitrary tenth of the accounts; they get a new version when next seen.
+    private void makeRoom() {
+        int toDrop = versions.size() - maxEntries + Math.max(1, maxEntries / 10);
+        Iterator<String> it = versions.keySet().iterator();
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
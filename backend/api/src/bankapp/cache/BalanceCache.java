@@ -0,0 +1,138 @@
+package bankapp.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process cache of account balances in cents, keyed by username.
+ *
+ * Handlers that change a balance invalidate it after their commit. A value loaded from the
+ * database is only stored if no invalidation for that user happened while it was being read,
+ * so a slow read can never put a balance older than a committed write back into the cache.
+ * Invalidations are tracked per stripe of usernames rather than per user, which keeps the
+ * bookkeeping fixed-size at the cost of occasionally skipping a store.
+ */
+public class BalanceCache {
+
+    private static final int STRIPES = 256;
+
+    // Rough per-entry cost of a map node, the key string header and a boxed Long
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+
+    private final Map<String, Long> balances = new ConcurrentHashMap<>();
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries upper bound on cached balances; 0 disables caching
+     */
+    public BalanceCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached balance in cents, or null if it must be read from the database.
+     */
+    public Long get(String username) {
+        Long cents = maxEntries <= 0 ? null : balances.get(username);
+        if (cents == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return cents;
+    }
+
+    /**
+     * Returns a stamp to take before reading a balance from the database and to pass to
+     * {@link #put} afterwards.
+     */
+    public long stamp(String username) {
+        return generations.get(stripe(username));
+    }
+
+    /**
+     * Stores a balance read from the database, unless it was invalidated since the stamp was taken.
+     */
+    public void put(String username, long cents, long stamp) {
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        if (balances.size() >= maxEntries) {
+            makeRoom();
+        }
+
+        balances.put(username, cents);
+
+        // An invalidation may have raced with the store; never leave an outdated value cached
+        if (generations.get(stripe(username)) != stamp) {
+            balances.remove(username);
+        }
+    }
+
+    /**
+     * Drops a user's cached balance. Called after a committed change to the balance.
+     */
+    public void invalidate(String username) {
+        generations.incrementAndGet(stripe(username));
+        balances.remove(username);
+        invalidations.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        return balances.size();
+    }
+
+    /**
+     * Approximate heap used by the cached entries.
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (String username : balances.keySet()) {
+            bytes += ENTRY_OVERHEAD_BYTES + username.length();
+        }
+        return bytes;
+    }
+
+    // Drops an arbitrary tenth of the cache.
+    private void makeRoom() {
+        int toDrop = balances.size() - maxEntries + Math.max(1, maxEntries / 10);
+        Iterator<String> it = balances.keySet().iterator();
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private static int stripe(String username) {
+        int h = username.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,102 @@
+package bankapp.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recently completed requests by idempotency key, so a client's retry can be answered
+ * without a database round trip. Least recently used entries are dropped first once the
+ * cache is full, and entries are ignored once older than the TTL.
+ *
+ * This is only a shortcut: the database table behind it is what makes keys unique, so a
+ * key missing here (evicted, expired or stored by another process) is still caught there.
+ */
+public class IdempotencyCache {
+
+    /**
+     * A completed request: what it was, and the JSON response it got.
+     */
+    public record Entry(String request, String response, long storedAtMillis) {
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // Access-ordered, so iteration starts at the least recently used entry; guarded by this
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries upper bound on cached keys; 0 disables caching
+     * @param ttlMillis  how long a key is remembered
+     */
+    public IdempotencyCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > IdempotencyCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the completed request stored under the key, or null.
+     */
+    public Entry get(String key) {
+        Entry entry = null;
+        if (maxEntries > 0) {
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null && System.currentTimeMillis() - entry.storedAtMillis >= ttlMillis) {
+                    entries.remove(key);
+                    entry = null;
+                }
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Remembers a completed request. Call after the transaction that recorded it committed.
+     */
+    public void put(String key, Entry entry) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        synchronized (this) {
+            entries.put(key, entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,8 @@
+package bankapp.dto;
+
+/**
+ * An account's internal id (CUSTOMER.CUS_ID) and its username as stored.
+ * The id is what the database joins and locks on; the username is what users see.
+ */
+public record Account(long id, String username) {
+}
@@ -0,0 +1,18 @@
+package bankapp.dto;
+
+import com.google.gson.annotations.JsonAdapter;
+
+/**
+ * Data of a "balance" event on /events. Versions grow with every change, so a client
+ * can ignore an event older than one it has already applied.
+ */
+public class BalanceEvent {
+    @JsonAdapter(Money.Adapter.class)
+    public long balance;       // cents
+    public long version;
+
+    public BalanceEvent(long balance, long version) {
+        this.balance = balance;
+        this.version = version;
+    }
+}
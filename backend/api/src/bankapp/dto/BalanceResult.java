@@ -1,14 +1,17 @@
 package bankapp.dto;
 
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * JSON response containing a user's balance.
  */
 public class BalanceResult {
     public boolean success;
     public String message;
-    public double balance;
+    @JsonAdapter(Money.Adapter.class)
+    public long balance;       // cents
 
-    public BalanceResult(boolean success, String message, double balance) {
+    public BalanceResult(boolean success, String message, long balance) {
         this.success = success;
         this.message = message;
         this.balance = balance;
@@ -0,0 +1,26 @@
+package bankapp.dto;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.List;
+
+/**
+ * JSON input for a batch transfer: many recipients paid from the caller's account at once.
+ */
+public class BatchTransferRequest {
+    public List<Leg> legs;
+
+    /**
+     * One recipient and amount within a batch.
+     */
+    public static class Leg {
+        public String toUser;
+        @JsonAdapter(Money.Adapter.class)
+        public long amount;    // cents
+
+        public Leg(String toUser, long amount) {
+            this.toUser = toUser;
+            this.amount = amount;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package bankapp.dto;
+
+import java.util.List;
+
+/**
+ * Response object for /transfer/batch. On failure nothing was transferred, and errors lists
+ * the legs that caused it (omitted when the failure is not specific to a leg).
+ */
+public class BatchTransferResult {
+    public boolean success;
+    public String message;
+    public int legs;
+    public List<LegError> errors;
+
+    public BatchTransferResult(boolean success, String message, int legs, List<LegError> errors) {
+        this.success = success;
+        this.message = message;
+        this.legs = legs;
+        this.errors = errors;
+    }
+
+    /**
+     * Why a single leg was rejected. index is the leg's position in the request.
+     */
+    public static class LegError {
+        public int index;
+        public String toUser;
+        public String message;
+
+        public LegError(int index, String toUser, String message) {
+            this.index = index;
+            this.toUser = toUser;
+            this.message = message;
+        }
+    }
+}
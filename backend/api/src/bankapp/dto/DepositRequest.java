@@ -1,9 +1,12 @@
 package bankapp.dto;
 
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * JSON input for a deposit request.
  */
 public class DepositRequest {
     public String username;
-    public double amount;
+    @JsonAdapter(Money.Adapter.class)
+    public long amount;        // cents
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package bankapp.dto;
 
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * A single transaction entry returned in history results.
  */
@@ -10,13 +12,16 @@ public class HistoryItem {
     public static final String TRANSFER_IN = "TRANSFER_IN";
     public static final String TRANSFER_OUT = "TRANSFER_OUT";
 
+    public long id;
     public String type;
     public String fromUser;
     public String toUser;
-    public double amount;
+    @JsonAdapter(Money.Adapter.class)
+    public long amount;        // cents
     public String time;
 
-    public HistoryItem(String type, String fromUser, String toUser, double amount, String time) {
+    public HistoryItem(long id, String type, String fromUser, String toUser, long amount, String time) {
+        this.id = id;
         this.type = type;
         this.fromUser = fromUser;
         this.toUser = toUser;
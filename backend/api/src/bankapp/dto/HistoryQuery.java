@@ -0,0 +1,107 @@
+package bankapp.dto;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Paging and filter options for the /history API.
+ * Results are keyed on TXN_ID: "after" is the cursor returned as nextCursor by the previous page.
+ */
+public class HistoryQuery {
+
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int MAX_LIMIT = 500;
+
+    // Limit value meaning "every matching row"; only used by streaming exports
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Transaction types that can be used as a filter.
+     */
+    public enum Type { DEPOSIT, WITHDRAW, TRANSFER_IN, TRANSFER_OUT }
+
+    public Long after;                          // exclusive TXN_ID cursor, null for the first page
+    public int limit = DEFAULT_LIMIT;
+    public LocalDateTime from;                  // inclusive, null for no lower bound
+    public LocalDateTime to;                    // exclusive, null for no upper bound
+    public EnumSet<Type> types = EnumSet.allOf(Type.class);
+    public boolean newestFirst;
+
+    /**
+     * Builds a query from raw request parameters. Any parameter may be null.
+     *
+     * @throws IllegalArgumentException with a user-facing message if a parameter is malformed
+     */
+    public static HistoryQuery parse(String after, String limit, String from, String to, String type, String order) {
+        HistoryQuery q = new HistoryQuery();
+
+        if (after != null && !after.isBlank()) {
+            try {
+                q.after = Long.parseLong(after.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor.");
+            }
+        }
+
+        if (limit != null && !limit.isBlank()) {
+            try {
+                q.limit = Integer.parseInt(limit.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit.");
+            }
+            if (q.limit < 1 || q.limit > MAX_LIMIT) {
+                throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT + ".");
+            }
+        }
+
+        q.from = parseTime(from, false);
+        q.to = parseTime(to, true);
+
+        if (q.from != null && q.to != null && !q.from.isBefore(q.to)) {
+            throw new IllegalArgumentException("'from' must be before 'to'.");
+        }
+
+        if (type != null && !type.isBlank()) {
+            q.types = EnumSet.noneOf(Type.class);
+            for (String t : type.split(",")) {
+                try {
+                    q.types.add(Type.valueOf(t.trim().toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown transaction type: " + t.trim());
+                }
+            }
+        }
+
+        if (order != null && !order.isBlank()) {
+            switch (order.trim().toLowerCase(Locale.ROOT)) {
+                case "asc" -> q.newestFirst = false;
+                case "desc" -> q.newestFirst = true;
+                default -> throw new IllegalArgumentException("Order must be 'asc' or 'desc'.");
+            }
+        }
+
+        return q;
+    }
+
+    // Accepts either a date (2024-05-01) or a date-time (2024-05-01T13:30).
+    // A bare date used as an upper bound includes that whole day.
+    private static LocalDateTime parseTime(String value, boolean upperBound) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+
+        String v = value.trim();
+        try {
+            if (v.length() == 10) {
+                LocalDate d = LocalDate.parse(v);
+                return upperBound ? d.plusDays(1).atStartOfDay() : d.atStartOfDay();
+            }
+            return LocalDateTime.parse(v);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + v);
+        }
+    }
+}
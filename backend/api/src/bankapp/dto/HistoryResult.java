@@ -10,6 +10,9 @@ public class HistoryResult {
     public String message;
     public List<HistoryItem> transactions;
 
+    // Cursor to pass as "after" for the next page, null when there are no more results
+    public Long nextCursor;
+
     public HistoryResult(boolean success, String message, List<HistoryItem> transactions) {
         this.success = success;
         this.message = message;
@@ -7,6 +7,7 @@ public class LoginResult {
     public boolean success;
     public String message;
     public String token;
+    public String username;    // as stored, which may differ in case from what was typed
 
     public LoginResult(boolean success, String message) {
         this.success = success;
@@ -0,0 +1,145 @@
+package bankapp.dto;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Money amounts are held as a long number of cents everywhere in the server, so arithmetic
+ * is exact and rows are decoded without going through a floating-point value.
+ * This class converts between cents and the decimal text used in JSON and the database.
+ */
+public final class Money {
+
+    /** Largest amount a DECIMAL(15,2) column can hold, in cents. */
+    public static final long MAX_CENTS = 999_999_999_999_999L;
+
+    private Money() {}
+
+    /**
+     * Parses a decimal amount such as "12", "12.5" or "12.34" into cents.
+     * Exponents, more than two decimal places, signs other than a leading minus and
+     * values that do not fit in the database column are rejected rather than rounded.
+     *
+     * @throws InvalidAmountException if the text is not a valid amount
+     */
+    public static long parse(String text) {
+        if (text == null || text.isEmpty()) {
+            throw new InvalidAmountException("Amount is required.");
+        }
+
+        int i = 0;
+        boolean negative = text.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+
+        long units = 0;
+        int intDigits = 0;
+        while (i < text.length() && isDigit(text.charAt(i))) {
+            units = units * 10 + (text.charAt(i) - '0');
+            intDigits++;
+            i++;
+            if (intDigits > 13) {
+                throw new InvalidAmountException("Amount is too large.");
+            }
+        }
+
+        long fraction = 0;
+        int fracDigits = 0;
+        if (i < text.length() && text.charAt(i) == '.') {
+            i++;
+            while (i < text.length() && isDigit(text.charAt(i))) {
+                fraction = fraction * 10 + (text.charAt(i) - '0');
+                fracDigits++;
+                i++;
+            }
+            if (fracDigits == 0) {
+                throw invalid();
+            }
+            if (fracDigits > 2) {
+                throw new InvalidAmountException("Amount cannot have more than two decimal places.");
+            }
+        }
+
+        if (intDigits == 0 || i != text.length()) {
+            throw invalid();
+        }
+
+        long cents = units * 100 + (fracDigits == 1 ? fraction * 10 : fraction);
+        return negative ? -cents : cents;
+    }
+
+    /**
+     * Formats cents as a plain decimal with two places, e.g. 1234 as "12.34".
+     */
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        long frac = abs % 100;
+        StringBuilder sb = new StringBuilder(24);
+        if (cents < 0) {
+            sb.append('-');
+        }
+        sb.append(abs / 100).append('.');
+        if (frac < 10) {
+            sb.append('0');
+        }
+        return sb.append(frac).toString();
+    }
+
+    /**
+     * Returns the amount as a DECIMAL value for JDBC parameters.
+     */
+    public static BigDecimal toDecimal(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static InvalidAmountException invalid() {
+        return new InvalidAmountException("Amount must be a number with at most two decimal places.");
+    }
+
+    /**
+     * Thrown when a request contains an amount that cannot be represented exactly in cents.
+     * The message is safe to show to the user.
+     */
+    public static class InvalidAmountException extends JsonParseException {
+        public InvalidAmountException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Gson adapter for long cent fields. Amounts are read from a JSON number or string
+     * (form inputs send strings) and written as a JSON number with two decimal places.
+     */
+    public static class Adapter extends TypeAdapter<Long> {
+        @Override
+        public void write(JsonWriter out, Long cents) throws IOException {
+            if (cents == null) {
+                out.nullValue();
+            } else {
+                out.jsonValue(format(cents));
+            }
+        }
+
+        @Override
+        public Long read(JsonReader in) throws IOException {
+            JsonToken token = in.peek();
+            if (token != JsonToken.NUMBER && token != JsonToken.STRING) {
+                in.skipValue();
+                throw invalid();
+            }
+            // For numbers this returns the literal as written, before any conversion to double
+            return parse(in.nextString().trim());
+        }
+    }
+}
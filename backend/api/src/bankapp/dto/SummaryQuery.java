@@ -0,0 +1,65 @@
+package bankapp.dto;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Date range and grouping for the /summary API.
+ */
+public class SummaryQuery {
+
+    /**
+     * Periods the range can be broken down into.
+     */
+    public enum Period { DAY, MONTH }
+
+    public LocalDate from;      // inclusive
+    public LocalDate to;        // inclusive
+    public Period by;           // null for the range as a whole only
+
+    /**
+     * Builds a query from raw request parameters. Any parameter may be null; the range
+     * defaults to the current month up to today.
+     *
+     * @throws IllegalArgumentException if a parameter is malformed
+     */
+    public static SummaryQuery parse(String from, String to, String by) {
+        SummaryQuery q = new SummaryQuery();
+        q.to = parseDate(to);
+        if (q.to == null) {
+            q.to = LocalDate.now();
+        }
+        q.from = parseDate(from);
+        if (q.from == null) {
+            q.from = q.to.withDayOfMonth(1);
+        }
+
+        if (q.from.isAfter(q.to)) {
+            throw new IllegalArgumentException("'from' must not be after 'to'.");
+        }
+
+        if (by != null && !by.isBlank()) {
+            try {
+                q.by = Period.valueOf(by.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid 'by': " + by.trim() + " (use day or month)");
+            }
+        }
+        return q;
+    }
+
+    // Totals are kept per day, so only whole days (2024-05-01) are accepted
+    private static LocalDate parseDate(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+
+        String v = value.trim();
+        try {
+            return LocalDate.parse(v);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + v);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package bankapp.dto;
+
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response object for /summary API: how many transactions of each type an account had in a
+ * date range and how much they came to.
+ */
+public class SummaryResult {
+    public boolean success;
+    public String message;
+    public String from;                         // inclusive, yyyy-MM-dd
+    public String to;                           // inclusive, yyyy-MM-dd
+    public Map<String, Total> totals;           // by HistoryItem type
+
+    // Days or months with transactions, oldest first; only with ?by=
+    public List<Period> periods;
+
+    public SummaryResult(boolean success, String message) {
+        this.success = success;
+        this.message = message;
+    }
+
+    /**
+     * Totals of one day (yyyy-MM-dd) or month (yyyy-MM).
+     */
+    public static class Period {
+        public String period;
+        public Map<String, Total> totals = emptyTotals();
+
+        public Period(String period) {
+            this.period = period;
+        }
+    }
+
+    /**
+     * Count and sum of one type of transaction.
+     */
+    public static class Total {
+        public long count;
+        @JsonAdapter(Money.Adapter.class)
+        public long amount;     // cents
+    }
+
+    /**
+     * Returns zero totals for every transaction type.
+     */
+    public static Map<String, Total> emptyTotals() {
+        Map<String, Total> totals = new LinkedHashMap<>();
+        for (String type : new String[] {HistoryItem.DEPOSIT, HistoryItem.WITHDRAW,
+                HistoryItem.TRANSFER_IN, HistoryItem.TRANSFER_OUT}) {
+            totals.put(type, new Total());
+        }
+        return totals;
+    }
+}
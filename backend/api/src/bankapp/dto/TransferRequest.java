@@ -1,10 +1,13 @@
 package bankapp.dto;
 
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * JSON input for a transfer request.
  */
 public class TransferRequest {
     public String fromUser;
     public String toUser;
-    public double amount;
+    @JsonAdapter(Money.Adapter.class)
+    public long amount;        // cents
 }
@@ -1,9 +1,12 @@
 package bankapp.dto;
 
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * JSON input for a withdrawal request.
  */
 public class WithdrawRequest {
     public String username;
-    public double amount;
+    @JsonAdapter(Money.Adapter.class)
+    public long amount;        // cents
 }
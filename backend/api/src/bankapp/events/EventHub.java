@@ -0,0 +1,169 @@
+package bankapp.events;
+
+import bankapp.Config;
+import bankapp.ServiceUnavailableException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of open /events connections (Server-Sent Events) by username, and fan-out of
+ * account events to them.
+ *
+ * A subscription holds no thread: the request is switched to async mode and events are
+ * written with non-blocking output from whichever thread publishes them. A single
+ * background thread sends a comment every few seconds so idle connections stay open
+ * through proxies and dead ones are noticed.
+ */
+public final class EventHub {
+
+    private static final int MAX_SUBSCRIBERS = Config.getInt("SSE_MAX_SUBSCRIBERS", 10_000);
+    private static final int MAX_PER_USER = Config.getInt("SSE_MAX_PER_USER", 4);
+    private static final int BUFFER_EVENTS = Config.getInt("SSE_BUFFER_EVENTS", 64);
+    private static final long HEARTBEAT_SECONDS = 15;
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final Map<String, Set<Subscriber>> SUBSCRIBERS = new ConcurrentHashMap<>();
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private static final LongAdder PUBLISHED = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sse-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        HEARTBEATS.scheduleAtFixedRate(EventHub::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private EventHub() {}
+
+    /**
+     * Turns the request into an event stream for the user. The response is committed and the
+     * request thread is released as soon as this returns.
+     *
+     * @throws ServiceUnavailableException if the server already has the maximum number of streams
+     */
+    public static void subscribe(String username, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        if (COUNT.get() >= MAX_SUBSCRIBERS) {
+            throw new ServiceUnavailableException("Too many open event streams.", 5);
+        }
+
+        res.setStatus(HttpServletResponse.SC_OK);
+        res.setContentType("text/event-stream");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        res.setHeader("X-Accel-Buffering", "no"); // tell reverse proxies not to buffer the stream
+
+        // Send the headers now so the framework treats the response as already written
+        res.getOutputStream().write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+        res.flushBuffer();
+
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+
+        Subscriber sub = new Subscriber(username, async, BUFFER_EVENTS);
+        async.addListener(sub);
+        res.getOutputStream().setWriteListener(sub);
+
+        // compute() keeps adding and removing a user's last stream atomic
+        Set<Subscriber> set = SUBSCRIBERS.compute(username, (k, s) -> {
+            Set<Subscriber> subs = s == null ? ConcurrentHashMap.newKeySet() : s;
+            subs.add(sub);
+            return subs;
+        });
+        COUNT.incrementAndGet();
+
+        // The client may already have gone away while registering
+        if (sub.isClosed()) {
+            unsubscribe(sub);
+            return;
+        }
+
+        // A user reloading the page leaves old streams behind; keep only the newest few
+        if (set.size() > MAX_PER_USER) {
+            for (Subscriber old : set) {
+                if (old != sub) {
+                    old.close();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the user has at least one open stream, so publishers can skip
+     * preparing events nobody will receive.
+     */
+    public static boolean hasSubscribers(String username) {
+        Set<Subscriber> set = SUBSCRIBERS.get(username);
+        return set != null && !set.isEmpty();
+    }
+
+    /**
+     * Sends an event to every open stream of the user.
+     *
+     * @param event event name, e.g. "balance"
+     * @param json  event data on a single line
+     */
+    public static void publish(String username, String event, String json) {
+        Set<Subscriber> set = SUBSCRIBERS.get(username);
+        if (set == null || set.isEmpty()) {
+            return;
+        }
+
+        byte[] bytes = ("event: " + event + "\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8);
+        for (Subscriber sub : set) {
+            if (!sub.send(bytes)) {
+                DROPPED.increment();
+            }
+        }
+        PUBLISHED.increment();
+    }
+
+    public static int getSubscriberCount() {
+        return COUNT.get();
+    }
+
+    public static long getPublishedCount() {
+        return PUBLISHED.sum();
+    }
+
+    public static long getDroppedCount() {
+        return DROPPED.sum();
+    }
+
+    static void unsubscribe(Subscriber sub) {
+        SUBSCRIBERS.computeIfPresent(sub.username, (k, subs) -> {
+            if (subs.remove(sub)) {
+                COUNT.decrementAndGet();
+            }
+            return subs.isEmpty() ? null : subs;
+        });
+    }
+
+    private static void heartbeat() {
+        for (Set<Subscriber> set : SUBSCRIBERS.values()) {
+            for (Subscriber sub : set) {
+                if (!sub.send(HEARTBEAT)) {
+                    DROPPED.increment();
+                }
+            }
+        }
+    }
+}
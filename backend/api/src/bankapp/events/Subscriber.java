@@ -0,0 +1,122 @@
+package bankapp.events;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One open /events connection. Events are queued in a bounded buffer and written with
+ * non-blocking servlet output, so neither the connection nor a publisher ever waits on a
+ * slow client. If the buffer fills up the subscriber is disconnected; the client reconnects
+ * and reloads its state.
+ */
+class Subscriber implements WriteListener, AsyncListener {
+
+    final String username;
+
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private final BlockingQueue<byte[]> pending;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private boolean unflushed;   // guarded by this
+
+    Subscriber(String username, AsyncContext async, int bufferEvents) throws IOException {
+        this.username = username;
+        this.async = async;
+        this.out = async.getResponse().getOutputStream();
+        this.pending = new ArrayBlockingQueue<>(bufferEvents);
+    }
+
+    /**
+     * Queues an encoded event for sending.
+     *
+     * @return false if the buffer was full and the subscriber has been dropped
+     */
+    boolean send(byte[] event) {
+        if (closed.get()) {
+            return true;
+        }
+        if (!pending.offer(event)) {
+            close();
+            return false;
+        }
+        drain();
+        return true;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Ends the response and removes the subscriber from the hub.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            EventHub.unsubscribe(this);
+            try {
+                async.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container
+            }
+        }
+    }
+
+    // Writes queued events for as long as the connection accepts them without blocking,
+    // then flushes. Called by publishers and by the container when writing is possible again.
+    private synchronized void drain() {
+        try {
+            while (!closed.get() && out.isReady()) {
+                byte[] next = pending.poll();
+                if (next == null) {
+                    if (!unflushed) {
+                        return;
+                    }
+                    unflushed = false;
+                    out.flush();
+                    continue;
+                }
+                out.write(next);
+                unflushed = true;
+            }
+        } catch (IOException | IllegalStateException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
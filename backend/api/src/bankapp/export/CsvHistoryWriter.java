@@ -0,0 +1,74 @@
+package bankapp.export;
+
+import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryResult;
+import bankapp.dto.Money;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes history as CSV with a header row, suitable for statement downloads.
+ */
+public class CsvHistoryWriter implements HistoryWriter {
+    private final Writer out;
+
+    public CsvHistoryWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void begin(HistoryResult result) throws IOException {
+        out.write("id,type,fromUser,toUser,amount,time\r\n");
+    }
+
+    @Override
+    public void item(HistoryItem item) throws IOException {
+        out.write(Long.toString(item.id));
+        out.write(',');
+        out.write(item.type);
+        out.write(',');
+        writeField(item.fromUser);
+        out.write(',');
+        writeField(item.toUser);
+        out.write(',');
+        out.write(Money.format(item.amount));
+        out.write(',');
+        writeField(item.time);
+        out.write("\r\n");
+    }
+
+    @Override
+    public void end(HistoryResult result) throws IOException {
+        out.flush();
+    }
+
+    // Quotes a field if it contains a separator, quote or line break (RFC 4180).
+    // Values that a spreadsheet would treat as a formula are prefixed with a quote.
+    private void writeField(String value) throws IOException {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+
+        char first = value.charAt(0);
+        if (first == '=' || first == '+' || first == '-' || first == '@') {
+            value = "'" + value;
+        }
+
+        boolean quote = value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
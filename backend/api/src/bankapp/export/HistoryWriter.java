@@ -0,0 +1,31 @@
+package bankapp.export;
+
+import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryResult;
+
+import java.io.IOException;
+
+/**
+ * Receives transaction history rows as they are read from the database.
+ * Implementations write them straight to an output stream so large histories
+ * never have to be held in memory.
+ */
+public interface HistoryWriter {
+
+    /**
+     * Called once before the first row, after the user and query have been checked.
+     */
+    default void begin(HistoryResult result) throws IOException {
+    }
+
+    /**
+     * Called for each row in order.
+     */
+    void item(HistoryItem item) throws IOException;
+
+    /**
+     * Called once after the last row. The result's nextCursor is set at this point.
+     */
+    default void end(HistoryResult result) throws IOException {
+    }
+}
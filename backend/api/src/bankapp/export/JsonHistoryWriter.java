@@ -0,0 +1,63 @@
+package bankapp.export;
+
+import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryResult;
+import bankapp.dto.Money;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes history in the same JSON shape Gson produces for a HistoryResult,
+ * one transaction at a time.
+ */
+public class JsonHistoryWriter implements HistoryWriter {
+    private final JsonWriter json;
+
+    public JsonHistoryWriter(OutputStream out) {
+        this.json = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        this.json.setHtmlSafe(true); // escape like Gson's default
+    }
+
+    @Override
+    public void begin(HistoryResult result) throws IOException {
+        json.beginObject();
+        json.name("success").value(result.success);
+        json.name("message").value(result.message);
+        json.name("transactions").beginArray();
+    }
+
+    @Override
+    public void item(HistoryItem item) throws IOException {
+        writeItem(json, item);
+    }
+
+    @Override
+    public void end(HistoryResult result) throws IOException {
+        json.endArray();
+
+        // Gson omits null fields, so nextCursor only appears when there is another page
+        if (result.nextCursor != null) {
+            json.name("nextCursor").value(result.nextCursor);
+        }
+
+        json.endObject();
+        json.flush();
+    }
+
+    // Writes one transaction as a JSON object with the same field names as HistoryItem.
+    static void writeItem(JsonWriter json, HistoryItem item) throws IOException {
+        json.beginObject();
+        json.name("id").value(item.id);
+        json.name("type").value(item.type);
+        if (item.fromUser != null) json.name("fromUser").value(item.fromUser);
+        if (item.toUser != null) json.name("toUser").value(item.toUser);
+        json.name("amount").jsonValue(Money.format(item.amount));
+        json.name("time").value(item.time);
+        json.endObject();
+    }
+}
@@ -0,0 +1,36 @@
+package bankapp.export;
+
+import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryResult;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes history as newline-delimited JSON: one transaction object per line.
+ */
+public class NdjsonHistoryWriter implements HistoryWriter {
+    private final Writer out;
+
+    public NdjsonHistoryWriter(OutputStream out) {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void item(HistoryItem item) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        JsonHistoryWriter.writeItem(json, item);
+        json.flush();
+        out.write('\n');
+    }
+
+    @Override
+    public void end(HistoryResult result) throws IOException {
+        out.flush();
+    }
+}
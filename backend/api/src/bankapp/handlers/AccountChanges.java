@@ -0,0 +1,208 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Replicas;
+import bankapp.cache.AccountVersions;
+import bankapp.dto.Account;
+import bankapp.dto.BalanceEvent;
+import bankapp.dto.BalanceResult;
+import bankapp.dto.HistoryItem;
+import bankapp.events.EventHub;
+import bankapp.shard.Shards;
+import com.google.gson.Gson;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bookkeeping shared by the handlers that change balances, run after their commit:
+ * cached balances are dropped, the accounts' reads stay off replicas that have not caught
+ * up, the accounts move to a new version so ETags handed out for the old state stop
+ * matching (used with the ledger engine, see {@link #etag(String)}), and users with an
+ * open /events stream are sent the new transaction and balance.
+ */
+public final class AccountChanges {
+
+    private static final Gson gson = new Gson();
+
+    private static final AccountVersions VERSIONS =
+            new AccountVersions(Config.getInt("ACCOUNT_VERSIONS_MAX_ENTRIES", 100_000));
+
+    private AccountChanges() {}
+
+    /**
+     * Records a transaction that has just committed.
+     *
+     * @param conn   the connection that committed it, used to read back balances for live events
+     * @param txnId  the new TRANSACTION_RECORD id
+     * @param src    source username, null for deposits
+     * @param dest   destination username, null for withdrawals
+     * @param amount amount in cents
+     */
+    public static void committed(Connection conn, long txnId, String src, String dest, long amount) {
+        committed(conn, List.of(new HistoryItem(txnId, null, src, dest, amount, null)));
+    }
+
+    /**
+     * Records several transactions that committed together. Each account involved is handled
+     * once, and a listening user gets a single balance event after all of their transactions.
+     *
+     * @param conn the connection that committed them
+     * @param rows the new rows; only id, fromUser, toUser and amount are used
+     */
+    public static void committed(Connection conn, List<HistoryItem> rows) {
+        committed(rows, username -> BalanceHandler.getBalance(conn, username));
+    }
+
+    /**
+     * Records several transactions that committed together, reading the new balances for
+     * live events from balances instead of the database.
+     *
+     * @param rows     the new rows; only id, fromUser, toUser and amount are used
+     * @param balances returns a user's current balance
+     */
+    public static void committed(List<HistoryItem> rows, Function<String, BalanceResult> balances) {
+        committed(rows, balances, username -> true);
+    }
+
+    /**
+     * Records transactions that committed on one shard, handling only the users on that
+     * shard. The other party of a transfer between shards is handled when its side commits
+     * on its own shard.
+     *
+     * @param conn  the connection that committed them
+     * @param shard the shard conn belongs to
+     * @param rows  the new rows; only id, fromUser, toUser and amount are used
+     */
+    public static void committed(Connection conn, String shard, List<HistoryItem> rows) {
+        committed(rows, username -> BalanceHandler.getBalance(conn, username),
+                username -> Shards.of(username).equals(shard));
+    }
+
+    private static void committed(List<HistoryItem> rows, Function<String, BalanceResult> balances,
+                                  Predicate<String> local) {
+        Map<String, List<HistoryItem>> byUser = new LinkedHashMap<>();
+        for (HistoryItem row : rows) {
+            if (row.fromUser != null && local.test(row.fromUser)) {
+                byUser.computeIfAbsent(row.fromUser, k -> new ArrayList<>()).add(row);
+            }
+            if (row.toUser != null && local.test(row.toUser)) {
+                byUser.computeIfAbsent(row.toUser, k -> new ArrayList<>()).add(row);
+            }
+        }
+
+        for (Map.Entry<String, List<HistoryItem>> e : byUser.entrySet()) {
+            changed(balances, e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Moves accounts to a new version after rows for changes already reported with
+     * {@link #committed} have reached the database, so /history ETags taken before stop matching.
+     */
+    public static void rowsAdded(Collection<String> usernames) {
+        for (String username : usernames) {
+            Replicas.written(username);
+            VERSIONS.bump(username);
+        }
+    }
+
+    /**
+     * Returns the ETag for the account's current balance and history from the versions this
+     * process keeps. Only writes made by this process move them, so it is only used with the
+     * ledger engine, which runs on a single server; otherwise use
+     * {@link #etag(Connection, Account)}.
+     */
+    public static String etag(String username) {
+        return VERSIONS.etag(username);
+    }
+
+    /**
+     * Returns the ETag for the account's current balance and history, read from the database
+     * so every server hands out the same tag for the same data, whichever server or shard
+     * relay made the last change. It is built from the account's id, its newest
+     * TRANSACTION_RECORD ids as sender and as recipient (one index lookup each) and its
+     * balance; the balance covers credits to hot accounts, which can commit out of id order.
+     * Read it on the connection the data is then read with, before the data.
+     *
+     * @return the ETag, or null if it cannot be read, in which case none is sent
+     */
+    public static String etag(Connection conn, Account account) {
+        String slots = HotAccounts.isHot(account.username())
+                ? " + COALESCE((SELECT SUM(SLOT_BALANCE) FROM CUSTOMER_BALANCE_SLOT S WHERE S.CUS_ID = C.CUS_ID), 0)"
+                : "";
+        String sql = "SELECT CAST((CUS_BALANCE" + slots + ") * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS, " +
+                "(SELECT MAX(TXN_ID) FROM TRANSACTION_RECORD WHERE TXN_SOURCE_ID = C.CUS_ID) AS LAST_OUT, " +
+                "(SELECT MAX(TXN_ID) FROM TRANSACTION_RECORD WHERE TXN_DEST_ID = C.CUS_ID) AS LAST_IN " +
+                "FROM CUSTOMER C WHERE C.CUS_ID = ?";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setLong(1, account.id());
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return "\"" + Long.toString(account.id(), 36) + "." + Long.toString(rs.getLong("LAST_OUT"), 36)
+                        + "." + Long.toString(rs.getLong("LAST_IN"), 36)
+                        + "." + Long.toString(rs.getLong("BALANCE_CENTS"), 36) + "\"";
+            }
+        } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the ETag for a /balance response, derived from the balance it carries, so it
+     * matches the body wherever the balance was read from.
+     */
+    public static String balanceEtag(long cents) {
+        return "\"b." + Long.toString(cents, 36) + "\"";
+    }
+
+    /**
+     * Returns the id generated by an INSERT prepared with RETURN_GENERATED_KEYS.
+     */
+    public static long generatedId(PreparedStatement insert) throws SQLException {
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            return keys.next() ? keys.getLong(1) : 0;
+        }
+    }
+
+    private static void changed(Function<String, BalanceResult> balances, String username, List<HistoryItem> rows) {
+        // Recorded first, so a read stamped after the invalidation cannot pick a stale replica
+        Replicas.written(username);
+        BalanceHandler.invalidate(username);
+        long version = VERSIONS.bump(username);
+
+        // Events cost a balance read, so they are only prepared for users who are listening
+        if (!EventHub.hasSubscribers(username)) {
+            return;
+        }
+
+        // The rows' own timestamps are set by the database; the commit time is close enough for display
+        String time = HistoryHandler.formatTime(new Timestamp(System.currentTimeMillis()));
+        for (HistoryItem row : rows) {
+            HistoryItem item = new HistoryItem(row.id, HistoryHandler.classify(row.fromUser, row.toUser, username),
+                    row.fromUser, row.toUser, row.amount, time);
+            EventHub.publish(username, "transaction", gson.toJson(item));
+        }
+
+        // Read after the version bump, so a higher version never carries an older balance
+        BalanceResult balance = balances.apply(username);
+        if (balance.success) {
+            EventHub.publish(username, "balance", gson.toJson(new BalanceEvent(balance.balance, version)));
+        }
+    }
+}
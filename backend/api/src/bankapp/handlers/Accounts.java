@@ -0,0 +1,187 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.cache.AccountIdCache;
+import bankapp.dto.Account;
+import bankapp.shard.Shards;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Resolves usernames to accounts. Requests name accounts by username (the token's subject,
+ * a transfer's recipient), while the database keys, locks and joins them by CUS_ID; since a
+ * username's id never changes, the mapping is cached and most requests never look it up.
+ *
+ * With DB_SHARDS an id is only meaningful on the account's own shard, so accounts are always
+ * looked up there and their ids only used in SQL run on that shard. Rebalancing gives moved
+ * accounts new ids, but it runs while the servers are stopped, so no cached id outlives it.
+ */
+public final class Accounts {
+
+    private static final AccountIdCache CACHE =
+            new AccountIdCache(Config.getInt("ACCOUNT_ID_CACHE_MAX_ENTRIES", 100_000));
+
+    // Usernames looked up per SELECT ... IN
+    private static final int LOOKUP_CHUNK = 500;
+
+    private Accounts() {}
+
+    /**
+     * Returns the username as it is stored and looked up: without surrounding whitespace.
+     * Routes normalize a name once, before choosing its shard, so the shard and every query
+     * on it see the same name. Null stays null.
+     */
+    public static String normalize(String username) {
+        return username == null ? null : username.trim();
+    }
+
+    /**
+     * Returns the account with the given username, or null if there is none.
+     *
+     * @param conn connection to read it with if it is not cached
+     */
+    public static Account find(Connection conn, String username) throws SQLException {
+        if (username == null) {
+            return null;
+        }
+
+        Account account = CACHE.get(username);
+        if (account != null) {
+            return account;
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement("SELECT CUS_ID, CUS_UNAME FROM CUSTOMER WHERE CUS_UNAME = ?")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                account = new Account(rs.getLong("CUS_ID"), rs.getString("CUS_UNAME"));
+            }
+        }
+        CACHE.put(account);
+        return account;
+    }
+
+    /**
+     * Returns the account with the given username, or null if there is none. A connection to
+     * the account's shard is only borrowed if the account is not cached.
+     */
+    public static Account find(String username) throws SQLException {
+        if (username == null) {
+            return null;
+        }
+
+        Account account = CACHE.get(username);
+        if (account != null) {
+            return account;
+        }
+
+        try (Connection conn = Database.getConnection(username)) {
+            return find(conn, username);
+        }
+    }
+
+    /**
+     * Returns the accounts of the given usernames that exist, keyed case-insensitively by
+     * username. Usernames that are not cached are looked up a chunk at a time.
+     */
+    public static Map<String, Account> findAll(Connection conn, Collection<String> usernames) throws SQLException {
+        // Usernames compare case-insensitively, as in the database's collation
+        Map<String, Account> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Set<String> notCached = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (String username : usernames) {
+            if (username == null || found.containsKey(username) || notCached.contains(username)) {
+                continue;
+            }
+            Account account = CACHE.get(username);
+            if (account != null) {
+                found.put(username, account);
+            } else {
+                notCached.add(username);
+            }
+        }
+
+        List<String> missing = new ArrayList<>(notCached);
+
+        for (int from = 0; from < missing.size(); from += LOOKUP_CHUNK) {
+            List<String> chunk = missing.subList(from, Math.min(from + LOOKUP_CHUNK, missing.size()));
+
+            String sql = "SELECT CUS_ID, CUS_UNAME FROM CUSTOMER WHERE CUS_UNAME IN ("
+                    + "?,".repeat(chunk.size() - 1) + "?)";
+
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    ps.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Account account = new Account(rs.getLong("CUS_ID"), rs.getString("CUS_UNAME"));
+                        CACHE.put(account);
+                        found.put(account.username(), account);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Like {@link #findAll(Connection, Collection)} for usernames that may be on other
+     * shards: those on conn's shard are looked up with conn, the others with a connection
+     * to their own shard.
+     *
+     * @param shard the shard conn belongs to
+     */
+    public static Map<String, Account> findAll(Connection conn, String shard, Collection<String> usernames)
+            throws SQLException {
+        if (!Shards.isEnabled()) {
+            return findAll(conn, usernames);
+        }
+
+        Map<String, List<String>> byShard = new TreeMap<>();
+        for (String username : usernames) {
+            if (username != null) {
+                byShard.computeIfAbsent(Shards.of(username), k -> new ArrayList<>()).add(username);
+            }
+        }
+
+        Map<String, Account> found = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> names : byShard.entrySet()) {
+            if (names.getKey().equals(shard)) {
+                found.putAll(findAll(conn, names.getValue()));
+                continue;
+            }
+            try (Connection other = Database.getShardConnection(names.getKey())) {
+                found.putAll(findAll(other, names.getValue()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Remembers an account just read or created elsewhere, e.g. at login or registration.
+     */
+    public static void remember(long id, String username) {
+        CACHE.put(new Account(id, username));
+    }
+
+    /**
+     * Returns the shared username to id cache, mainly so its metrics can be reported.
+     */
+    public static AccountIdCache cache() {
+        return CACHE;
+    }
+}
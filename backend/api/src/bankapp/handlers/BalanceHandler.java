@@ -1,5 +1,8 @@
 package bankapp.handlers;
 
+import bankapp.Config;
+import bankapp.cache.BalanceCache;
+import bankapp.dto.Account;
 import bankapp.dto.BalanceResult;
 
 import java.sql.Connection;
@@ -9,34 +12,114 @@ import java.sql.SQLException;
 
 /**
  * Handles a BALANCE request.
+ * Balances are cached in memory; handlers that change a balance invalidate it after committing.
  *
  * @author Ryan Stencavage
  */
 public class BalanceHandler {
+
+    private static final BalanceCache CACHE = new BalanceCache(Config.getInt("BALANCE_CACHE_MAX_ENTRIES", 10_000));
+
+    /**
+     * Returns the balance for a given username from the cache, without touching the database.
+     *
+     * @param username the username to return the balance of
+     * @return the balance, or null if it has to be read with {@link #getBalance}
+     */
+    public static BalanceResult cachedBalance(String username) {
+        Long cents = CACHE.get(username);
+        return cents == null ? null : new BalanceResult(true, "Balance retrieved.", cents);
+    }
+
     /**
-     * Returns the balance for a given username
+     * Returns the balance for a given username, in cents, and caches it
      *
      * @param conn   active database connection
      * @param username the username to return the balance of
      */
     public static BalanceResult getBalance(Connection conn, String username) {
+        try {
+            Account account = Accounts.find(conn, username);
+            if (account == null) {
+                return new BalanceResult(false, "User not found.", 0);
+            }
+            return getBalance(conn, account);
+
+        } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return new BalanceResult(false, "Database error.", 0);
+        }
+    }
+
+    /**
+     * Returns the balance of a given account, in cents, and caches it
+     *
+     * @param conn    active database connection
+     * @param account the account to return the balance of
+     */
+    public static BalanceResult getBalance(Connection conn, Account account) {
+        return getBalance(conn, account, CACHE.stamp(account.username()));
+    }
+
+    /**
+     * Returns a stamp for {@link #getBalance(Connection, Account, long)}. Reads from a replica
+     * must take it before the connection is chosen, so a write committed after the choice
+     * keeps the replica's older balance out of the cache.
+     */
+    public static long stamp(String username) {
+        return CACHE.stamp(username);
+    }
+
+    /**
+     * Returns the balance of a given account, in cents, and caches it unless the account
+     * changed since the stamp was taken
+     *
+     * @param conn    active database connection
+     * @param account the account to return the balance of
+     * @param stamp   taken with {@link #stamp} before conn was borrowed
+     */
+    public static BalanceResult getBalance(Connection conn, Account account, long stamp) {
+
+        String sql = "SELECT CAST(CUS_BALANCE * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS FROM CUSTOMER WHERE CUS_ID = ?";
+        // A hot account's balance also includes credits not yet folded in from its slots
+        String hotSql = "SELECT CAST((CUS_BALANCE + COALESCE((SELECT SUM(SLOT_BALANCE) FROM CUSTOMER_BALANCE_SLOT S " +
+                "WHERE S.CUS_ID = C.CUS_ID), 0)) * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS " +
+                "FROM CUSTOMER C WHERE C.CUS_ID = ?";
 
-        String sql = "SELECT CUS_BALANCE FROM CUSTOMER WHERE CUS_UNAME = ?";
+        String username = account.username();
 
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
+        try (PreparedStatement ps = conn.prepareStatement(HotAccounts.isHot(username) ? hotSql : sql)) {
+            ps.setLong(1, account.id());
             ResultSet rs = ps.executeQuery();
 
             if (!rs.next()) {
-                return new BalanceResult(false, "User not found.", 0.00);
+                return new BalanceResult(false, "User not found.", 0);
             }
-            double bal = rs.getDouble("CUS_BALANCE");
+            long bal = rs.getLong("BALANCE_CENTS");
+            CACHE.put(username, bal, stamp);
             return new BalanceResult(true, "Balance retrieved.", bal);
 
         } catch (SQLException e) {
             //noinspection CallToPrintStackTrace
             e.printStackTrace();
-            return new BalanceResult(false, "Database error.", 0.00);
+            return new BalanceResult(false, "Database error.", 0);
         }
     }
+
+    /**
+     * Drops cached balances after a committed change to them.
+     */
+    public static void invalidate(String... usernames) {
+        for (String username : usernames) {
+            CACHE.invalidate(username);
+        }
+    }
+
+    /**
+     * Returns the shared balance cache, mainly so its metrics can be reported.
+     */
+    public static BalanceCache cache() {
+        return CACHE;
+    }
 }
@@ -0,0 +1,310 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.dto.Account;
+import bankapp.dto.BatchTransferRequest.Leg;
+import bankapp.dto.BatchTransferResult;
+import bankapp.dto.BatchTransferResult.LegError;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.metrics.Metrics;
+import bankapp.shard.Shards;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Handles a TRANSFER BATCH request: one sender paying many recipients in a single
+ * transaction. Either every leg is applied or none is.
+ *
+ * Compared with calling TransferHandler once per leg, the batch locks all accounts with a
+ * few statements, debits the sender once, credits each recipient once with a JDBC batch and
+ * records every leg with one batched insert.
+ */
+public class BatchTransferHandler {
+
+    public static final int MAX_LEGS = Config.getInt("TRANSFER_BATCH_MAX_LEGS", 1000);
+
+    // Accounts locked per SELECT ... FOR UPDATE; chunks are taken in sorted order
+    private static final int LOCK_CHUNK = 500;
+
+    /**
+     * Transfers money from one account to each recipient in legs.
+     *
+     * @param conn   active database connection
+     * @param from   the paying account
+     * @param legs   recipients and amounts in cents
+     * @return the outcome; on failure, errors lists the legs at fault
+     */
+    public static BatchTransferResult transfer(Connection conn, Account from, List<Leg> legs) {
+
+        BatchTransferResult invalid = validate(from.username(), legs);
+        if (invalid != null) {
+            return invalid;
+        }
+
+        BatchTransferResult dbError = new BatchTransferResult(false, "Database error.", legs.size(), null);
+
+        // every recipient's id, mostly from the cache; accounts are never deleted, so they stay valid
+        Map<String, Account> recipients;
+        try {
+            List<String> names = new ArrayList<>(legs.size());
+            for (Leg leg : legs) {
+                names.add(leg.toUser);
+            }
+            recipients = Accounts.findAll(conn, Shards.of(from.username()), names);
+        } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return dbError;
+        }
+
+        List<LegError> missing = new ArrayList<>();
+        for (int i = 0; i < legs.size(); i++) {
+            if (!recipients.containsKey(legs.get(i).toUser)) {
+                missing.add(new LegError(i, legs.get(i).toUser, "Recipient not found."));
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Metrics.rollback("Recipient not found.");
+            return new BatchTransferResult(false, "Some recipients were not found.", legs.size(), missing);
+        }
+
+        // Legs to recipients on other shards (DB_SHARDS) are debited here and credited there by
+        // ShardOutbox once this commits
+        String shard = Shards.of(from.username());
+        List<Leg> localLegs = new ArrayList<>(legs.size());
+        List<Leg> remoteLegs = new ArrayList<>();
+        for (Leg leg : legs) {
+            (Shards.of(leg.toUser).equals(shard) ? localLegs : remoteLegs).add(leg);
+        }
+
+        // Remote legs are credited later on their recipients' shards, so their limits are checked now
+        Map<String, Long> remoteCredits = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Leg leg : remoteLegs) {
+            remoteCredits.merge(leg.toUser, leg.amount, Long::sum);
+        }
+        List<LegError> full = new ArrayList<>();
+        for (int i = 0; i < legs.size(); i++) {
+            Long credit = remoteCredits.get(legs.get(i).toUser);
+            if (credit != null && !ShardOutbox.hasRoom(recipients.get(legs.get(i).toUser), credit)) {
+                full.add(new LegError(i, legs.get(i).toUser, "Balance limit exceeded."));
+            }
+        }
+
+        if (!full.isEmpty()) {
+            Metrics.rollback("Balance limit exceeded.");
+            return new BatchTransferResult(false, "Some recipients cannot receive this much.", legs.size(), full);
+        }
+
+        // local recipient id -> total cents, in id order so the updates lock in the same order as lockAll
+        Map<Long, Long> credits = new TreeMap<>();
+        List<Account> participants = new ArrayList<>();
+        long total = 0;
+        for (Leg leg : localLegs) {
+            Account to = recipients.get(leg.toUser);
+            credits.merge(to.id(), leg.amount, Long::sum);
+            participants.add(to);
+            total += leg.amount;
+        }
+        for (Leg leg : remoteLegs) {
+            total += leg.amount;
+        }
+        participants.add(from);
+
+        String updateSourceSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_ID = ?";
+        String updateDestSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT) VALUES (?, ?, ?)";
+        String insertRemoteTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, " +
+                "TXN_COUNTERPARTY) VALUES (?, NULL, ?, ?)";
+
+        long debit = total;
+        return Transactions.run(conn, dbError, tx -> {
+            // lock every participant on this shard in a consistent (id) order to prevent deadlocks
+            Map<Long, Long> balances = lockAll(conn, participants);
+
+            Long balance = balances.get(from.id());
+            if (balance == null) {
+                return tx.rollback("Sender not found.",
+                        new BatchTransferResult(false, "Sender not found.", legs.size(), null));
+            }
+
+            if (balances.size() < credits.size() + 1) {
+                return tx.rollback("Recipient not found.",
+                        new BatchTransferResult(false, "Recipient not found.", legs.size(), null));
+            }
+
+            if (balance < debit) {
+                return tx.rollback("Insufficient funds.",
+                        new BatchTransferResult(false, "Insufficient funds.", legs.size(), null));
+            }
+
+            // withdraw the whole batch from the sender once
+            try (PreparedStatement withdraw = conn.prepareStatement(updateSourceSql)) {
+                withdraw.setBigDecimal(1, Money.toDecimal(debit));
+                withdraw.setLong(2, from.id());
+                withdraw.executeUpdate();
+            }
+
+            // credit each local recipient once, however many legs it has
+            try (PreparedStatement deposit = conn.prepareStatement(updateDestSql)) {
+                for (Map.Entry<Long, Long> credit : credits.entrySet()) {
+                    deposit.setBigDecimal(1, Money.toDecimal(credit.getValue()));
+                    deposit.setLong(2, credit.getKey());
+                    deposit.addBatch();
+                }
+                deposit.executeBatch();
+            }
+
+            // log one transaction per leg
+            List<HistoryItem> rows = new ArrayList<>(legs.size());
+            if (!localLegs.isEmpty()) {
+                try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                    for (Leg leg : localLegs) {
+                        insert.setLong(1, from.id());
+                        insert.setLong(2, recipients.get(leg.toUser).id());
+                        insert.setBigDecimal(3, Money.toDecimal(leg.amount));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                    rows.addAll(generatedRows(insert, from, localLegs, recipients));
+                }
+            }
+
+            if (!remoteLegs.isEmpty()) {
+                List<HistoryItem> remoteRows;
+                try (PreparedStatement insert = conn.prepareStatement(insertRemoteTxn, Statement.RETURN_GENERATED_KEYS)) {
+                    for (Leg leg : remoteLegs) {
+                        insert.setLong(1, from.id());
+                        insert.setBigDecimal(2, Money.toDecimal(leg.amount));
+                        insert.setString(3, recipients.get(leg.toUser).username());
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                    remoteRows = generatedRows(insert, from, remoteLegs, recipients);
+                }
+                ShardOutbox.send(tx, conn, remoteRows);
+                rows.addAll(remoteRows);
+            }
+
+            Rollups.Batch rollups = Rollups.batch();
+            for (Leg leg : localLegs) {
+                rollups.add(from.id(), HistoryItem.TRANSFER_OUT, leg.amount)
+                        .add(recipients.get(leg.toUser).id(), HistoryItem.TRANSFER_IN, leg.amount);
+            }
+            for (Leg leg : remoteLegs) {
+                rollups.add(from.id(), HistoryItem.TRANSFER_OUT, leg.amount);
+            }
+            rollups.apply(conn);
+
+            tx.afterCommit(() -> AccountChanges.committed(conn, shard, rows));
+            return new BatchTransferResult(true, "Batch transfer successful.", legs.size(), null);
+        });
+    }
+
+    // The history rows of legs just inserted with one batch, with their generated ids.
+    private static List<HistoryItem> generatedRows(PreparedStatement insert, Account from, List<Leg> legs,
+                                                   Map<String, Account> recipients) throws SQLException {
+        List<HistoryItem> rows = new ArrayList<>(legs.size());
+        try (ResultSet keys = insert.getGeneratedKeys()) {
+            for (Leg leg : legs) {
+                long id = keys.next() ? keys.getLong(1) : 0;
+                rows.add(new HistoryItem(id, null, from.username(), recipients.get(leg.toUser).username(),
+                        leg.amount, null));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Checks a batch without touching the database: its size, every leg's recipient and
+     * amount, and the total. Also used by the ledger engine.
+     *
+     * @return the failure to answer with, or null if the batch is well-formed
+     */
+    public static BatchTransferResult validate(String fromUser, List<Leg> legs) {
+        if (legs == null || legs.isEmpty()) {
+            return new BatchTransferResult(false, "At least one transfer is required.", 0, null);
+        }
+
+        if (legs.size() > MAX_LEGS) {
+            return new BatchTransferResult(false, "At most " + MAX_LEGS + " transfers are allowed per batch.",
+                    legs.size(), null);
+        }
+
+        // Validate every leg before touching the database
+        List<LegError> errors = new ArrayList<>();
+        long total = 0;
+
+        for (int i = 0; i < legs.size(); i++) {
+            Leg leg = legs.get(i);
+            if (leg == null || leg.toUser == null || leg.toUser.isBlank()) {
+                errors.add(new LegError(i, null, "Recipient is required."));
+            } else if (leg.amount <= 0) {
+                errors.add(new LegError(i, leg.toUser, "Transfer amount must be positive."));
+            } else if (leg.toUser.equalsIgnoreCase(fromUser)) {
+                errors.add(new LegError(i, leg.toUser, "Cannot transfer to the same user."));
+            } else {
+                total += leg.amount;
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            return new BatchTransferResult(false, "Some transfers are invalid.", legs.size(), errors);
+        }
+
+        if (total > Money.MAX_CENTS) {
+            return new BatchTransferResult(false, "Batch total is too large.", legs.size(), null);
+        }
+        return null;
+    }
+
+    // Locks the given accounts, a chunk at a time in id order, and returns the balances in cents
+    // of those that exist, by id. Hot accounts have their slots folded in, so every balance
+    // returned is exact and debitable. Also used by GroupCommit.
+    static Map<Long, Long> lockAll(Connection conn, Collection<Account> accounts) throws SQLException {
+        Map<Long, Account> byId = new TreeMap<>();
+        for (Account account : accounts) {
+            byId.put(account.id(), account);
+        }
+
+        Map<Long, Long> balances = new HashMap<>();
+        List<Long> sorted = new ArrayList<>(byId.keySet());
+
+        for (int from = 0; from < sorted.size(); from += LOCK_CHUNK) {
+            List<Long> chunk = sorted.subList(from, Math.min(from + LOCK_CHUNK, sorted.size()));
+
+            String sql = "SELECT CUS_ID, CAST(CUS_BALANCE * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS FROM CUSTOMER " +
+                    "WHERE CUS_ID IN (" + "?,".repeat(chunk.size() - 1) + "?) ORDER BY CUS_ID FOR UPDATE";
+
+            try (PreparedStatement lock = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    lock.setLong(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = lock.executeQuery()) {
+                    while (rs.next()) {
+                        balances.put(rs.getLong("CUS_ID"), rs.getLong("BALANCE_CENTS"));
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Long, Long> locked : balances.entrySet()) {
+            if (HotAccounts.isHot(byId.get(locked.getKey()).username())) {
+                locked.setValue(locked.getValue() + HotAccounts.fold(conn, locked.getKey()));
+            }
+        }
+
+        return balances;
+    }
+}
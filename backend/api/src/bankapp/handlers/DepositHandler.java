@@ -1,10 +1,13 @@
 package bankapp.handlers;
 
+import bankapp.dto.Account;
 import bankapp.dto.ActionResult;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.SQLException;
+import java.sql.Statement;
 
 /**
  * Handles a DEPOSIT (amount) request.
@@ -13,70 +16,69 @@ import java.sql.SQLException;
  */
 public class DepositHandler {
     /**
-     * Deposits into a given username's account.
+     * Deposits into a given account.
      *
-     * @param conn   active database connection
-     * @param username the username to deposit to
-     * @param amount amount to withdraw
+     * @param conn    active database connection
+     * @param account the account to deposit to
+     * @param amount  amount to deposit, in cents
      */
-    public static ActionResult deposit(Connection conn, String username, double amount) {
+    public static ActionResult deposit(Connection conn, Account account, long amount) {
+        return deposit(conn, account, amount, null);
+    }
+
+    /**
+     * Deposits into a given account at most once per idempotency key.
+     *
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult deposit(Connection conn, Account account, long amount, String idempotencyKey) {
 
         if (amount <= 0) {
             return new ActionResult(false, "Deposit amount must be positive.");
         }
 
-        String updateBalSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_UNAME = ?";
-        String insertTxn ="INSERT INTO TRANSACTION_RECORD (CUS_ID_SOURCE, CUS_ID_DEST, TXN_AMOUNT) VALUES (NULL, ?, ?)";
-
-        boolean oldAutoCommit;
-        try {
-            oldAutoCommit = conn.getAutoCommit();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return new ActionResult(false, "Database error.");
+        // a retry of a request that already succeeded gets the same answer again
+        String username = account.username();
+        String request = "deposit " + amount;
+        ActionResult previous = IdempotencyKeys.recall(username, idempotencyKey, request);
+        if (previous != null) {
+            return previous;
         }
+        ActionResult success = new ActionResult(true, "Deposit successful.");
 
-        try {
-            conn.setAutoCommit(false);
+        String updateBalSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+        String insertTxn ="INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT) VALUES (NULL, ?, ?)";
+
+        return Transactions.run(conn, new ActionResult(false, "Database error."), tx -> {
+            if (!IdempotencyKeys.claim(tx, conn, username, idempotencyKey, request, success)) {
+                return IdempotencyKeys.replay(tx, conn, username, idempotencyKey, request);
+            }
 
             int rows;
+            long txnId;
             // update balance
             try (PreparedStatement update = conn.prepareStatement(updateBalSql)) {
-                update.setDouble(1, amount);
-                update.setString(2, username);
+                update.setBigDecimal(1, Money.toDecimal(amount));
+                update.setLong(2, account.id());
                 rows = update.executeUpdate();
             }
 
-            // if no rows updated then username does not exist
+            // if no rows updated then the account does not exist
             if (rows == 0) {
-                conn.rollback();
-                return new ActionResult(false, "User not found.");
+                return tx.rollback("User not found.", new ActionResult(false, "User not found."));
             }
 
             // log the transaction
-            try (PreparedStatement insert = conn.prepareStatement(insertTxn)) {
-                insert.setString(1, username);
-                insert.setDouble(2, amount);
+            try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                insert.setLong(1, account.id());
+                insert.setBigDecimal(2, Money.toDecimal(amount));
                 insert.executeUpdate();
+                txnId = AccountChanges.generatedId(insert);
             }
-            conn.commit();
-            return new ActionResult(true, "Deposit successful.");
-
-        } catch (SQLException e) {
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackErr) {
-                rollbackErr.printStackTrace();
-            }
-            e.printStackTrace();
-            return new ActionResult(false, "Database error.");
+            Rollups.batch().add(account.id(), HistoryItem.DEPOSIT, amount).apply(conn);
 
-        } finally {
-            try {
-                conn.setAutoCommit(oldAutoCommit); // restore previous setting
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        }
+            tx.afterCommit(() -> AccountChanges.committed(conn, txnId, null, username, amount));
+            return success;
+        });
     }
 }
@@ -0,0 +1,354 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.ServiceUnavailableException;
+import bankapp.dto.Account;
+import bankapp.dto.ActionResult;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.metrics.LatencyHistogram;
+import bankapp.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional group commit for deposits and withdrawals (GROUP_COMMIT=true).
+ *
+ * Instead of each request committing its own transaction, requests are queued to one writer
+ * thread per shard (chosen by account, so a user's operations stay in order). A writer
+ * takes everything that arrives within GROUP_COMMIT_MAX_WAIT_US, up to GROUP_COMMIT_MAX_BATCH
+ * operations, and applies it as one transaction with batched statements and a single commit.
+ * Each caller still gets its own result, once the batch has committed.
+ *
+ * Operations are checked one by one in arrival order against the locked balances, so an
+ * overdrawing withdrawal fails on its own without affecting the rest of the batch.
+ */
+public final class GroupCommit {
+
+    private static final boolean ENABLED = Config.getBoolean("GROUP_COMMIT", false);
+    private static final int SHARDS = Config.getInt("GROUP_COMMIT_SHARDS", 4);
+    private static final int MAX_BATCH = Config.getInt("GROUP_COMMIT_MAX_BATCH", 64);
+    private static final long MAX_WAIT_NANOS =
+            TimeUnit.MICROSECONDS.toNanos(Config.getLong("GROUP_COMMIT_MAX_WAIT_US", 2000));
+    private static final int QUEUE_SIZE = Config.getInt("GROUP_COMMIT_QUEUE_SIZE", 4096);
+
+    private static final LatencyHistogram BATCH_FILL = new LatencyHistogram();
+    private static final LatencyHistogram COMMIT_WAIT = new LatencyHistogram();
+    private static final LongAdder BATCHES = new LongAdder();
+    private static final LongAdder OPERATIONS = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+
+    // Started last, once everything the writers use is initialized
+    private static final Writer[] WRITERS = ENABLED ? startWriters() : new Writer[0];
+
+    private GroupCommit() {}
+
+    /**
+     * Returns true if deposits and withdrawals should go through group commit.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Deposits into an account as part of the next batch.
+     *
+     * @param account the account to deposit to
+     * @param amount  amount to deposit, in cents
+     * @throws ServiceUnavailableException if the writer's queue is full
+     */
+    public static ActionResult deposit(Account account, long amount) {
+        if (amount <= 0) {
+            return new ActionResult(false, "Deposit amount must be positive.");
+        }
+        return submit(new Op(account, amount, false));
+    }
+
+    /**
+     * Withdraws from an account as part of the next batch.
+     *
+     * @param account the account to withdraw from
+     * @param amount  amount to withdraw, in cents
+     * @throws ServiceUnavailableException if the writer's queue is full
+     */
+    public static ActionResult withdraw(Account account, long amount) {
+        if (amount <= 0) {
+            return new ActionResult(false, "Withdrawal amount must be positive.");
+        }
+        return submit(new Op(account, amount, true));
+    }
+
+    public static int getQueueDepth() {
+        int depth = 0;
+        for (Writer w : WRITERS) {
+            depth += w.queue.size();
+        }
+        return depth;
+    }
+
+    public static long getBatchCount() {
+        return BATCHES.sum();
+    }
+
+    public static long getOperationCount() {
+        return OPERATIONS.sum();
+    }
+
+    public static long getRejectedCount() {
+        return REJECTED.sum();
+    }
+
+    public static int getMaxBatch() {
+        return MAX_BATCH;
+    }
+
+    /**
+     * Operations per committed batch (recorded as plain counts, not nanoseconds).
+     */
+    public static LatencyHistogram batchFill() {
+        return BATCH_FILL;
+    }
+
+    /**
+     * Time from queueing an operation until its batch committed.
+     */
+    public static LatencyHistogram commitWait() {
+        return COMMIT_WAIT;
+    }
+
+    // Queues an operation on its user's writer and waits for the batch to finish.
+    private static ActionResult submit(Op op) {
+        Writer writer = WRITERS[Math.floorMod(Long.hashCode(op.account.id()), WRITERS.length)];
+
+        if (!writer.queue.offer(op)) {
+            REJECTED.increment();
+            throw new ServiceUnavailableException("Server is busy. Please try again.", 1);
+        }
+
+        try {
+            return op.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private static Writer[] startWriters() {
+        Writer[] writers = new Writer[Math.max(1, SHARDS)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer(i);
+            writers[i].start();
+        }
+        return writers;
+    }
+
+    /**
+     * A queued deposit or withdrawal and the caller waiting for it.
+     */
+    private static final class Op {
+        final Account account;
+        final long amount;
+        final boolean withdraw;
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<ActionResult> result = new CompletableFuture<>();
+
+        Op(Account account, long amount, boolean withdraw) {
+            this.account = account;
+            this.amount = amount;
+            this.withdraw = withdraw;
+        }
+
+        void complete(ActionResult r) {
+            COMMIT_WAIT.recordSince(queuedNanos);
+            result.complete(r);
+        }
+    }
+
+    /**
+     * Collects operations for one shard and commits them in batches.
+     */
+    private static final class Writer extends Thread {
+        final BlockingQueue<Op> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        Writer(int shard) {
+            super("group-commit-" + shard);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Op> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    // wait for the first operation, then for the rest of the window or a full batch
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+
+                    while (batch.size() < MAX_BATCH) {
+                        if (queue.drainTo(batch, MAX_BATCH - batch.size()) > 0) {
+                            continue;
+                        }
+                        long left = deadline - System.nanoTime();
+                        Op next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+
+                    execute(batch);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    // Never let the writer die; fail whatever it was holding
+                    for (Op op : batch) {
+                        op.result.completeExceptionally(e);
+                    }
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    // Runs one batch on a pooled connection and completes every operation in it.
+    private static void execute(List<Op> batch) {
+        BATCH_FILL.record(batch.size());
+        BATCHES.increment();
+        OPERATIONS.add(batch.size());
+
+        try (Connection conn = Database.getConnection()) {
+            apply(conn, batch);
+        } catch (SQLException | RuntimeException e) {
+            RuntimeException failure = e instanceof RuntimeException re ? re
+                    : new IllegalStateException("Group commit failed.", e);
+            for (Op op : batch) {
+                op.result.completeExceptionally(failure);
+            }
+        }
+    }
+
+    // Applies a batch in a single transaction. Operations rejected along the way complete
+    // with their own error; the others complete once the commit succeeds.
+    private static void apply(Connection conn, List<Op> batch) {
+
+        String updateSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT) VALUES (?, ?, ?)";
+
+        ActionResult[] results = Transactions.run(conn, null, tx -> {
+            ActionResult[] outcome = new ActionResult[batch.size()];
+            List<HistoryItem> rows = new ArrayList<>(batch.size());
+
+            // lock every account in the batch, in id order as the transfer handlers do
+            List<Account> accounts = new ArrayList<>(batch.size());
+            for (Op op : batch) {
+                accounts.add(op.account);
+            }
+            Map<Long, Long> locked = BatchTransferHandler.lockAll(conn, accounts);
+
+            // check each operation in arrival order against the running balance
+            Map<Long, Long> balances = new HashMap<>();
+            Map<Long, Long> deltas = new TreeMap<>();
+            List<Op> accepted = new ArrayList<>(batch.size());
+
+            for (int i = 0; i < batch.size(); i++) {
+                Op op = batch.get(i);
+                long id = op.account.id();
+                if (!locked.containsKey(id)) {
+                    outcome[i] = new ActionResult(false, "User not found.");
+                    continue;
+                }
+
+                long balance = balances.getOrDefault(id, locked.get(id));
+                if (op.withdraw && op.amount > balance) {
+                    outcome[i] = new ActionResult(false, "Insufficient funds.");
+                    continue;
+                }
+
+                long delta = op.withdraw ? -op.amount : op.amount;
+                if (balance + delta > Money.MAX_CENTS) {
+                    outcome[i] = new ActionResult(false, "Balance limit exceeded.");
+                    continue;
+                }
+
+                balances.put(id, balance + delta);
+                deltas.merge(id, delta, Long::sum);
+                accepted.add(op);
+                outcome[i] = new ActionResult(true, op.withdraw ? "Withdrawal successful." : "Deposit successful.");
+            }
+
+            // one balance update per account, with the net change of its operations
+            try (PreparedStatement update = conn.prepareStatement(updateSql)) {
+                for (Map.Entry<Long, Long> d : deltas.entrySet()) {
+                    update.setBigDecimal(1, Money.toDecimal(d.getValue()));
+                    update.setLong(2, d.getKey());
+                    update.addBatch();
+                }
+                update.executeBatch();
+            }
+
+            // one transaction record per accepted operation
+            if (!accepted.isEmpty()) {
+                try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                    for (Op op : accepted) {
+                        Long id = op.account.id();
+                        insert.setObject(1, op.withdraw ? id : null, Types.BIGINT);
+                        insert.setObject(2, op.withdraw ? null : id, Types.BIGINT);
+                        insert.setBigDecimal(3, Money.toDecimal(op.amount));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        for (Op op : accepted) {
+                            String username = op.account.username();
+                            long id = keys.next() ? keys.getLong(1) : 0;
+                            rows.add(new HistoryItem(id, null, op.withdraw ? username : null,
+                                    op.withdraw ? null : username, op.amount, null));
+                        }
+                    }
+                }
+            }
+
+            Rollups.Batch rollups = Rollups.batch();
+            for (Op op : accepted) {
+                rollups.add(op.account.id(), op.withdraw ? HistoryItem.WITHDRAW : HistoryItem.DEPOSIT, op.amount);
+            }
+            rollups.apply(conn);
+
+            tx.afterCommit(() -> AccountChanges.committed(conn, rows));
+            return outcome;
+        });
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (results == null) {
+                batch.get(i).complete(new ActionResult(false, "Database error."));
+                continue;
+            }
+            // counted here rather than in the transaction body, which may run more than once
+            if (!results[i].success) {
+                Metrics.rollback(results[i].message);
+            }
+            batch.get(i).complete(results[i]);
+        }
+    }
+}
@@ -1,86 +1,282 @@
 package bankapp.handlers;
 
+import bankapp.dto.Account;
 import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryQuery;
 import bankapp.dto.HistoryResult;
+import bankapp.export.HistoryWriter;
 
+import java.io.IOException;
 import java.sql.*;
 import java.text.NumberFormat;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 
 /**
  * Retrieves transaction history for a given username using the same SQL
  * and formatting as the original BankTask version.
+ * Results are returned one page at a time, keyed on TXN_ID, so the cost of a
+ * request depends on the page size rather than on the age of the account.
  */
 public class HistoryHandler {
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("MMM d, yyyy h:mm a");
     private static final NumberFormat MONEY_FORMATTER = NumberFormat.getCurrencyInstance(Locale.US);
+    // Rows fetched per round trip by exports on drivers that cannot stream
+    private static final int EXPORT_FETCH_SIZE = 500;
 
     /**
-     * Gets the transaction history for a user.
+     * Gets the first page of transaction history for a user, oldest first.
      *
-     * @param conn     active database connection
-     * @param username username whose history is requested
+     * @param conn    active database connection
+     * @param account account whose history is requested
      * @return HistoryResult containing success flag and history text
      */
-    public static HistoryResult history(Connection conn, String username) {
-
-        // Original history SQL from your BankTask version
-        String txnRecordSQL = "SELECT TXN_ID, CUS_ID_SOURCE, CUS_ID_DEST, TXN_AMOUNT, TXN_DATETIME FROM " +
-                "TRANSACTION_RECORD " + "WHERE CUS_ID_SOURCE = ? OR CUS_ID_DEST = ? ORDER BY TXN_ID";
+    public static HistoryResult history(Connection conn, Account account) {
+        return history(conn, account, new HistoryQuery());
+    }
 
-        // Ensures the username exists
-        String checkUser = "SELECT 1 FROM CUSTOMER WHERE CUS_UNAME = ?";
+    /**
+     * Gets one page of transaction history for a user.
+     *
+     * @param conn    active database connection
+     * @param account account whose history is requested
+     * @param query   cursor, page size and filters
+     * @return HistoryResult containing the page and the cursor for the next one
+     */
+    public static HistoryResult history(Connection conn, Account account, HistoryQuery query) {
+        List<HistoryItem> history = new ArrayList<>();
 
         try {
-            // Verify user exists
-            try (PreparedStatement check = conn.prepareStatement(checkUser)) {
-                check.setString(1, username);
-                ResultSet rs = check.executeQuery();
-                if (!rs.next()) {
-                    return new HistoryResult(false, "User not found.", new ArrayList<>());
+            HistoryResult result = streamHistory(conn, account, query, new HistoryWriter() {
+                @Override
+                public void item(HistoryItem item) {
+                    history.add(item);
                 }
+            });
+            result.transactions = history;
+            return result;
+
+        } catch (IOException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return new HistoryResult(false, "Database error.", new ArrayList<>());
+        }
+    }
+
+    /**
+     * Reads transaction history for an account and passes each row to the writer as soon as
+     * it is read from the ResultSet, so memory use does not depend on the number of rows.
+     * The writer is only started once the query has run; if that fails, nothing is written
+     * and an unsuccessful result is returned instead.
+     *
+     * @param conn    active database connection
+     * @param account account whose history is requested
+     * @param query   cursor, page size and filters; a limit of 0 streams every matching row
+     * @param out     destination for the rows
+     * @return HistoryResult with success flag, message and next cursor (transactions are not collected)
+     * @throws IOException if writing fails or the database fails after output has started
+     */
+    public static HistoryResult streamHistory(Connection conn, Account account, HistoryQuery query,
+                                              HistoryWriter out) throws IOException {
+
+        HistoryResult result = new HistoryResult(true, "History retrieved.", null);
+
+        if (query.types.isEmpty()) {
+            out.begin(result);
+            out.end(result);
+            return result;
+        }
+
+        List<Object> params = new ArrayList<>();
+        String txnRecordSQL = buildPageSql(account.id(), query, params);
+
+        // Execute the history SQL
+        try (PreparedStatement ps = conn.prepareStatement(txnRecordSQL,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+
+            // Unbounded exports are fetched row by row instead of being buffered by the driver.
+            // Integer.MIN_VALUE is MySQL Connector/J's streaming hint; other drivers reject it.
+            if (query.limit == HistoryQuery.UNLIMITED) {
+                ps.setFetchSize(isMySql(conn) ? Integer.MIN_VALUE : EXPORT_FETCH_SIZE);
+            }
+
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
             }
 
-            List<HistoryItem> history = new ArrayList<>();
-
-            // Execute the history SQL
-            try (PreparedStatement ps = conn.prepareStatement(txnRecordSQL)) {
-                ps.setString(1, username); // match source
-                ps.setString(2, username); // match destination
-                ResultSet rs = ps.executeQuery();
-
-                // Read each transaction row
-                while (rs.next()) {
-                    int id = rs.getInt("TXN_ID");
-                    String src = rs.getString("CUS_ID_SOURCE");
-                    String dest = rs.getString("CUS_ID_DEST");
-                    double amt = rs.getDouble("TXN_AMOUNT");
-                    Timestamp ts = rs.getTimestamp("TXN_DATETIME");
-                    String type;
-
-                    if (src == null) {
-                        type = HistoryItem.DEPOSIT;
-                    } else if (dest == null) {
-                        type = HistoryItem.WITHDRAW;
-                    } else if (dest.equals(username)) {
-                        type = HistoryItem.TRANSFER_IN;
-                    } else {
-                        type = HistoryItem.TRANSFER_OUT;
-                    }
-
-                    history.add(new HistoryItem(type, src, dest, amt, ts.toLocalDateTime().format(DATE_FORMATTER)));
+            ResultSet rs;
+            try {
+                rs = ps.executeQuery();
+            } catch (SQLException e) {
+                //noinspection CallToPrintStackTrace
+                e.printStackTrace();
+                return new HistoryResult(false, "Database error.", new ArrayList<>());
+            }
+
+            out.begin(result);
+
+            // Read each transaction row; one extra row is fetched to detect a further page
+            int count = 0;
+            long lastId = 0;
+            while (rs.next()) {
+                if (query.limit != HistoryQuery.UNLIMITED && count == query.limit) {
+                    result.nextCursor = lastId;
+                    break;
                 }
+
+                HistoryItem item = readItem(rs, account.username());
+                out.item(item);
+                lastId = item.id;
+                count++;
             }
 
-            return new HistoryResult(true, "History retrieved.", history);
+            out.end(result);
+            return result;
 
         } catch (SQLException e) {
-            //noinspection CallToPrintStackTrace
-            e.printStackTrace();
-            return new HistoryResult(false, "Database error.", new ArrayList<>());
+            // Output may already have started, so the response cannot be turned into an error result
+            throw new IOException("History query failed.", e);
         }
     }
+
+    // True if conn is a MySQL connection, whose driver only streams an export row by row with its own fetch-size hint.
+    private static boolean isMySql(Connection conn) throws SQLException {
+        return conn.getMetaData().getDatabaseProductName().equalsIgnoreCase("MySQL");
+    }
+
+    // Converts the current row into a HistoryItem, classifying it relative to the given user.
+    private static HistoryItem readItem(ResultSet rs, String username) throws SQLException {
+        long id = rs.getLong("TXN_ID");
+        String src = rs.getString("SOURCE_UNAME");
+        String dest = rs.getString("DEST_UNAME");
+        long amt = rs.getLong("TXN_CENTS");   // converted to whole cents in the query
+        Timestamp ts = rs.getTimestamp("TXN_DATETIME");
+
+        return new HistoryItem(id, classify(src, dest, username), src, dest, amt, formatTime(ts));
+    }
+
+    /**
+     * Returns the HistoryItem type of a transaction as seen by the given user.
+     *
+     * @param src      source username, null for deposits
+     * @param dest     destination username, null for withdrawals
+     * @param username the user whose history is being read
+     */
+    public static String classify(String src, String dest, String username) {
+        if (src == null) {
+            return HistoryItem.DEPOSIT;
+        } else if (dest == null) {
+            return HistoryItem.WITHDRAW;
+        } else if (dest.equals(username)) {
+            return HistoryItem.TRANSFER_IN;
+        } else {
+            return HistoryItem.TRANSFER_OUT;
+        }
+    }
+
+    /**
+     * Formats a transaction time the way it is shown to users.
+     */
+    public static String formatTime(Timestamp ts) {
+        return ts.toLocalDateTime().format(DATE_FORMATTER);
+    }
+
+    // Builds the page query and fills params in placeholder order.
+    // Rows where the account is the source and rows where it is the destination are read
+    // as two separate range scans on (TXN_SOURCE_ID, TXN_ID) and (TXN_DEST_ID, TXN_ID), each
+    // stopping after one page, and then merged. A single "source = ? OR dest = ?" predicate
+    // cannot be served in TXN_ID order by either index. Usernames are joined in afterwards,
+    // for the rows of the page only.
+    private static String buildPageSql(long accountId, HistoryQuery query, List<Object> params) {
+        EnumSet<HistoryQuery.Type> types = query.types;
+        List<String> branches = new ArrayList<>();
+
+        // Outgoing rows: withdrawals (no destination) and transfers out
+        boolean withdraw = types.contains(HistoryQuery.Type.WITHDRAW);
+        boolean transferOut = types.contains(HistoryQuery.Type.TRANSFER_OUT);
+        if (withdraw || transferOut) {
+            // a transfer to another shard has no destination here, only a counterparty
+            String typePred = withdraw && transferOut ? "" :
+                    withdraw ? " AND TXN_DEST_ID IS NULL AND TXN_COUNTERPARTY IS NULL"
+                            : " AND (TXN_DEST_ID IS NOT NULL OR TXN_COUNTERPARTY IS NOT NULL)";
+            params.add(accountId);
+            branches.add(branchSql("TXN_SOURCE_ID = ?" + typePred, query, params));
+        }
+
+        // Incoming rows: deposits (no source) and transfers in. Rows that also have the user
+        // as source were already returned by the outgoing branch.
+        boolean deposit = types.contains(HistoryQuery.Type.DEPOSIT);
+        boolean transferIn = types.contains(HistoryQuery.Type.TRANSFER_IN);
+        if (deposit || transferIn) {
+            String typePred = deposit && transferIn ? " AND (TXN_SOURCE_ID IS NULL OR TXN_SOURCE_ID <> ?)" :
+                    deposit ? " AND TXN_SOURCE_ID IS NULL AND TXN_COUNTERPARTY IS NULL"
+                            : " AND (TXN_SOURCE_ID <> ? OR TXN_COUNTERPARTY IS NOT NULL)";
+            params.add(accountId);
+            if (transferIn) {
+                params.add(accountId);
+            }
+            branches.add(branchSql("TXN_DEST_ID = ?" + typePred, query, params));
+        }
+
+        String order = query.newestFirst ? " ORDER BY TXN_ID DESC" : " ORDER BY TXN_ID";
+        String page;
+
+        if (branches.size() == 1) {
+            // already ordered and limited
+            String branch = branches.get(0);
+            page = branch.substring(1, branch.length() - 1);
+        } else {
+            page = String.join(" UNION ALL ", branches) + order;
+            if (query.limit != HistoryQuery.UNLIMITED) {
+                params.add(query.limit + 1);
+                page += " LIMIT ?";
+            }
+        }
+
+        // The other party of a transfer between shards is only known by name
+        return "SELECT T.TXN_ID, " +
+                "CASE WHEN T.TXN_SOURCE_ID IS NULL THEN T.TXN_COUNTERPARTY ELSE S.CUS_UNAME END AS SOURCE_UNAME, " +
+                "CASE WHEN T.TXN_DEST_ID IS NULL THEN T.TXN_COUNTERPARTY ELSE D.CUS_UNAME END AS DEST_UNAME, " +
+                "T.TXN_CENTS, T.TXN_DATETIME " +
+                "FROM (" + page + ") T " +
+                "LEFT JOIN CUSTOMER S ON S.CUS_ID = T.TXN_SOURCE_ID " +
+                "LEFT JOIN CUSTOMER D ON D.CUS_ID = T.TXN_DEST_ID" +
+                order.replace("TXN_ID", "T.TXN_ID");
+    }
+
+    // One side of the UNION ALL, limited to a page so each index scan stays short.
+    private static String branchSql(String partyPred, HistoryQuery query, List<Object> params) {
+        StringBuilder sql = new StringBuilder(
+                "(SELECT TXN_ID, TXN_SOURCE_ID, TXN_DEST_ID, TXN_COUNTERPARTY, " +
+                "CAST(TXN_AMOUNT * 100 AS DECIMAL(17, 0)) AS TXN_CENTS, TXN_DATETIME " +
+                "FROM TRANSACTION_RECORD " +
+                "WHERE ").append(partyPred);
+
+        if (query.after != null) {
+            sql.append(query.newestFirst ? " AND TXN_ID < ?" : " AND TXN_ID > ?");
+            params.add(query.after);
+        }
+
+        if (query.from != null) {
+            sql.append(" AND TXN_DATETIME >= ?");
+            params.add(Timestamp.valueOf(query.from));
+        }
+
+        if (query.to != null) {
+            sql.append(" AND TXN_DATETIME < ?");
+            params.add(Timestamp.valueOf(query.to));
+        }
+
+        sql.append(query.newestFirst ? " ORDER BY TXN_ID DESC" : " ORDER BY TXN_ID");
+
+        if (query.limit != HistoryQuery.UNLIMITED) {
+            sql.append(" LIMIT ?");
+            params.add(query.limit + 1);
+        }
+
+        return sql.append(")").toString();
+    }
 }
@@ -0,0 +1,204 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.dto.Money;
+import bankapp.shard.Shards;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped balances for accounts that receive many concurrent transfers (HOT_ACCOUNTS).
+ *
+ * A transfer normally locks the recipient's CUSTOMER row, so every payment into a popular
+ * account waits for the one before it. Transfers into a hot account leave that row unlocked
+ * and add the amount to one of HOT_ACCOUNT_SLOTS rows in CUSTOMER_BALANCE_SLOT, picked at
+ * random, so concurrent credits rarely meet.
+ *
+ * An account's balance is CUS_BALANCE plus the sum of its slots. Slots are folded back into
+ * CUS_BALANCE by a background task every HOT_ACCOUNT_FOLD_INTERVAL_MS, and by every debit
+ * before it checks the balance; folding locks the CUSTOMER row first and then the slots, the
+ * same order credits take them in.
+ */
+public final class HotAccounts {
+
+    private static final Set<String> HOT = parse(Config.get("HOT_ACCOUNTS", ""));
+    private static final int SLOTS = Math.max(1, Config.getInt("HOT_ACCOUNT_SLOTS", 16));
+    private static final long FOLD_INTERVAL_MS = Config.getLong("HOT_ACCOUNT_FOLD_INTERVAL_MS", 1000);
+
+    private static final LongAdder CREDITS = new LongAdder();
+    private static final LongAdder FOLDS = new LongAdder();
+
+    private HotAccounts() {}
+
+    /**
+     * Returns true if credits to the account go to its slots.
+     */
+    public static boolean isHot(String username) {
+        return username != null && HOT.contains(username);
+    }
+
+    /**
+     * Starts folding slots back into balances in the background, if any account is hot.
+     * Slots left behind by accounts no longer listed as hot are folded as well.
+     */
+    public static void startFolding() {
+        if (HOT.isEmpty()) {
+            return;
+        }
+
+        ScheduledExecutorService folder = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hot-account-fold");
+            t.setDaemon(true);
+            return t;
+        });
+        folder.scheduleWithFixedDelay(HotAccounts::foldAll, 0, Math.max(1, FOLD_INTERVAL_MS), TimeUnit.MILLISECONDS);
+    }
+
+    public static int getAccountCount() {
+        return HOT.size();
+    }
+
+    public static long getCreditCount() {
+        return CREDITS.sum();
+    }
+
+    public static long getFoldCount() {
+        return FOLDS.sum();
+    }
+
+    /**
+     * Adds a credit to one of the account's slots. Call it after inserting the transaction's
+     * TRANSACTION_RECORD row: with InnoDB the foreign key check on that insert share-locks the
+     * account's CUSTOMER row, which keeps it from being folded until commit without blocking
+     * other credits, and takes that lock before the slot's as folding does.
+     *
+     * @param amount amount in cents
+     */
+    static void credit(Connection conn, long accountId, long amount) throws SQLException {
+        String updateSql = "UPDATE CUSTOMER_BALANCE_SLOT SET SLOT_BALANCE = SLOT_BALANCE + ? " +
+                "WHERE CUS_ID = ? AND SLOT_NO = ?";
+        // The slot is created by the first credit that lands in it
+        String insertSql = "INSERT INTO CUSTOMER_BALANCE_SLOT (CUS_ID, SLOT_NO, SLOT_BALANCE) VALUES (?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE SLOT_BALANCE = SLOT_BALANCE + ?";
+
+        int slot = ThreadLocalRandom.current().nextInt(SLOTS);
+        int rows;
+
+        try (PreparedStatement update = conn.prepareStatement(updateSql)) {
+            update.setBigDecimal(1, Money.toDecimal(amount));
+            update.setLong(2, accountId);
+            update.setInt(3, slot);
+            rows = update.executeUpdate();
+        }
+
+        if (rows == 0) {
+            try (PreparedStatement insert = conn.prepareStatement(insertSql)) {
+                insert.setLong(1, accountId);
+                insert.setInt(2, slot);
+                insert.setBigDecimal(3, Money.toDecimal(amount));
+                insert.setBigDecimal(4, Money.toDecimal(amount));
+                insert.executeUpdate();
+            }
+        }
+        CREDITS.increment();
+    }
+
+    /**
+     * Moves the account's slots into CUS_BALANCE. The caller must hold the CUSTOMER row
+     * lock (SELECT ... FOR UPDATE) in the current transaction.
+     *
+     * @return the amount moved, in cents
+     */
+    static long fold(Connection conn, long accountId) throws SQLException {
+        String lockSql = "SELECT CAST(SLOT_BALANCE * 100 AS DECIMAL(17, 0)) AS SLOT_CENTS FROM CUSTOMER_BALANCE_SLOT " +
+                "WHERE CUS_ID = ? FOR UPDATE";
+        String clearSql = "UPDATE CUSTOMER_BALANCE_SLOT SET SLOT_BALANCE = 0 WHERE CUS_ID = ?";
+        String addSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+
+        long total = 0;
+        try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+            lock.setLong(1, accountId);
+            try (ResultSet rs = lock.executeQuery()) {
+                while (rs.next()) {
+                    total += rs.getLong("SLOT_CENTS");
+                }
+            }
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        try (PreparedStatement clear = conn.prepareStatement(clearSql)) {
+            clear.setLong(1, accountId);
+            clear.executeUpdate();
+        }
+        try (PreparedStatement add = conn.prepareStatement(addSql)) {
+            add.setBigDecimal(1, Money.toDecimal(total));
+            add.setLong(2, accountId);
+            add.executeUpdate();
+        }
+        FOLDS.increment();
+        return total;
+    }
+
+    // Folds every account that has money in its slots, on every shard, each in its own short
+    // transaction.
+    private static void foldAll() {
+        for (String shard : Shards.names()) {
+            foldAll(shard);
+        }
+    }
+
+    private static void foldAll(String shard) {
+        String pendingSql = "SELECT DISTINCT CUS_ID FROM CUSTOMER_BALANCE_SLOT WHERE SLOT_BALANCE <> 0";
+        String lockSql = "SELECT CUS_ID FROM CUSTOMER WHERE CUS_ID = ? FOR UPDATE";
+
+        try (Connection conn = Database.getShardConnection(shard)) {
+            List<Long> pending = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(pendingSql);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    pending.add(rs.getLong("CUS_ID"));
+                }
+            }
+
+            for (long accountId : pending) {
+                Transactions.run(conn, 0L, tx -> {
+                    try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+                        lock.setLong(1, accountId);
+                        lock.executeQuery().close();
+                    }
+                    return fold(conn, accountId);
+                });
+            }
+        } catch (SQLException | RuntimeException e) {
+            // The next run tries again
+            e.printStackTrace();
+        }
+    }
+
+    private static Set<String> parse(String list) {
+        // Usernames compare case-insensitively, as in the database's collation
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : list.split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,199 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.cache.IdempotencyCache;
+import bankapp.dto.ActionResult;
+import bankapp.shard.Shards;
+import com.google.gson.Gson;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Idempotency-Key support for /deposit, /withdraw and /transfer.
+ *
+ * A successful request stores its key and response in IDEMPOTENCY_KEY inside the same
+ * transaction that moves the money, so either both are committed or neither is. The key is
+ * inserted first, so a repeat that reaches the database fails on the primary key before it
+ * touches a CUSTOMER row; it is rolled back and answered with the stored response. Failed
+ * requests (e.g. "Insufficient funds.") store nothing and are evaluated again on retry.
+ *
+ * Keys belong to the user who sent them and are kept for IDEMPOTENCY_TTL_HOURS. Recent keys
+ * are also held in memory, which answers the usual retry without querying the table.
+ */
+public final class IdempotencyKeys {
+
+    public static final int MAX_KEY_LENGTH = 64;
+
+    private static final Gson gson = new Gson();
+
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(Config.getLong("IDEMPOTENCY_TTL_HOURS", 24));
+    private static final long PURGE_INTERVAL_MINUTES = 10;
+    private static final int PURGE_BATCH = 1000;
+
+    private static final IdempotencyCache CACHE =
+            new IdempotencyCache(Config.getInt("IDEMPOTENCY_CACHE_MAX_ENTRIES", 10_000), TTL_MILLIS);
+
+    private static final LongAdder REPLAYS = new LongAdder();
+    private static final LongAdder PURGED = new LongAdder();
+
+    public static final ActionResult KEY_REUSED =
+            new ActionResult(false, "Idempotency-Key was already used for a different request.");
+    private static final ActionResult IN_PROGRESS =
+            new ActionResult(false, "A request with this Idempotency-Key is still in progress.");
+
+    private IdempotencyKeys() {}
+
+    /**
+     * Returns the response of an earlier request with this key if it is remembered in memory,
+     * or null if the request has to run.
+     *
+     * @param key     the Idempotency-Key header, or null
+     * @param request what the request asks for, e.g. "deposit 1250"; a key reused for a
+     *                different request is refused
+     */
+    static ActionResult recall(String username, String key, String request) {
+        if (key == null) {
+            return null;
+        }
+
+        IdempotencyCache.Entry entry = CACHE.get(cacheKey(username, key));
+        if (entry == null) {
+            return null;
+        }
+        REPLAYS.increment();
+        return entry.request().equals(request) ? gson.fromJson(entry.response(), ActionResult.class) : KEY_REUSED;
+    }
+
+    /**
+     * Records the key with the response the request will get if its transaction commits.
+     * Call it first in the transaction.
+     *
+     * @return false if the key is already taken; answer with {@link #replay} then
+     */
+    static boolean claim(Transactions.Tx tx, Connection conn, String username, String key, String request,
+                         ActionResult response) throws SQLException {
+        if (key == null) {
+            return true;
+        }
+
+        String insertSql = "INSERT INTO IDEMPOTENCY_KEY (IDEM_UNAME, IDEM_KEY, IDEM_REQUEST, IDEM_RESPONSE, IDEM_CREATED) " +
+                "VALUES (?, ?, ?, ?, ?)";
+
+        String json = gson.toJson(response);
+        long now = System.currentTimeMillis();
+
+        try (PreparedStatement insert = conn.prepareStatement(insertSql)) {
+            insert.setString(1, username);
+            insert.setString(2, key);
+            insert.setString(3, request);
+            insert.setString(4, json);
+            insert.setTimestamp(5, new Timestamp(now));
+            insert.executeUpdate();
+        } catch (SQLIntegrityConstraintViolationException e) {
+            return false;
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+                return false;
+            }
+            throw e;
+        }
+
+        tx.afterCommit(() -> CACHE.put(cacheKey(username, key), new IdempotencyCache.Entry(request, json, now)));
+        return true;
+    }
+
+    /**
+     * Rolls back a transaction whose key was already taken and returns the response stored
+     * for it.
+     */
+    static ActionResult replay(Transactions.Tx tx, Connection conn, String username, String key, String request)
+            throws SQLException {
+        tx.rollback("Repeated request.", null);
+        REPLAYS.increment();
+
+        String sql = "SELECT IDEM_REQUEST, IDEM_RESPONSE, IDEM_CREATED FROM IDEMPOTENCY_KEY " +
+                "WHERE IDEM_UNAME = ? AND IDEM_KEY = ?";
+
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            ps.setString(2, key);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    // the other request has not committed, or rolled back after all
+                    return IN_PROGRESS;
+                }
+
+                IdempotencyCache.Entry entry = new IdempotencyCache.Entry(rs.getString("IDEM_REQUEST"),
+                        rs.getString("IDEM_RESPONSE"), rs.getTimestamp("IDEM_CREATED").getTime());
+                CACHE.put(cacheKey(username, key), entry);
+
+                return entry.request().equals(request) ? gson.fromJson(entry.response(), ActionResult.class)
+                        : KEY_REUSED;
+            }
+        }
+    }
+
+    /**
+     * Starts deleting keys older than the TTL in the background.
+     */
+    public static void startPurging() {
+        ScheduledExecutorService purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-purge");
+            t.setDaemon(true);
+            return t;
+        });
+        purger.scheduleWithFixedDelay(IdempotencyKeys::purge, PURGE_INTERVAL_MINUTES, PURGE_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    public static IdempotencyCache cache() {
+        return CACHE;
+    }
+
+    public static long getReplayCount() {
+        return REPLAYS.sum();
+    }
+
+    public static long getPurgedCount() {
+        return PURGED.sum();
+    }
+
+    // Deletes expired keys on every shard, a batch at a time, so no single statement holds
+    // locks for long.
+    private static void purge() {
+        for (String shard : Shards.names()) {
+            purge(shard);
+        }
+    }
+
+    private static void purge(String shard) {
+        String sql = "DELETE FROM IDEMPOTENCY_KEY WHERE IDEM_CREATED < ? LIMIT " + PURGE_BATCH;
+
+        try (Connection conn = Database.getShardConnection(shard);
+             PreparedStatement delete = conn.prepareStatement(sql)) {
+            delete.setTimestamp(1, new Timestamp(System.currentTimeMillis() - TTL_MILLIS));
+            int rows;
+            do {
+                rows = delete.executeUpdate();
+                PURGED.add(rows);
+            } while (rows == PURGE_BATCH);
+        } catch (SQLException | RuntimeException e) {
+            // The next run tries again
+            e.printStackTrace();
+        }
+    }
+
+    private static String cacheKey(String username, String key) {
+        return username + '\n' + key;
+    }
+}
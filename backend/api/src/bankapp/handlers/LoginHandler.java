@@ -1,12 +1,14 @@
 package bankapp.handlers;
 
+import bankapp.Database;
+import bankapp.ServiceUnavailableException;
 import bankapp.dto.LoginResult;
+import bankapp.security.PasswordHasher;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import org.mindrot.jbcrypt.BCrypt;
 
 /**
  * Handles a LOGIN (username password) request.
@@ -16,18 +18,24 @@ import org.mindrot.jbcrypt.BCrypt;
 public class LoginHandler {
 
     /**
-     * Attempts to authenticate a user.
+     * Attempts to authenticate a user. A connection is only held to read the stored hash and,
+     * if it needs upgrading, to write the new one; the bcrypt work in between, which can wait
+     * behind other logins on the bcrypt pool, holds none.
      *
-     * @param conn      Active database connection.
      * @param username  Supplied username.
      * @param password  Supplied password.
      * @return A LoginResult object containing success status and messages.
      */
-    public static LoginResult authenticate(Connection conn, String username, String password) {
+    public static LoginResult authenticate(String username, String password) {
 
-        String sql = "SELECT CUS_PASSWD_HASH FROM CUSTOMER WHERE CUS_UNAME = ?";
+        String sql = "SELECT CUS_ID, CUS_UNAME, CUS_PASSWD_HASH FROM CUSTOMER WHERE CUS_UNAME = ?";
 
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        long id;
+        String storedName;
+        String storedPass;
+
+        try (Connection conn = Database.getConnection(username);
+             PreparedStatement ps = conn.prepareStatement(sql)) {
 
             ps.setString(1, username); // insert username into the query
             ResultSet rs = ps.executeQuery(); // execute the lookup
@@ -37,20 +45,57 @@ public class LoginHandler {
                 return new LoginResult(false, "Invalid username or password.");
             }
 
-            // compare given password with the stored one
-            String storedPass = rs.getString("CUS_PASSWD_HASH");
-
-            // Compare input password to stored bcrypt hash
-            if (storedPass != null && BCrypt.checkpw(password, storedPass)) {
-                return new LoginResult(true, "Login successful.");
-            } else {
-                return new LoginResult(false, "Invalid username or password.");
-            }
+            id = rs.getLong("CUS_ID");
+            storedName = rs.getString("CUS_UNAME");
+            storedPass = rs.getString("CUS_PASSWD_HASH");
 
         } catch (SQLException e) {
             //noinspection CallToPrintStackTrace
             e.printStackTrace();
             return new LoginResult(false, "Database error.");
         }
+
+        // Compare input password to stored bcrypt hash (runs on the bcrypt pool)
+        if (storedPass == null || !PasswordHasher.check(password, storedPass)) {
+            return new LoginResult(false, "Invalid username or password.");
+        }
+
+        if (PasswordHasher.needsRehash(storedPass)) {
+            rehash(storedName, storedPass, password);
+        }
+        LoginResult result = new LoginResult(true, "Login successful.");
+        result.username = storedName;
+
+        // The token's requests resolve the username to this id
+        Accounts.remember(id, storedName);
+        return result;
+    }
+
+    /**
+     * Replaces a stored hash made with an old cost factor, now that the plain password is known.
+     * Failures are ignored: the old hash still works and will be upgraded on a later login.
+     */
+    private static void rehash(String username, String oldHash, String password) {
+
+        // Only replace the hash that was checked, in case the password changed meanwhile
+        String sql = "UPDATE CUSTOMER SET CUS_PASSWD_HASH = ? WHERE CUS_UNAME = ? AND CUS_PASSWD_HASH = ?";
+
+        try {
+            // hashed before borrowing the connection, so it is not held while bcrypt runs
+            String hash = PasswordHasher.hash(password);
+
+            try (Connection conn = Database.getConnection(username);
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, hash);
+                ps.setString(2, username);
+                ps.setString(3, oldHash);
+                if (ps.executeUpdate() > 0) {
+                    PasswordHasher.recordRehash();
+                }
+            }
+        } catch (SQLException | ServiceUnavailableException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+        }
     }
 }
@@ -1,12 +1,15 @@
 package bankapp.handlers;
 
+import bankapp.Database;
+import bankapp.Replicas;
 import bankapp.dto.RegisterResult;
+import bankapp.security.PasswordHasher;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import org.mindrot.jbcrypt.BCrypt;
+import java.sql.Statement;
 
 /**
  * Handles a REGISTER (username password) request.
@@ -15,20 +18,20 @@ import org.mindrot.jbcrypt.BCrypt;
  */
 public class RegisterHandler {
     /**
-     * Attempts to register a new user.
+     * Attempts to register a new user. The password is hashed before a connection is
+     * borrowed, so the connection is not held while bcrypt runs.
      *
-     * @param conn      Active database connection.
      * @param username  Supplied username.
      * @param password  Supplied password.
      * @return A RegisterResult object containing success status and messages.
      */
-    public static RegisterResult register(Connection conn, String username, String password) {
+    public static RegisterResult register(String username, String password) {
         if (username == null || password == null) {
             return new RegisterResult(false, "Username and password are required.");
         }
 
         // trim whitespace off edges
-        username = username.trim();
+        username = Accounts.normalize(username);
         password = password.trim();
 
         if (username.isEmpty() || password.isEmpty()) {
@@ -46,7 +49,11 @@ public class RegisterHandler {
         String checkSQL = "SELECT CUS_PASSWD_HASH FROM CUSTOMER WHERE CUS_UNAME = ?";
         String insertSQL = "INSERT INTO CUSTOMER (CUS_UNAME, CUS_PASSWD_HASH, CUS_BALANCE) VALUES (?, ?, 0.0)";
 
-        try {
+        // Hash the password using bcrypt to prevent plaintext passwords from being stored in the database.
+        // Hashing runs on the bcrypt pool so it cannot starve the request threads.
+        String hash = PasswordHasher.hash(password);
+
+        try (Connection conn = Database.getConnection(username)) {
             // Check if username already exists
             try (PreparedStatement check = conn.prepareStatement(checkSQL)) {
                 check.setString(1, username); // insert username into the query
@@ -58,13 +65,15 @@ public class RegisterHandler {
             }
 
             // Insert the new customer record
-            try (PreparedStatement insert = conn.prepareStatement(insertSQL)) {
+            try (PreparedStatement insert = conn.prepareStatement(insertSQL, Statement.RETURN_GENERATED_KEYS)) {
                 insert.setString(1, username);
-
-                // Hash the password using bcrypt to prevent plaintext passwords from being stored in the database.
-                String hash = BCrypt.hashpw(password, BCrypt.gensalt(12));
                 insert.setString(2, hash);
                 insert.executeUpdate();
+
+                // The new account's id, so its first requests need not look it up
+                Accounts.remember(AccountChanges.generatedId(insert), username);
+                // and its first reads do not go to a replica that has not seen it yet
+                Replicas.written(username);
             }
 
             return new RegisterResult(true, "Registration successful. \nYou can now log in.");
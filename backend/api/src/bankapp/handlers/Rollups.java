@@ -0,0 +1,158 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-account daily totals of each kind of transaction (STATEMENT_ROLLUP), from which
+ * /summary adds up a date range one row per day and type instead of one per transaction.
+ *
+ * Every transaction that inserts TRANSACTION_RECORD rows adds their amounts here and applies
+ * them as its last statements, so totals and rows commit or roll back together. By then the
+ * transaction holds the CUSTOMER row lock of each account it adds to, so the rollup rows
+ * cost no extra waiting. Credits to hot accounts (HOT_ACCOUNTS) hold no such lock; they are
+ * spread over HOT_ACCOUNT_SLOTS rows per day and type, as their balances are.
+ */
+public final class Rollups {
+
+    private static final int HOT_SLOTS = Math.max(1, Config.getInt("HOT_ACCOUNT_SLOTS", 16));
+
+    private static final String REBUILD_SQL = "INSERT INTO STATEMENT_ROLLUP " +
+            "(CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT, ROLL_COUNT, ROLL_SUM) " +
+            "SELECT CUS_ID, ROLL_DAY, ROLL_TYPE, 0, COUNT(*), SUM(TXN_AMOUNT) FROM (" +
+            "SELECT TXN_SOURCE_ID AS CUS_ID, CAST(TXN_DATETIME AS DATE) AS ROLL_DAY, " +
+            "CASE WHEN TXN_DEST_ID IS NULL AND TXN_COUNTERPARTY IS NULL THEN 'WITHDRAW' ELSE 'TRANSFER_OUT' END " +
+            "AS ROLL_TYPE, TXN_AMOUNT FROM TRANSACTION_RECORD WHERE TXN_SOURCE_ID IS NOT NULL " +
+            "UNION ALL " +
+            "SELECT TXN_DEST_ID, CAST(TXN_DATETIME AS DATE), " +
+            "CASE WHEN TXN_SOURCE_ID IS NULL AND TXN_COUNTERPARTY IS NULL THEN 'DEPOSIT' ELSE 'TRANSFER_IN' END, " +
+            "TXN_AMOUNT FROM TRANSACTION_RECORD WHERE TXN_DEST_ID IS NOT NULL" +
+            ") T GROUP BY CUS_ID, ROLL_DAY, ROLL_TYPE";
+
+    private Rollups() {}
+
+    // One rollup row's change. The day is left to the database, which takes it from time as
+    // REBUILD_SQL does from TXN_DATETIME, so live totals and a rebuild agree whatever time zones
+    // the JVM and the database session use; time is null for the database's current time.
+    private record Key(long accountId, Timestamp time, String type, int slot) {}
+
+    private static final Comparator<Key> ORDER = Comparator.comparingLong(Key::accountId)
+            .thenComparing(Key::time, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(Key::type)
+            .thenComparingInt(Key::slot);
+
+    /**
+     * The rollup changes of one transaction, applied with {@link #apply}.
+     */
+    public static final class Batch {
+
+        // Key -> {count, cents}, in key order so concurrent transactions lock rows in the same order
+        private final Map<Key, long[]> totals = new TreeMap<>(ORDER);
+        // Hot accounts' slot for this transaction; one per account keeps its rows in day order
+        private final Map<Long, Integer> slots = new HashMap<>();
+
+        /**
+         * Adds a transaction dated today by the database's clock, like TXN_DATETIME's default.
+         *
+         * @param type   the {@link HistoryItem} type as seen by the account
+         * @param amount amount in cents
+         */
+        public Batch add(long accountId, String type, long amount) {
+            return add(accountId, type, amount, null, false);
+        }
+
+        /**
+         * Adds a transaction.
+         *
+         * @param type   the {@link HistoryItem} type as seen by the account
+         * @param amount amount in cents
+         * @param time   the TXN_DATETIME it was inserted with, null for the default; the database
+         *               takes its day, as for the row itself
+         * @param hot    true for a credit to a hot account made without locking its CUSTOMER row
+         */
+        public Batch add(long accountId, String type, long amount, Timestamp time, boolean hot) {
+            int slot = hot ? slots.computeIfAbsent(accountId, id -> ThreadLocalRandom.current().nextInt(HOT_SLOTS)) : 0;
+            long[] total = totals.computeIfAbsent(new Key(accountId, time, type, slot), k -> new long[2]);
+            total[0]++;
+            total[1] += amount;
+            return this;
+        }
+
+        /**
+         * Applies the changes in the current transaction. Call it after the transaction's
+         * other statements, so the CUSTOMER row locks are already held.
+         */
+        public void apply(Connection conn) throws SQLException {
+            String updateSql = "UPDATE STATEMENT_ROLLUP SET ROLL_COUNT = ROLL_COUNT + ?, ROLL_SUM = ROLL_SUM + ? " +
+                    "WHERE CUS_ID = ? AND ROLL_DAY = CAST(COALESCE(?, CURRENT_TIMESTAMP) AS DATE) " +
+                    "AND ROLL_TYPE = ? AND ROLL_SLOT = ?";
+            // The row is created by the first transaction of its day
+            String insertSql = "INSERT INTO STATEMENT_ROLLUP (CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT, ROLL_COUNT, " +
+                    "ROLL_SUM) VALUES (?, CAST(COALESCE(?, CURRENT_TIMESTAMP) AS DATE), ?, ?, ?, ?) " +
+                    "ON DUPLICATE KEY UPDATE ROLL_COUNT = ROLL_COUNT + VALUES(ROLL_COUNT), " +
+                    "ROLL_SUM = ROLL_SUM + VALUES(ROLL_SUM)";
+
+            if (totals.isEmpty()) {
+                return;
+            }
+
+            try (PreparedStatement update = conn.prepareStatement(updateSql);
+                 PreparedStatement insert = conn.prepareStatement(insertSql)) {
+                for (Map.Entry<Key, long[]> e : totals.entrySet()) {
+                    Key key = e.getKey();
+                    long count = e.getValue()[0];
+                    long cents = e.getValue()[1];
+
+                    update.setLong(1, count);
+                    update.setBigDecimal(2, Money.toDecimal(cents));
+                    update.setLong(3, key.accountId());
+                    update.setObject(4, key.time(), Types.TIMESTAMP);
+                    update.setString(5, key.type());
+                    update.setInt(6, key.slot());
+                    if (update.executeUpdate() > 0) {
+                        continue;
+                    }
+
+                    insert.setLong(1, key.accountId());
+                    insert.setObject(2, key.time(), Types.TIMESTAMP);
+                    insert.setString(3, key.type());
+                    insert.setInt(4, key.slot());
+                    insert.setLong(5, count);
+                    insert.setBigDecimal(6, Money.toDecimal(cents));
+                    insert.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the rollup changes of a transaction.
+     */
+    public static Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Recomputes every total from TRANSACTION_RECORD, e.g. after rows were loaded in bulk.
+     * Nothing else may write to the database meanwhile.
+     */
+    public static void rebuild(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate("DELETE FROM STATEMENT_ROLLUP");
+            st.executeUpdate(REBUILD_SQL);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.dto.Account;
+import bankapp.dto.BalanceResult;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.shard.Shards;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transfers to accounts on another shard (DB_SHARDS).
+ *
+ * The sender's shard commits the debit, the sender's TRANSACTION_RECORD row and a
+ * TRANSFER_OUTBOX row in one transaction ({@link #send}). A relay thread then delivers each
+ * outbox row: the recipient's shard commits the credit, the recipient's TRANSACTION_RECORD
+ * row and a TRANSFER_INBOX row keyed by the sending shard and row id, and only then is the
+ * outbox row deleted. A relay that stops in between delivers the row again later, and the
+ * inbox row turns the repeat into a no-op, so a transfer is never lost or credited twice.
+ * Recipients see the credit a moment after the sender's commit, usually within milliseconds
+ * as a commit wakes the relay; SHARD_RELAY_INTERVAL_MS bounds the delay otherwise.
+ *
+ * A credit that can never succeed is refused rather than retried: the recipient's balance
+ * would pass {@link Money#MAX_CENTS}, or the recipient is not on its shard (DB_SHARDS changed
+ * without rebalancing). The refusal is recorded as a TRANSFER_INBOX row with IN_TXN_ID 0, so
+ * the transfer cannot be credited afterwards, and the sender's shard then refunds the sender
+ * and deletes the outbox row in one transaction. Senders check the recipient's room before
+ * debiting ({@link #hasRoom}), so refunds are rare.
+ *
+ * Each side's row names the other party in TXN_COUNTERPARTY, since its account id is only
+ * meaningful on its own shard.
+ */
+public final class ShardOutbox {
+
+    private static final long INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Math.max(1, Config.getLong("SHARD_RELAY_INTERVAL_MS", 200)));
+    private static final int BATCH = Math.max(1, Config.getInt("SHARD_RELAY_BATCH", 100));
+
+    private static final LongAdder SENT = new LongAdder();
+    private static final LongAdder DELIVERED = new LongAdder();
+    private static final LongAdder REPEATS = new LongAdder();
+    private static final LongAdder FAILURES = new LongAdder();
+    private static final LongAdder REFUNDS = new LongAdder();
+
+    // Shard -> creation time of its oldest undelivered transfer at the last look, 0 if none
+    private static final Map<String, Long> OLDEST = new ConcurrentHashMap<>();
+
+    private static volatile Thread relay;
+
+    private ShardOutbox() {}
+
+    // A transfer waiting in a shard's outbox
+    private record Pending(long txnId, String fromUser, String toUser, long amount, Timestamp created) {}
+
+    // What became of an attempt to credit a transfer
+    private enum Outcome { CREDITED, REFUSED, RETRY }
+
+    /**
+     * Returns true if the recipient's balance, read on its own shard, leaves room for amount
+     * more. Transfers to another shard are checked before the sender is debited, so their
+     * credit is not refused for the balance limit later. A recipient whose shard cannot be
+     * read passes; should its credit be refused after all, the sender is refunded.
+     *
+     * @param amount amount in cents
+     */
+    static boolean hasRoom(Account to, long amount) {
+        try (Connection conn = Database.getConnection(to.username())) {
+            BalanceResult balance = BalanceHandler.getBalance(conn, to);
+            return !balance.success || balance.balance <= Money.MAX_CENTS - amount;
+        } catch (SQLException | RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Queues the credits of transfers whose recipients are on other shards, in the sender's
+     * transaction and after the sender's TRANSACTION_RECORD rows are inserted. They are
+     * delivered once the transaction commits.
+     *
+     * @param rows the sender's new rows; id, fromUser, toUser and amount are used
+     */
+    static void send(Transactions.Tx tx, Connection conn, List<HistoryItem> rows) throws SQLException {
+        String insertSql = "INSERT INTO TRANSFER_OUTBOX (OUT_TXN_ID, OUT_SOURCE_UNAME, OUT_DEST_UNAME, OUT_AMOUNT, " +
+                "OUT_CREATED) VALUES (?, ?, ?, ?, ?)";
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement insert = conn.prepareStatement(insertSql)) {
+            for (HistoryItem row : rows) {
+                insert.setLong(1, row.id);
+                insert.setString(2, row.fromUser);
+                insert.setString(3, row.toUser);
+                insert.setBigDecimal(4, Money.toDecimal(row.amount));
+                insert.setTimestamp(5, now);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+
+        tx.afterCommit(() -> {
+            SENT.add(rows.size());
+            Thread t = relay;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        });
+    }
+
+    /**
+     * Starts delivering outbox rows in the background. Does nothing without DB_SHARDS.
+     * Every server runs a relay; two delivering the same row credit it once.
+     */
+    public static synchronized void startRelay() {
+        if (!Shards.isEnabled() || relay != null) {
+            return;
+        }
+
+        Thread t = new Thread(ShardOutbox::run, "shard-relay");
+        t.setDaemon(true);
+        relay = t;
+        t.start();
+    }
+
+    public static long getSentCount() {
+        return SENT.sum();
+    }
+
+    public static long getDeliveredCount() {
+        return DELIVERED.sum();
+    }
+
+    public static long getRepeatCount() {
+        return REPEATS.sum();
+    }
+
+    public static long getFailureCount() {
+        return FAILURES.sum();
+    }
+
+    /**
+     * Transfers refused by the recipient's shard and paid back to their sender.
+     */
+    public static long getRefundCount() {
+        return REFUNDS.sum();
+    }
+
+    /**
+     * Returns each shard's oldest undelivered transfer's age in milliseconds, as of the
+     * relay's last look; 0 if it had none.
+     */
+    public static Map<String, Long> oldestPendingMillis() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> ages = new TreeMap<>();
+        for (Map.Entry<String, Long> e : OLDEST.entrySet()) {
+            ages.put(e.getKey(), e.getValue() == 0 ? 0 : Math.max(0, now - e.getValue()));
+        }
+        return ages;
+    }
+
+    private static void run() {
+        while (true) {
+            boolean more = false;
+            for (String shard : Shards.names()) {
+                try {
+                    more |= deliver(shard);
+                } catch (SQLException | RuntimeException e) {
+                    // The same rows are tried again
+                    FAILURES.increment();
+                    e.printStackTrace();
+                }
+            }
+            if (!more) {
+                LockSupport.parkNanos(INTERVAL_NANOS);
+            }
+        }
+    }
+
+    // Delivers up to a batch of the shard's outbox rows, oldest first. Returns true if the
+    // whole batch was delivered and more may be waiting.
+    private static boolean deliver(String shard) throws SQLException {
+        String pendingSql = "SELECT OUT_TXN_ID, OUT_SOURCE_UNAME, OUT_DEST_UNAME, " +
+                "CAST(OUT_AMOUNT * 100 AS DECIMAL(17, 0)) AS OUT_CENTS, OUT_CREATED FROM TRANSFER_OUTBOX " +
+                "ORDER BY OUT_TXN_ID LIMIT " + BATCH;
+        String deleteSql = "DELETE FROM TRANSFER_OUTBOX WHERE OUT_TXN_ID = ?";
+
+        try (Connection conn = Database.getShardConnection(shard)) {
+            List<Pending> pending = new ArrayList<>();
+            try (PreparedStatement ps = conn.prepareStatement(pendingSql);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    pending.add(new Pending(rs.getLong("OUT_TXN_ID"), rs.getString("OUT_SOURCE_UNAME"),
+                            rs.getString("OUT_DEST_UNAME"), rs.getLong("OUT_CENTS"), rs.getTimestamp("OUT_CREATED")));
+                }
+            }
+            OLDEST.put(shard, pending.isEmpty() ? 0L : pending.get(0).created().getTime());
+
+            boolean failed = false;
+            for (Pending p : pending) {
+                Outcome outcome = credit(shard, p);
+                if (outcome == Outcome.REFUSED) {
+                    // the refund deletes the outbox row itself
+                    if (refund(shard, conn, p)) {
+                        continue;
+                    }
+                    outcome = Outcome.RETRY;
+                }
+                if (outcome == Outcome.RETRY) {
+                    FAILURES.increment();
+                    failed = true;
+                    continue;
+                }
+                // Only once the credit has committed; if this is lost, the row is delivered again
+                try (PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                    delete.setLong(1, p.txnId());
+                    delete.executeUpdate();
+                }
+            }
+            return !failed && pending.size() == BATCH;
+        }
+    }
+
+    // Credits a transfer from another shard on the recipient's shard, unless it was already
+    // credited or refused. A refusal is recorded there before it is returned.
+    private static Outcome credit(String fromShard, Pending p) throws SQLException {
+        String seenSql = "SELECT IN_TXN_ID FROM TRANSFER_INBOX WHERE IN_SOURCE_SHARD = ? AND IN_SOURCE_TXN_ID = ?";
+        String lockSql = "SELECT CAST(CUS_BALANCE * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS FROM CUSTOMER " +
+                "WHERE CUS_ID = ? FOR UPDATE";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_DATETIME, " +
+                "TXN_COUNTERPARTY) VALUES (NULL, ?, ?, ?, ?)";
+        String insertInbox = "INSERT INTO TRANSFER_INBOX (IN_SOURCE_SHARD, IN_SOURCE_TXN_ID, IN_TXN_ID, IN_RECEIVED) " +
+                "VALUES (?, ?, ?, ?)";
+        String updateDestSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+
+        String shard = Shards.of(p.toUser());
+        try (Connection conn = Database.getShardConnection(shard)) {
+            Account to = Accounts.find(conn, p.toUser());
+
+            return Transactions.run(conn, Outcome.RETRY, tx -> {
+                try (PreparedStatement seen = conn.prepareStatement(seenSql)) {
+                    seen.setString(1, fromShard);
+                    seen.setLong(2, p.txnId());
+                    try (ResultSet rs = seen.executeQuery()) {
+                        if (rs.next()) {
+                            if (rs.getLong("IN_TXN_ID") == 0) {
+                                return Outcome.REFUSED;
+                            }
+                            tx.afterCommit(REPEATS::increment);
+                            return Outcome.CREDITED;
+                        }
+                    }
+                }
+
+                // Only possible if DB_SHARDS changed without rebalancing
+                if (to == null) {
+                    System.err.printf("Recipient %s of transfer %d from shard %s is not on shard %s; refunding%n",
+                            p.toUser(), p.txnId(), fromShard, shard);
+                    return refuse(conn, fromShard, p);
+                }
+
+                // A hot recipient is not locked, so its room is only checked on its current balance
+                boolean hot = HotAccounts.isHot(to.username());
+                long balance;
+                if (hot) {
+                    BalanceResult current = BalanceHandler.getBalance(conn, to);
+                    balance = current.success ? current.balance : 0;
+                } else {
+                    try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+                        lock.setLong(1, to.id());
+                        try (ResultSet rs = lock.executeQuery()) {
+                            balance = rs.next() ? rs.getLong("BALANCE_CENTS") : 0;
+                        }
+                    }
+                }
+                if (balance > Money.MAX_CENTS - p.amount()) {
+                    return refuse(conn, fromShard, p);
+                }
+
+                // the row comes first, so a hot recipient's CUSTOMER row is share-locked by the
+                // foreign key check before its slot is (see HotAccounts.credit)
+                long txnId;
+                try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                    insert.setLong(1, to.id());
+                    insert.setBigDecimal(2, Money.toDecimal(p.amount()));
+                    insert.setTimestamp(3, p.created());
+                    insert.setString(4, p.fromUser());
+                    insert.executeUpdate();
+                    txnId = AccountChanges.generatedId(insert);
+                }
+
+                // a concurrent delivery of the same row fails here and is rolled back
+                try (PreparedStatement inbox = conn.prepareStatement(insertInbox)) {
+                    inbox.setString(1, fromShard);
+                    inbox.setLong(2, p.txnId());
+                    inbox.setLong(3, txnId);
+                    inbox.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+                    inbox.executeUpdate();
+                }
+
+                if (hot) {
+                    HotAccounts.credit(conn, to.id(), p.amount());
+                } else {
+                    try (PreparedStatement deposit = conn.prepareStatement(updateDestSql)) {
+                        deposit.setBigDecimal(1, Money.toDecimal(p.amount()));
+                        deposit.setLong(2, to.id());
+                        if (deposit.executeUpdate() == 0) {
+                            return tx.rollback("Recipient not found.", Outcome.RETRY);
+                        }
+                    }
+                }
+                Rollups.batch().add(to.id(), HistoryItem.TRANSFER_IN, p.amount(), p.created(), hot).apply(conn);
+
+                HistoryItem row = new HistoryItem(txnId, null, p.fromUser(), to.username(), p.amount(), null);
+                tx.afterCommit(() -> {
+                    DELIVERED.increment();
+                    AccountChanges.committed(conn, shard, List.of(row));
+                });
+                return Outcome.CREDITED;
+            });
+        }
+    }
+
+    // Records on the recipient's shard that the transfer will not be credited; a concurrent
+    // delivery of the same row fails on the key and is rolled back
+    private static Outcome refuse(Connection conn, String fromShard, Pending p) throws SQLException {
+        String insertInbox = "INSERT INTO TRANSFER_INBOX (IN_SOURCE_SHARD, IN_SOURCE_TXN_ID, IN_TXN_ID, IN_RECEIVED) " +
+                "VALUES (?, ?, 0, ?)";
+
+        try (PreparedStatement inbox = conn.prepareStatement(insertInbox)) {
+            inbox.setString(1, fromShard);
+            inbox.setLong(2, p.txnId());
+            inbox.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            inbox.executeUpdate();
+        }
+        return Outcome.REFUSED;
+    }
+
+    // Pays a refused transfer back to its sender on the sender's shard, together with deleting
+    // its outbox row. Returns false if it could not be, to be tried again.
+    private static boolean refund(String shard, Connection conn, Pending p) throws SQLException {
+        String deleteSql = "DELETE FROM TRANSFER_OUTBOX WHERE OUT_TXN_ID = ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, " +
+                "TXN_COUNTERPARTY) VALUES (NULL, ?, ?, ?)";
+        String updateSourceSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+
+        Account from = Accounts.find(conn, p.fromUser());
+        if (from == null) {
+            System.err.printf("Sender %s of refused transfer %d is not on shard %s%n", p.fromUser(), p.txnId(), shard);
+            return false;
+        }
+
+        return Transactions.run(conn, false, tx -> {
+            // Deleted first: a relay on another server refunding the same row finds nothing to do
+            try (PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                delete.setLong(1, p.txnId());
+                if (delete.executeUpdate() == 0) {
+                    return true;
+                }
+            }
+
+            // The row names the recipient as the other party, like a transfer back from them
+            long txnId;
+            try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                insert.setLong(1, from.id());
+                insert.setBigDecimal(2, Money.toDecimal(p.amount()));
+                insert.setString(3, p.toUser());
+                insert.executeUpdate();
+                txnId = AccountChanges.generatedId(insert);
+            }
+
+            boolean hot = HotAccounts.isHot(from.username());
+            if (hot) {
+                HotAccounts.credit(conn, from.id(), p.amount());
+            } else {
+                try (PreparedStatement update = conn.prepareStatement(updateSourceSql)) {
+                    update.setBigDecimal(1, Money.toDecimal(p.amount()));
+                    update.setLong(2, from.id());
+                    update.executeUpdate();
+                }
+            }
+            Rollups.batch().add(from.id(), HistoryItem.TRANSFER_IN, p.amount(), null, hot).apply(conn);
+
+            HistoryItem row = new HistoryItem(txnId, null, p.toUser(), from.username(), p.amount(), null);
+            tx.afterCommit(() -> {
+                REFUNDS.increment();
+                AccountChanges.committed(conn, shard, List.of(row));
+            });
+            return true;
+        });
+    }
+}
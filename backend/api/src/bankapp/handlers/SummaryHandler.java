@@ -0,0 +1,96 @@
+package bankapp.handlers;
+
+import bankapp.dto.Account;
+import bankapp.dto.SummaryQuery;
+import bankapp.dto.SummaryResult;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Handles a SUMMARY request: counts and sums of an account's deposits, withdrawals and
+ * transfers in a date range, read from the daily totals in STATEMENT_ROLLUP (see
+ * {@link Rollups}). The cost depends on the number of days in the range, not on the number
+ * of transactions in it.
+ */
+public class SummaryHandler {
+
+    /**
+     * Returns the account's totals by type for the query's range, and per day or month if
+     * it asks for them.
+     *
+     * @param conn    active database connection
+     * @param account account whose transactions are summed
+     * @param query   inclusive date range and optional breakdown
+     */
+    public static SummaryResult summary(Connection conn, Account account, SummaryQuery query) {
+        String totalsSql = "SELECT ROLL_TYPE, SUM(ROLL_COUNT) AS ROLL_COUNT, " +
+                "CAST(SUM(ROLL_SUM) * 100 AS DECIMAL(18, 0)) AS ROLL_CENTS FROM STATEMENT_ROLLUP " +
+                "WHERE CUS_ID = ? AND ROLL_DAY BETWEEN ? AND ? GROUP BY ROLL_TYPE";
+        // Several rows per day and type only for hot accounts' credits (ROLL_SLOT)
+        String daysSql = "SELECT ROLL_DAY, ROLL_TYPE, SUM(ROLL_COUNT) AS ROLL_COUNT, " +
+                "CAST(SUM(ROLL_SUM) * 100 AS DECIMAL(18, 0)) AS ROLL_CENTS FROM STATEMENT_ROLLUP " +
+                "WHERE CUS_ID = ? AND ROLL_DAY BETWEEN ? AND ? GROUP BY ROLL_DAY, ROLL_TYPE ORDER BY ROLL_DAY";
+
+        SummaryResult result = new SummaryResult(true, "Summary retrieved.");
+        result.from = query.from.toString();
+        result.to = query.to.toString();
+        result.totals = SummaryResult.emptyTotals();
+        if (query.by != null) {
+            result.periods = new ArrayList<>();
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(query.by == null ? totalsSql : daysSql)) {
+            ps.setLong(1, account.id());
+            ps.setDate(2, Date.valueOf(query.from));
+            ps.setDate(3, Date.valueOf(query.to));
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String type = rs.getString("ROLL_TYPE");
+                    long count = rs.getLong("ROLL_COUNT");
+                    long cents = rs.getLong("ROLL_CENTS");
+                    add(result.totals, type, count, cents);
+
+                    if (query.by != null) {
+                        add(period(result, query.by, rs.getDate("ROLL_DAY").toLocalDate()).totals, type, count, cents);
+                    }
+                }
+            }
+            return result;
+
+        } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return new SummaryResult(false, "Database error.");
+        }
+    }
+
+    private static void add(Map<String, SummaryResult.Total> totals, String type, long count, long cents) {
+        SummaryResult.Total total = totals.get(type);
+        if (total != null) {
+            total.count += count;
+            total.amount += cents;
+        }
+    }
+
+    // The period holding the day; days arrive in order, so it is the last one or a new one
+    private static SummaryResult.Period period(SummaryResult result, SummaryQuery.Period by, LocalDate day) {
+        String name = by == SummaryQuery.Period.DAY ? day.toString() : day.toString().substring(0, 7);
+        if (!result.periods.isEmpty()) {
+            SummaryResult.Period last = result.periods.get(result.periods.size() - 1);
+            if (last.period.equals(name)) {
+                return last;
+            }
+        }
+        SummaryResult.Period period = new SummaryResult.Period(name);
+        result.periods.add(period);
+        return period;
+    }
+}
@@ -0,0 +1,181 @@
+package bankapp.handlers;
+
+import bankapp.Config;
+import bankapp.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a unit of work as one database transaction: autocommit off, commit on success,
+ * rollback on any SQLException, and the connection's autocommit setting restored afterwards.
+ *
+ * Deadlocks (MySQL 1213) and lock wait timeouts (1205) roll back work that would most likely
+ * succeed a moment later, so the whole unit is run again, up to TX_MAX_ATTEMPTS times in all,
+ * after a random pause of up to TX_RETRY_BACKOFF_MS, doubling per attempt up to
+ * TX_RETRY_BACKOFF_MAX_MS. The randomness keeps the transactions that collided from colliding
+ * again. Any other error, or running out of attempts, gives the caller's error result.
+ */
+public final class Transactions {
+
+    private static final int MAX_ATTEMPTS = Math.max(1, Config.getInt("TX_MAX_ATTEMPTS", 3));
+    private static final long BACKOFF_MS = Math.max(1, Config.getLong("TX_RETRY_BACKOFF_MS", 10));
+    private static final long BACKOFF_MAX_MS = Math.max(BACKOFF_MS, Config.getLong("TX_RETRY_BACKOFF_MAX_MS", 200));
+
+    private Transactions() {}
+
+    /**
+     * The body of a transaction. It may run more than once, so it must not have effects
+     * outside the database other than through {@link Tx#afterCommit}.
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Tx tx) throws SQLException;
+    }
+
+    /**
+     * Transaction state handed to the work.
+     */
+    public static final class Tx {
+        private final Connection conn;
+        private final List<Runnable> afterCommit = new ArrayList<>(2);
+        private boolean rolledBack;
+
+        private Tx(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         * Rolls back for a business reason (e.g. "Insufficient funds.") and returns the given
+         * result, so the work can end with {@code return tx.rollback(reason, result)}.
+         * Such a rollback is final; it is not retried.
+         */
+        public <R> R rollback(String reason, R result) throws SQLException {
+            conn.rollback();
+            Metrics.rollback(reason);
+            rolledBack = true;
+            return result;
+        }
+
+        /**
+         * Runs the action once the transaction has committed, e.g. cache invalidation. An
+         * action that throws is logged; the others still run and the work's result is returned.
+         */
+        public void afterCommit(Runnable action) {
+            afterCommit.add(action);
+        }
+    }
+
+    /**
+     * Runs work in a transaction on conn, retrying on deadlock or lock wait timeout.
+     *
+     * @param conn    active database connection
+     * @param dbError the result to return if the database fails for good
+     * @param work    the transaction body
+     * @return the work's result, or dbError
+     */
+    public static <T> T run(Connection conn, T dbError, Work<T> work) {
+        boolean oldAutoCommit;
+        try {
+            oldAutoCommit = conn.getAutoCommit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return dbError;
+        }
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                Tx tx = new Tx(conn);
+                try {
+                    conn.setAutoCommit(false);
+                    T result = work.run(tx);
+                    if (tx.rolledBack) {
+                        return result;
+                    }
+                    conn.commit();
+
+                    // The work has committed, so its result stands whatever these do
+                    for (Runnable action : tx.afterCommit) {
+                        try {
+                            action.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    return result;
+
+                } catch (SQLException e) {
+                    try {
+                        conn.rollback();
+                    } catch (SQLException rollbackErr) {
+                        rollbackErr.printStackTrace();
+                    }
+                    Metrics.rollback(e);
+
+                    if (attempt < MAX_ATTEMPTS && isRetryable(e)) {
+                        Metrics.retry(e);
+                        if (!backOff(attempt)) {
+                            return dbError;
+                        }
+                        continue;
+                    }
+
+                    e.printStackTrace();
+                    return dbError;
+
+                } catch (RuntimeException e) {
+                    // don't hand the connection back with the transaction still open
+                    try {
+                        conn.rollback();
+                    } catch (SQLException rollbackErr) {
+                        rollbackErr.printStackTrace();
+                    }
+                    throw e;
+                }
+            }
+
+        } finally {
+            try {
+                conn.setAutoCommit(oldAutoCommit); // restore previous setting
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns true for errors after which the whole transaction can simply be run again:
+     * deadlocks and lock wait timeouts, including when wrapped (e.g. in a batch update).
+     */
+    static boolean isRetryable(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (t instanceof SQLException s) {
+                int code = s.getErrorCode();
+                String state = s.getSQLState();
+                if (code == 1213 || code == 1205 || (state != null && state.startsWith("40"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Sleeps a random time up to the attempt's backoff; false if interrupted.
+    private static boolean backOff(int attempt) {
+        long cap = Math.min(BACKOFF_MAX_MS, BACKOFF_MS << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
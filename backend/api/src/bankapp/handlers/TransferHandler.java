@@ -1,11 +1,19 @@
 package bankapp.handlers;
 
+import bankapp.dto.Account;
 import bankapp.dto.ActionResult;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.metrics.Metrics;
+import bankapp.shard.Shards;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Handles a TRANSFER (username amount) request.
@@ -14,120 +22,222 @@ import java.sql.SQLException;
  */
 public class TransferHandler {
     /**
-     * Transfers money from one user to another.
+     * Transfers money from one user to another. The amount is in cents.
      */
-    public static ActionResult transfer(Connection conn, String fromUser, String toUser, double amount) {
+    public static ActionResult transfer(Connection conn, String fromUser, String toUser, long amount) {
+        Account from;
+        try {
+            from = Accounts.find(conn, fromUser);
+        } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
+            e.printStackTrace();
+            return new ActionResult(false, "Database error.");
+        }
+
+        if (from == null) {
+            Metrics.rollback("Sender not found.");
+            return new ActionResult(false, "Sender not found.");
+        }
+        return transfer(conn, from, toUser, amount, null);
+    }
+
+    /**
+     * Transfers money from an account to another user at most once per idempotency key.
+     *
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult transfer(Connection conn, Account from, String toUser, long amount,
+                                        String idempotencyKey) {
 
         if (amount <= 0) {
             return new ActionResult(false, "Transfer amount must be positive.");
         }
 
-        if (fromUser.equals(toUser)) {
+        String fromUser = from.username();
+        if (fromUser.equalsIgnoreCase(toUser)) {
             return new ActionResult(false, "Cannot transfer to the same user.");
         }
 
-        String updateSourceSql =
-                "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_UNAME = ? AND CUS_BALANCE >= ?";
-        String updateDestSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_UNAME = ?";
-        String insertTxn = "INSERT INTO TRANSACTION_RECORD (CUS_ID_SOURCE, CUS_ID_DEST, TXN_AMOUNT) VALUES (?, ?, ?)";
+        // a retry of a request that already succeeded gets the same answer again
+        String request = "transfer " + String.valueOf(toUser).toLowerCase(Locale.ROOT) + " " + amount;
+        ActionResult previous = IdempotencyKeys.recall(fromUser, idempotencyKey, request);
+        if (previous != null) {
+            return previous;
+        }
+        ActionResult success = new ActionResult(true, "Transfer successful.");
 
-        boolean oldAutoCommit;
+        // the recipient's id, usually from the cache; accounts are never deleted, so it stays valid
+        boolean sameShard = Shards.sameShard(fromUser, toUser);
+        Account to;
         try {
-            oldAutoCommit = conn.getAutoCommit();
+            to = sameShard ? Accounts.find(conn, toUser) : Accounts.find(toUser);
         } catch (SQLException e) {
+            //noinspection CallToPrintStackTrace
             e.printStackTrace();
             return new ActionResult(false, "Database error.");
         }
 
-        try {
-            conn.setAutoCommit(false);
-            String lockSql = "SELECT CUS_UNAME FROM CUSTOMER WHERE CUS_UNAME = ? FOR UPDATE";
+        if (to == null) {
+            Metrics.rollback("Recipient not found.");
+            return new ActionResult(false, "Recipient not found.");
+        }
 
-            // lock both users in a consistent order to prevent deadlocks
-            String first;
-            String second;
+        if (!sameShard) {
+            // The credit is made later on the recipient's shard, so its limit is checked now
+            if (!ShardOutbox.hasRoom(to, amount)) {
+                Metrics.rollback("Balance limit exceeded.");
+                return new ActionResult(false, "Balance limit exceeded.");
+            }
+            return transferToShard(conn, from, to, amount, idempotencyKey, request, success);
+        }
 
-            if (fromUser.compareTo(toUser) < 0) {
-                first = fromUser;
-                second = toUser;
-            } else {
-                first = toUser;
-                second = fromUser;
+        String updateSourceSql =
+                "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_ID = ? AND CUS_BALANCE >= ?";
+        String updateDestSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT) VALUES (?, ?, ?)";
+
+        return Transactions.run(conn, new ActionResult(false, "Database error."), tx -> {
+            if (!IdempotencyKeys.claim(tx, conn, fromUser, idempotencyKey, request, success)) {
+                return IdempotencyKeys.replay(tx, conn, fromUser, idempotencyKey, request);
             }
 
-            try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+            String lockSql = "SELECT CUS_ID FROM CUSTOMER WHERE CUS_ID = ? FOR UPDATE";
 
-                lock.setString(1, first);
-                try (ResultSet rs = lock.executeQuery()) {
-                    if (!rs.next()) {
-                        conn.rollback();
-                        return new ActionResult(false,
-                                first.equals(fromUser) ? "Sender not found." : "Recipient not found.");
-                    }
-                }
+            // a hot recipient is not locked, so transfers into it do not queue behind each
+            // other (see HotAccounts)
+            boolean hotRecipient = HotAccounts.isHot(to.username());
 
-                lock.setString(1, second);
-                try (ResultSet rs = lock.executeQuery()) {
-                    if (!rs.next()) {
-                        conn.rollback();
-                        return new ActionResult(false,
-                                second.equals(fromUser) ? "Sender not found." : "Recipient not found.");
+            // lock both accounts in a consistent (id) order to prevent deadlocks
+            long[] order = from.id() < to.id()
+                    ? new long[] {from.id(), to.id()}
+                    : new long[] {to.id(), from.id()};
+
+            try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+                for (long id : order) {
+                    if (hotRecipient && id == to.id()) {
+                        continue;
+                    }
+                    lock.setLong(1, id);
+                    try (ResultSet rs = lock.executeQuery()) {
+                        if (!rs.next()) {
+                            String reason = id == from.id() ? "Sender not found." : "Recipient not found.";
+                            return tx.rollback(reason, new ActionResult(false, reason));
+                        }
                     }
                 }
             }
 
             int rows;
+            long txnId;
+
+            // a hot sender's pending credits become part of CUS_BALANCE before it is debited
+            if (HotAccounts.isHot(fromUser)) {
+                HotAccounts.fold(conn, from.id());
+            }
 
             // withdraw from sender
             try (PreparedStatement withdraw = conn.prepareStatement(updateSourceSql)) {
-                withdraw.setDouble(1, amount);
-                withdraw.setString(2, fromUser);
-                withdraw.setDouble(3, amount);
+                withdraw.setBigDecimal(1, Money.toDecimal(amount));
+                withdraw.setLong(2, from.id());
+                withdraw.setBigDecimal(3, Money.toDecimal(amount));
                 rows = withdraw.executeUpdate();
             }
 
             if (rows == 0) {
-                conn.rollback();
-                return new ActionResult(false, "Insufficient funds.");
+                return tx.rollback("Insufficient funds.", new ActionResult(false, "Insufficient funds."));
+            }
+
+            // log the transaction; this comes before the credit so that a hot recipient's row is
+            // share-locked by the foreign key check before its slot is locked
+            try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                insert.setLong(1, from.id());
+                insert.setLong(2, to.id());
+                insert.setBigDecimal(3, Money.toDecimal(amount));
+                insert.executeUpdate();
+                txnId = AccountChanges.generatedId(insert);
             }
 
             // deposit to recipient
-            try (PreparedStatement deposit = conn.prepareStatement(updateDestSql)) {
-                deposit.setDouble(1, amount);
-                deposit.setString(2, toUser);
-                rows = deposit.executeUpdate();
+            if (hotRecipient) {
+                HotAccounts.credit(conn, to.id(), amount);
+                rows = 1;
+            } else {
+                try (PreparedStatement deposit = conn.prepareStatement(updateDestSql)) {
+                    deposit.setBigDecimal(1, Money.toDecimal(amount));
+                    deposit.setLong(2, to.id());
+                    rows = deposit.executeUpdate();
+                }
             }
 
             if (rows == 0) {
-                conn.rollback();
-                return new ActionResult(false, "Recipient not found.");
+                return tx.rollback("Recipient not found.", new ActionResult(false, "Recipient not found."));
             }
 
-            // log the transaction
-            try (PreparedStatement insert = conn.prepareStatement(insertTxn)) {
-                insert.setString(1, fromUser);
-                insert.setString(2, toUser);
-                insert.setDouble(3, amount);
-                insert.executeUpdate();
+            Rollups.batch()
+                    .add(from.id(), HistoryItem.TRANSFER_OUT, amount)
+                    .add(to.id(), HistoryItem.TRANSFER_IN, amount, null, hotRecipient)
+                    .apply(conn);
+
+            tx.afterCommit(() -> AccountChanges.committed(conn, txnId, fromUser, to.username(), amount));
+            return success;
+        });
+    }
+
+    // A transfer to an account on another shard (DB_SHARDS). Only the sender's side commits
+    // here; ShardOutbox credits the recipient on its own shard right after.
+    private static ActionResult transferToShard(Connection conn, Account from, Account to, long amount,
+                                                String idempotencyKey, String request, ActionResult success) {
+        String fromUser = from.username();
+
+        String lockSql = "SELECT CUS_ID FROM CUSTOMER WHERE CUS_ID = ? FOR UPDATE";
+        String updateSourceSql =
+                "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_ID = ? AND CUS_BALANCE >= ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_COUNTERPARTY) " +
+                "VALUES (?, NULL, ?, ?)";
+
+        return Transactions.run(conn, new ActionResult(false, "Database error."), tx -> {
+            if (!IdempotencyKeys.claim(tx, conn, fromUser, idempotencyKey, request, success)) {
+                return IdempotencyKeys.replay(tx, conn, fromUser, idempotencyKey, request);
             }
-            conn.commit();
-            return new ActionResult(true, "Transfer successful.");
 
-        } catch (SQLException e) {
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackErr) {
-                rollbackErr.printStackTrace();
+            try (PreparedStatement lock = conn.prepareStatement(lockSql)) {
+                lock.setLong(1, from.id());
+                try (ResultSet rs = lock.executeQuery()) {
+                    if (!rs.next()) {
+                        return tx.rollback("Sender not found.", new ActionResult(false, "Sender not found."));
+                    }
+                }
             }
-            e.printStackTrace();
-            return new ActionResult(false, "Database error.");
 
-        } finally {
-            try {
-                conn.setAutoCommit(oldAutoCommit); // restore previous setting
-            } catch (SQLException e) {
-                e.printStackTrace();
+            if (HotAccounts.isHot(fromUser)) {
+                HotAccounts.fold(conn, from.id());
             }
-        }
+
+            try (PreparedStatement withdraw = conn.prepareStatement(updateSourceSql)) {
+                withdraw.setBigDecimal(1, Money.toDecimal(amount));
+                withdraw.setLong(2, from.id());
+                withdraw.setBigDecimal(3, Money.toDecimal(amount));
+                if (withdraw.executeUpdate() == 0) {
+                    return tx.rollback("Insufficient funds.", new ActionResult(false, "Insufficient funds."));
+                }
+            }
+
+            long txnId;
+            try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                insert.setLong(1, from.id());
+                insert.setBigDecimal(2, Money.toDecimal(amount));
+                insert.setString(3, to.username());
+                insert.executeUpdate();
+                txnId = AccountChanges.generatedId(insert);
+            }
+
+            // the recipient is credited once this commits
+            List<HistoryItem> rows = List.of(new HistoryItem(txnId, null, fromUser, to.username(), amount, null));
+            ShardOutbox.send(tx, conn, rows);
+            Rollups.batch().add(from.id(), HistoryItem.TRANSFER_OUT, amount).apply(conn);
+
+            tx.afterCommit(() -> AccountChanges.committed(conn, Shards.of(fromUser), rows));
+            return success;
+        });
     }
 }
@@ -1,11 +1,14 @@
 package bankapp.handlers;
 
+import bankapp.dto.Account;
 import bankapp.dto.ActionResult;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.sql.Statement;
 
 /**
  * Handles a WITHDRAW (amount) request.
@@ -15,90 +18,93 @@ import java.sql.SQLException;
 public class WithdrawHandler {
 
     /**
-     * Withdraws from a given username's account.
+     * Withdraws from a given account.
      *
-     * @param conn   active database connection
-     * @param username the username to withdraw from
-     * @param amount amount to withdraw
+     * @param conn    active database connection
+     * @param account the account to withdraw from
+     * @param amount  amount to withdraw, in cents
      */
-    public static ActionResult withdraw(Connection conn, String username, double amount) {
+    public static ActionResult withdraw(Connection conn, Account account, long amount) {
+        return withdraw(conn, account, amount, null);
+    }
+
+    /**
+     * Withdraws from a given account at most once per idempotency key.
+     *
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult withdraw(Connection conn, Account account, long amount, String idempotencyKey) {
         if (amount <= 0) {
             return new ActionResult(false, "Withdrawal amount must be positive.");
         }
 
-        String updateSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_UNAME = ?";
-        String insertTxn ="INSERT INTO TRANSACTION_RECORD (CUS_ID_SOURCE, CUS_ID_DEST, TXN_AMOUNT) VALUES (?, NULL, ?)";
-
-        boolean oldAutoCommit;
-        try {
-            oldAutoCommit = conn.getAutoCommit();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return new ActionResult(false, "Database error.");
+        // a retry of a request that already succeeded gets the same answer again
+        String username = account.username();
+        String request = "withdraw " + amount;
+        ActionResult previous = IdempotencyKeys.recall(username, idempotencyKey, request);
+        if (previous != null) {
+            return previous;
         }
+        ActionResult success = new ActionResult(true, "Withdrawal successful.");
+
+        String updateSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE - ? WHERE CUS_ID = ?";
+        String insertTxn ="INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT) VALUES (?, NULL, ?)";
 
-        try {
-            conn.setAutoCommit(false);
+        return Transactions.run(conn, new ActionResult(false, "Database error."), tx -> {
+            if (!IdempotencyKeys.claim(tx, conn, username, idempotencyKey, request, success)) {
+                return IdempotencyKeys.replay(tx, conn, username, idempotencyKey, request);
+            }
 
             int rows;
-            double balance = 0.00;
-            String balSQL = "SELECT CUS_BALANCE FROM CUSTOMER WHERE CUS_UNAME = ? FOR UPDATE";
+            long txnId;
+            long balance = 0;
+            String balSQL = "SELECT CAST(CUS_BALANCE * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS FROM CUSTOMER " +
+                    "WHERE CUS_ID = ? FOR UPDATE";
 
             // gets balance and checks if withdrawal amount is greater than balance
             try (PreparedStatement ps = conn.prepareStatement(balSQL)) {
-                ps.setString(1, username);
+                ps.setLong(1, account.id());
                 ResultSet rs = ps.executeQuery();
                 if (!rs.next()) {
-                    conn.rollback();
-                    return new ActionResult(false, "User not found.");
+                    return tx.rollback("User not found.", new ActionResult(false, "User not found."));
                 }
-                balance = rs.getDouble("CUS_BALANCE");
+                balance = rs.getLong("BALANCE_CENTS");
+
+            }
 
+            // a hot account's pending credits become part of CUS_BALANCE before it is debited
+            if (HotAccounts.isHot(username)) {
+                balance += HotAccounts.fold(conn, account.id());
             }
             // checks for withdrawal greater than balance
             if (amount > balance) {
-                conn.rollback();
-                return new ActionResult(false, "Insufficient funds.");
+                return tx.rollback("Insufficient funds.", new ActionResult(false, "Insufficient funds."));
             }
 
             // update balance
             try (PreparedStatement update = conn.prepareStatement(updateSql)) {
-                update.setDouble(1, amount);
-                update.setString(2, username);
+                update.setBigDecimal(1, Money.toDecimal(amount));
+                update.setLong(2, account.id());
                 rows = update.executeUpdate();
             }
 
-            // if no rows updated then username does not exist
+            // if no rows updated then the account does not exist
             if (rows == 0) {
-                conn.rollback();
-                return new ActionResult(false, "User not found.");
+                return tx.rollback("User not found.", new ActionResult(false, "User not found."));
             }
 
 
             // log the transaction
-            try (PreparedStatement insert = conn.prepareStatement(insertTxn)) {
-                insert.setString(1, username);
-                insert.setDouble(2, amount);
+            try (PreparedStatement insert = conn.prepareStatement(insertTxn, Statement.RETURN_GENERATED_KEYS)) {
+                insert.setLong(1, account.id());
+                insert.setBigDecimal(2, Money.toDecimal(amount));
                 insert.executeUpdate();
+                txnId = AccountChanges.generatedId(insert);
             }
-            conn.commit();
-            return new ActionResult(true, "Withdrawal successful.");
-
-        } catch (SQLException e) {
-            try {
-                conn.rollback();
-            } catch (SQLException rollbackErr) {
-                rollbackErr.printStackTrace();
-            }
-            e.printStackTrace();
-            return new ActionResult(false, "Database error.");
-
-        } finally {
-            try {
-                conn.setAutoCommit(oldAutoCommit); // restore previous setting
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        }
+            Rollups.batch().add(account.id(), HistoryItem.WITHDRAW, amount).apply(conn);
+
+            tx.afterCommit(() -> AccountChanges.committed(conn, txnId, username, null, amount));
+            return success;
+        });
     }
 }
@@ -0,0 +1,179 @@
+package bankapp.ledger;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One journal record: an account opening or a committed money movement.
+ *
+ * Every entry takes the next sequence number; a batch transfer takes one per leg. Money
+ * movements use their sequence numbers as TRANSACTION_RECORD ids, so history ids are known
+ * as soon as the entry is journaled.
+ */
+final class Entry {
+
+    static final byte OPEN = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte BATCH = 5;
+
+    final byte type;
+    long seq;
+    long timeMillis;
+
+    final int account;          // the opened, credited or debited account
+    final int to;               // transfer recipient, or -1
+    final long amount;          // cents; the opening balance for OPEN
+    final String text;          // username for OPEN, otherwise the Idempotency-Key or null
+    final int[] recipients;     // BATCH legs
+    final long[] amounts;
+
+    private Entry(byte type, int account, int to, long amount, String text, int[] recipients, long[] amounts) {
+        this.type = type;
+        this.account = account;
+        this.to = to;
+        this.amount = amount;
+        this.text = text;
+        this.recipients = recipients;
+        this.amounts = amounts;
+    }
+
+    static Entry open(int account, String username, long balance) {
+        return new Entry(OPEN, account, -1, balance, username, null, null);
+    }
+
+    static Entry deposit(int account, long amount, String key) {
+        return new Entry(DEPOSIT, account, -1, amount, key, null, null);
+    }
+
+    static Entry withdraw(int account, long amount, String key) {
+        return new Entry(WITHDRAW, account, -1, amount, key, null, null);
+    }
+
+    static Entry transfer(int from, int to, long amount, String key) {
+        return new Entry(TRANSFER, from, to, amount, key, null, null);
+    }
+
+    static Entry batch(int from, int[] recipients, long[] amounts) {
+        return new Entry(BATCH, from, -1, 0, null, recipients, amounts);
+    }
+
+    /**
+     * Sequence numbers this entry takes.
+     */
+    int width() {
+        return type == BATCH ? recipients.length : 1;
+    }
+
+    /**
+     * Returns true for deposits, withdrawals and transfers, which become TRANSACTION_RECORD rows.
+     */
+    boolean movesMoney() {
+        return type != OPEN;
+    }
+
+    /**
+     * Upper bound on the encoded size, in bytes.
+     */
+    int maxSize() {
+        int legs = recipients == null ? 0 : recipients.length;
+        return 64 + (text == null ? 0 : text.length() * 3) + legs * 12;
+    }
+
+    void encode(ByteBuffer out) {
+        out.putLong(seq);
+        out.putLong(timeMillis);
+        out.put(type);
+        switch (type) {
+            case OPEN, DEPOSIT, WITHDRAW -> {
+                out.putInt(account);
+                out.putLong(amount);
+                putString(out, text);
+            }
+            case TRANSFER -> {
+                out.putInt(account);
+                out.putInt(to);
+                out.putLong(amount);
+                putString(out, text);
+            }
+            case BATCH -> {
+                out.putInt(account);
+                out.putInt(recipients.length);
+                for (int i = 0; i < recipients.length; i++) {
+                    out.putInt(recipients[i]);
+                    out.putLong(amounts[i]);
+                }
+            }
+            default -> throw new IllegalStateException("Unknown entry type " + type);
+        }
+    }
+
+    /**
+     * Reads an entry written by {@link #encode}.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid entry
+     */
+    static Entry decode(ByteBuffer in) {
+        try {
+            long seq = in.getLong();
+            long time = in.getLong();
+            byte type = in.get();
+
+            Entry e = switch (type) {
+                case OPEN, DEPOSIT, WITHDRAW -> {
+                    int account = in.getInt();
+                    long amount = in.getLong();
+                    yield new Entry(type, account, -1, amount, getString(in), null, null);
+                }
+                case TRANSFER -> {
+                    int from = in.getInt();
+                    int to = in.getInt();
+                    yield new Entry(TRANSFER, from, to, in.getLong(), getString(in), null, null);
+                }
+                case BATCH -> {
+                    int from = in.getInt();
+                    int legs = in.getInt();
+                    if (legs <= 0 || legs > in.remaining() / 12) {
+                        throw new IllegalArgumentException("Bad leg count " + legs);
+                    }
+                    int[] recipients = new int[legs];
+                    long[] amounts = new long[legs];
+                    for (int i = 0; i < legs; i++) {
+                        recipients[i] = in.getInt();
+                        amounts[i] = in.getLong();
+                    }
+                    yield new Entry(BATCH, from, -1, 0, null, recipients, amounts);
+                }
+                default -> throw new IllegalArgumentException("Unknown entry type " + type);
+            };
+            e.seq = seq;
+            e.timeMillis = time;
+            return e;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated entry", e);
+        }
+    }
+
+    // Length-prefixed UTF-8; -1 for null
+    private static void putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,328 @@
+package bankapp.ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of ledger entries, in memory-mapped segment files of a
+ * fixed size named after the first sequence number they hold (journal-00000000000000001234.log).
+ *
+ * A record is [int length][int CRC-32 of the payload][payload], padded to 8 bytes. The
+ * payload and checksum are written before the length, and segments start out zero-filled,
+ * so a reader stops at a length of 0: everything before it is complete. {@link #flush} forces
+ * the records written since the last flush to disk in one call, which is what makes a whole
+ * batch durable at once. Without fsync the records still survive the process dying, as they
+ * are in the page cache, but not the machine going down.
+ *
+ * Only the writer thread calls the instance methods. {@link Cursor}s read committed records
+ * through mappings of their own.
+ */
+final class Journal implements Closeable {
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean fsync;
+
+    private ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int position;
+    private int flushed;
+
+    private Journal(Path dir, int segmentBytes, boolean fsync) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Opens the journal in dir, passing every record after afterSeq to replay in order, and
+     * positions it for appending after the last complete record. A torn record at the end of
+     * the last segment, left by a crash during a write, is cleared.
+     *
+     * @param afterSeq the sequence number already covered by a snapshot
+     * @throws IOException if a record other than the last one is damaged or a record is missing
+     */
+    static Journal open(Path dir, int segmentBytes, boolean fsync, long afterSeq, Consumer<Entry> replay)
+            throws IOException {
+        Journal journal = new Journal(dir, segmentBytes, fsync);
+        List<Long> segments = segments(dir);
+        long expected = -1;     // sequence number of the next record, once one has been read
+
+        if (!segments.isEmpty() && segments.get(0) > afterSeq + 1) {
+            throw new IOException("Journal starts at sequence " + segments.get(0) + ", after the snapshot's "
+                    + afterSeq + ".");
+        }
+
+        for (int i = 0; i < segments.size(); i++) {
+            long first = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            // a gap is only allowed where the snapshot covers it
+            if (expected >= 0 && expected != first && !(expected < first && first <= afterSeq + 1)) {
+                throw new IOException("Journal is missing records before sequence " + first + ".");
+            }
+            expected = first;
+
+            Path file = file(dir, first);
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map;
+            try {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            int position = 0;
+            Entry e;
+            while ((e = read(map, position, journal.crc)) != null && e.seq == expected) {
+                if (e.seq > afterSeq) {
+                    replay.accept(e);
+                }
+                expected = e.seq + e.width();
+                position += recordSize(map.getInt(position));
+            }
+
+            if (!last) {
+                channel.close();
+                if (e != null || (position + HEADER <= map.capacity() && map.getInt(position) != 0)) {
+                    throw new IOException("Journal segment " + file.getFileName() + " is damaged at offset "
+                            + position + ".");
+                }
+                continue;
+            }
+
+            // anything after the last complete record is a torn write from a crash
+            for (int p = position; p + 4 <= map.capacity(); p += 4) {
+                if (map.getInt(p) != 0) {
+                    map.putInt(p, 0);
+                }
+            }
+            map.force();
+            journal.channel = channel;
+            journal.segment = map;
+            journal.position = position;
+            journal.flushed = position;
+        }
+
+        if (expected >= 0 && expected <= afterSeq) {
+            // the journal lost its tail but the snapshot did not; continue in a new segment
+            journal.close();
+        }
+        return journal;
+    }
+
+    /**
+     * Writes an entry after the previous one. It is durable once {@link #flush} returns.
+     */
+    void append(Entry e) throws IOException {
+        if (e.maxSize() > scratch.capacity()) {
+            scratch = ByteBuffer.allocate(e.maxSize());
+        }
+        scratch.clear();
+        e.encode(scratch);
+        scratch.flip();
+        int length = scratch.remaining();
+
+        int size = recordSize(length);
+        if (segment == null || position + size > segmentBytes) {
+            roll(e.seq);
+        }
+
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        segment.putInt(position + 4, (int) crc.getValue());
+        segment.put(position + HEADER, scratch.array(), 0, length);
+        segment.putInt(position, length);
+        position += size;
+    }
+
+    /**
+     * Makes every record appended so far durable.
+     */
+    void flush() {
+        if (fsync && position > flushed) {
+            segment.force(flushed, position - flushed);
+        }
+        flushed = position;
+    }
+
+    /**
+     * Deletes segments whose records all have a sequence number of at most seq. The segment
+     * being written is always kept.
+     */
+    void deleteThrough(long seq) throws IOException {
+        List<Long> segments = segments(dir);
+        for (int i = 0; i + 1 < segments.size() && segments.get(i + 1) - 1 <= seq; i++) {
+            Files.deleteIfExists(file(dir, segments.get(i)));
+        }
+    }
+
+    /**
+     * Returns true if dir holds any journal segment.
+     */
+    static boolean hasSegments(Path dir) throws IOException {
+        return !segments(dir).isEmpty();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+            channel = null;
+            segment = null;
+        }
+    }
+
+    // Starts a new segment whose first record has the given sequence number.
+    private void roll(long firstSeq) throws IOException {
+        close();
+        channel = FileChannel.open(file(dir, firstSeq), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        position = 0;
+        flushed = 0;
+    }
+
+    /**
+     * Reads committed records in order, starting after a given sequence number. Used by the
+     * projection into MySQL while the writer keeps appending.
+     */
+    static final class Cursor {
+        private final Path dir;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer segment;
+        private int position;
+        private long next;
+
+        Cursor(Path dir, long afterSeq) {
+            this.dir = dir;
+            this.next = afterSeq + 1;
+        }
+
+        /**
+         * Returns the next entry if its sequence number is at most committedSeq, otherwise null.
+         *
+         * @throws IOException if a committed record cannot be read
+         */
+        Entry next(long committedSeq) throws IOException {
+            if (next > committedSeq) {
+                return null;
+            }
+            if (segment == null) {
+                seek();
+            }
+
+            while (true) {
+                Entry e = read(segment, position, crc);
+                if (e == null) {
+                    // the writer started a new segment with this record
+                    segment = map(file(dir, next));
+                    position = 0;
+                    e = read(segment, position, crc);
+                    if (e == null) {
+                        throw new IOException("Journal record " + next + " is missing or damaged.");
+                    }
+                }
+                position += recordSize(segment.getInt(position));
+
+                if (e.seq + e.width() <= next) {
+                    continue;   // before the start
+                }
+                if (e.seq != next) {
+                    throw new IOException("Journal record " + next + " is missing; found " + e.seq + ".");
+                }
+                next = e.seq + e.width();
+                return e;
+            }
+        }
+
+        // Opens the segment that holds the next record.
+        private void seek() throws IOException {
+            long first = -1;
+            for (long s : segments(dir)) {
+                if (s <= next) {
+                    first = s;
+                }
+            }
+            if (first < 0) {
+                throw new IOException("No journal segment holds record " + next + ".");
+            }
+            segment = map(file(dir, first));
+            position = 0;
+        }
+
+        private static MappedByteBuffer map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (NoSuchFileException e) {
+                throw new IOException("Journal segment " + file.getFileName() + " is missing.", e);
+            }
+        }
+    }
+
+    // The record at position, or null at the end of the data or at a damaged record.
+    private static Entry read(ByteBuffer segment, int position, CRC32 crc) {
+        if (position + HEADER > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || length > segment.capacity() - position - HEADER) {
+            return null;
+        }
+
+        ByteBuffer payload = segment.slice(position + HEADER, length);
+        crc.reset();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != segment.getInt(position + 4)) {
+            return null;
+        }
+
+        try {
+            Entry e = Entry.decode(payload);
+            return payload.hasRemaining() ? null : e;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int recordSize(int length) {
+        return (HEADER + length + 7) & ~7;
+    }
+
+    private static Path file(Path dir, long firstSeq) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, firstSeq, SUFFIX));
+    }
+
+    // First sequence numbers of the segments in dir, in order.
+    private static List<Long> segments(Path dir) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(
+                            name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
@@ -0,0 +1,337 @@
+package bankapp.ledger;
+
+import bankapp.Config;
+import bankapp.Database;
+import bankapp.dto.ActionResult;
+import bankapp.dto.BalanceResult;
+import bankapp.dto.BatchTransferRequest.Leg;
+import bankapp.dto.BatchTransferResult;
+import bankapp.dto.BatchTransferResult.LegError;
+import bankapp.handlers.AccountChanges;
+import bankapp.handlers.BatchTransferHandler;
+import bankapp.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional in-memory ledger (LEDGER_ENGINE=true) that takes over deposits, withdrawals,
+ * transfers, batch transfers and balance reads from the JDBC handlers.
+ *
+ * Balances are authoritative in the {@link LedgerEngine}, made durable by its journal in
+ * LEDGER_DIR, and copied into MySQL by a background {@link Projection}. /history and the
+ * exports still read MySQL, so they trail the ledger by the projection lag (usually a few
+ * milliseconds). The first start loads every customer from MySQL; customers registered
+ * later are added to the ledger the first time a request involves them.
+ *
+ * The ledger directory and the database must stay together: after running without the
+ * ledger, or restoring the database, clear LEDGER_DIR so the ledger is loaded again.
+ */
+public final class Ledger {
+
+    private static final boolean ENABLED = Config.getBoolean("LEDGER_ENGINE", false);
+
+    private static volatile LedgerEngine engine;
+    private static volatile Projection projection;
+
+    private Ledger() {}
+
+    /**
+     * Returns true if money movements and balances go through the ledger.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Loads the ledger and starts its writer and projection. Does nothing unless enabled.
+     * Called once at server startup, after the database is reachable.
+     */
+    public static synchronized void start() {
+        if (!ENABLED || engine != null) {
+            return;
+        }
+
+        Path dir = Path.of(Config.get("LEDGER_DIR", "ledger"));
+        LedgerEngine.Options options = new LedgerEngine.Options(
+                Config.getBoolean("LEDGER_FSYNC", true),
+                Math.max(1, Config.getInt("LEDGER_JOURNAL_SEGMENT_MB", 64)) * 1024 * 1024,
+                TimeUnit.SECONDS.toMillis(Config.getLong("LEDGER_SNAPSHOT_INTERVAL_S", 300)),
+                Math.max(1, Config.getInt("LEDGER_MAX_BATCH", 1024)),
+                Config.getInt("LEDGER_QUEUE_SIZE", 65_536),
+                TimeUnit.HOURS.toMillis(Config.getLong("IDEMPOTENCY_TTL_HOURS", 24)),
+                Config.getInt("LEDGER_IDEMPOTENCY_MAX_KEYS", 1_000_000));
+
+        try {
+            LedgerEngine e = LedgerEngine.open(dir, options, Ledger::genesis);
+
+            long projected;
+            try (Connection conn = Database.getConnection()) {
+                if (e.isBootstrapped()) {
+                    Projection.reset(conn, e.committedSeq());
+                }
+                projected = Projection.lastSeq(conn);
+            }
+            if (projected < 0 || projected > e.committedSeq()) {
+                throw new IllegalStateException("The database does not match the ledger in " + dir
+                        + " (projected to " + projected + ", ledger at " + e.committedSeq()
+                        + "). Clear LEDGER_DIR to load the ledger from the database again.");
+            }
+
+            Projection p = new Projection(e, projected, Config.getInt("LEDGER_PROJECTION_BATCH", 1000));
+            e.projectedThrough(projected);
+            p.start();
+            e.start();
+
+            projection = p;
+            engine = e;
+            System.out.printf("Ledger engine running from %s: %d accounts, sequence %d%n",
+                    dir.toAbsolutePath(), e.getAccountCount(), e.committedSeq());
+        } catch (IOException | SQLException e) {
+            throw new RuntimeException("Failed to start the ledger.", e);
+        }
+    }
+
+    /**
+     * Deposits into a user's account.
+     *
+     * @param amount         amount in cents
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult deposit(String username, long amount, String idempotencyKey) {
+        if (amount <= 0) {
+            return new ActionResult(false, "Deposit amount must be positive.");
+        }
+
+        try {
+            Integer account = account(username);
+            if (account == null) {
+                return rejected("User not found.");
+            }
+            return finish(engine.deposit(account, amount, idempotencyKey));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ActionResult(false, "Database error.");
+        }
+    }
+
+    /**
+     * Withdraws from a user's account.
+     *
+     * @param amount         amount in cents
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult withdraw(String username, long amount, String idempotencyKey) {
+        if (amount <= 0) {
+            return new ActionResult(false, "Withdrawal amount must be positive.");
+        }
+
+        try {
+            Integer account = account(username);
+            if (account == null) {
+                return rejected("User not found.");
+            }
+            return finish(engine.withdraw(account, amount, idempotencyKey));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ActionResult(false, "Database error.");
+        }
+    }
+
+    /**
+     * Transfers money from one user to another.
+     *
+     * @param amount         amount in cents
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     */
+    public static ActionResult transfer(String fromUser, String toUser, long amount, String idempotencyKey) {
+        if (amount <= 0) {
+            return new ActionResult(false, "Transfer amount must be positive.");
+        }
+
+        if (fromUser.equalsIgnoreCase(toUser)) {
+            return new ActionResult(false, "Cannot transfer to the same user.");
+        }
+
+        try {
+            Integer from = account(fromUser);
+            if (from == null) {
+                return rejected("Sender not found.");
+            }
+            Integer to = account(toUser);
+            if (to == null) {
+                return rejected("Recipient not found.");
+            }
+            return finish(engine.transfer(from, to, amount, idempotencyKey));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new ActionResult(false, "Database error.");
+        }
+    }
+
+    /**
+     * Pays each leg's recipient from the user's account; either every leg is applied or none is.
+     */
+    public static BatchTransferResult transferBatch(String fromUser, List<Leg> legs) {
+        BatchTransferResult invalid = BatchTransferHandler.validate(fromUser, legs);
+        if (invalid != null) {
+            return invalid;
+        }
+
+        try {
+            Integer from = account(fromUser);
+            if (from == null) {
+                Metrics.rollback("Sender not found.");
+                return new BatchTransferResult(false, "Sender not found.", legs.size(), null);
+            }
+
+            int[] recipients = new int[legs.size()];
+            long[] amounts = new long[legs.size()];
+            List<LegError> missing = new ArrayList<>();
+            for (int i = 0; i < legs.size(); i++) {
+                Integer to = account(legs.get(i).toUser);
+                if (to == null) {
+                    missing.add(new LegError(i, legs.get(i).toUser, "Recipient not found."));
+                    continue;
+                }
+                recipients[i] = to;
+                amounts[i] = legs.get(i).amount;
+            }
+
+            if (!missing.isEmpty()) {
+                Metrics.rollback("Recipient not found.");
+                return new BatchTransferResult(false, "Some recipients were not found.", legs.size(), missing);
+            }
+
+            ActionResult result = finish(engine.transferBatch(from, recipients, amounts));
+            return new BatchTransferResult(result.success, result.message, legs.size(), null);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return new BatchTransferResult(false, "Database error.", legs.size(), null);
+        }
+    }
+
+    /**
+     * Returns the user's balance from the ledger, or null if the ledger does not hold the
+     * account yet (read it from the database then).
+     */
+    public static BalanceResult balance(String username) {
+        Integer id = engine.id(username);
+        return id == null ? null : new BalanceResult(true, "Balance retrieved.", engine.balance(id));
+    }
+
+    /**
+     * Returns the running engine, mainly so its metrics can be reported; null if not started.
+     */
+    public static LedgerEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Returns the last sequence number copied into the database.
+     */
+    public static long getProjectedSeq() {
+        return projection.projectedSeq();
+    }
+
+    public static long getProjectedRowCount() {
+        return projection.getRowCount();
+    }
+
+    public static long getProjectionBatchCount() {
+        return projection.getBatchCount();
+    }
+
+    public static long getProjectionFailureCount() {
+        return projection.getFailureCount();
+    }
+
+    // The account's ledger id, adding it from the database if the ledger does not have it
+    // yet; null if there is no such customer.
+    private static Integer account(String username) throws SQLException {
+        Integer id = engine.id(username);
+        if (id != null || username == null) {
+            return id;
+        }
+
+        String sql = "SELECT C.CUS_UNAME, CAST((C.CUS_BALANCE + COALESCE((SELECT SUM(SLOT_BALANCE) " +
+                "FROM CUSTOMER_BALANCE_SLOT S WHERE S.CUS_ID = C.CUS_ID), 0)) * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS " +
+                "FROM CUSTOMER C WHERE C.CUS_UNAME = ?";
+
+        try (Connection conn = Database.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return engine.open(rs.getString("CUS_UNAME"), rs.getLong("BALANCE_CENTS"));
+            }
+        }
+    }
+
+    // Reports a committed change and converts the receipt for the client.
+    private static ActionResult finish(LedgerEngine.Receipt receipt) {
+        if (!receipt.success()) {
+            return rejected(receipt.message());
+        }
+        if (!receipt.rows().isEmpty()) {
+            AccountChanges.committed(receipt.rows(), Ledger::committedBalance);
+        }
+        return new ActionResult(true, receipt.message());
+    }
+
+    private static ActionResult rejected(String reason) {
+        Metrics.rollback(reason);
+        return new ActionResult(false, reason);
+    }
+
+    private static BalanceResult committedBalance(String username) {
+        BalanceResult balance = balance(username);
+        return balance != null ? balance : new BalanceResult(false, "User not found.", 0);
+    }
+
+    // Every customer with its balance, including a hot account's unfolded credits, and the
+    // highest transaction id so the ledger's ids follow on from it.
+    private static LedgerEngine.Genesis genesis() {
+        String customersSql = "SELECT C.CUS_UNAME, CAST((C.CUS_BALANCE + COALESCE((SELECT SUM(SLOT_BALANCE) " +
+                "FROM CUSTOMER_BALANCE_SLOT S WHERE S.CUS_ID = C.CUS_ID), 0)) * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS " +
+                "FROM CUSTOMER C";
+        String maxIdSql = "SELECT COALESCE(MAX(TXN_ID), 0) FROM TRANSACTION_RECORD";
+
+        try (Connection conn = Database.getConnection()) {
+            List<String> names = new ArrayList<>();
+            long[] balances = new long[1024];
+            try (PreparedStatement ps = conn.prepareStatement(customersSql);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (names.size() == balances.length) {
+                        balances = Arrays.copyOf(balances, balances.length * 2);
+                    }
+                    balances[names.size()] = rs.getLong("BALANCE_CENTS");
+                    names.add(rs.getString("CUS_UNAME"));
+                }
+            }
+
+            long seq;
+            try (PreparedStatement ps = conn.prepareStatement(maxIdSql);
+                 ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                seq = rs.getLong(1);
+            }
+
+            System.out.printf("Loaded %d accounts into the ledger%n", names.size());
+            return new LedgerEngine.Genesis(seq, names, balances);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to load accounts into the ledger.", e);
+        }
+    }
+}
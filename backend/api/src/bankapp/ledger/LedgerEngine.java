@@ -0,0 +1,698 @@
+package bankapp.ledger;
+
+import bankapp.ServiceUnavailableException;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.handlers.IdempotencyKeys;
+import bankapp.metrics.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Holds every account balance in memory and applies money movements on a single writer
+ * thread, with an append-only journal instead of database transactions.
+ *
+ * Accounts have dense int ids, and balances live in a long[] indexed by them. The writer
+ * takes whatever requests are queued (up to maxBatch), checks and applies them one by one
+ * in arrival order, appends the successful ones to the {@link Journal} and forces it to disk
+ * once for the whole batch. Only then are the new balances published to readers and the
+ * callers answered, so no caller ever sees a change that a crash could lose. Because one
+ * thread owns all balances there are no locks, retries or deadlocks.
+ *
+ * Each journal entry takes the next sequence number, which is also the id of its history
+ * row. Snapshots of the whole state are written every snapshotIntervalMillis; recovery
+ * loads the newest one and replays the journal after it.
+ */
+public final class LedgerEngine implements Closeable {
+
+    /**
+     * @param fsync                  force the journal to disk before answering
+     * @param segmentBytes           size of each journal segment file
+     * @param snapshotIntervalMillis time between snapshots
+     * @param maxBatch               requests applied per journal flush at most
+     * @param queueSize              requests waiting for the writer at most; more are refused
+     * @param keyTtlMillis           how long Idempotency-Keys are remembered
+     * @param maxKeys                Idempotency-Keys remembered at most; the oldest go first
+     */
+    public record Options(boolean fsync, int segmentBytes, long snapshotIntervalMillis, int maxBatch,
+                          int queueSize, long keyTtlMillis, int maxKeys) {
+    }
+
+    /**
+     * The accounts to start from when the ledger directory is empty, and the sequence number
+     * the ledger's own entries follow.
+     */
+    public record Genesis(long seq, List<String> names, long[] balances) {
+    }
+
+    /**
+     * The outcome of a money movement and, if it succeeded, its history rows (id, fromUser,
+     * toUser and amount). A repeated Idempotency-Key succeeds with no rows.
+     */
+    public record Receipt(boolean success, String message, List<HistoryItem> rows) {
+    }
+
+    private final Path dir;
+    private final Options options;
+    private final boolean bootstrapped;
+    private Journal journal;
+
+    // Readers' view: ids of published accounts, and balances as of the last flush
+    private final Map<String, Integer> index = new ConcurrentHashMap<>();
+    private volatile AtomicLongArray published = new AtomicLongArray(0);
+    private volatile String[] names = new String[1024];
+    private volatile long committedSeq;
+
+    // Owned by the writer thread
+    private long[] working = new long[1024];
+    private int count;
+    private long nextSeq;
+    private final Map<String, Integer> opened = new HashMap<>();
+    private final LinkedHashMap<String, Snapshot.Key> keys = new LinkedHashMap<>();
+    private int[] touched = new int[256];
+    private int touchedCount;
+    private long lastSnapshotMillis = System.currentTimeMillis();
+
+    private final BlockingQueue<Op> queue;
+    private final Thread writer;
+    private volatile Throwable failure;
+    private volatile Runnable onCommit;
+
+    // Journal segments up to here may be deleted as far as the projection is concerned
+    private volatile long projectedSeq = Long.MAX_VALUE;
+    private volatile long snapshotSeq;
+
+    private final LatencyHistogram flushTime = new LatencyHistogram();
+    private final LatencyHistogram batchFill = new LatencyHistogram();
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private LedgerEngine(Path dir, Options options, Snapshot snapshot, boolean bootstrapped) {
+        this.dir = dir;
+        this.options = options;
+        this.bootstrapped = bootstrapped;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, options.queueSize()));
+        this.writer = new Thread(this::run, "ledger-writer");
+        this.writer.setDaemon(true);
+
+        for (int i = 0; i < snapshot.accounts; i++) {
+            addAccount(snapshot.names[i], snapshot.balances[i]);
+        }
+        for (Snapshot.Key k : snapshot.keys) {
+            keys.put(keyOf(k.account(), k.key()), k);
+        }
+        nextSeq = snapshot.seq + 1;
+        snapshotSeq = snapshot.seq;
+    }
+
+    /**
+     * Loads the ledger in dir: the newest snapshot plus the journal after it. If dir holds no
+     * snapshot, the ledger starts from genesis, which is written as the first snapshot. The
+     * writer does not run until {@link #start}.
+     *
+     * @throws IOException if the files cannot be read or are inconsistent
+     */
+    public static LedgerEngine open(Path dir, Options options, Supplier<Genesis> genesis) throws IOException {
+        Files.createDirectories(dir);
+
+        Snapshot snapshot = Snapshot.readLatest(dir);
+        boolean bootstrapped = snapshot == null;
+        if (bootstrapped) {
+            if (Journal.hasSegments(dir)) {
+                throw new IOException("Ledger journal in " + dir + " has no snapshot to start from.");
+            }
+            Genesis g = genesis.get();
+            snapshot = new Snapshot(g.seq(), g.names().size(), g.names().toArray(new String[0]),
+                    g.balances(), List.of());
+            snapshot.write(dir);
+        }
+
+        LedgerEngine engine = new LedgerEngine(dir, options, snapshot, bootstrapped);
+        engine.journal = Journal.open(dir, options.segmentBytes(), options.fsync(), snapshot.seq, engine::replay);
+        engine.pruneKeys(System.currentTimeMillis());
+        engine.publish();
+        engine.committedSeq = engine.nextSeq - 1;
+        return engine;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Returns true if the ledger was created from genesis rather than loaded from disk.
+     */
+    public boolean isBootstrapped() {
+        return bootstrapped;
+    }
+
+    /**
+     * Returns the account's id, or null if the ledger does not know it. Usernames compare
+     * case-insensitively.
+     */
+    public Integer id(String username) {
+        return username == null ? null : index.get(username.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns the account's name as stored.
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Returns the account's committed balance in cents.
+     */
+    public long balance(int id) {
+        return published.get(id);
+    }
+
+    /**
+     * Adds an account with the given balance, or returns the id it already has.
+     */
+    public int open(String username, long balance) {
+        return (Integer) submit(new Op(null, username, balance));
+    }
+
+    public Receipt deposit(int account, long amount, String idempotencyKey) {
+        return (Receipt) submit(new Op(Entry.deposit(account, amount, idempotencyKey), null, 0));
+    }
+
+    public Receipt withdraw(int account, long amount, String idempotencyKey) {
+        return (Receipt) submit(new Op(Entry.withdraw(account, amount, idempotencyKey), null, 0));
+    }
+
+    public Receipt transfer(int from, int to, long amount, String idempotencyKey) {
+        return (Receipt) submit(new Op(Entry.transfer(from, to, amount, idempotencyKey), null, 0));
+    }
+
+    /**
+     * Pays each recipient its amount from one account; either every leg is applied or none is.
+     * The total must not exceed {@link Money#MAX_CENTS}.
+     */
+    public Receipt transferBatch(int from, int[] recipients, long[] amounts) {
+        return (Receipt) submit(new Op(Entry.batch(from, recipients, amounts), null, 0));
+    }
+
+    /**
+     * Sequence number of the last entry that is durable and visible.
+     */
+    public long committedSeq() {
+        return committedSeq;
+    }
+
+    /**
+     * Tells the ledger that entries up to seq have been copied elsewhere, so journal segments
+     * holding only such entries can be deleted once a snapshot covers them too.
+     */
+    public void projectedThrough(long seq) {
+        projectedSeq = seq;
+    }
+
+    /**
+     * Sets an action run on the writer thread after each batch is committed. It must be quick.
+     */
+    void onCommit(Runnable action) {
+        onCommit = action;
+    }
+
+    /**
+     * Returns a cursor over the committed journal entries after seq.
+     */
+    Journal.Cursor cursor(long afterSeq) {
+        return new Journal.Cursor(dir, afterSeq);
+    }
+
+    /**
+     * Returns the history rows an entry stands for: one per leg, with the leg's sequence
+     * number as its id.
+     */
+    List<HistoryItem> rows(Entry e) {
+        String[] n = names;
+        return switch (e.type) {
+            case Entry.DEPOSIT -> List.of(new HistoryItem(e.seq, null, null, n[e.account], e.amount, null));
+            case Entry.WITHDRAW -> List.of(new HistoryItem(e.seq, null, n[e.account], null, e.amount, null));
+            case Entry.TRANSFER -> List.of(new HistoryItem(e.seq, null, n[e.account], n[e.to], e.amount, null));
+            case Entry.BATCH -> {
+                List<HistoryItem> rows = new ArrayList<>(e.recipients.length);
+                for (int i = 0; i < e.recipients.length; i++) {
+                    rows.add(new HistoryItem(e.seq + i, null, n[e.account], n[e.recipients[i]], e.amounts[i], null));
+                }
+                yield rows;
+            }
+            default -> List.of();
+        };
+    }
+
+    public int getAccountCount() {
+        return index.size();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getOperationCount() {
+        return operations.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.sum();
+    }
+
+    public long getSnapshotSeq() {
+        return snapshotSeq;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Time taken to force each batch's journal records to disk.
+     */
+    public LatencyHistogram flushTime() {
+        return flushTime;
+    }
+
+    /**
+     * Requests per batch (recorded as plain counts, not nanoseconds).
+     */
+    public LatencyHistogram batchFill() {
+        return batchFill;
+    }
+
+    /**
+     * Stops the writer after its current batch and writes a final snapshot. Requests queued
+     * but not yet taken fail.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null) {
+            failure = new ServiceUnavailableException("The ledger has shut down.", 5);
+        }
+        fail(failure);
+
+        try {
+            if (committedSeq > snapshotSeq) {
+                snapshot();
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    // Queues a request for the writer and waits until its batch is committed.
+    private Object submit(Op op) {
+        Throwable failed = failure;
+        if (failed != null) {
+            throw unavailable(failed);
+        }
+        if (!queue.offer(op)) {
+            rejected.increment();
+            throw new ServiceUnavailableException("Server is busy. Please try again.", 1);
+        }
+        if (failure != null) {
+            // the writer may have stopped after the check above, leaving the request queued
+            fail(failure);
+        }
+
+        try {
+            return op.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<Op> batch = new ArrayList<>(options.maxBatch());
+        Object[] outcome = new Object[Math.max(1, options.maxBatch())];
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, options.maxBatch() - 1);
+                commit(batch, outcome);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // The balances in memory may now differ from the journal; stop taking requests
+                e.printStackTrace();
+                failure = e;
+                ServiceUnavailableException unavailable = unavailable(e);
+                for (Op op : batch) {
+                    op.result.completeExceptionally(unavailable);
+                }
+                fail(e);
+                return;
+            } finally {
+                batch.clear();
+            }
+
+            maybeSnapshot();
+        }
+    }
+
+    // Applies a batch, makes it durable, publishes it and answers its callers.
+    private void commit(List<Op> batch, Object[] outcome) throws IOException {
+        long now = System.currentTimeMillis();
+        batches.increment();
+        operations.add(batch.size());
+        batchFill.record(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            outcome[i] = apply(batch.get(i), now);
+        }
+
+        long start = System.nanoTime();
+        journal.flush();
+        flushTime.recordSince(start);
+
+        publish();
+        committedSeq = nextSeq - 1;
+        pruneKeys(now);
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(outcome[i]);
+            outcome[i] = null;
+        }
+
+        Runnable action = onCommit;
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    // Checks one request against the current balances and, if it succeeds, journals and applies it.
+    private Object apply(Op op, long now) throws IOException {
+        if (op.entry == null) {
+            return openAccount(op.username, op.balance, now);
+        }
+
+        Entry e = op.entry;
+        if (!exists(e)) {
+            return new Receipt(false, "User not found.", List.of());
+        }
+
+        // a retry of a request that already succeeded gets the same answer again
+        if (e.text != null) {
+            Snapshot.Key previous = keys.get(keyOf(e.account, e.text));
+            if (previous != null) {
+                return previous.request().equals(request(e))
+                        ? new Receipt(true, previous.message(), List.of())
+                        : new Receipt(false, IdempotencyKeys.KEY_REUSED.message, List.of());
+            }
+        }
+
+        String error = check(e);
+        if (error != null) {
+            return new Receipt(false, error, List.of());
+        }
+
+        e.seq = nextSeq;
+        e.timeMillis = now;
+        journal.append(e);
+        replay(e);
+        return new Receipt(true, success(e), rows(e));
+    }
+
+    private int openAccount(String username, long balance, long now) throws IOException {
+        String lower = username.toLowerCase(Locale.ROOT);
+        Integer id = index.get(lower);
+        if (id == null) {
+            id = opened.get(lower);
+        }
+        if (id != null) {
+            return id;
+        }
+
+        Entry e = Entry.open(count, username, balance);
+        e.seq = nextSeq;
+        e.timeMillis = now;
+        journal.append(e);
+        replay(e);
+        return e.account;
+    }
+
+    // Returns why the entry cannot be applied to the current balances, or null if it can.
+    private String check(Entry e) {
+        switch (e.type) {
+            case Entry.DEPOSIT -> {
+                return working[e.account] > Money.MAX_CENTS - e.amount ? "Balance limit exceeded." : null;
+            }
+            case Entry.WITHDRAW -> {
+                return e.amount > working[e.account] ? "Insufficient funds." : null;
+            }
+            case Entry.TRANSFER -> {
+                if (e.amount > working[e.account]) {
+                    return "Insufficient funds.";
+                }
+                return working[e.to] > Money.MAX_CENTS - e.amount ? "Balance limit exceeded." : null;
+            }
+            case Entry.BATCH -> {
+                long total = 0;
+                Map<Integer, Long> credits = new HashMap<>();
+                for (int i = 0; i < e.recipients.length; i++) {
+                    total += e.amounts[i];
+                    credits.merge(e.recipients[i], e.amounts[i], Long::sum);
+                }
+                if (total > working[e.account]) {
+                    return "Insufficient funds.";
+                }
+                for (Map.Entry<Integer, Long> c : credits.entrySet()) {
+                    if (working[c.getKey()] > Money.MAX_CENTS - c.getValue()) {
+                        return "Balance limit exceeded.";
+                    }
+                }
+                return null;
+            }
+            default -> throw new IllegalStateException("Unknown entry type " + e.type);
+        }
+    }
+
+    private boolean exists(Entry e) {
+        if (e.account < 0 || e.account >= count || e.to >= count) {
+            return false;
+        }
+        if (e.recipients != null) {
+            for (int r : e.recipients) {
+                if (r < 0 || r >= count) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Applies a journaled entry to the balances; used both live and during recovery.
+    private void replay(Entry e) {
+        switch (e.type) {
+            case Entry.OPEN -> {
+                if (e.account != count) {
+                    throw new IllegalStateException("Journal opens account " + e.account + " but " + count + " is next.");
+                }
+                addAccount(e.text, e.amount);
+            }
+            case Entry.DEPOSIT -> credit(e.account, e.amount);
+            case Entry.WITHDRAW -> credit(e.account, -e.amount);
+            case Entry.TRANSFER -> {
+                credit(e.account, -e.amount);
+                credit(e.to, e.amount);
+            }
+            case Entry.BATCH -> {
+                for (int i = 0; i < e.recipients.length; i++) {
+                    credit(e.account, -e.amounts[i]);
+                    credit(e.recipients[i], e.amounts[i]);
+                }
+            }
+            default -> throw new IllegalStateException("Unknown entry type " + e.type);
+        }
+
+        if (e.text != null && e.type != Entry.OPEN) {
+            keys.put(keyOf(e.account, e.text), new Snapshot.Key(e.account, e.text, request(e), success(e), e.timeMillis));
+        }
+        nextSeq = e.seq + e.width();
+    }
+
+    private void addAccount(String name, long balance) {
+        if (count == working.length) {
+            working = Arrays.copyOf(working, count * 2);
+            names = Arrays.copyOf(names, count * 2);
+        }
+        names[count] = name;
+        working[count] = balance;
+        opened.put(name.toLowerCase(Locale.ROOT), count);
+        touch(count);
+        count++;
+    }
+
+    private void credit(int id, long delta) {
+        working[id] += delta;
+        touch(id);
+    }
+
+    private void touch(int id) {
+        if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = id;
+    }
+
+    // Copies the balances changed since the last call to the readers' array, then makes new
+    // accounts visible.
+    private void publish() {
+        AtomicLongArray target = published;
+        if (target.length() < count) {
+            AtomicLongArray grown = new AtomicLongArray(working.length);
+            for (int i = 0; i < target.length(); i++) {
+                grown.set(i, target.get(i));
+            }
+            target = grown;
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            target.set(touched[i], working[touched[i]]);
+        }
+        touchedCount = 0;
+
+        published = target;
+        index.putAll(opened);
+        opened.clear();
+    }
+
+    // Forgets Idempotency-Keys past their TTL, and the oldest ones beyond maxKeys.
+    private void pruneKeys(long now) {
+        long cutoff = now - options.keyTtlMillis();
+        Iterator<Snapshot.Key> it = keys.values().iterator();
+        while (it.hasNext()) {
+            Snapshot.Key k = it.next();
+            if (k.timeMillis() >= cutoff && keys.size() <= options.maxKeys()) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void maybeSnapshot() {
+        long now = System.currentTimeMillis();
+        if (now - lastSnapshotMillis < options.snapshotIntervalMillis() || committedSeq == snapshotSeq) {
+            return;
+        }
+        lastSnapshotMillis = now;
+
+        try {
+            snapshot();
+        } catch (IOException e) {
+            // The journal still has everything; try again next interval
+            System.err.println("Ledger snapshot failed: " + e);
+        }
+    }
+
+    // Writes the state as of committedSeq, then deletes journal segments nothing needs any more.
+    private void snapshot() throws IOException {
+        long seq = committedSeq;
+        new Snapshot(seq, count, Arrays.copyOf(names, count), Arrays.copyOf(working, count),
+                new ArrayList<>(keys.values())).write(dir);
+        snapshotSeq = seq;
+        snapshots.increment();
+
+        journal.deleteThrough(Math.min(Snapshot.oldestSeq(dir), projectedSeq));
+    }
+
+    // Fails every queued request; used once the writer has stopped.
+    private void fail(Throwable cause) {
+        ServiceUnavailableException unavailable = unavailable(cause);
+        Op op;
+        while ((op = queue.poll()) != null) {
+            op.result.completeExceptionally(unavailable);
+        }
+    }
+
+    private static ServiceUnavailableException unavailable(Throwable cause) {
+        if (cause instanceof ServiceUnavailableException e) {
+            return e;
+        }
+        return new ServiceUnavailableException("The ledger is unavailable.", 30);
+    }
+
+    // The request an Idempotency-Key was used for, as IdempotencyKeys records it.
+    private String request(Entry e) {
+        return switch (e.type) {
+            case Entry.DEPOSIT -> "deposit " + e.amount;
+            case Entry.WITHDRAW -> "withdraw " + e.amount;
+            case Entry.TRANSFER -> "transfer " + names[e.to].toLowerCase(Locale.ROOT) + " " + e.amount;
+            default -> "";
+        };
+    }
+
+    private static String success(Entry e) {
+        return switch (e.type) {
+            case Entry.DEPOSIT -> "Deposit successful.";
+            case Entry.WITHDRAW -> "Withdrawal successful.";
+            case Entry.TRANSFER -> "Transfer successful.";
+            case Entry.BATCH -> "Batch transfer successful.";
+            default -> "";
+        };
+    }
+
+    private static String keyOf(int account, String key) {
+        return account + "\n" + key;
+    }
+
+    /**
+     * A queued request: an entry to apply, or an account to open, and the caller waiting for it.
+     */
+    private static final class Op {
+        final Entry entry;
+        final String username;
+        final long balance;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Op(Entry entry, String username, long balance) {
+            this.entry = entry;
+            this.username = username;
+            this.balance = balance;
+        }
+    }
+}
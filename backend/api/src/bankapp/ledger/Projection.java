@@ -0,0 +1,263 @@
+package bankapp.ledger;
+
+import bankapp.Database;
+import bankapp.dto.Account;
+import bankapp.dto.HistoryItem;
+import bankapp.dto.Money;
+import bankapp.handlers.AccountChanges;
+import bankapp.handlers.Accounts;
+import bankapp.handlers.Rollups;
+import bankapp.handlers.Transactions;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copies committed ledger entries into MySQL in the background, so /history, exports and
+ * anything else reading CUSTOMER and TRANSACTION_RECORD catch up with the ledger.
+ *
+ * Entries are read from the journal and applied a batch at a time in one transaction: one
+ * balance update per account with its net change, one TRANSACTION_RECORD row per leg with
+ * the entry's sequence number as TXN_ID and its time as TXN_DATETIME, and the last sequence
+ * number applied in LEDGER_PROJECTION. Since the position commits with the rows, a restart
+ * resumes exactly where the last commit left off, and no entry is applied twice.
+ */
+final class Projection {
+
+    // How long to sleep when there is nothing to copy, unless the writer wakes the thread
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final LedgerEngine engine;
+    private final int batchRows;
+    private final Journal.Cursor cursor;
+    private final Thread thread;
+
+    private final List<Entry> pending = new ArrayList<>();
+    private volatile long projectedSeq;
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    Projection(LedgerEngine engine, long afterSeq, int batchRows) {
+        this.engine = engine;
+        this.batchRows = Math.max(1, batchRows);
+        this.cursor = engine.cursor(afterSeq);
+        this.projectedSeq = afterSeq;
+        this.thread = new Thread(this::run, "ledger-projection");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Returns the last sequence number applied to the database, or -1 if none is recorded.
+     */
+    static long lastSeq(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT PROJ_LAST_SEQ FROM LEDGER_PROJECTION WHERE PROJ_ID = 1");
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : -1;
+        }
+    }
+
+    /**
+     * Records that the database reflects every entry up to seq, for a ledger that was just
+     * created from it.
+     */
+    static void reset(Connection conn, long seq) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO LEDGER_PROJECTION (PROJ_ID, PROJ_LAST_SEQ) " +
+                "VALUES (1, ?) ON DUPLICATE KEY UPDATE PROJ_LAST_SEQ = VALUES(PROJ_LAST_SEQ)")) {
+            ps.setLong(1, seq);
+            ps.executeUpdate();
+        }
+    }
+
+    void start() {
+        engine.onCommit(() -> LockSupport.unpark(thread));
+        thread.start();
+    }
+
+    long projectedSeq() {
+        return projectedSeq;
+    }
+
+    long getRowCount() {
+        return rows.sum();
+    }
+
+    long getBatchCount() {
+        return batches.sum();
+    }
+
+    long getFailureCount() {
+        return failures.sum();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                if (pending.isEmpty()) {
+                    read();
+                }
+                if (pending.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                if (apply()) {
+                    pending.clear();
+                    continue;
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            // the same entries are tried again
+            failures.increment();
+            LockSupport.parkNanos(RETRY_NANOS);
+        }
+    }
+
+    // Collects committed entries until the batch holds batchRows history rows.
+    private void read() throws IOException {
+        long committed = engine.committedSeq();
+        int legs = 0;
+        Entry e;
+        while (legs < batchRows && (e = cursor.next(committed)) != null) {
+            pending.add(e);
+            if (e.movesMoney()) {
+                legs += e.width();
+            }
+        }
+    }
+
+    // Applies the pending entries in one transaction; false if the database refused.
+    private boolean apply() {
+        List<HistoryItem> items = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        Set<String> changed = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+        for (Entry e : pending) {
+            for (HistoryItem item : engine.rows(e)) {
+                items.add(item);
+                times.add(e.timeMillis);
+                if (item.fromUser != null) {
+                    changed.add(item.fromUser);
+                }
+                if (item.toUser != null) {
+                    changed.add(item.toUser);
+                }
+            }
+        }
+        Entry last = pending.get(pending.size() - 1);
+        long lastSeq = last.seq + last.width() - 1;
+
+        String updateSql = "UPDATE CUSTOMER SET CUS_BALANCE = CUS_BALANCE + ? WHERE CUS_ID = ?";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_ID, TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_DATETIME) " +
+                "VALUES (?, ?, ?, ?, ?)";
+        String positionSql = "UPDATE LEDGER_PROJECTION SET PROJ_LAST_SEQ = ? WHERE PROJ_ID = 1";
+
+        Boolean done;
+        try (Connection conn = Database.getConnection()) {
+            // every account in the ledger is a customer, so each name resolves
+            Map<String, Account> accounts = Accounts.findAll(conn, changed);
+
+            // one update per account, in id order so concurrent writers lock in the same order
+            Map<Long, Long> deltas = new TreeMap<>();
+            for (HistoryItem item : items) {
+                if (item.fromUser != null) {
+                    deltas.merge(id(accounts, item.fromUser), -item.amount, Long::sum);
+                }
+                if (item.toUser != null) {
+                    deltas.merge(id(accounts, item.toUser), item.amount, Long::sum);
+                }
+            }
+
+            done = Transactions.run(conn, false, tx -> {
+                try (PreparedStatement update = conn.prepareStatement(updateSql)) {
+                    for (Map.Entry<Long, Long> d : deltas.entrySet()) {
+                        if (d.getValue() == 0) {
+                            continue;
+                        }
+                        update.setBigDecimal(1, Money.toDecimal(d.getValue()));
+                        update.setLong(2, d.getKey());
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+
+                try (PreparedStatement insert = conn.prepareStatement(insertTxn)) {
+                    for (int i = 0; i < items.size(); i++) {
+                        HistoryItem item = items.get(i);
+                        insert.setLong(1, item.id);
+                        insert.setObject(2, item.fromUser == null ? null : id(accounts, item.fromUser), Types.BIGINT);
+                        insert.setObject(3, item.toUser == null ? null : id(accounts, item.toUser), Types.BIGINT);
+                        insert.setBigDecimal(4, Money.toDecimal(item.amount));
+                        insert.setTimestamp(5, new Timestamp(times.get(i)));
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+
+                Rollups.Batch rollups = Rollups.batch();
+                for (int i = 0; i < items.size(); i++) {
+                    HistoryItem item = items.get(i);
+                    Timestamp time = new Timestamp(times.get(i));
+                    if (item.fromUser != null) {
+                        rollups.add(id(accounts, item.fromUser), item.toUser == null ? HistoryItem.WITHDRAW
+                                : HistoryItem.TRANSFER_OUT, item.amount, time, false);
+                    }
+                    if (item.toUser != null) {
+                        rollups.add(id(accounts, item.toUser), item.fromUser == null ? HistoryItem.DEPOSIT
+                                : HistoryItem.TRANSFER_IN, item.amount, time, false);
+                    }
+                }
+                rollups.apply(conn);
+
+                try (PreparedStatement position = conn.prepareStatement(positionSql)) {
+                    position.setLong(1, lastSeq);
+                    if (position.executeUpdate() == 0) {
+                        throw new SQLException("LEDGER_PROJECTION has no row.");
+                    }
+                }
+                return true;
+            });
+        } catch (SQLException | IllegalStateException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (!done) {
+            return false;
+        }
+
+        projectedSeq = lastSeq;
+        engine.projectedThrough(lastSeq);
+        rows.add(items.size());
+        batches.increment();
+
+        // The rows are now in the database, so /history responses cached before are stale
+        AccountChanges.rowsAdded(changed);
+        return true;
+    }
+
+    private static long id(Map<String, Account> accounts, String username) {
+        Account account = accounts.get(username);
+        if (account == null) {
+            throw new IllegalStateException("The ledger account " + username + " is not in the database.");
+        }
+        return account.id();
+    }
+}
@@ -0,0 +1,211 @@
+package bankapp.ledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The ledger's whole state as of one sequence number: every account's name and balance and
+ * the idempotency keys still within their TTL. Recovery loads the newest snapshot and replays
+ * the journal after it.
+ *
+ * A snapshot is written to a temporary file, forced to disk and then renamed into place, so
+ * a crash leaves either the old set of snapshots or the new one. Each file ends with a CRC-32
+ * of its contents; a damaged newest snapshot is skipped in favour of the one before it, whose
+ * journal segments are still kept.
+ */
+final class Snapshot {
+
+    private static final int MAGIC = 0x4c444752;    // "LDGR"
+    private static final int VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    // Snapshots kept on disk, newest first
+    static final int KEEP = 2;
+
+    /**
+     * A remembered Idempotency-Key and the response its request got.
+     */
+    record Key(int account, String key, String request, String message, long timeMillis) {
+    }
+
+    final long seq;
+    final int accounts;
+    final String[] names;
+    final long[] balances;
+    final List<Key> keys;
+
+    Snapshot(long seq, int accounts, String[] names, long[] balances, List<Key> keys) {
+        this.seq = seq;
+        this.accounts = accounts;
+        this.names = names;
+        this.balances = balances;
+        this.keys = keys;
+    }
+
+    /**
+     * Writes the snapshot to dir and deletes all but the newest {@link #KEEP}.
+     */
+    void write(Path dir) throws IOException {
+        Path file = file(dir, seq);
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new CheckedOutputStream(fileOut, crc), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+
+            out.writeInt(accounts);
+            for (int i = 0; i < accounts; i++) {
+                out.writeUTF(names[i]);
+                out.writeLong(balances[i]);
+            }
+
+            out.writeInt(keys.size());
+            for (Key k : keys) {
+                out.writeInt(k.account());
+                out.writeUTF(k.key());
+                out.writeUTF(k.request());
+                out.writeUTF(k.message());
+                out.writeLong(k.timeMillis());
+            }
+
+            out.flush();
+            fileOut.write(intBytes((int) crc.getValue()));
+            fileOut.getChannel().force(true);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(dir);
+
+        List<Long> all = list(dir);
+        for (int i = 0; i < all.size() - KEEP; i++) {
+            Files.deleteIfExists(file(dir, all.get(i)));
+        }
+    }
+
+    /**
+     * Returns the newest readable snapshot in dir, or null if there is none.
+     *
+     * @throws IOException if there are snapshots but none of them can be read
+     */
+    static Snapshot readLatest(Path dir) throws IOException {
+        List<Long> all = list(dir);
+        IOException failure = null;
+
+        for (int i = all.size() - 1; i >= 0; i--) {
+            Path file = file(dir, all.get(i));
+            try {
+                return read(file);
+            } catch (IOException e) {
+                System.err.println("Skipping ledger snapshot " + file.getFileName() + ": " + e.getMessage());
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new IOException("No ledger snapshot in " + dir + " is readable.", failure);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sequence number of the oldest snapshot kept, or -1 if there is none.
+     * Journal records up to it are not needed for recovery.
+     */
+    static long oldestSeq(Path dir) throws IOException {
+        List<Long> all = list(dir);
+        return all.isEmpty() ? -1 : all.get(0);
+    }
+
+    private static Snapshot read(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(fileIn, crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a ledger snapshot");
+            }
+            long seq = in.readLong();
+
+            int accounts = in.readInt();
+            if (accounts < 0) {
+                throw new IOException("bad account count");
+            }
+            String[] names = new String[accounts];
+            long[] balances = new long[accounts];
+            for (int i = 0; i < accounts; i++) {
+                names[i] = in.readUTF();
+                balances[i] = in.readLong();
+            }
+
+            int count = in.readInt();
+            List<Key> keys = new ArrayList<>(Math.max(0, count));
+            for (int i = 0; i < count; i++) {
+                keys.add(new Key(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readLong()));
+            }
+
+            int expected = (int) crc.getValue();
+            byte[] stored = fileIn.readNBytes(4);
+            if (stored.length < 4) {
+                throw new EOFException("checksum missing");
+            }
+            if (fileIn.read() != -1 || toInt(stored) != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            return new Snapshot(seq, accounts, names, balances, keys);
+        }
+    }
+
+    // Makes the rename durable; not every platform can open a directory, which is harmless.
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    private static Path file(Path dir, long seq) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, seq, SUFFIX));
+    }
+
+    // Sequence numbers of the complete snapshots in dir, oldest first.
+    private static List<Long> list(Path dir) throws IOException {
+        List<Long> all = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> all.add(Long.parseLong(
+                            name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        all.sort(null);
+        return all;
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    private static int toInt(byte[] b) {
+        return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+    }
+}
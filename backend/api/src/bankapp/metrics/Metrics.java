@@ -0,0 +1,196 @@
+package bankapp.metrics;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide request, database and transaction metrics.
+ *
+ * Request timing is started and finished by filters in BankServer. The connection pool adds
+ * the time spent waiting for a connection and, separately, the time the request held it
+ * (its database time). Recording uses only
+ * pre-registered counters and histograms and a per-thread timer, so it does not allocate
+ * once a route has been seen.
+ */
+public final class Metrics {
+
+    // Bounds the number of distinct route labels, e.g. against scans of random paths
+    private static final int MAX_ROUTES = 64;
+
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "OPTIONS", "OTHER"};
+
+    private static final Map<String, RouteMetrics[]> ROUTES = new ConcurrentHashMap<>();
+    private static final RouteMetrics[] UNMATCHED = newRouteSlots("unmatched");
+    private static final RouteMetrics[] OVERFLOW = newRouteSlots("other");
+
+    private static final Map<String, LongAdder> ROLLBACKS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> RETRIES = new ConcurrentHashMap<>();
+
+    private static final LatencyHistogram DB_ACQUIRE = new LatencyHistogram();
+    private static final LatencyHistogram DB_HOLD = new LatencyHistogram();
+
+    private Metrics() {}
+
+    /**
+     * Marks the start of a request on the current thread.
+     */
+    public static void requestStarted() {
+        RequestTimer.current().start();
+    }
+
+    /**
+     * Records a finished request against its route and status.
+     *
+     * @param method HTTP method
+     * @param path   request path; routes have no path parameters, so this is the route
+     * @param status response status
+     */
+    public static void requestFinished(String method, String path, int status) {
+        RequestTimer t = RequestTimer.current();
+        if (!t.active) {
+            return;
+        }
+        t.active = false;
+
+        long total = System.nanoTime() - t.startNanos;
+        routeSlots(path, status)[methodIndex(method)].record(status, total, t.dbNanos, t.acquireNanos, t.retries);
+    }
+
+    /**
+     * Records the time spent waiting for a pooled connection.
+     */
+    public static void connectionAcquired(long waitNanos) {
+        DB_ACQUIRE.record(waitNanos);
+        RequestTimer t = RequestTimer.current();
+        if (t.active) {
+            t.acquireNanos += waitNanos;
+        }
+    }
+
+    /**
+     * Records the time a connection was held before being returned to the pool.
+     */
+    public static void connectionReleased(long heldNanos) {
+        DB_HOLD.record(heldNanos);
+        RequestTimer t = RequestTimer.current();
+        if (t.active) {
+            t.dbNanos += heldNanos;
+        }
+    }
+
+    /**
+     * Counts a rolled-back transaction. Reasons are the user-facing messages
+     * (e.g. "Insufficient funds.") so the set of labels stays small and fixed.
+     */
+    public static void rollback(String reason) {
+        LongAdder counter = ROLLBACKS.get(reason);
+        if (counter == null) {
+            counter = ROLLBACKS.computeIfAbsent(reason, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Counts a transaction rolled back because of a database error, classified by MySQL error code.
+     */
+    public static void rollback(SQLException e) {
+        rollback(reason(e));
+    }
+
+    /**
+     * Counts a transaction that is run again after a database error, by reason and against
+     * the current request's route.
+     */
+    public static void retry(SQLException e) {
+        String reason = reason(e);
+        LongAdder counter = RETRIES.get(reason);
+        if (counter == null) {
+            counter = RETRIES.computeIfAbsent(reason, r -> new LongAdder());
+        }
+        counter.increment();
+
+        RequestTimer t = RequestTimer.current();
+        if (t.active) {
+            t.retries++;
+        }
+    }
+
+    static Map<String, RouteMetrics[]> routes() {
+        return ROUTES;
+    }
+
+    static RouteMetrics[] unmatched() {
+        return UNMATCHED;
+    }
+
+    static RouteMetrics[] overflow() {
+        return OVERFLOW;
+    }
+
+    static Map<String, LongAdder> rollbacks() {
+        return ROLLBACKS;
+    }
+
+    static Map<String, LongAdder> retries() {
+        return RETRIES;
+    }
+
+    static LatencyHistogram dbAcquire() {
+        return DB_ACQUIRE;
+    }
+
+    static LatencyHistogram dbHold() {
+        return DB_HOLD;
+    }
+
+    static String[] methods() {
+        return METHODS;
+    }
+
+    private static String reason(SQLException e) {
+        return switch (e.getErrorCode()) {
+            case 1213 -> "deadlock";
+            case 1205 -> "lock wait timeout";
+            default -> "database error";
+        };
+    }
+
+    private static RouteMetrics[] routeSlots(String path, int status) {
+        RouteMetrics[] slots = ROUTES.get(path);
+        if (slots != null) {
+            return slots;
+        }
+
+        // Paths that no route matched are reported together
+        if (status == 404) {
+            return UNMATCHED;
+        }
+
+        if (ROUTES.size() >= MAX_ROUTES) {
+            return OVERFLOW;
+        }
+
+        return ROUTES.computeIfAbsent(path, Metrics::newRouteSlots);
+    }
+
+    private static RouteMetrics[] newRouteSlots(String route) {
+        RouteMetrics[] slots = new RouteMetrics[METHODS.length];
+        for (int i = 0; i < METHODS.length; i++) {
+            slots[i] = new RouteMetrics(METHODS[i], route);
+        }
+        return slots;
+    }
+
+    private static int methodIndex(String method) {
+        return switch (method) {
+            case "GET" -> 0;
+            case "POST" -> 1;
+            case "PUT" -> 2;
+            case "DELETE" -> 3;
+            case "OPTIONS" -> 4;
+            default -> 5;
+        };
+    }
+}
@@ -0,0 +1,497 @@
+package bankapp.metrics;
+
+import bankapp.ConnectionPool;
+import bankapp.Database;
+import bankapp.Replicas;
+import bankapp.cache.AccountIdCache;
+import bankapp.cache.BalanceCache;
+import bankapp.cache.IdempotencyCache;
+import bankapp.events.EventHub;
+import bankapp.handlers.Accounts;
+import bankapp.handlers.BalanceHandler;
+import bankapp.handlers.GroupCommit;
+import bankapp.handlers.HotAccounts;
+import bankapp.handlers.IdempotencyKeys;
+import bankapp.handlers.ShardOutbox;
+import bankapp.ledger.Ledger;
+import bankapp.ledger.LedgerEngine;
+import bankapp.security.Admission;
+import bankapp.security.JwtUtil;
+import bankapp.security.PasswordHasher;
+import bankapp.security.RateLimiter;
+import bankapp.security.TokenCache;
+import bankapp.shard.Shards;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Renders all metrics in the Prometheus text exposition format (version 0.0.4).
+ * Latencies are exported as summaries with 0.5, 0.99 and 0.999 quantiles, in seconds.
+ */
+public final class PrometheusExporter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder(8192);
+
+    private PrometheusExporter() {}
+
+    /**
+     * Returns the current value of every metric.
+     */
+    public static String scrape() {
+        PrometheusExporter e = new PrometheusExporter();
+        e.writeRoutes();
+        e.writeRollbacks();
+        e.writeAdmission();
+        e.writeDatabase();
+        e.writeShards();
+        e.writeReplicas();
+        e.writeTokenCache();
+        e.writeBalanceCache();
+        e.writeAccountIds();
+        e.writeIdempotency();
+        e.writeEvents();
+        e.writeGroupCommit();
+        e.writeLedger();
+        e.writeHotAccounts();
+        e.writePasswordHasher();
+        return e.out.toString();
+    }
+
+    private void writeRoutes() {
+        List<RouteMetrics> all = new ArrayList<>();
+        for (RouteMetrics[] slots : new TreeMap<>(Metrics.routes()).values()) {
+            addUsed(all, slots);
+        }
+        addUsed(all, Metrics.unmatched());
+        addUsed(all, Metrics.overflow());
+
+        header("bank_http_requests_total", "counter", "HTTP requests by route, method and status class.");
+        for (RouteMetrics r : all) {
+            for (int cls = 0; cls < r.byStatusClass.length; cls++) {
+                long n = r.byStatusClass[cls].sum();
+                if (n > 0) {
+                    sample("bank_http_requests_total", n, "route", r.route, "method", r.method,
+                            "status", cls == 0 ? "other" : cls + "xx");
+                }
+            }
+        }
+
+        header("bank_http_request_duration_seconds", "summary", "Total time to handle a request.");
+        for (RouteMetrics r : all) {
+            summary("bank_http_request_duration_seconds", r.total, "route", r.route, "method", r.method);
+        }
+
+        header("bank_http_request_db_seconds", "summary",
+                "Time a request held a database connection (database share of the total).");
+        for (RouteMetrics r : all) {
+            summary("bank_http_request_db_seconds", r.db, "route", r.route, "method", r.method);
+        }
+
+        header("bank_http_request_db_acquire_seconds", "summary",
+                "Time a request waited for a database connection.");
+        for (RouteMetrics r : all) {
+            summary("bank_http_request_db_acquire_seconds", r.acquire, "route", r.route, "method", r.method);
+        }
+
+        header("bank_http_request_retries_total", "counter",
+                "Transactions re-run after a deadlock or lock wait timeout, by route.");
+        for (RouteMetrics r : all) {
+            long n = r.retries.sum();
+            if (n > 0) {
+                sample("bank_http_request_retries_total", n, "route", r.route, "method", r.method);
+            }
+        }
+    }
+
+    private void writeRollbacks() {
+        header("bank_transaction_rollbacks_total", "counter", "Rolled-back money movements by reason.");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(Metrics.rollbacks()).entrySet()) {
+            sample("bank_transaction_rollbacks_total", e.getValue().sum(), "reason", e.getKey());
+        }
+
+        header("bank_transaction_retries_total", "counter", "Rolled-back transactions that were run again, by reason.");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(Metrics.retries()).entrySet()) {
+            sample("bank_transaction_retries_total", e.getValue().sum(), "reason", e.getKey());
+        }
+    }
+
+    private void writeAdmission() {
+        header("bank_rate_limit_rejections_total", "counter", "Requests turned away with 429, by limit.");
+        for (Admission.Reason reason : Admission.Reason.values()) {
+            sample("bank_rate_limit_rejections_total", Admission.getRejectedCount(reason), "reason", reason.label());
+        }
+
+        RateLimiter users = Admission.users();
+        RateLimiter addresses = Admission.addresses();
+        gauge("bank_rate_limit_buckets", "Rate limit buckets currently held.");
+        sample("bank_rate_limit_buckets", users.size(), "scope", "user");
+        sample("bank_rate_limit_buckets", addresses.size(), "scope", "ip");
+        header("bank_rate_limit_bucket_evictions_total", "counter", "Rate limit buckets dropped to make room.");
+        sample("bank_rate_limit_bucket_evictions_total", users.getEvictions(), "scope", "user");
+        sample("bank_rate_limit_bucket_evictions_total", addresses.getEvictions(), "scope", "ip");
+
+        gauge("bank_http_requests_in_flight", "Requests currently running, by route.");
+        for (Map.Entry<String, Integer> e : Admission.inFlight().entrySet()) {
+            sample("bank_http_requests_in_flight", e.getValue(), "route", e.getKey());
+        }
+    }
+
+    private void writeDatabase() {
+        header("bank_db_connection_acquire_seconds", "summary", "Time spent waiting for a pooled connection.");
+        summary("bank_db_connection_acquire_seconds", Metrics.dbAcquire());
+
+        header("bank_db_connection_hold_seconds", "summary", "Time a pooled connection was held per borrow.");
+        summary("bank_db_connection_hold_seconds", Metrics.dbHold());
+
+        // Labelled by shard only with DB_SHARDS, so single-database dashboards keep working
+        List<String> shards = Shards.names();
+        String[][] labels = new String[shards.size()][];
+        for (int i = 0; i < shards.size(); i++) {
+            labels[i] = Shards.isEnabled() ? new String[] {"shard", shards.get(i)} : new String[0];
+        }
+
+        gauge("bank_db_pool_connections", "Open connections by state.");
+        for (int i = 0; i < shards.size(); i++) {
+            ConnectionPool pool = Database.pool(shards.get(i));
+            sample("bank_db_pool_connections", pool.getActiveCount(), with(labels[i], "state", "active"));
+            sample("bank_db_pool_connections", pool.getIdleCount(), with(labels[i], "state", "idle"));
+        }
+        poolGauge("bank_db_pool_max_connections", "Configured maximum pool size.",
+                shards, labels, ConnectionPool::getMaxSize);
+        poolGauge("bank_db_pool_waiting", "Requests waiting for a connection.",
+                shards, labels, ConnectionPool::getWaitingCount);
+
+        poolCounter("bank_db_pool_timeouts_total", "Borrows that timed out.",
+                shards, labels, ConnectionPool::getTimeoutCount);
+        poolCounter("bank_db_pool_rejected_total", "Borrows rejected because too many were waiting.",
+                shards, labels, ConnectionPool::getRejectedCount);
+        poolCounter("bank_db_pool_created_total", "Physical connections opened.",
+                shards, labels, ConnectionPool::getCreatedCount);
+        poolCounter("bank_db_pool_evicted_total", "Idle connections closed.",
+                shards, labels, ConnectionPool::getEvictedCount);
+        poolCounter("bank_db_pool_validation_failures_total", "Idle connections found broken on borrow.",
+                shards, labels, ConnectionPool::getValidationFailureCount);
+        poolCounter("bank_db_pool_leaks_total", "Connections held past the leak threshold.",
+                shards, labels, ConnectionPool::getLeakCount);
+    }
+
+    private void poolGauge(String name, String help, List<String> shards, String[][] labels,
+                           ToLongFunction<ConnectionPool> value) {
+        gauge(name, help);
+        for (int i = 0; i < shards.size(); i++) {
+            sample(name, value.applyAsLong(Database.pool(shards.get(i))), labels[i]);
+        }
+    }
+
+    private void poolCounter(String name, String help, List<String> shards, String[][] labels,
+                             ToLongFunction<ConnectionPool> value) {
+        header(name, "counter", help);
+        for (int i = 0; i < shards.size(); i++) {
+            sample(name, value.applyAsLong(Database.pool(shards.get(i))), labels[i]);
+        }
+    }
+
+    private void writeShards() {
+        if (!Shards.isEnabled()) {
+            return;
+        }
+
+        counter("bank_shard_transfers_sent_total", "Transfers to another shard committed by their sender.",
+                ShardOutbox.getSentCount());
+        counter("bank_shard_transfers_delivered_total", "Transfers from another shard credited to their recipient.",
+                ShardOutbox.getDeliveredCount());
+        counter("bank_shard_transfers_repeated_total", "Deliveries skipped because the transfer was already credited.",
+                ShardOutbox.getRepeatCount());
+        counter("bank_shard_relay_failures_total", "Deliveries that failed and will be tried again.",
+                ShardOutbox.getFailureCount());
+        counter("bank_shard_transfers_refunded_total", "Transfers refused by the recipient's shard and refunded.",
+                ShardOutbox.getRefundCount());
+        gauge("bank_shard_outbox_oldest_seconds", "Age of the oldest transfer waiting to be credited, by sending shard.");
+        for (Map.Entry<String, Long> e : ShardOutbox.oldestPendingMillis().entrySet()) {
+            sample("bank_shard_outbox_oldest_seconds", e.getValue() / 1000.0, "shard", e.getKey());
+        }
+    }
+
+    private void writeReplicas() {
+        if (!Replicas.isEnabled()) {
+            return;
+        }
+
+        counter("bank_db_replica_reads_total", "Balance and history reads served by a replica.",
+                Replicas.getReplicaReadCount());
+        header("bank_db_primary_reads_total", "counter",
+                "Balance and history reads sent to the primary instead of a replica, by reason.");
+        sample("bank_db_primary_reads_total", Replicas.getRecentWriteReadCount(), "reason", "recent_write");
+        sample("bank_db_primary_reads_total", Replicas.getLaggingReadCount(), "reason", "lag");
+
+        gauge("bank_db_replica_lag_seconds", "Replica lag found by the last check, -1 if it could not be read.");
+        for (Replicas.Replica r : Replicas.all()) {
+            String[] labels = Shards.isEnabled()
+                    ? new String[] {"shard", r.shard(), "replica", Integer.toString(r.index())}
+                    : new String[] {"replica", Integer.toString(r.index())};
+            sample("bank_db_replica_lag_seconds", r.lagMillis() < 0 ? -1 : r.lagMillis() / 1000.0, labels);
+        }
+    }
+
+    private void writeTokenCache() {
+        TokenCache cache = JwtUtil.tokenCache();
+        counter("bank_token_cache_hits_total", "Token verifications answered from the cache.", cache.getHits());
+        counter("bank_token_cache_misses_total", "Token verifications that needed a full check.", cache.getMisses());
+        counter("bank_token_cache_evictions_total", "Tokens dropped from the cache to make room.",
+                cache.getEvictions());
+        counter("bank_token_revocations_total", "Token and user revocations.", cache.getRevocations());
+        gauge("bank_token_cache_entries", "Tokens currently cached.");
+        sample("bank_token_cache_entries", cache.size());
+    }
+
+    private void writeBalanceCache() {
+        BalanceCache cache = BalanceHandler.cache();
+        counter("bank_balance_cache_hits_total", "Balance reads answered from the cache.", cache.getHits());
+        counter("bank_balance_cache_misses_total", "Balance reads that went to the database.", cache.getMisses());
+        counter("bank_balance_cache_evictions_total", "Balances dropped from the cache to make room.",
+                cache.getEvictions());
+        counter("bank_balance_cache_invalidations_total", "Balances dropped after a committed change.",
+                cache.getInvalidations());
+        gauge("bank_balance_cache_entries", "Balances currently cached.");
+        sample("bank_balance_cache_entries", cache.size());
+        gauge("bank_balance_cache_bytes", "Approximate heap used by cached balances.");
+        sample("bank_balance_cache_bytes", cache.estimatedBytes());
+    }
+
+    private void writeAccountIds() {
+        AccountIdCache cache = Accounts.cache();
+        counter("bank_account_id_cache_hits_total", "Usernames resolved to account ids from the cache.",
+                cache.getHits());
+        counter("bank_account_id_cache_misses_total", "Usernames looked up in the database.", cache.getMisses());
+        counter("bank_account_id_cache_evictions_total", "Account ids dropped from the cache to make room.",
+                cache.getEvictions());
+        gauge("bank_account_id_cache_entries", "Account ids currently cached.");
+        sample("bank_account_id_cache_entries", cache.size());
+        gauge("bank_account_id_cache_bytes", "Approximate heap used by cached account ids.");
+        sample("bank_account_id_cache_bytes", cache.estimatedBytes());
+    }
+
+    private void writeIdempotency() {
+        IdempotencyCache cache = IdempotencyKeys.cache();
+        counter("bank_idempotency_cache_hits_total", "Idempotency keys found in memory.", cache.getHits());
+        counter("bank_idempotency_cache_misses_total", "Idempotency keys not found in memory.", cache.getMisses());
+        counter("bank_idempotency_cache_evictions_total", "Idempotency keys dropped from memory to make room.",
+                cache.getEvictions());
+        gauge("bank_idempotency_cache_entries", "Idempotency keys currently held in memory.");
+        sample("bank_idempotency_cache_entries", cache.size());
+        counter("bank_idempotency_replays_total", "Repeated requests answered with their stored response.",
+                IdempotencyKeys.getReplayCount());
+        counter("bank_idempotency_purged_total", "Expired idempotency keys deleted from the database.",
+                IdempotencyKeys.getPurgedCount());
+    }
+
+    private void writeEvents() {
+        gauge("bank_sse_subscribers", "Open /events streams.");
+        sample("bank_sse_subscribers", EventHub.getSubscriberCount());
+        counter("bank_sse_events_published_total", "Events sent to at least one stream.", EventHub.getPublishedCount());
+        counter("bank_sse_dropped_total", "Streams closed because the client fell too far behind.",
+                EventHub.getDroppedCount());
+    }
+
+    private void writeGroupCommit() {
+        if (!GroupCommit.isEnabled()) {
+            return;
+        }
+
+        counter("bank_group_commit_batches_total", "Batches committed by the group-commit writers.",
+                GroupCommit.getBatchCount());
+        counter("bank_group_commit_operations_total", "Deposits and withdrawals applied in batches.",
+                GroupCommit.getOperationCount());
+        counter("bank_group_commit_rejected_total", "Operations rejected because a writer queue was full.",
+                GroupCommit.getRejectedCount());
+        gauge("bank_group_commit_queue_depth", "Operations waiting for a writer.");
+        sample("bank_group_commit_queue_depth", GroupCommit.getQueueDepth());
+        gauge("bank_group_commit_max_batch", "Configured maximum operations per batch.");
+        sample("bank_group_commit_max_batch", GroupCommit.getMaxBatch());
+
+        header("bank_group_commit_batch_size", "summary", "Operations per batch (batch fill).");
+        summary("bank_group_commit_batch_size", GroupCommit.batchFill(), false);
+
+        header("bank_group_commit_wait_seconds", "summary", "Time from queueing an operation until its batch committed.");
+        summary("bank_group_commit_wait_seconds", GroupCommit.commitWait());
+    }
+
+    private void writeLedger() {
+        LedgerEngine engine = Ledger.engine();
+        if (engine == null) {
+            return;
+        }
+
+        counter("bank_ledger_operations_total", "Requests applied by the ledger writer, successful or not.",
+                engine.getOperationCount());
+        counter("bank_ledger_batches_total", "Batches the ledger writer committed with one journal flush.",
+                engine.getBatchCount());
+        counter("bank_ledger_rejected_total", "Requests refused because the ledger queue was full.",
+                engine.getRejectedCount());
+        gauge("bank_ledger_queue_depth", "Requests waiting for the ledger writer.");
+        sample("bank_ledger_queue_depth", engine.getQueueDepth());
+        gauge("bank_ledger_accounts", "Accounts held by the ledger.");
+        sample("bank_ledger_accounts", engine.getAccountCount());
+        gauge("bank_ledger_failed", "1 if the ledger stopped after a journal error.");
+        sample("bank_ledger_failed", engine.isFailed() ? 1 : 0);
+
+        header("bank_ledger_batch_size", "summary", "Requests per ledger batch.");
+        summary("bank_ledger_batch_size", engine.batchFill(), false);
+        header("bank_ledger_flush_seconds", "summary", "Time to force a batch's journal records to disk.");
+        summary("bank_ledger_flush_seconds", engine.flushTime());
+
+        gauge("bank_ledger_committed_seq", "Sequence number of the last durable ledger entry.");
+        sample("bank_ledger_committed_seq", engine.committedSeq());
+        gauge("bank_ledger_snapshot_seq", "Sequence number of the last ledger snapshot.");
+        sample("bank_ledger_snapshot_seq", engine.getSnapshotSeq());
+        counter("bank_ledger_snapshots_total", "Ledger snapshots written.", engine.getSnapshotCount());
+
+        long projected = Ledger.getProjectedSeq();
+        gauge("bank_ledger_projected_seq", "Sequence number of the last ledger entry copied into the database.");
+        sample("bank_ledger_projected_seq", projected);
+        gauge("bank_ledger_projection_lag", "Ledger entries not yet copied into the database.");
+        sample("bank_ledger_projection_lag", Math.max(0, engine.committedSeq() - projected));
+        counter("bank_ledger_projection_batches_total", "Transactions the projection committed.",
+                Ledger.getProjectionBatchCount());
+        counter("bank_ledger_projected_rows_total", "Transaction rows the projection inserted.",
+                Ledger.getProjectedRowCount());
+        counter("bank_ledger_projection_failures_total", "Projection batches that failed and were retried.",
+                Ledger.getProjectionFailureCount());
+    }
+
+    private void writeHotAccounts() {
+        if (HotAccounts.getAccountCount() == 0) {
+            return;
+        }
+
+        gauge("bank_hot_accounts", "Accounts configured in HOT_ACCOUNTS.");
+        sample("bank_hot_accounts", HotAccounts.getAccountCount());
+        counter("bank_hot_account_credits_total", "Transfers credited to a hot account's slots.",
+                HotAccounts.getCreditCount());
+        counter("bank_hot_account_folds_total", "Times a hot account's slots were folded into its balance.",
+                HotAccounts.getFoldCount());
+    }
+
+    private void writePasswordHasher() {
+        gauge("bank_bcrypt_queue_depth", "Password hashing jobs waiting for a thread.");
+        sample("bank_bcrypt_queue_depth", PasswordHasher.getQueueDepth());
+        gauge("bank_bcrypt_active", "Password hashing jobs running.");
+        sample("bank_bcrypt_active", PasswordHasher.getActiveCount());
+        counter("bank_bcrypt_rejected_total", "Hashing jobs rejected because the queue was full.",
+                PasswordHasher.getRejectedCount());
+        counter("bank_bcrypt_rehashed_total", "Stored hashes upgraded to the current cost.",
+                PasswordHasher.getRehashedCount());
+
+        header("bank_bcrypt_seconds", "summary", "Time to compute a bcrypt hash or check.");
+        summary("bank_bcrypt_seconds", PasswordHasher.hashTime(), "op", "hash");
+        summary("bank_bcrypt_seconds", PasswordHasher.checkTime(), "op", "check");
+
+        header("bank_bcrypt_queue_wait_seconds", "summary", "Time hashing jobs waited in the queue.");
+        summary("bank_bcrypt_queue_wait_seconds", PasswordHasher.queueWait());
+    }
+
+    private static String[] with(String[] labels, String... more) {
+        String[] all = new String[labels.length + more.length];
+        System.arraycopy(labels, 0, all, 0, labels.length);
+        System.arraycopy(more, 0, all, labels.length, more.length);
+        return all;
+    }
+
+    private static void addUsed(List<RouteMetrics> all, RouteMetrics[] slots) {
+        for (RouteMetrics r : slots) {
+            if (r.total.count() > 0) {
+                all.add(r);
+            }
+        }
+    }
+
+    private void header(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void gauge(String name, String help) {
+        header(name, "gauge", help);
+    }
+
+    private void counter(String name, String help, long value) {
+        header(name, "counter", help);
+        sample(name, value);
+    }
+
+    private void summary(String name, LatencyHistogram h, String... labels) {
+        summary(name, h, true, labels);
+    }
+
+    // Histograms of durations are exported in seconds; others (e.g. batch sizes) as recorded.
+    private void summary(String name, LatencyHistogram h, boolean nanos, String... labels) {
+        for (double q : QUANTILES) {
+            String[] withQuantile = new String[labels.length + 2];
+            System.arraycopy(labels, 0, withQuantile, 0, labels.length);
+            withQuantile[labels.length] = "quantile";
+            withQuantile[labels.length + 1] = Double.toString(q);
+            if (nanos) {
+                sample(name, seconds(h.quantile(q)), withQuantile);
+            } else {
+                sample(name, h.quantile(q), withQuantile);
+            }
+        }
+        if (nanos) {
+            sample(name + "_sum", seconds(h.sumNanos()), labels);
+        } else {
+            sample(name + "_sum", h.sumNanos(), labels);
+        }
+        sample(name + "_count", h.count(), labels);
+    }
+
+    private void sample(String name, long value, String... labels) {
+        writeName(name, labels);
+        out.append(value).append('\n');
+    }
+
+    private void sample(String name, double value, String... labels) {
+        writeName(name, labels);
+        out.append(String.format(Locale.ROOT, "%.9f", value)).append('\n');
+    }
+
+    private void writeName(String name, String... labels) {
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) out.append(',');
+                out.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                out.append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,27 @@
+package bankapp.metrics;
+
+/**
+ * Per-thread timing state for the request currently being handled. Reused across requests
+ * on the same thread so recording allocates nothing.
+ */
+final class RequestTimer {
+    private static final ThreadLocal<RequestTimer> CURRENT = ThreadLocal.withInitial(RequestTimer::new);
+
+    long startNanos;
+    long dbNanos;
+    long acquireNanos;
+    int retries;
+    boolean active;
+
+    static RequestTimer current() {
+        return CURRENT.get();
+    }
+
+    void start() {
+        startNanos = System.nanoTime();
+        dbNanos = 0;
+        acquireNanos = 0;
+        retries = 0;
+        active = true;
+    }
+}
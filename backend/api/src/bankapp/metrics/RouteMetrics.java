@@ -0,0 +1,40 @@
+package bankapp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one route and HTTP method.
+ */
+public final class RouteMetrics {
+    final String method;
+    final String route;
+
+    // Indexed by status class: 1xx .. 5xx
+    final LongAdder[] byStatusClass = new LongAdder[6];
+
+    final LatencyHistogram total = new LatencyHistogram();
+    final LatencyHistogram db = new LatencyHistogram();
+    final LatencyHistogram acquire = new LatencyHistogram();
+
+    // Transactions re-run after a deadlock or lock wait timeout
+    final LongAdder retries = new LongAdder();
+
+    RouteMetrics(String method, String route) {
+        this.method = method;
+        this.route = route;
+        for (int i = 0; i < byStatusClass.length; i++) {
+            byStatusClass[i] = new LongAdder();
+        }
+    }
+
+    void record(int status, long totalNanos, long dbNanos, long acquireNanos, int retryCount) {
+        int cls = status / 100;
+        byStatusClass[cls >= 1 && cls <= 5 ? cls : 0].increment();
+        total.record(totalNanos);
+        db.record(dbNanos);
+        acquire.record(acquireNanos);
+        if (retryCount > 0) {
+            retries.add(retryCount);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package bankapp.security;
+
+import bankapp.Config;
+import spark.Request;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a request is let in, before any of its work is done.
+ *
+ * Signed-in users are limited per username (RATE_LIMIT_USER_*), and the public routes and
+ * requests without a valid token per client address (RATE_LIMIT_IP_*), so one client cannot
+ * keep the database or the bcrypt pool busy for everyone else. On top of that each route runs
+ * at most RATE_LIMIT_ROUTE_CONCURRENCY requests at a time, however many clients send them.
+ * A request that is turned away gets a 429 with Retry-After.
+ */
+public final class Admission {
+
+    /**
+     * Why a request was turned away; also the label of the rejection metric.
+     */
+    public enum Reason {
+        USER, IP, CONCURRENCY;
+
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * A rejected request: the reason and how long the client should wait.
+     */
+    public record Rejection(Reason reason, int retryAfterSeconds) {
+    }
+
+    private static final boolean ENABLED = Config.getBoolean("RATE_LIMIT_ENABLED", true);
+    private static final int MAX_KEYS = Config.getInt("RATE_LIMIT_MAX_KEYS", 100_000);
+
+    private static final RateLimiter USERS = new RateLimiter(Config.getInt("RATE_LIMIT_USER_PER_MINUTE", 600),
+            Config.getInt("RATE_LIMIT_USER_BURST", 60), MAX_KEYS);
+    private static final RateLimiter ADDRESSES = new RateLimiter(Config.getInt("RATE_LIMIT_IP_PER_MINUTE", 60),
+            Config.getInt("RATE_LIMIT_IP_BURST", 20), MAX_KEYS);
+
+    // Header with the client address when running behind a proxy, e.g. X-Forwarded-For
+    private static final String CLIENT_IP_HEADER = Config.get("RATE_LIMIT_CLIENT_IP_HEADER");
+    // Proxies in front of the server that append to that header; the client writes the entries before theirs
+    private static final int TRUSTED_PROXIES = Math.max(1, Config.getInt("RATE_LIMIT_TRUSTED_PROXIES", 1));
+
+    private static final int ROUTE_CONCURRENCY = Config.getInt("RATE_LIMIT_ROUTE_CONCURRENCY", 64);
+    private static final Map<String, Integer> ROUTE_CONCURRENCY_OVERRIDES =
+            parseOverrides(Config.get("RATE_LIMIT_ROUTE_CONCURRENCY_OVERRIDES", "/history/export=8"));
+
+    // Routes anyone may call; limited per client address
+    private static final Set<String> PUBLIC = Set.of("/login", "/register");
+    // Never limited, so health checks and scrapes work while the server is under load
+    private static final Set<String> EXEMPT = Set.of("/ping", "/metrics");
+
+    // Bounds the number of routes tracked, as Metrics does; further paths share one counter
+    private static final int MAX_ROUTES = 64;
+    private static final Map<String, AtomicInteger> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static final AtomicInteger OTHER_IN_FLIGHT = new AtomicInteger();
+
+    private static final String IN_FLIGHT_ATTRIBUTE = "admission.inFlight";
+
+    private static final Map<Reason, LongAdder> REJECTED = new ConcurrentHashMap<>();
+
+    private Admission() {}
+
+    /**
+     * Admits a request or says why not. An admitted request must be passed to {@link #release}
+     * when it is done.
+     *
+     * @return null if the request may go ahead
+     */
+    public static Rejection admit(Request req) {
+        String path = req.pathInfo();
+        if (!ENABLED || req.requestMethod().equals("OPTIONS") || EXEMPT.contains(path)) {
+            return null;
+        }
+
+        Rejection rejection = rateLimit(req, path);
+        if (rejection != null) {
+            return reject(rejection);
+        }
+
+        int limit = ROUTE_CONCURRENCY_OVERRIDES.getOrDefault(path, ROUTE_CONCURRENCY);
+        if (limit > 0) {
+            AtomicInteger inFlight = inFlight(path);
+            if (inFlight.incrementAndGet() > limit) {
+                inFlight.decrementAndGet();
+                return reject(new Rejection(Reason.CONCURRENCY, 1));
+            }
+            req.attribute(IN_FLIGHT_ATTRIBUTE, inFlight);
+        }
+        return null;
+    }
+
+    /**
+     * Ends a request's hold on its route. Safe to call for any request, admitted or not.
+     */
+    public static void release(Request req) {
+        AtomicInteger inFlight = req.attribute(IN_FLIGHT_ATTRIBUTE);
+        if (inFlight != null) {
+            req.raw().removeAttribute(IN_FLIGHT_ATTRIBUTE);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public static Map<String, Integer> inFlight() {
+        Map<String, Integer> counts = new TreeMap<>();
+        IN_FLIGHT.forEach((route, n) -> counts.put(route, n.get()));
+        counts.put("other", OTHER_IN_FLIGHT.get());
+        return counts;
+    }
+
+    public static long getRejectedCount(Reason reason) {
+        LongAdder n = REJECTED.get(reason);
+        return n == null ? 0 : n.sum();
+    }
+
+    public static RateLimiter users() {
+        return USERS;
+    }
+
+    public static RateLimiter addresses() {
+        return ADDRESSES;
+    }
+
+    // Charges the request to its user, or to its client address if it has no valid token.
+    private static Rejection rateLimit(Request req, String path) {
+        String username = PUBLIC.contains(path) ? null : Auth.usernameOrNull(req);
+
+        if (username != null) {
+            // usernames compare case-insensitively, as in the database's collation
+            long waitNanos = USERS.acquire(username.toLowerCase(Locale.ROOT));
+            return waitNanos == 0 ? null : new Rejection(Reason.USER, seconds(waitNanos));
+        }
+
+        long waitNanos = ADDRESSES.acquire(clientAddress(req));
+        return waitNanos == 0 ? null : new Rejection(Reason.IP, seconds(waitNanos));
+    }
+
+    private static Rejection reject(Rejection rejection) {
+        REJECTED.computeIfAbsent(rejection.reason(), r -> new LongAdder()).increment();
+        return rejection;
+    }
+
+    private static AtomicInteger inFlight(String path) {
+        AtomicInteger n = IN_FLIGHT.get(path);
+        if (n != null) {
+            return n;
+        }
+        if (IN_FLIGHT.size() >= MAX_ROUTES) {
+            return OTHER_IN_FLIGHT;
+        }
+        return IN_FLIGHT.computeIfAbsent(path, p -> new AtomicInteger());
+    }
+
+    private static String clientAddress(Request req) {
+        if (CLIENT_IP_HEADER != null) {
+            String forwarded = req.headers(CLIENT_IP_HEADER);
+            if (forwarded != null && !forwarded.isBlank()) {
+                // Each proxy appends the address it was called from, so the entry added by the
+                // outermost trusted proxy is the client's; anything further left is whatever the
+                // client sent and cannot be trusted
+                String[] entries = forwarded.split(",");
+                return entries[Math.max(0, entries.length - TRUSTED_PROXIES)].trim();
+            }
+        }
+        return req.ip();
+    }
+
+    private static int seconds(long nanos) {
+        return (int) Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    // Reads "/route=limit,/other=limit"; malformed entries are ignored.
+    private static Map<String, Integer> parseOverrides(String list) {
+        Map<String, Integer> limits = new TreeMap<>();
+        for (String entry : list.split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            try {
+                limits.put(entry.substring(0, eq).trim(), Integer.parseInt(entry.substring(eq + 1).trim()));
+            } catch (NumberFormatException e) {
+                // ignored
+            }
+        }
+        return limits;
+    }
+}
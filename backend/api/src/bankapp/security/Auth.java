@@ -1,7 +1,11 @@
 package bankapp.security;
 
+import bankapp.dto.Account;
+import bankapp.handlers.Accounts;
 import spark.Request;
 
+import java.sql.SQLException;
+
 /**
  * Handles authentication of HTTP requests using JWT tokens. Extracts the token from the Authorization header,
  * verifies it, and returns the associated username.
@@ -11,6 +15,12 @@ import spark.Request;
  */
 public class Auth {
 
+    // The verified username, once looked up for the request
+    private static final String USERNAME_ATTRIBUTE = "auth.username";
+
+    // The verified user's account, once resolved for the request
+    private static final String ACCOUNT_ATTRIBUTE = "auth.account";
+
     /**
      * Extracts and verifies the JWT token from the request Authorization header.
      *
@@ -20,6 +30,65 @@ public class Auth {
      */
     public static String requireUsername(Request req) {
 
+        // Already verified earlier in this request, e.g. for rate limiting
+        String username = req.attribute(USERNAME_ATTRIBUTE);
+        if (username != null) {
+            return username;
+        }
+
+        // Verify token and return associated username
+        username = JwtUtil.verifyAndGetUsername(requireToken(req));
+        req.attribute(USERNAME_ATTRIBUTE, username);
+        return username;
+    }
+
+    /**
+     * Verifies the request's token and resolves its username to the account, once per request
+     * and usually from the cache, so the handlers can work with the account id.
+     *
+     * @param req The incoming HTTP request
+     * @return The account of the user stored in the verified JWT token
+     * @throws UnauthorizedException if the token is invalid or its user does not exist
+     * @throws SQLException if the account had to be looked up and the lookup failed
+     */
+    public static Account requireAccount(Request req) throws SQLException {
+
+        Account account = req.attribute(ACCOUNT_ATTRIBUTE);
+        if (account != null) {
+            return account;
+        }
+
+        account = Accounts.find(requireUsername(req));
+        if (account == null) {
+            throw new UnauthorizedException("Unknown user");
+        }
+        req.attribute(ACCOUNT_ATTRIBUTE, account);
+        return account;
+    }
+
+    /**
+     * Returns the username of the request's token, or null if it has no valid token.
+     *
+     * @param req The incoming HTTP request
+     * @return The username stored in the verified JWT token, or null
+     */
+    public static String usernameOrNull(Request req) {
+        try {
+            return requireUsername(req);
+        } catch (UnauthorizedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the raw bearer token from the request Authorization header without verifying it.
+     *
+     * @param req The incoming HTTP request
+     * @return The token portion of the header
+     * @throws UnauthorizedException if the Authorization header is missing or malformed
+     */
+    public static String requireToken(Request req) {
+
         String header = req.headers("Authorization");
 
         // Authorization header must exist and begin with "Bearer "
@@ -34,7 +103,6 @@ public class Auth {
             throw new UnauthorizedException("Missing token");
         }
 
-        // Verify token and return associated username
-        return JwtUtil.verifyAndGetUsername(token);
+        return token;
     }
 }
@@ -1,11 +1,11 @@
 package bankapp.security;
 
+import bankapp.Config;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
-import io.github.cdimascio.dotenv.Dotenv;
 
 import java.time.Instant;
 import java.util.Date;
@@ -17,8 +17,6 @@ import java.util.Date;
  */
 public final class JwtUtil {
 
-    private static final Dotenv DOTENV = Dotenv.configure().ignoreIfMissing().load();
-
     private static final String SECRET = requireEnv("JWT_SECRET");
 
     // Token lifetime in seconds (default 60 minutes)
@@ -29,6 +27,10 @@ public final class JwtUtil {
     // Verifier checks signature and expiration automatically
     private static final JWTVerifier VERIFIER = JWT.require(ALG).build();
 
+    // Tokens that already passed verification, so repeat requests skip the HMAC check
+    private static final TokenCache CACHE =
+            new TokenCache((int) readLongOrDefault("JWT_CACHE_MAX_ENTRIES", 10_000));
+
     private JwtUtil() {}
 
     /**
@@ -44,28 +46,70 @@ public final class JwtUtil {
 
     /**
      * Verifies a JWT and returns the username stored in the subject claim.
-     * Throws JwtAuthException if the token is invalid or expired.
+     * Tokens seen before are answered from the verified-token cache until they expire or are revoked.
+     * Throws JwtAuthException if the token is invalid, expired or revoked.
      */
     public static String verifyAndGetUsername(String token) {
+        String digest = TokenCache.digest(token);
+
+        String cached = CACHE.get(digest);
+        if (cached != null) {
+            return cached;
+        }
+
+        DecodedJWT jwt = decode(token);
+        String username = jwt.getSubject();
+
+        if (username == null || username.isBlank()) {
+            throw new JwtAuthException("Token missing subject");
+        }
+
+        long expiresAt = jwt.getExpiresAt() == null ? Long.MAX_VALUE : jwt.getExpiresAt().getTime();
+
+        if (CACHE.isRevoked(digest)) {
+            throw new JwtAuthException("Token has been revoked");
+        }
+
+        CACHE.put(digest, username, expiresAt);
+        return username;
+    }
+
+    /**
+     * Revokes a single token, e.g. on logout. The token is rejected from now until it expires.
+     * Invalid tokens are ignored since they would be rejected anyway.
+     */
+    public static void revokeToken(String token) {
+        DecodedJWT jwt;
         try {
-            DecodedJWT jwt = VERIFIER.verify(token);
-            String username = jwt.getSubject();
+            jwt = decode(token);
+        } catch (JwtAuthException e) {
+            return;
+        }
 
-            if (username == null || username.isBlank()) {
-                throw new JwtAuthException("Token missing subject");
-            }
+        long expiresAt = jwt.getExpiresAt() == null ? Long.MAX_VALUE : jwt.getExpiresAt().getTime();
+        CACHE.revoke(TokenCache.digest(token), expiresAt);
+    }
 
-            return username;
+    /**
+     * Returns the verified-token cache, mainly so its hit and miss counters can be reported.
+     */
+    public static TokenCache tokenCache() {
+        return CACHE;
+    }
 
+    // Checks signature and expiry.
+    private static DecodedJWT decode(String token) {
+        try {
+            return VERIFIER.verify(token);
         } catch (JWTVerificationException e) {
             throw new JwtAuthException("Invalid or expired token", e);
         }
     }
 
     /**
-     * Exception thrown when token verification fails.
+     * Exception thrown when token verification fails. Reported to the client as a 401.
      */
-    public static class JwtAuthException extends RuntimeException {
+    public static class JwtAuthException extends UnauthorizedException {
         public JwtAuthException(String message) {
             super(message);
         }
@@ -75,33 +119,21 @@ public final class JwtUtil {
         }
     }
 
-    // Reads a required environment variable from .env or system env.
+    // Reads a required setting from system properties, .env or system env.
     // Throws if missing because JWT_SECRET must always exist.
     private static String requireEnv(String key) {
-        String value = DOTENV.get(key);
-        if (value == null) value = System.getenv(key);
+        String value = Config.get(key);
 
-        if (value == null || value.isBlank()) {
+        if (value == null) {
             throw new IllegalStateException("Missing required environment variable: " + key);
         }
 
         return value;
     }
 
-    // Reads an optional numeric environment variable.
+    // Reads an optional numeric setting.
     // Returns the default value if missing or invalid.
     private static long readLongOrDefault(String key, long def) {
-        String value = DOTENV.get(key);
-        if (value == null) value = System.getenv(key);
-
-        if (value == null || value.isBlank()) {
-            return def;
-        }
-
-        try {
-            return Long.parseLong(value.trim());
-        } catch (Exception e) {
-            return def;
-        }
+        return Config.getLong(key, def);
     }
 }
@@ -0,0 +1,163 @@
+package bankapp.security;
+
+import bankapp.Config;
+import bankapp.ServiceUnavailableException;
+import bankapp.metrics.LatencyHistogram;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs bcrypt hashing and checking on a dedicated pool sized to the CPU count, so a burst
+ * of logins cannot tie up every HTTP request thread. The pool's queue is bounded; when it
+ * is full, callers get a ServiceUnavailableException straight away instead of waiting.
+ */
+public final class PasswordHasher {
+
+    // bcrypt cost factor for new hashes (default 12)
+    private static final int COST = Config.getInt("BCRYPT_COST", 12);
+
+    private static final int THREADS = Config.getInt("BCRYPT_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE_SIZE = Config.getInt("BCRYPT_QUEUE_SIZE", 64);
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private static final LatencyHistogram HASH_TIME = new LatencyHistogram();
+    private static final LatencyHistogram CHECK_TIME = new LatencyHistogram();
+    private static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram();
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder REHASHED = new LongAdder();
+
+    private PasswordHasher() {}
+
+    /**
+     * Hashes a password with the configured cost.
+     *
+     * @throws ServiceUnavailableException if the hashing pool is saturated
+     */
+    public static String hash(String password) {
+        return run(() -> {
+            long start = System.nanoTime();
+            String hash = BCrypt.hashpw(password, BCrypt.gensalt(COST));
+            HASH_TIME.recordSince(start);
+            return hash;
+        });
+    }
+
+    /**
+     * Checks a password against a stored bcrypt hash.
+     *
+     * @throws ServiceUnavailableException if the hashing pool is saturated
+     */
+    public static boolean check(String password, String storedHash) {
+        return run(() -> {
+            long start = System.nanoTime();
+            boolean ok = BCrypt.checkpw(password, storedHash);
+            CHECK_TIME.recordSince(start);
+            return ok;
+        });
+    }
+
+    /**
+     * Returns true if a stored hash was made with a different cost than the configured one.
+     */
+    public static boolean needsRehash(String storedHash) {
+        // bcrypt hashes look like $2a$12$..., with the cost in the third field
+        if (storedHash == null || storedHash.length() < 7 || storedHash.charAt(3) != '$') {
+            return false;
+        }
+
+        try {
+            return Integer.parseInt(storedHash.substring(4, 6)) != COST;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Counts a stored hash that was upgraded to the current cost.
+     */
+    public static void recordRehash() {
+        REHASHED.increment();
+    }
+
+    public static int getCost() {
+        return COST;
+    }
+
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    public static int getActiveCount() {
+        return EXECUTOR.getActiveCount();
+    }
+
+    public static long getRejectedCount() {
+        return REJECTED.sum();
+    }
+
+    public static long getRehashedCount() {
+        return REHASHED.sum();
+    }
+
+    public static LatencyHistogram hashTime() {
+        return HASH_TIME;
+    }
+
+    public static LatencyHistogram checkTime() {
+        return CHECK_TIME;
+    }
+
+    public static LatencyHistogram queueWait() {
+        return QUEUE_WAIT;
+    }
+
+    // Submits work to the pool and waits for it, converting a full queue into a 503.
+    private static <T> T run(Callable<T> task) {
+        long submitted = System.nanoTime();
+
+        Future<T> future;
+        try {
+            future = EXECUTOR.submit(() -> {
+                QUEUE_WAIT.recordSince(submitted);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.increment();
+            throw new ServiceUnavailableException("Server is busy. Please try again.", 1);
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing password.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IllegalStateException("Password hashing failed.", cause);
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        return new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, "bcrypt-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
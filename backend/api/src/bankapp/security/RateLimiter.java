@@ -0,0 +1,148 @@
+package bankapp.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets by key (a username or a client address), each allowing a burst of requests
+ * and refilling at a steady rate.
+ *
+ * A bucket holds the time at which it will be full again, so taking a token is one
+ * compare-and-set on an AtomicLong. Buckets live in a fixed-size open-addressed table: a key
+ * may sit in any of a few neighbouring slots, and a new key takes a free one or replaces the
+ * neighbour that will be full soonest. A bucket that is already full carries no information,
+ * so replacing it changes nothing; only when every neighbour is busy does one key get a fresh
+ * start. Memory therefore stays fixed however many distinct keys arrive, and no request ever
+ * waits for a lock or a clean-up pass.
+ */
+public class RateLimiter {
+
+    // Slots a key may occupy, starting at its hash
+    private static final int PROBES = 4;
+
+    private final long intervalNanos;   // time to earn one token
+    private final long burstNanos;      // time to fill an empty bucket
+
+    private final AtomicReferenceArray<Bucket> slots;
+    private final int mask;
+
+    private final LongAdder used = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A key's bucket: the time it will be full again, in System.nanoTime() terms.
+     */
+    private static final class Bucket {
+        final String key;
+        final AtomicLong fullAt;
+
+        Bucket(String key, long fullAt) {
+            this.key = key;
+            this.fullAt = new AtomicLong(fullAt);
+        }
+    }
+
+    /**
+     * @param perMinute requests allowed per minute once the burst is used up; 0 or less
+     *                  disables the limit
+     * @param burst     requests allowed at once after a quiet period
+     * @param maxKeys   buckets held at most (rounded up to a power of two)
+     */
+    public RateLimiter(int perMinute, int burst, int maxKeys) {
+        this.intervalNanos = perMinute > 0 ? 60_000_000_000L / perMinute : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+
+        int capacity = Integer.highestOneBit(Math.max(PROBES, Math.min(maxKeys, 1 << 30)) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(intervalNanos > 0 ? capacity : 0);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns true unless the limit is disabled.
+     */
+    public boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Takes a token from the key's bucket.
+     *
+     * @return 0 if the request may go ahead, otherwise the nanoseconds until a token is free
+     */
+    public long acquire(String key) {
+        if (intervalNanos <= 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        AtomicLong fullAt = bucket(key, now).fullAt;
+
+        while (true) {
+            long current = fullAt.get();
+            // a bucket never holds more than a burst, however long it was idle
+            long next = Math.max(current - now, 0) + intervalNanos;
+            if (next > burstNanos) {
+                return next - burstNanos;
+            }
+            if (fullAt.compareAndSet(current, now + next)) {
+                return 0;
+            }
+        }
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long size() {
+        return used.sum();
+    }
+
+    // Finds the key's bucket, or puts a full one for it in a free slot or in place of the
+    // neighbour that will be full soonest.
+    private Bucket bucket(String key, long now) {
+        int start = spread(key.hashCode());
+
+        while (true) {
+            int victim = -1;
+            Bucket victimBucket = null;
+            long victimFullAt = 0;
+
+            for (int i = 0; i < PROBES; i++) {
+                int index = (start + i) & mask;
+                Bucket b = slots.get(index);
+                if (b == null) {
+                    if (victimBucket != null || victim < 0) {
+                        victim = index;
+                        victimBucket = null;
+                    }
+                    continue;
+                }
+                if (b.key.equals(key)) {
+                    return b;
+                }
+                if (victim < 0 || (victimBucket != null && b.fullAt.get() - victimFullAt < 0)) {
+                    victim = index;
+                    victimBucket = b;
+                    victimFullAt = b.fullAt.get();
+                }
+            }
+
+            Bucket fresh = new Bucket(key, now);
+            if (slots.compareAndSet(victim, victimBucket, fresh)) {
+                if (victimBucket == null) {
+                    used.increment();
+                } else {
+                    evictions.increment();
+                }
+                return fresh;
+            }
+            // another thread changed the slot; look again, it may have added this key
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,173 @@
+package bankapp.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers tokens that have already passed signature verification so repeated requests
+ * with the same token skip the JWT parse and HMAC check. Entries are keyed by a SHA-256
+ * digest of the token, expire at the token's own expiry time, and the cache never holds
+ * more than the configured number of entries.
+ *
+ * Revoked tokens go on a deny-list that is checked before the cache, so a revoked token
+ * is rejected from the moment revoke returns. Deny-list entries are dropped once the token
+ * would have expired anyway.
+ */
+public class TokenCache {
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> verified = new ConcurrentHashMap<>();
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();  // digest -> exp millis
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder revocations = new LongAdder();
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * @param maxEntries upper bound on cached tokens; 0 disables caching
+     */
+    public TokenCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * A verified token's subject and expiry.
+     */
+    private record Entry(String username, long expiresAtMillis) {
+    }
+
+    /**
+     * Returns the digest used to key a token.
+     */
+    public static String digest(String token) {
+        byte[] hash = SHA256.get().digest(token.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    /**
+     * Returns true if the token was revoked.
+     */
+    public boolean isRevoked(String digest) {
+        return revokedTokens.containsKey(digest);
+    }
+
+    /**
+     * Looks up a previously verified token.
+     *
+     * @return the username, or null if the token is unknown, expired or revoked
+     */
+    public String get(String digest) {
+        if (maxEntries <= 0) {
+            misses.increment();
+            return null;
+        }
+
+        Entry e = verified.get(digest);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= e.expiresAtMillis || isRevoked(digest)) {
+            verified.remove(digest, e);
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return e.username;
+    }
+
+    /**
+     * Records a token that has just passed full verification.
+     */
+    public void put(String digest, String username, long expiresAtMillis) {
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        if (verified.size() >= maxEntries) {
+            makeRoom();
+        }
+
+        verified.put(digest, new Entry(username, expiresAtMillis));
+
+        // A revocation may have raced with verification; never leave a revoked token cached
+        if (isRevoked(digest)) {
+            verified.remove(digest);
+        }
+    }
+
+    /**
+     * Rejects a single token until it expires, e.g. on logout.
+     */
+    public void revoke(String digest, long expiresAtMillis) {
+        revokedTokens.put(digest, expiresAtMillis);
+        verified.remove(digest);
+        revocations.increment();
+        purgeExpiredRevocations();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getRevocations() {
+        return revocations.sum();
+    }
+
+    public int size() {
+        return verified.size();
+    }
+
+    public int revokedSize() {
+        return revokedTokens.size();
+    }
+
+    // Drops expired entries first; if the cache is still full, drops an arbitrary tenth of it.
+    private void makeRoom() {
+        long now = System.currentTimeMillis();
+        verified.values().removeIf(e -> {
+            boolean expired = now >= e.expiresAtMillis;
+            if (expired) evictions.increment();
+            return expired;
+        });
+
+        int toDrop = verified.size() - maxEntries + Math.max(1, maxEntries / 10);
+        Iterator<String> it = verified.keySet().iterator();
+        while (toDrop-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private void purgeExpiredRevocations() {
+        long now = System.currentTimeMillis();
+        revokedTokens.values().removeIf(exp -> now >= exp);
+    }
+}
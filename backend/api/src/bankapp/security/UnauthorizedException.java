@@ -5,4 +5,8 @@ public class UnauthorizedException extends RuntimeException {
     public UnauthorizedException(String message) {
         super(message);
     }
+
+    public UnauthorizedException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
@@ -0,0 +1,338 @@
+package bankapp.shard;
+
+import bankapp.dto.Money;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves accounts to the shard the ring assigns them to after DB_SHARDS has changed. Run it
+ * with every server stopped and DB_SHARDS set to the new list:
+ *
+ * <pre>
+ * java -cp ... bankapp.shard.Rebalancer [--dry-run] [removed-shard ...]
+ * </pre>
+ *
+ * Shards being taken out of DB_SHARDS are named as arguments, with their DB_SHARD_*_URL
+ * still set, so their accounts are moved off them. Every customer whose shard under the new
+ * ring is not the one it is on moves there with its balance (hot slots folded in), history,
+ * statement rollups and idempotency keys. With consistent hashing that is about 1/N of all
+ * accounts for an added shard, and only the removed shard's accounts for a removed one.
+ * --dry-run only counts them.
+ *
+ * Each account moves in two transactions: the copy commits on the new shard first, then the
+ * account is removed from the old one. If the tool stops in between, running it again finds
+ * the copy, skips it and finishes the removal, so no account is lost or doubled. Moved rows
+ * get new CUS_ID and TXN_ID values on their new shard, in their original order and with
+ * their original times.
+ *
+ * A transfer between two accounts on the same shard is one row in both histories. When only
+ * one of them moves, the row is split as a transfer between shards would have been: each
+ * side keeps its part and names the other in TXN_COUNTERPARTY.
+ *
+ * Transfers between shards must all have been credited first, so the tool refuses to run
+ * while any shard's outbox has rows; let the servers' relays drain them before stopping.
+ */
+public final class Rebalancer {
+
+    private static final int SCAN_CHUNK = 1000;
+    private static final int INSERT_BATCH = 1000;
+
+    private final Map<String, Connection> shards;
+    private final boolean dryRun;
+
+    // "from -> to" -> accounts moved
+    private final Map<String, Integer> moved = new TreeMap<>();
+
+    private Rebalancer(Map<String, Connection> shards, boolean dryRun) {
+        this.shards = shards;
+        this.dryRun = dryRun;
+    }
+
+    public static void main(String[] args) throws SQLException {
+        boolean dryRun = false;
+        List<String> names = new ArrayList<>(Shards.names());
+        for (String arg : args) {
+            if (arg.equals("--dry-run")) {
+                dryRun = true;
+            } else if (!names.contains(arg)) {
+                names.add(arg);
+            }
+        }
+
+        Map<String, Connection> shards = new LinkedHashMap<>();
+        try {
+            for (String shard : names) {
+                String url = Shards.setting(shard, "URL");
+                if (url == null) {
+                    throw new IllegalStateException("Missing required environment variable: "
+                            + Shards.settingName(shard, "URL"));
+                }
+                Connection conn = DriverManager.getConnection(url,
+                        Objects.requireNonNullElse(Shards.setting(shard, "USER"), ""),
+                        Objects.requireNonNullElse(Shards.setting(shard, "PASSWORD"), ""));
+                conn.setAutoCommit(false);
+                shards.put(shard, conn);
+            }
+
+            Rebalancer rebalancer = new Rebalancer(shards, dryRun);
+            if (!rebalancer.outboxesEmpty()) {
+                System.exit(1);
+            }
+            rebalancer.run();
+        } finally {
+            for (Connection conn : shards.values()) {
+                conn.close();
+            }
+        }
+    }
+
+    private boolean outboxesEmpty() throws SQLException {
+        boolean empty = true;
+        for (Map.Entry<String, Connection> shard : shards.entrySet()) {
+            try (PreparedStatement ps = shard.getValue().prepareStatement("SELECT COUNT(*) FROM TRANSFER_OUTBOX");
+                 ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                if (rs.getLong(1) > 0) {
+                    System.err.printf("Shard %s has %d transfers waiting to be credited. Start a server so its "
+                            + "relay delivers them, then stop it and run this again.%n", shard.getKey(), rs.getLong(1));
+                    empty = false;
+                }
+            }
+            shard.getValue().rollback();
+        }
+        return empty;
+    }
+
+    private void run() throws SQLException {
+        long start = System.nanoTime();
+        for (String shard : shards.keySet()) {
+            scan(shard);
+        }
+
+        int total = 0;
+        for (Map.Entry<String, Integer> e : moved.entrySet()) {
+            System.out.printf("%s: %d accounts%n", e.getKey(), e.getValue());
+            total += e.getValue();
+        }
+        System.out.printf("%s %d accounts in %d ms%n", dryRun ? "Would move" : "Moved", total,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Moves every account on the shard that belongs elsewhere, in CUS_ID order.
+    private void scan(String shard) throws SQLException {
+        String sql = "SELECT CUS_ID, CUS_UNAME FROM CUSTOMER WHERE CUS_ID > ? ORDER BY CUS_ID LIMIT " + SCAN_CHUNK;
+        Connection conn = shards.get(shard);
+
+        long after = 0;
+        while (true) {
+            Map<Long, String> chunk = new LinkedHashMap<>();
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, after);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        chunk.put(rs.getLong("CUS_ID"), rs.getString("CUS_UNAME"));
+                    }
+                }
+            }
+            conn.rollback();
+
+            if (chunk.isEmpty()) {
+                return;
+            }
+
+            for (Map.Entry<Long, String> account : chunk.entrySet()) {
+                after = account.getKey();
+                String owner = Shards.of(account.getValue());
+                if (owner.equals(shard)) {
+                    continue;
+                }
+                if (!shards.containsKey(owner)) {
+                    throw new IllegalStateException("Shard " + owner + " is not reachable.");
+                }
+
+                if (!dryRun) {
+                    copy(shard, owner, account.getKey(), account.getValue());
+                    remove(shard, account.getKey(), account.getValue());
+                }
+                moved.merge(shard + " -> " + owner, 1, Integer::sum);
+            }
+        }
+    }
+
+    // Creates the account on its new shard with its balance, history and idempotency keys,
+    // unless an earlier run already did.
+    private void copy(String from, String to, long id, String username) throws SQLException {
+        Connection src = shards.get(from);
+        Connection dst = shards.get(to);
+
+        try (PreparedStatement ps = dst.prepareStatement("SELECT CUS_ID FROM CUSTOMER WHERE CUS_UNAME = ?")) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    dst.rollback();
+                    return;
+                }
+            }
+        }
+
+        String customerSql = "SELECT C.CUS_PASSWD_HASH, CAST((C.CUS_BALANCE + COALESCE((SELECT SUM(SLOT_BALANCE) " +
+                "FROM CUSTOMER_BALANCE_SLOT S WHERE S.CUS_ID = C.CUS_ID), 0)) * 100 AS DECIMAL(17, 0)) AS BALANCE_CENTS " +
+                "FROM CUSTOMER C WHERE C.CUS_ID = ?";
+        String historySql = "SELECT R.TXN_SOURCE_ID, R.TXN_DEST_ID, R.TXN_AMOUNT, R.TXN_DATETIME, R.TXN_COUNTERPARTY, " +
+                "S.CUS_UNAME AS SOURCE_UNAME, D.CUS_UNAME AS DEST_UNAME FROM TRANSACTION_RECORD R " +
+                "LEFT JOIN CUSTOMER S ON S.CUS_ID = R.TXN_SOURCE_ID " +
+                "LEFT JOIN CUSTOMER D ON D.CUS_ID = R.TXN_DEST_ID " +
+                "WHERE R.TXN_SOURCE_ID = ? OR R.TXN_DEST_ID = ? ORDER BY R.TXN_ID";
+        String keysSql = "SELECT IDEM_KEY, IDEM_REQUEST, IDEM_RESPONSE, IDEM_CREATED FROM IDEMPOTENCY_KEY " +
+                "WHERE IDEM_UNAME = ?";
+
+        String insertCustomer = "INSERT INTO CUSTOMER (CUS_UNAME, CUS_PASSWD_HASH, CUS_BALANCE) VALUES (?, ?, ?)";
+        String insertTxn = "INSERT INTO TRANSACTION_RECORD (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_DATETIME, " +
+                "TXN_COUNTERPARTY) VALUES (?, ?, ?, ?, ?)";
+        String insertKey = "INSERT INTO IDEMPOTENCY_KEY (IDEM_UNAME, IDEM_KEY, IDEM_REQUEST, IDEM_RESPONSE, " +
+                "IDEM_CREATED) VALUES (?, ?, ?, ?, ?)";
+        String rollupsSql = "SELECT ROLL_DAY, ROLL_TYPE, ROLL_SLOT, ROLL_COUNT, ROLL_SUM FROM STATEMENT_ROLLUP " +
+                "WHERE CUS_ID = ?";
+        String insertRollup = "INSERT INTO STATEMENT_ROLLUP (CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT, ROLL_COUNT, " +
+                "ROLL_SUM) VALUES (?, ?, ?, ?, ?, ?)";
+
+        try {
+            long newId;
+            try (PreparedStatement read = src.prepareStatement(customerSql);
+                 PreparedStatement insert = dst.prepareStatement(insertCustomer, Statement.RETURN_GENERATED_KEYS)) {
+                read.setLong(1, id);
+                try (ResultSet rs = read.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Customer " + username + " disappeared from shard " + from + ".");
+                    }
+                    insert.setString(1, username);
+                    insert.setString(2, rs.getString("CUS_PASSWD_HASH"));
+                    insert.setBigDecimal(3, Money.toDecimal(rs.getLong("BALANCE_CENTS")));
+                }
+                insert.executeUpdate();
+                try (ResultSet keys = insert.getGeneratedKeys()) {
+                    keys.next();
+                    newId = keys.getLong(1);
+                }
+            }
+
+            // Only the account's own side of each row moves; the other party is named instead
+            try (PreparedStatement read = src.prepareStatement(historySql);
+                 PreparedStatement insert = dst.prepareStatement(insertTxn)) {
+                read.setLong(1, id);
+                read.setLong(2, id);
+                int pending = 0;
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        boolean outgoing = rs.getLong("TXN_SOURCE_ID") == id && !rs.wasNull();
+                        String other = outgoing ? rs.getString("DEST_UNAME") : rs.getString("SOURCE_UNAME");
+
+                        insert.setObject(1, outgoing ? newId : null, Types.BIGINT);
+                        insert.setObject(2, outgoing ? null : newId, Types.BIGINT);
+                        insert.setBigDecimal(3, rs.getBigDecimal("TXN_AMOUNT"));
+                        insert.setTimestamp(4, rs.getTimestamp("TXN_DATETIME"));
+                        insert.setString(5, other != null ? other : rs.getString("TXN_COUNTERPARTY"));
+                        insert.addBatch();
+                        if (++pending % INSERT_BATCH == 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                }
+                insert.executeBatch();
+            }
+
+            try (PreparedStatement read = src.prepareStatement(keysSql);
+                 PreparedStatement insert = dst.prepareStatement(insertKey)) {
+                read.setString(1, username);
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        insert.setString(1, username);
+                        insert.setString(2, rs.getString("IDEM_KEY"));
+                        insert.setString(3, rs.getString("IDEM_REQUEST"));
+                        insert.setString(4, rs.getString("IDEM_RESPONSE"));
+                        insert.setTimestamp(5, rs.getTimestamp("IDEM_CREATED"));
+                        insert.addBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+
+            // An account's totals do not change when rows it shares are split
+            try (PreparedStatement read = src.prepareStatement(rollupsSql);
+                 PreparedStatement insert = dst.prepareStatement(insertRollup)) {
+                read.setLong(1, id);
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        insert.setLong(1, newId);
+                        insert.setDate(2, rs.getDate("ROLL_DAY"));
+                        insert.setString(3, rs.getString("ROLL_TYPE"));
+                        insert.setInt(4, rs.getInt("ROLL_SLOT"));
+                        insert.setLong(5, rs.getLong("ROLL_COUNT"));
+                        insert.setBigDecimal(6, rs.getBigDecimal("ROLL_SUM"));
+                        insert.addBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+
+            dst.commit();
+            src.rollback();
+        } catch (SQLException | RuntimeException e) {
+            dst.rollback();
+            src.rollback();
+            throw e;
+        }
+    }
+
+    // Removes a copied account from its old shard. Rows it shares with an account staying
+    // there keep that account's side.
+    private void remove(String from, long id, String username) throws SQLException {
+        Connection conn = shards.get(from);
+        String[] statements = {
+                "UPDATE TRANSACTION_RECORD SET TXN_SOURCE_ID = NULL, TXN_COUNTERPARTY = ? " +
+                        "WHERE TXN_SOURCE_ID = ? AND TXN_DEST_ID IS NOT NULL",
+                "UPDATE TRANSACTION_RECORD SET TXN_DEST_ID = NULL, TXN_COUNTERPARTY = ? " +
+                        "WHERE TXN_DEST_ID = ? AND TXN_SOURCE_ID IS NOT NULL",
+                "DELETE FROM TRANSACTION_RECORD WHERE TXN_SOURCE_ID = ?",
+                "DELETE FROM TRANSACTION_RECORD WHERE TXN_DEST_ID = ?",
+                "DELETE FROM CUSTOMER_BALANCE_SLOT WHERE CUS_ID = ?",
+                "DELETE FROM STATEMENT_ROLLUP WHERE CUS_ID = ?",
+                "DELETE FROM CUSTOMER WHERE CUS_ID = ?",
+        };
+
+        try {
+            for (String sql : statements) {
+                try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                    if (sql.startsWith("UPDATE")) {
+                        ps.setString(1, username);
+                        ps.setLong(2, id);
+                    } else {
+                        ps.setLong(1, id);
+                    }
+                    ps.executeUpdate();
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM IDEMPOTENCY_KEY WHERE IDEM_UNAME = ?")) {
+                ps.setString(1, username);
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+}
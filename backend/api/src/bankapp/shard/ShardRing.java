@@ -0,0 +1,61 @@
+package bankapp.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of usernames onto shards. Each shard is placed on a 64-bit ring at
+ * pointsPerShard pseudo-random positions derived from its name, and a username belongs to
+ * the first shard position at or after the username's own hash.
+ *
+ * Adding a shard only takes over the usernames just before its positions, about 1/N of
+ * all accounts, and removing one hands its accounts to its neighbours; every other account
+ * stays where it is. Positions depend only on shard names, never on their order or on
+ * where they are hosted, so a shard can be moved to another server without remapping.
+ */
+public final class ShardRing {
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ShardRing(Collection<String> shards, int pointsPerShard) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one shard.");
+        }
+
+        for (String shard : shards) {
+            for (int i = 0; i < Math.max(1, pointsPerShard); i++) {
+                ring.put(hash(shard + '#' + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the shard that holds the account. Usernames compare case-insensitively, as in
+     * the database's collation, so every spelling of a name maps to the same shard.
+     */
+    public String shardOf(String username) {
+        long h = hash(username == null ? "" : username.toLowerCase(Locale.ROOT));
+        Map.Entry<Long, String> owner = ring.ceilingEntry(h);
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, then MurmurHash3's finalizer to spread nearby
+    // inputs ("user1", "user2") across the whole ring. Stable across JVMs and restarts.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
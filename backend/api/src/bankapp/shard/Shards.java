@@ -0,0 +1,98 @@
+package bankapp.shard;
+
+import bankapp.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Which database holds which account. By default there is a single database (DB_URL) and
+ * every account is on it. With DB_SHARDS=a,b,c accounts are spread over the named shards
+ * by consistent hashing of the username (see {@link ShardRing}); shard a is reached through
+ * DB_SHARD_A_URL, DB_SHARD_A_USER and DB_SHARD_A_PASSWORD, the last two defaulting to
+ * DB_USER and DB_PASSWORD.
+ *
+ * An account's customer row, its history, its idempotency keys and its hot balance slots
+ * all live on its shard, so everything but a transfer to another shard is a local
+ * transaction there (see ShardOutbox).
+ */
+public final class Shards {
+
+    /**
+     * Name of the only shard when DB_SHARDS is not set.
+     */
+    public static final String DEFAULT = "main";
+
+    private static final List<String> NAMES = parse(Config.get("DB_SHARDS", ""));
+    private static final ShardRing RING = NAMES.size() > 1
+            ? new ShardRing(NAMES, Config.getInt("DB_SHARD_POINTS", 128))
+            : null;
+
+    private Shards() {}
+
+    /**
+     * Returns true if accounts are spread over more than one database.
+     */
+    public static boolean isEnabled() {
+        return RING != null;
+    }
+
+    /**
+     * Returns the configured shard names, or just {@link #DEFAULT} without DB_SHARDS.
+     */
+    public static List<String> names() {
+        return NAMES;
+    }
+
+    /**
+     * Returns the name of the shard that holds the account.
+     */
+    public static String of(String username) {
+        return RING == null ? NAMES.get(0) : RING.shardOf(username);
+    }
+
+    /**
+     * Returns true if both accounts are on the same shard.
+     */
+    public static boolean sameShard(String a, String b) {
+        return RING == null || of(a).equals(of(b));
+    }
+
+    /**
+     * Returns a shard's connection setting (URL, USER or PASSWORD), or null if it is not set.
+     * The user and password of a named shard default to DB_USER and DB_PASSWORD.
+     */
+    public static String setting(String shard, String key) {
+        String value = Config.get(settingName(shard, key));
+        return value != null || key.equals("URL") ? value : Config.get("DB_" + key);
+    }
+
+    /**
+     * Returns the name of a shard's connection setting, e.g. DB_SHARD_A_URL. The default
+     * shard uses DB_URL, DB_USER and DB_PASSWORD.
+     */
+    public static String settingName(String shard, String key) {
+        return shard.equals(DEFAULT) ? "DB_" + key : "DB_SHARD_" + shard.toUpperCase(Locale.ROOT) + "_" + key;
+    }
+
+    // Shard names become parts of setting names, so they are limited to letters, digits and _.
+    static List<String> parse(String list) {
+        List<String> names = new ArrayList<>();
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!name.matches("[A-Za-z0-9_]+")) {
+                throw new IllegalStateException("Invalid shard name '" + name + "' in DB_SHARDS; "
+                        + "use letters, digits and _ only.");
+            }
+            if (names.stream().anyMatch(name::equalsIgnoreCase)) {
+                throw new IllegalStateException("Shard '" + name + "' is listed twice in DB_SHARDS.");
+            }
+            names.add(name);
+        }
+        return names.isEmpty() ? List.of(DEFAULT) : List.copyOf(names);
+    }
+}
@@ -0,0 +1,149 @@
+package bankapp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionPoolTest {
+
+    private static final String URL = "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1";
+    private static final long LONG_MILLIS = 60_000;
+
+    private ConnectionPool pool;
+
+    @AfterEach
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void borrowsNoMoreThanMaxSize() throws SQLException {
+        pool = pool(2, 50, LONG_MILLIS, 10);
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+
+        assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+        assertEquals(1, pool.getTimeoutCount());
+        assertEquals(2, pool.getActiveCount());
+
+        first.close();
+        try (Connection third = pool.getConnection()) {
+            assertEquals(1, selectOne(third));
+        }
+        second.close();
+
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(0, pool.getActiveCount());
+    }
+
+    @Test
+    void turnsAwayCallersBeyondWaiterLimit() throws Exception {
+        pool = pool(1, LONG_MILLIS, LONG_MILLIS, 1);
+        Connection held = pool.getConnection();
+
+        CompletableFuture<Integer> waiter = CompletableFuture.supplyAsync(() -> {
+            try (Connection conn = pool.getConnection()) {
+                return selectOne(conn);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (pool.getWaitingCount() < 1) {
+            Thread.sleep(1);
+        }
+
+        long start = System.nanoTime();
+        assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "rejection waited");
+        assertEquals(1, pool.getRejectedCount());
+
+        held.close();
+        assertEquals(1, waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getTimeoutCount());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    void reusesRecentlyIdleConnectionWithoutValidating() throws SQLException {
+        pool = pool(1, 50, LONG_MILLIS, 0);
+        Connection first = pool.getConnection();
+        Connection physical = first.unwrap(Connection.class);
+        first.close();
+        physical.close();
+
+        // returned just now, so it is handed out as it is
+        try (Connection conn = pool.getConnection()) {
+            assertTrue(conn.isClosed());
+        }
+        assertEquals(0, pool.getValidationFailureCount());
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    void replacesIdleConnectionThatFailsValidation() throws Exception {
+        pool = pool(1, 50, 0, 0);
+        Connection first = pool.getConnection();
+        Connection physical = first.unwrap(Connection.class);
+        first.close();
+        physical.close();
+        Thread.sleep(5);
+
+        try (Connection conn = pool.getConnection()) {
+            assertFalse(conn.isClosed());
+            assertEquals(1, selectOne(conn));
+        }
+        assertEquals(1, pool.getValidationFailureCount());
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getTotalCount());
+    }
+
+    @Test
+    void returnedConnectionIsResetAndHandleIsDead() throws SQLException {
+        pool = pool(1, 50, LONG_MILLIS, 0);
+        Connection first = pool.getConnection();
+        first.setAutoCommit(false);
+        first.close();
+        first.close();
+
+        assertTrue(first.isClosed());
+        assertThrows(SQLException.class, first::createStatement);
+        try (Connection second = pool.getConnection()) {
+            assertTrue(second.getAutoCommit());
+        }
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    void rejectsInvalidSizes() {
+        assertThrows(IllegalArgumentException.class, () -> pool(0, 50, LONG_MILLIS, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new ConnectionPool(URL, "sa", "", 3, 2, 50, LONG_MILLIS, LONG_MILLIS, LONG_MILLIS, false, 0));
+    }
+
+    private static ConnectionPool pool(int maxSize, long maxWaitMillis, long validateAfterMillis, int maxWaiters) {
+        return new ConnectionPool(URL, "sa", "", 0, maxSize, maxWaitMillis, LONG_MILLIS, validateAfterMillis,
+                LONG_MILLIS, false, maxWaiters);
+    }
+
+    private static int selectOne(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("SELECT 1")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package bankapp.dto;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MoneyTest {
+
+    @Test
+    void parsesWholeAndFractionalAmounts() {
+        assertEquals(1200, Money.parse("12"));
+        assertEquals(1250, Money.parse("12.5"));
+        assertEquals(1234, Money.parse("12.34"));
+        assertEquals(1, Money.parse("0.01"));
+        assertEquals(0, Money.parse("0"));
+        assertEquals(-320, Money.parse("-3.20"));
+        assertEquals(700, Money.parse("007"));
+    }
+
+    @Test
+    void parsesLargestColumnValue() {
+        assertEquals(Money.MAX_CENTS, Money.parse("9999999999999.99"));
+        assertEquals(-Money.MAX_CENTS, Money.parse("-9999999999999.99"));
+    }
+
+    @Test
+    void rejectsValuesTooLargeForTheColumn() {
+        assertThrows(Money.InvalidAmountException.class, () -> Money.parse("10000000000000"));
+        assertThrows(Money.InvalidAmountException.class, () -> Money.parse("99999999999999999999.00"));
+    }
+
+    @Test
+    void rejectsMoreThanTwoDecimalPlaces() {
+        assertThrows(Money.InvalidAmountException.class, () -> Money.parse("1.234"));
+        assertThrows(Money.InvalidAmountException.class, () -> Money.parse("0.001"));
+    }
+
+    @Test
+    void rejectsMalformedText() {
+        for (String text : new String[] {null, "", "-", ".5", "1.", "+1", "1e3", "1E2", " 1", "1 ", "1,00",
+                "--1", "1.2.3", "abc", "NaN", "Infinity", "0x10", "１２"}) {
+            assertThrows(Money.InvalidAmountException.class, () -> Money.parse(text), String.valueOf(text));
+        }
+    }
+
+    @Test
+    void formatsWithTwoDecimalPlaces() {
+        assertEquals("12.34", Money.format(1234));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("-3.20", Money.format(-320));
+        assertEquals("9999999999999.99", Money.format(Money.MAX_CENTS));
+    }
+
+    @Test
+    void formatAndParseRoundTrip() {
+        for (long cents : new long[] {0, 1, 99, 100, 12_345, -12_345, Money.MAX_CENTS}) {
+            assertEquals(cents, Money.parse(Money.format(cents)));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package bankapp.handlers;
+
+import bankapp.shard.ShardRing;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AccountsTest {
+
+    @Test
+    void normalizeTrimsSurroundingWhitespace() {
+        assertEquals("alice", Accounts.normalize("alice"));
+        assertEquals("alice", Accounts.normalize("  alice\t"));
+        assertEquals("Alice Smith", Accounts.normalize(" Alice Smith "));
+        assertEquals("", Accounts.normalize("   "));
+        assertNull(Accounts.normalize(null));
+    }
+
+    @Test
+    void paddedOrDifferentlyCasedNamesPickTheSameShard() {
+        ShardRing ring = new ShardRing(List.of("a", "b", "c", "d"), 128);
+        for (int i = 0; i < 1_000; i++) {
+            String stored = "user" + i;
+            String shard = ring.shardOf(stored);
+            assertEquals(shard, ring.shardOf(Accounts.normalize(" " + stored)));
+            assertEquals(shard, ring.shardOf(Accounts.normalize(stored + "  ")));
+            assertEquals(shard, ring.shardOf(Accounts.normalize(" USER" + i + " ")));
+        }
+    }
+}
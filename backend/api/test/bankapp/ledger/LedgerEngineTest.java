@@ -0,0 +1,336 @@
+package bankapp.ledger;
+
+import bankapp.handlers.IdempotencyKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of the ledger from its snapshots and journal. A crash is simulated by copying the
+ * ledger directory while the engine is still running, so the copy holds exactly what a killed
+ * process would leave behind (no final snapshot, journal segments as last flushed).
+ */
+class LedgerEngineTest {
+
+    private static final long GENESIS_SEQ = 100;
+
+    // Small segments so a few hundred entries span several files
+    private static final LedgerEngine.Options OPTIONS = new LedgerEngine.Options(false, 4096, Long.MAX_VALUE,
+            64, 1024, TimeUnit.HOURS.toMillis(24), 10_000);
+
+    @TempDir
+    Path tmp;
+
+    private final List<LedgerEngine> engines = new ArrayList<>();
+
+    @AfterEach
+    void closeEngines() throws IOException {
+        for (LedgerEngine engine : engines) {
+            engine.close();
+        }
+    }
+
+    @Test
+    void recoversBalancesAndSequenceAfterCrash() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        assertTrue(ledger.isBootstrapped());
+
+        int alice = ledger.id("alice");
+        int bob = ledger.id("bob");
+        int carol = ledger.id("carol");
+        assertTrue(ledger.deposit(alice, 2_500, null).success());
+        assertTrue(ledger.withdraw(bob, 1_000, null).success());
+        assertTrue(ledger.transfer(alice, carol, 4_000, "t-1").success());
+        int dave = ledger.open("dave", 0);
+        assertTrue(ledger.transferBatch(alice, new int[] {bob, dave}, new long[] {500, 700}).success());
+        // refused requests are not journaled
+        assertFalse(ledger.withdraw(carol, 1_000_000, null).success());
+
+        Map<String, Long> balances = balances(ledger);
+        assertEquals(Map.of("alice", 7_300L, "bob", 4_500L, "carol", 4_000L, "dave", 700L), balances);
+        assertEquals(GENESIS_SEQ + 6, ledger.committedSeq());
+
+        LedgerEngine recovered = start(crash(dir), OPTIONS);
+        assertFalse(recovered.isBootstrapped());
+        assertEquals(balances, balances(recovered));
+        assertEquals(ledger.committedSeq(), recovered.committedSeq());
+        assertEquals(dave, recovered.id("DAVE"));
+
+        // new entries carry on from the recovered sequence
+        LedgerEngine.Receipt receipt = recovered.deposit(dave, 100, null);
+        assertEquals(GENESIS_SEQ + 7, receipt.rows().get(0).id);
+    }
+
+    @Test
+    void recoversAcrossSegments() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        churn(ledger, 500);
+        assertTrue(segments(dir).size() > 2, "expected the journal to roll over");
+
+        LedgerEngine recovered = start(crash(dir), OPTIONS);
+        assertEquals(balances(ledger), balances(recovered));
+        assertEquals(ledger.committedSeq(), recovered.committedSeq());
+        assertEquals(total(ledger), total(recovered));
+    }
+
+    @Test
+    void dropsTornLastRecord() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        churn(ledger, 50);
+        Map<String, Long> before = balances(ledger);
+        long seq = ledger.committedSeq();
+
+        // the process dies while writing this one
+        assertTrue(ledger.deposit(ledger.id("bob"), 999, null).success());
+        Path crashed = crash(dir);
+        tearLastRecord(crashed);
+
+        LedgerEngine recovered = start(crashed, OPTIONS);
+        assertEquals(before, balances(recovered));
+        assertEquals(seq, recovered.committedSeq());
+
+        // the torn bytes were cleared, so the sequence number is reused and survives another crash
+        LedgerEngine.Receipt receipt = recovered.deposit(recovered.id("carol"), 1, null);
+        assertEquals(seq + 1, receipt.rows().get(0).id);
+        LedgerEngine again = start(crash(crashed), OPTIONS);
+        assertEquals(balances(recovered), balances(again));
+        assertEquals(seq + 1, again.committedSeq());
+    }
+
+    @Test
+    void recoversFromSnapshotAndTrimmedJournal() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        // a snapshot after every batch, so old segments are deleted as the journal grows
+        LedgerEngine.Options options = new LedgerEngine.Options(false, 4096, 0, 64, 1024,
+                TimeUnit.HOURS.toMillis(24), 10_000);
+        LedgerEngine ledger = start(dir, options);
+        churn(ledger, 500);
+        assertTrue(ledger.getSnapshotCount() > 0);
+        assertTrue(segments(dir).get(0) > GENESIS_SEQ + 1, "expected old segments to be deleted");
+
+        LedgerEngine recovered = start(crash(dir), options);
+        assertEquals(balances(ledger), balances(recovered));
+        assertEquals(ledger.committedSeq(), recovered.committedSeq());
+    }
+
+    @Test
+    void reopensAfterCleanShutdown() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        churn(ledger, 100);
+        Map<String, Long> balances = balances(ledger);
+        long seq = ledger.committedSeq();
+        close(ledger);
+        assertEquals(seq, Snapshot.readLatest(dir).seq);
+
+        LedgerEngine reopened = start(dir, OPTIONS);
+        assertEquals(balances, balances(reopened));
+        assertEquals(seq, reopened.committedSeq());
+    }
+
+    @Test
+    void fallsBackToOlderSnapshotWhenNewestIsDamaged() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine first = start(dir, OPTIONS);
+        churn(first, 100);
+        close(first);
+
+        LedgerEngine second = start(dir, OPTIONS);
+        churn(second, 100);
+        Map<String, Long> balances = balances(second);
+        long seq = second.committedSeq();
+        close(second);
+
+        Path newest;
+        try (Stream<Path> files = Files.list(dir)) {
+            newest = files.filter(p -> p.getFileName().toString().startsWith("snapshot-")).max(Path::compareTo)
+                    .orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(newest);
+        bytes[bytes.length / 2] ^= 0x5a;
+        Files.write(newest, bytes);
+
+        LedgerEngine recovered = start(dir, OPTIONS);
+        assertEquals(balances, balances(recovered));
+        assertEquals(seq, recovered.committedSeq());
+    }
+
+    @Test
+    void refusesJournalWithMissingSegment() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        churn(ledger, 500);
+
+        Path gap = crash(dir);
+        List<Path> segments = segmentFiles(gap);
+        Files.delete(segments.get(1));
+        assertThrows(IOException.class, () -> LedgerEngine.open(gap, OPTIONS, LedgerEngineTest::genesis));
+
+        Path head = crash(dir);
+        Files.delete(segmentFiles(head).get(0));
+        assertThrows(IOException.class, () -> LedgerEngine.open(head, OPTIONS, LedgerEngineTest::genesis));
+
+        Path noSnapshot = crash(dir);
+        try (Stream<Path> files = Files.list(noSnapshot)) {
+            for (Path p : files.filter(p -> p.getFileName().toString().startsWith("snapshot-")).toList()) {
+                Files.delete(p);
+            }
+        }
+        assertThrows(IOException.class, () -> LedgerEngine.open(noSnapshot, OPTIONS, LedgerEngineTest::genesis));
+    }
+
+    @Test
+    void remembersIdempotencyKeysAcrossRestarts() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        int alice = ledger.id("alice");
+        assertTrue(ledger.deposit(alice, 300, "key-1").success());
+
+        // replayed from the journal
+        Path crashed = crash(dir);
+        LedgerEngine recovered = start(crashed, OPTIONS);
+        LedgerEngine.Receipt retry = recovered.deposit(alice, 300, "key-1");
+        assertTrue(retry.success());
+        assertTrue(retry.rows().isEmpty());
+        assertEquals(10_300, recovered.balance(alice));
+
+        LedgerEngine.Receipt reused = recovered.deposit(alice, 400, "key-1");
+        assertFalse(reused.success());
+        assertEquals(IdempotencyKeys.KEY_REUSED.message, reused.message());
+
+        // loaded from the snapshot written on shutdown
+        close(recovered);
+        LedgerEngine reopened = start(crashed, OPTIONS);
+        assertTrue(reopened.deposit(alice, 300, "key-1").rows().isEmpty());
+        assertEquals(10_300, reopened.balance(alice));
+    }
+
+    @Test
+    void cursorResumesAfterPosition() throws IOException {
+        Path dir = tmp.resolve("ledger");
+        LedgerEngine ledger = start(dir, OPTIONS);
+        churn(ledger, 300);
+        long committed = ledger.committedSeq();
+
+        // the projection commits its position at the end of an entry and resumes after it
+        Journal.Cursor all = ledger.cursor(GENESIS_SEQ);
+        long from = GENESIS_SEQ;
+        for (int i = 0; i < 120; i++) {
+            Entry e = all.next(committed);
+            from = e.seq + e.width() - 1;
+        }
+
+        Journal.Cursor cursor = ledger.cursor(from);
+        long next = from + 1;
+        Entry e;
+        while ((e = cursor.next(committed)) != null) {
+            assertEquals(next, e.seq);
+            next = e.seq + e.width();
+        }
+        assertEquals(committed + 1, next);
+    }
+
+    private static LedgerEngine.Genesis genesis() {
+        return new LedgerEngine.Genesis(GENESIS_SEQ, List.of("alice", "bob", "carol"),
+                new long[] {10_000, 5_000, 0});
+    }
+
+    private LedgerEngine start(Path dir, LedgerEngine.Options options) throws IOException {
+        LedgerEngine engine = LedgerEngine.open(dir, options, LedgerEngineTest::genesis);
+        engine.start();
+        engines.add(engine);
+        return engine;
+    }
+
+    private void close(LedgerEngine engine) throws IOException {
+        engines.remove(engine);
+        engine.close();
+    }
+
+    // Deposits, withdrawals, transfers and batches among the three genesis accounts.
+    private static void churn(LedgerEngine ledger, int n) {
+        int[] ids = {ledger.id("alice"), ledger.id("bob"), ledger.id("carol")};
+        for (int i = 0; i < n; i++) {
+            int a = ids[i % 3];
+            int b = ids[(i + 1) % 3];
+            switch (i % 4) {
+                case 0 -> ledger.deposit(a, 100 + i, null);
+                case 1 -> ledger.withdraw(a, 7, null);
+                case 2 -> ledger.transfer(a, b, 50 + i % 13, "churn-" + i);
+                default -> ledger.transferBatch(a, new int[] {b, ids[(i + 2) % 3]}, new long[] {3, 4});
+            }
+        }
+    }
+
+    private static Map<String, Long> balances(LedgerEngine ledger) {
+        Map<String, Long> balances = new LinkedHashMap<>();
+        for (int i = 0; i < ledger.getAccountCount(); i++) {
+            balances.put(ledger.name(i), ledger.balance(i));
+        }
+        return balances;
+    }
+
+    private static long total(LedgerEngine ledger) {
+        return balances(ledger).values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    // Copies the ledger directory as a crash would leave it.
+    private Path crash(Path dir) throws IOException {
+        Path copy = Files.createTempDirectory(tmp, "crashed");
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : files.toList()) {
+                Files.copy(p, copy.resolve(p.getFileName()));
+            }
+        }
+        return copy;
+    }
+
+    // Cuts the newest segment inside its last record, as a write interrupted half way would.
+    private static void tearLastRecord(Path dir) throws IOException {
+        List<Path> segments = segmentFiles(dir);
+        Path last = segments.get(segments.size() - 1);
+        byte[] bytes = Files.readAllBytes(last);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.truncate(end - 1);
+        }
+    }
+
+    private static List<Long> segments(Path dir) throws IOException {
+        List<Long> firsts = new ArrayList<>();
+        for (Path p : segmentFiles(dir)) {
+            String name = p.getFileName().toString();
+            firsts.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+        }
+        return firsts;
+    }
+
+    private static List<Path> segmentFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("journal-")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package bankapp.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    // Bucket that Long.MAX_VALUE falls in; higher ones are never used
+    private static final int LAST_BUCKET = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+
+    @Test
+    void smallValuesHaveTheirOwnBuckets() {
+        for (int v = 0; v < 4; v++) {
+            assertEquals(v, LatencyHistogram.bucketOf(v));
+            assertEquals(v, LatencyHistogram.upperBoundOf(v));
+        }
+    }
+
+    @Test
+    void upperBoundMapsBackToItsBucket() {
+        for (int bucket = 0; bucket <= LAST_BUCKET; bucket++) {
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(bucket)));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LAST_BUCKET));
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        for (int bucket = 0; bucket < LAST_BUCKET; bucket++) {
+            long next = LatencyHistogram.upperBoundOf(bucket) + 1;
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(next), "after bucket " + bucket);
+        }
+    }
+
+    @Test
+    void upperBoundIsWithinAQuarterOfTheValue() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long v = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long bound = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(v));
+            assertTrue(bound >= v && bound - v <= v / 4, v + " -> " + bound);
+        }
+    }
+
+    @Test
+    void quantilesOfEmptyHistogramAreZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.quantile(0.5));
+        assertEquals(0, histogram.quantile(0.99));
+    }
+
+    @Test
+    void quantilesReturnTheRankedValuesBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 1_000; v++) {
+            histogram.record(v * 1_000);
+        }
+
+        assertEquals(1_000, histogram.count());
+        assertEquals(500_500_000L, histogram.sumNanos());
+        assertEquals(bound(1_000), histogram.quantile(0));
+        assertEquals(bound(500_000), histogram.quantile(0.5));
+        assertEquals(bound(990_000), histogram.quantile(0.99));
+        assertEquals(bound(1_000_000), histogram.quantile(1));
+    }
+
+    @Test
+    void quantileFindsRareSlowValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 990; i++) {
+            histogram.record(1_000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50_000_000);
+        }
+
+        assertEquals(bound(1_000), histogram.quantile(0.99));
+        assertEquals(bound(50_000_000), histogram.quantile(0.995));
+    }
+
+    @Test
+    void negativeDurationsCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.sumNanos());
+        assertEquals(0, histogram.quantile(1));
+    }
+
+    private static long bound(long v) {
+        return LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(v));
+    }
+}
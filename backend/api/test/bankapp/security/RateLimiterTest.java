@@ -0,0 +1,99 @@
+package bankapp.security;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    // One token per 100 ms
+    private static final int PER_MINUTE = 600;
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void allowsBurstThenWaitsForNextToken() {
+        RateLimiter limiter = new RateLimiter(PER_MINUTE, 3, 64);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("alice"));
+        }
+
+        long wait = limiter.acquire("alice");
+        assertTrue(wait > 0 && wait <= INTERVAL_NANOS, "wait " + wait);
+    }
+
+    @Test
+    void refillsOneTokenPerInterval() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(PER_MINUTE, 2, 64);
+        assertEquals(0, limiter.acquire("alice"));
+        assertEquals(0, limiter.acquire("alice"));
+
+        long wait = limiter.acquire("alice");
+        assertTrue(wait > 0);
+        TimeUnit.NANOSECONDS.sleep(wait + TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(0, limiter.acquire("alice"));
+        assertTrue(limiter.acquire("alice") > 0);
+    }
+
+    @Test
+    void idleBucketHoldsNoMoreThanBurst() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(PER_MINUTE, 2, 64);
+        // long enough to earn five tokens
+        Thread.sleep(500);
+
+        assertEquals(0, limiter.acquire("alice"));
+        assertEquals(0, limiter.acquire("alice"));
+        assertTrue(limiter.acquire("alice") > 0);
+    }
+
+    @Test
+    void keysHaveSeparateBuckets() {
+        RateLimiter limiter = new RateLimiter(PER_MINUTE, 1, 64);
+        assertEquals(0, limiter.acquire("alice"));
+        assertTrue(limiter.acquire("alice") > 0);
+
+        assertEquals(0, limiter.acquire("bob"));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    void zeroRateDisablesLimit() {
+        RateLimiter limiter = new RateLimiter(0, 1, 64);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(0, limiter.acquire("alice"));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void moreKeysThanSlotsEvictsInsteadOfGrowing() {
+        RateLimiter limiter = new RateLimiter(PER_MINUTE, 1, 4);
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(0, limiter.acquire("user" + i));
+        }
+
+        assertEquals(4, limiter.size());
+        assertEquals(1_000 - 4, limiter.getEvictions());
+    }
+
+    @Test
+    void evictionKeepsExhaustedBuckets() {
+        // one token a second, so every bucket below stays busy for the whole test
+        RateLimiter limiter = new RateLimiter(60, 3, 4);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("alice"));
+        }
+
+        // each new key has used one token of three, so alice is never the neighbour full soonest
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(0, limiter.acquire("user" + i));
+        }
+
+        assertTrue(limiter.acquire("alice") > 0);
+    }
+}
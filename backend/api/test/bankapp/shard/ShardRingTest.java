@@ -0,0 +1,103 @@
+package bankapp.shard;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardRingTest {
+
+    private static final int USERS = 20_000;
+    private static final int POINTS = 128;
+
+    @Test
+    void placementDependsOnlyOnShardNames() {
+        ShardRing ring = new ShardRing(List.of("a", "b", "c"), POINTS);
+        ShardRing reordered = new ShardRing(List.of("c", "a", "b"), POINTS);
+        for (int i = 0; i < USERS; i++) {
+            assertEquals(ring.shardOf("user" + i), reordered.shardOf("user" + i));
+        }
+    }
+
+    @Test
+    void usernamesCompareCaseInsensitively() {
+        ShardRing ring = new ShardRing(List.of("a", "b", "c", "d"), POINTS);
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(ring.shardOf("user" + i), ring.shardOf("USER" + i));
+        }
+        assertNotNull(ring.shardOf(null));
+    }
+
+    @Test
+    void spreadsUsernamesEvenly() {
+        List<String> shards = List.of("a", "b", "c", "d");
+        ShardRing ring = new ShardRing(shards, POINTS);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            counts.merge(ring.shardOf("user" + i), 1, Integer::sum);
+        }
+
+        for (String shard : shards) {
+            double share = counts.getOrDefault(shard, 0) / (double) USERS;
+            assertTrue(share > 0.15 && share < 0.35, shard + " holds " + share);
+        }
+    }
+
+    @Test
+    void addingShardOnlyMovesAccountsToIt() {
+        ShardRing before = new ShardRing(List.of("a", "b", "c"), POINTS);
+        ShardRing after = new ShardRing(List.of("a", "b", "c", "d"), POINTS);
+
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String from = before.shardOf("user" + i);
+            String to = after.shardOf("user" + i);
+            if (!from.equals(to)) {
+                assertEquals("d", to);
+                moved++;
+            }
+        }
+        double share = moved / (double) USERS;
+        assertTrue(share > 0.15 && share < 0.35, "moved " + share);
+    }
+
+    @Test
+    void removingShardOnlyMovesItsAccounts() {
+        ShardRing before = new ShardRing(List.of("a", "b", "c", "d"), POINTS);
+        ShardRing after = new ShardRing(List.of("a", "b", "c"), POINTS);
+
+        for (int i = 0; i < USERS; i++) {
+            String from = before.shardOf("user" + i);
+            if (!from.equals("d")) {
+                assertEquals(from, after.shardOf("user" + i));
+            }
+        }
+    }
+
+    @Test
+    void singleShardOwnsEverything() {
+        ShardRing ring = new ShardRing(List.of("only"), 1);
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals("only", ring.shardOf("user" + i));
+        }
+    }
+
+    @Test
+    void needsAtLeastOneShard() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardRing(List.of(), POINTS));
+    }
+
+    @Test
+    void hashIsStable() {
+        // positions must not change between releases, or accounts would be looked up on the wrong shard
+        assertEquals(-3821740969434100393L, ShardRing.hash("user1"));
+        assertEquals(3821251815001557236L, ShardRing.hash("alice"));
+        assertEquals(2092190084074697641L, ShardRing.hash("a#0"));
+    }
+}
@@ -0,0 +1,17 @@
+#!/usr/bin/env bash
+# Builds and runs the JMH suite, writing machine-readable results.
+#
+# Usage: bench/run-jmh.sh [extra JMH options]     (from backend/)
+#   e.g. bench/run-jmh.sh JwtBenchmark            only the JWT benchmarks
+#        bench/run-jmh.sh -p items=1000           one history size
+# Results go to bench/results/jmh-<timestamp>.json (JMH JSON format).
+
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+mkdir -p bench/results
+mvn -B -q package -DskipTests
+
+OUT="bench/results/jmh-$(date +%Y%m%d-%H%M%S).json"
+java -jar bench/target/benchmarks.jar -rf json -rff "$OUT" "$@"
+echo "Results written to $OUT"
@@ -0,0 +1,53 @@
+package bankapp.bench;
+
+import bankapp.security.Auth;
+import bankapp.security.JwtUtil;
+import org.openjdk.jmh.annotations.*;
+import spark.Request;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Auth.requireUsername: Authorization header parsing plus token verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-DJWT_SECRET=benchmark-secret")
+public class AuthBenchmark {
+
+    private Request request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        request = new HeaderOnlyRequest("Bearer " + JwtUtil.createToken("alice"));
+    }
+
+    @Benchmark
+    public String requireUsername() {
+        return Auth.requireUsername(request);
+    }
+
+    @Benchmark
+    public String requireToken() {
+        return Auth.requireToken(request);
+    }
+
+    /**
+     * A Spark request that only knows its Authorization header.
+     */
+    static final class HeaderOnlyRequest extends Request {
+        private final String authorization;
+
+        HeaderOnlyRequest(String authorization) {
+            this.authorization = authorization;
+        }
+
+        @Override
+        public String headers(String header) {
+            return header.equals("Authorization") ? authorization : null;
+        }
+    }
+}
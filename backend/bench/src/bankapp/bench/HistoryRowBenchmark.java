@@ -0,0 +1,52 @@
+package bankapp.bench;
+
+import bankapp.handlers.HistoryHandler;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-row work in HistoryHandler: type classification and date formatting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryRowBenchmark {
+
+    private static final int ROWS = 1024;
+
+    private final String[] sources = new String[ROWS];
+    private final String[] dests = new String[ROWS];
+    private final Timestamp[] times = new Timestamp[ROWS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long base = Timestamp.valueOf("2024-01-01 00:00:00").getTime();
+        for (int i = 0; i < ROWS; i++) {
+            sources[i] = i % 4 == 0 ? null : (i % 2 == 0 ? "alice" : "bob");
+            dests[i] = i % 4 == 1 ? null : (i % 2 == 0 ? "bob" : "alice");
+            times[i] = new Timestamp(base + i * 61_000L);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void classify(Blackhole bh) {
+        for (int i = 0; i < ROWS; i++) {
+            bh.consume(HistoryHandler.classify(sources[i], dests[i], "alice"));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void formatTime(Blackhole bh) {
+        for (int i = 0; i < ROWS; i++) {
+            bh.consume(HistoryHandler.formatTime(times[i]));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package bankapp.bench;
+
+import bankapp.dto.HistoryItem;
+import bankapp.dto.HistoryResult;
+import bankapp.export.JsonHistoryWriter;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a HistoryResult: Gson into one String versus streaming through JsonHistoryWriter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistorySerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int items;
+
+    private final Gson gson = new Gson();
+    private HistoryResult result;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<HistoryItem> list = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            list.add(switch (i % 4) {
+                case 0 -> new HistoryItem(i, HistoryItem.DEPOSIT, null, "alice", 12550, "Jan 5, 2024 3:04 PM");
+                case 1 -> new HistoryItem(i, HistoryItem.WITHDRAW, "alice", null, 2000, "Jan 5, 2024 3:05 PM");
+                case 2 -> new HistoryItem(i, HistoryItem.TRANSFER_OUT, "alice", "bob", 725, "Jan 5, 2024 3:06 PM");
+                default -> new HistoryItem(i, HistoryItem.TRANSFER_IN, "bob", "alice", 310, "Jan 5, 2024 3:07 PM");
+            });
+        }
+        result = new HistoryResult(true, "History retrieved.", list);
+    }
+
+    @Benchmark
+    public String gsonToJson() {
+        return gson.toJson(result);
+    }
+
+    @Benchmark
+    public long streamingJsonWriter() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        JsonHistoryWriter writer = new JsonHistoryWriter(out);
+        writer.begin(result);
+        for (HistoryItem item : result.transactions) {
+            writer.item(item);
+        }
+        writer.end(result);
+        return out.count;
+    }
+
+    /**
+     * Discards output, counting bytes so the work cannot be optimized away.
+     */
+    static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
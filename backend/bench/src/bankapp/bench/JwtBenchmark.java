@@ -0,0 +1,41 @@
+package bankapp.bench;
+
+import bankapp.security.JwtUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token creation and verification. With cacheEntries=0 every verification parses the token
+ * and recomputes the HMAC; otherwise repeat verifications are answered from the token cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-DJWT_SECRET=benchmark-secret")
+public class JwtBenchmark {
+
+    @Param({"10000", "0"})
+    public String cacheEntries;
+
+    private String token;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Must be set before JwtUtil is first used in this fork
+        System.setProperty("JWT_CACHE_MAX_ENTRIES", cacheEntries);
+        token = JwtUtil.createToken("alice");
+    }
+
+    @Benchmark
+    public String createToken() {
+        return JwtUtil.createToken("alice");
+    }
+
+    @Benchmark
+    public String verifyAndGetUsername() {
+        return JwtUtil.verifyAndGetUsername(token);
+    }
+}
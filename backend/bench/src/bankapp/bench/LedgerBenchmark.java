@@ -0,0 +1,77 @@
+package bankapp.bench;
+
+import bankapp.ledger.LedgerEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Transfers through the in-memory LedgerEngine (LEDGER_ENGINE=true), journaled to a temporary
+ * directory, for comparison with TransferBenchmark's JDBC path. The writer batches whatever
+ * is queued, so the gap grows with the number of benchmark threads; run both with the same
+ * -t. With fsync=true each batch waits for the journal to reach the disk, so the numbers
+ * depend heavily on the storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LedgerBenchmark {
+
+    @Param({"1000"})
+    public int customers;
+
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    private Path dir;
+    private LedgerEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ledger-bench");
+
+        List<String> names = new ArrayList<>();
+        long[] balances = new long[customers];
+        for (int i = 0; i < customers; i++) {
+            names.add("user" + i);
+        }
+        Arrays.fill(balances, 100_000_000_000L);
+
+        LedgerEngine.Options options = new LedgerEngine.Options(fsync, 64 * 1024 * 1024,
+                TimeUnit.MINUTES.toMillis(5), 1024, 65_536, TimeUnit.HOURS.toMillis(24), 1_000_000);
+        engine = LedgerEngine.open(dir, options, () -> new LedgerEngine.Genesis(0, names, balances));
+        engine.projectedThrough(Long.MAX_VALUE);   // no projection; snapshots alone bound the journal
+        engine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    @Benchmark
+    public LedgerEngine.Receipt transfer() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int from = rnd.nextInt(customers);
+        int to = (from + 1 + rnd.nextInt(customers - 1)) % customers;
+
+        return engine.transfer(from, to, 1, null);
+    }
+}
@@ -0,0 +1,180 @@
+package bankapp.bench;
+
+import bankapp.metrics.LatencyHistogram;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop HTTP load generator for a running BankServer. Each simulated client sends one
+ * request, waits for the response, and immediately sends the next, so the number of clients
+ * is the number of requests in flight. Clients are asynchronous and do not need a thread each.
+ *
+ * Usage:
+ * <pre>
+ *   java bankapp.bench.LoadTest --url http://localhost:5230 --route balance --clients 1000 --seconds 30
+ * </pre>
+ * Prints a human-readable summary followed by one JSON line for scripts.
+ */
+public class LoadTest {
+
+    private static final Pattern TOKEN = Pattern.compile("\"token\"\\s*:\\s*\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:5230";
+        String route = "balance";
+        int clients = 100;
+        int users = 50;
+        int seconds = 30;
+        int warmupSeconds = 5;
+        String label = "";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--url" -> url = args[i + 1];
+                case "--route" -> route = args[i + 1];
+                case "--clients" -> clients = Integer.parseInt(args[i + 1]);
+                case "--users" -> users = Integer.parseInt(args[i + 1]);
+                case "--seconds" -> seconds = Integer.parseInt(args[i + 1]);
+                case "--warmup" -> warmupSeconds = Integer.parseInt(args[i + 1]);
+                case "--label" -> label = args[i + 1];
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (!route.equals("balance") && !route.equals("transfer")) {
+            throw new IllegalArgumentException("--route must be 'balance' or 'transfer'");
+        }
+
+        if (users < 2) {
+            throw new IllegalArgumentException("--users must be at least 2");
+        }
+
+        HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+        // Test accounts are shared by the clients; each starts with enough money for the run
+        List<String> names = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        for (int u = 0; u < users; u++) {
+            String name = "lt" + runId + "_" + u;
+            post(http, url + "/register", null, "{\"username\":\"" + name + "\",\"password\":\"loadtest\"}");
+            String body = post(http, url + "/login", null, "{\"username\":\"" + name + "\",\"password\":\"loadtest\"}");
+            Matcher m = TOKEN.matcher(body);
+            if (!m.find()) {
+                throw new IllegalStateException("Login failed for " + name + ": " + body);
+            }
+            names.add(name);
+            tokens.add(m.group(1));
+            post(http, url + "/deposit", m.group(1), "{\"amount\":1000000}");
+        }
+
+        Run warmup = new Run(http, url, route, names, tokens);
+        warmup.drive(clients, warmupSeconds);
+
+        Run run = new Run(http, url, route, names, tokens);
+        long elapsed = run.drive(clients, seconds);
+
+        LatencyHistogram h = run.latency;
+        double secs = elapsed / 1e9;
+        System.out.printf(Locale.ROOT, "%s route=%s clients=%d requests=%d errors=%d throughput=%.1f/s "
+                        + "p50=%.2fms p99=%.2fms p999=%.2fms%n",
+                label, route, clients, h.count(), run.errors.sum(), h.count() / secs,
+                h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.quantile(0.999) / 1e6);
+        System.out.printf(Locale.ROOT, "{\"label\":\"%s\",\"route\":\"%s\",\"clients\":%d,\"requests\":%d,"
+                        + "\"errors\":%d,\"throughput\":%.1f,\"p50_ms\":%.3f,\"p99_ms\":%.3f,\"p999_ms\":%.3f}%n",
+                label, route, clients, h.count(), run.errors.sum(), h.count() / secs,
+                h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.quantile(0.999) / 1e6);
+    }
+
+    /**
+     * One measurement phase: drives the clients until the deadline and records latencies.
+     */
+    private static final class Run {
+        final HttpClient http;
+        final String url;
+        final String route;
+        final List<String> names;
+        final List<String> tokens;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        volatile long deadline;
+
+        Run(HttpClient http, String url, String route, List<String> names, List<String> tokens) {
+            this.http = http;
+            this.url = url;
+            this.route = route;
+            this.names = names;
+            this.tokens = tokens;
+        }
+
+        long drive(int clients, int seconds) {
+            long start = System.nanoTime();
+            deadline = start + seconds * 1_000_000_000L;
+
+            CompletableFuture<?>[] loops = new CompletableFuture<?>[clients];
+            for (int c = 0; c < clients; c++) {
+                loops[c] = next();
+            }
+            CompletableFuture.allOf(loops).join();
+
+            return System.nanoTime() - start;
+        }
+
+        // Sends one request and chains the next until the deadline passes.
+        private CompletableFuture<Void> next() {
+            if (System.nanoTime() >= deadline) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            long sent = System.nanoTime();
+            return http.sendAsync(request(), HttpResponse.BodyHandlers.ofString())
+                    .handle((res, err) -> {
+                        latency.recordSince(sent);
+                        if (err != null || res.statusCode() != 200 || !res.body().contains("\"success\":true")) {
+                            errors.increment();
+                        }
+                        return null;
+                    })
+                    .thenCompose(ignored -> next());
+        }
+
+        private HttpRequest request() {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int from = rnd.nextInt(tokens.size());
+
+            if (route.equals("balance")) {
+                return HttpRequest.newBuilder(URI.create(url + "/balance"))
+                        .header("Authorization", "Bearer " + tokens.get(from)).GET().build();
+            }
+
+            int to = (from + 1 + rnd.nextInt(names.size() - 1)) % names.size();
+            String body = "{\"toUser\":\"" + names.get(to) + "\",\"amount\":0.01}";
+            return HttpRequest.newBuilder(URI.create(url + "/transfer"))
+                    .header("Authorization", "Bearer " + tokens.get(from))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build();
+        }
+    }
+
+    private static String post(HttpClient http, String url, String token, String json) throws Exception {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json));
+        if (token != null) {
+            b.header("Authorization", "Bearer " + token);
+        }
+        return http.send(b.build(), HttpResponse.BodyHandlers.ofString()).body();
+    }
+}
@@ -0,0 +1,96 @@
+package bankapp.bench;
+
+import bankapp.dto.ActionResult;
+import bankapp.handlers.TransferHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransferHandler.transfer end to end (locking, both updates and the history insert) against
+ * an in-process H2 database in MySQL mode, so it can run without a MySQL server. Absolute
+ * numbers are not comparable with MySQL; use them to catch regressions in the handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:transfer_bench;MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+
+    @Param({"1000"})
+    public int customers;
+
+    private Connection admin;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        admin = DriverManager.getConnection(URL);
+        try (Statement st = admin.createStatement()) {
+            st.execute("DROP ALL OBJECTS");
+            st.execute("CREATE TABLE customer (" +
+                    "CUS_ID BIGINT PRIMARY KEY AUTO_INCREMENT, " +
+                    "CUS_UNAME VARCHAR(32) NOT NULL UNIQUE, " +
+                    "CUS_PASSWD_HASH VARCHAR(255) NOT NULL, " +
+                    "CUS_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00)");
+            st.execute("CREATE TABLE transaction_record (" +
+                    "TXN_ID INT PRIMARY KEY AUTO_INCREMENT, " +
+                    "TXN_SOURCE_ID BIGINT NULL, " +
+                    "TXN_DEST_ID BIGINT NULL, " +
+                    "TXN_AMOUNT DECIMAL(15, 2) NOT NULL, " +
+                    "TXN_DATETIME DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                    "FOREIGN KEY (TXN_SOURCE_ID) REFERENCES customer (CUS_ID), " +
+                    "FOREIGN KEY (TXN_DEST_ID) REFERENCES customer (CUS_ID))");
+        }
+
+        try (PreparedStatement ps = admin.prepareStatement(
+                "INSERT INTO customer (CUS_UNAME, CUS_PASSWD_HASH, CUS_BALANCE) VALUES (?, 'x', 1000000000)")) {
+            for (int i = 0; i < customers; i++) {
+                ps.setString(1, "user" + i);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        admin.close();
+    }
+
+    /**
+     * One connection per benchmark thread, as a request would borrow from the pool.
+     */
+    @State(Scope.Thread)
+    public static class ThreadConnection {
+        Connection conn;
+
+        @Setup(Level.Trial)
+        public void open() throws SQLException {
+            conn = DriverManager.getConnection(URL);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws SQLException {
+            conn.close();
+        }
+    }
+
+    @Benchmark
+    public ActionResult transfer(ThreadConnection tc) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int from = rnd.nextInt(customers);
+        int to = (from + 1 + rnd.nextInt(customers - 1)) % customers;
+
+        return TransferHandler.transfer(tc.conn, "user" + from, "user" + to, 1);
+    }
+}
@@ -0,0 +1,45 @@
+#!/usr/bin/env bash
+# Compares /balance and /transfer latency with platform vs. virtual request threads.
+# Needs JDK 21+, a reachable MySQL configured in backend/api/.env (or DB_PROFILE=embedded
+# and JWT_SECRET in the environment), and enough file descriptors for the client count
+# (e.g. ulimit -n 65536).
+#
+# Usage: bench/thread-modes.sh [seconds]     (from backend/)
+# Results are appended to bench/results/thread-modes.jsonl, one JSON object per run.
+
+set -euo pipefail
+cd "$(dirname "$0")/.."
+BACKEND="$(pwd)"
+
+SECONDS_PER_RUN="${1:-30}"
+RESULTS="$BACKEND/bench/results/thread-modes.jsonl"
+
+mkdir -p "$BACKEND/bench/results"
+mvn -B -q package -DskipTests
+mvn -B -q -pl api dependency:build-classpath -Dmdep.outputFile="$BACKEND/api/target/classpath.txt"
+API_CP="$BACKEND/api/target/classes:$(cat "$BACKEND/api/target/classpath.txt")"
+BENCH_JAR="$BACKEND/bench/target/benchmarks.jar"
+
+for mode in platform virtual; do
+    # The server reads .env from its working directory
+    (cd "$BACKEND/api" && SERVER_THREADS=$mode DB_POOL_MAX_WAITERS=20000 RATE_LIMIT_ENABLED=false \
+        exec java -cp "$API_CP" bankapp.BankServer) > "$BACKEND/bench/results/server-$mode.log" 2>&1 &
+    server=$!
+    trap 'kill $server 2>/dev/null || true' EXIT
+
+    # Wait for the server to come up
+    for _ in $(seq 1 60); do
+        curl -sf http://localhost:5230/ping > /dev/null && break
+        sleep 1
+    done
+
+    for route in balance transfer; do
+        for clients in 1000 5000 10000; do
+            java -cp "$BENCH_JAR" bankapp.bench.LoadTest --route "$route" --clients "$clients" \
+                --seconds "$SECONDS_PER_RUN" --label "$mode" | tee /dev/stderr | tail -n 1 >> "$RESULTS"
+        done
+    done
+
+    kill $server
+    wait $server 2>/dev/null || true
+done
@@ -0,0 +1,24 @@
+-- Seeds a bankdb instance with 10,000 customers and 10,000,000 transaction records
+-- for comparing /history query plans. Intended for a throwaway database only.
+-- Run against a freshly created schema (db/schema.sql).
+
+USE bankdb;
+
+SET SESSION cte_max_recursion_depth = 10000000;
+
+INSERT INTO customer (CUS_UNAME, CUS_PASSWD_HASH, CUS_BALANCE)
+WITH RECURSIVE seq (n) AS (SELECT 1 UNION ALL SELECT n + 1 FROM seq WHERE n < 10000)
+SELECT CONCAT('user', n), '$2a$12$invalidinvalidinvalidinvalidinvalidinvalidinvalidinva', 1000000.00 FROM seq;
+
+-- Mix of roughly 25% deposits, 25% withdrawals and 50% transfers between random users
+-- CUS_ID runs from 1 to 10000 in a fresh schema, so userN has id N
+INSERT INTO transaction_record (TXN_SOURCE_ID, TXN_DEST_ID, TXN_AMOUNT, TXN_DATETIME)
+WITH RECURSIVE seq (n) AS (SELECT 1 UNION ALL SELECT n + 1 FROM seq WHERE n < 10000000)
+SELECT
+    CASE WHEN n % 4 = 0 THEN NULL ELSE 1 + (n * 7919) % 10000 END,
+    CASE WHEN n % 4 = 1 THEN NULL ELSE 1 + (n * 104729) % 10000 END,
+    1 + (n % 500),
+    TIMESTAMP('2020-01-01') + INTERVAL (n DIV 4) SECOND
+FROM seq;
+
+ANALYZE TABLE customer, transaction_record;
@@ -0,0 +1,13 @@
+-- Adds per-party (party, TXN_ID) indexes to transaction_record so /history can read
+-- each side of a user's history as an index range scan in TXN_ID order.
+-- Both indexes are built online; reads and writes continue during the build.
+-- The implicit indexes MySQL created for the two foreign keys become redundant and
+-- are dropped automatically once these indexes exist.
+
+USE bankdb;
+
+ALTER TABLE transaction_record
+    ADD INDEX idx_txn_source_id (CUS_ID_SOURCE, TXN_ID),
+    ADD INDEX idx_txn_dest_id (CUS_ID_DEST, TXN_ID),
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
@@ -0,0 +1,23 @@
+-- Adds customer_balance_slot, where transfers into accounts listed in HOT_ACCOUNTS are
+-- credited instead of customer.CUS_BALANCE. Such an account's balance is CUS_BALANCE plus
+-- the sum of its slots; the server folds slots back into CUS_BALANCE continuously.
+-- The table stays empty unless HOT_ACCOUNTS is set.
+
+USE bankdb;
+
+CREATE TABLE IF NOT EXISTS customer_balance_slot (
+    CUS_UNAME VARCHAR(32) NOT NULL,
+    SLOT_NO SMALLINT NOT NULL,
+    SLOT_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00,
+    PRIMARY KEY (CUS_UNAME, SLOT_NO),
+    FOREIGN KEY (CUS_UNAME)
+        REFERENCES customer (CUS_UNAME)
+);
+
+-- Before clearing HOT_ACCOUNTS entirely, stop the server and fold what is left by hand:
+--
+--   UPDATE customer c
+--       JOIN (SELECT CUS_UNAME, SUM(SLOT_BALANCE) AS PENDING
+--             FROM customer_balance_slot GROUP BY CUS_UNAME) s ON s.CUS_UNAME = c.CUS_UNAME
+--   SET c.CUS_BALANCE = c.CUS_BALANCE + s.PENDING;
+--   DELETE FROM customer_balance_slot;
@@ -0,0 +1,18 @@
+-- Adds idempotency_key, where /deposit, /withdraw and /transfer record the Idempotency-Key
+-- header of each successful request together with its response, in the same transaction
+-- as the money movement. A retry with the same key is answered from here.
+-- The server deletes rows older than IDEMPOTENCY_TTL_HOURS (default 24) in the background,
+-- using idx_idem_created. There is deliberately no foreign key to customer, so recording a
+-- key takes no lock on the customer row.
+
+USE bankdb;
+
+CREATE TABLE IF NOT EXISTS idempotency_key (
+    IDEM_UNAME VARCHAR(32) NOT NULL,
+    IDEM_KEY VARCHAR(64) NOT NULL,
+    IDEM_REQUEST VARCHAR(128) NOT NULL,
+    IDEM_RESPONSE VARCHAR(255) NOT NULL,
+    IDEM_CREATED DATETIME NOT NULL,
+    PRIMARY KEY (IDEM_UNAME, IDEM_KEY),
+    INDEX idx_idem_created (IDEM_CREATED)
+);
@@ -0,0 +1,12 @@
+-- Adds ledger_projection, the position of the in-memory ledger's projection into this
+-- database (LEDGER_ENGINE=true). PROJ_LAST_SEQ is the sequence number of the last ledger
+-- entry whose balance changes and transaction_record rows have been applied; it is updated
+-- in the same transaction as those rows, so the projection resumes exactly where it stopped.
+-- The table has a single row (PROJ_ID = 1), written when the ledger is first loaded.
+
+USE bankdb;
+
+CREATE TABLE IF NOT EXISTS ledger_projection (
+    PROJ_ID TINYINT PRIMARY KEY,
+    PROJ_LAST_SEQ BIGINT NOT NULL
+);
@@ -0,0 +1,78 @@
+-- Step 1 of 3 towards numeric account ids: customer gets a BIGINT CUS_ID primary key, and
+-- transaction_record refers to accounts by id (TXN_SOURCE_ID, TXN_DEST_ID) instead of by
+-- username. Run this while the previous server version is still serving traffic, then
+-- 006_account_id_switch.sql to switch versions, then 007_drop_username_columns.sql.
+--
+-- customer is rebuilt to change its primary key. Reads continue meanwhile, but balance
+-- changes wait for it (LOCK = SHARED); expect a few seconds per million customers.
+-- transaction_record is not rebuilt: its columns are added instantly, a trigger fills them
+-- for new rows, existing rows are backfilled 10,000 at a time, and the indexes are built
+-- online.
+
+USE bankdb;
+
+-- Keeps the foreign keys on CUS_UNAME valid once it is no longer the primary key
+ALTER TABLE customer
+    ADD UNIQUE KEY uq_cus_uname (CUS_UNAME),
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
+
+ALTER TABLE customer
+    DROP PRIMARY KEY,
+    ADD COLUMN CUS_ID BIGINT NOT NULL AUTO_INCREMENT FIRST,
+    ADD PRIMARY KEY (CUS_ID),
+    ALGORITHM = INPLACE,
+    LOCK = SHARED;
+
+ALTER TABLE transaction_record
+    ADD COLUMN TXN_SOURCE_ID BIGINT NULL,
+    ADD COLUMN TXN_DEST_ID BIGINT NULL,
+    ALGORITHM = INSTANT;
+
+-- Rows inserted by the previous version only name the usernames
+CREATE TRIGGER trg_txn_account_ids BEFORE INSERT ON transaction_record
+FOR EACH ROW
+    SET NEW.TXN_SOURCE_ID = COALESCE(NEW.TXN_SOURCE_ID,
+            (SELECT CUS_ID FROM customer WHERE CUS_UNAME = NEW.CUS_ID_SOURCE)),
+        NEW.TXN_DEST_ID = COALESCE(NEW.TXN_DEST_ID,
+            (SELECT CUS_ID FROM customer WHERE CUS_UNAME = NEW.CUS_ID_DEST));
+
+-- Every row older than the trigger, one short transaction per 10,000 TXN_IDs
+DELIMITER //
+CREATE PROCEDURE backfill_txn_account_ids()
+BEGIN
+    DECLARE next_id BIGINT DEFAULT 0;
+    DECLARE max_id BIGINT;
+    SELECT COALESCE(MAX(TXN_ID), 0) INTO max_id FROM transaction_record;
+
+    WHILE next_id < max_id DO
+        UPDATE transaction_record t
+            LEFT JOIN customer s ON s.CUS_UNAME = t.CUS_ID_SOURCE
+            LEFT JOIN customer d ON d.CUS_UNAME = t.CUS_ID_DEST
+        SET t.TXN_SOURCE_ID = s.CUS_ID,
+            t.TXN_DEST_ID = d.CUS_ID
+        WHERE t.TXN_ID > next_id AND t.TXN_ID <= next_id + 10000;
+        COMMIT;
+        SET next_id = next_id + 10000;
+    END WHILE;
+END //
+DELIMITER ;
+
+CALL backfill_txn_account_ids();
+DROP PROCEDURE backfill_txn_account_ids;
+
+ALTER TABLE transaction_record
+    ADD INDEX idx_txn_source_acct (TXN_SOURCE_ID, TXN_ID),
+    ADD INDEX idx_txn_dest_acct (TXN_DEST_ID, TXN_ID),
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
+
+-- A foreign key is only added online if existing rows are not validated; the backfill took
+-- every id from an existing customer.
+SET SESSION foreign_key_checks = 0;
+ALTER TABLE transaction_record
+    ADD CONSTRAINT fk_txn_source_acct FOREIGN KEY (TXN_SOURCE_ID) REFERENCES customer (CUS_ID),
+    ADD CONSTRAINT fk_txn_dest_acct FOREIGN KEY (TXN_DEST_ID) REFERENCES customer (CUS_ID),
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
+SET SESSION foreign_key_checks = 1;
@@ -0,0 +1,26 @@
+-- Step 2 of 3 towards numeric account ids (after 005_account_ids.sql). Stop every server
+-- running the previous version, run this, then start the new version. It only touches
+-- customer_balance_slot, which holds a few rows per hot account, so it takes a moment.
+
+USE bankdb;
+
+-- The new version fills TXN_SOURCE_ID and TXN_DEST_ID itself
+DROP TRIGGER IF EXISTS trg_txn_account_ids;
+
+-- Fold what is left in the slots (as described in 002_hot_account_slots.sql), then key
+-- them by CUS_ID
+UPDATE customer c
+    JOIN (SELECT CUS_UNAME, SUM(SLOT_BALANCE) AS PENDING
+          FROM customer_balance_slot GROUP BY CUS_UNAME) s ON s.CUS_UNAME = c.CUS_UNAME
+SET c.CUS_BALANCE = c.CUS_BALANCE + s.PENDING;
+
+DROP TABLE customer_balance_slot;
+
+CREATE TABLE customer_balance_slot (
+    CUS_ID BIGINT NOT NULL,
+    SLOT_NO SMALLINT NOT NULL,
+    SLOT_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00,
+    PRIMARY KEY (CUS_ID, SLOT_NO),
+    FOREIGN KEY (CUS_ID)
+        REFERENCES customer (CUS_ID)
+);
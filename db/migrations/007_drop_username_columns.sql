@@ -0,0 +1,21 @@
+-- Step 3 of 3 towards numeric account ids: drops the username columns of
+-- transaction_record, their indexes and foreign keys, once only the new version runs.
+-- transaction_record is rebuilt in place; reads and writes continue meanwhile.
+-- The foreign keys were created unnamed by db/schema.sql; if SHOW CREATE TABLE shows other
+-- names for the two on CUS_ID_SOURCE and CUS_ID_DEST, use those.
+
+USE bankdb;
+
+ALTER TABLE transaction_record
+    DROP FOREIGN KEY transaction_record_ibfk_1,
+    DROP FOREIGN KEY transaction_record_ibfk_2,
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
+
+ALTER TABLE transaction_record
+    DROP INDEX idx_txn_source_id,
+    DROP INDEX idx_txn_dest_id,
+    DROP COLUMN CUS_ID_SOURCE,
+    DROP COLUMN CUS_ID_DEST,
+    ALGORITHM = INPLACE,
+    LOCK = NONE;
@@ -0,0 +1,38 @@
+-- Required on every upgrade, whether or not DB_SHARDS is used: /history, the statement
+-- rollups and the backfill in 010 read TXN_COUNTERPARTY on every database. It also prepares
+-- a database to be a shard. With shards, run it on every one, including the existing
+-- database when it becomes the first one. It only adds, so the running version is not
+-- affected. New databases and shards are created from db/schema.sql instead.
+--
+-- A transfer to an account on another shard commits in two steps. On the sender's shard the
+-- debit, the sender's transaction_record row and a transfer_outbox row commit together. The
+-- outbox relay then credits the recipient on its shard in one transaction with the
+-- recipient's transaction_record row and a transfer_inbox row keyed by the sender's shard
+-- and row id, and only then deletes the outbox row. A relay that stops in between delivers
+-- the same row again later, and the inbox key makes the repeat a no-op, so each transfer is
+-- credited exactly once.
+--
+-- Each side's transaction_record row names the other party in TXN_COUNTERPARTY, as its
+-- account id is only meaningful on the other shard.
+
+USE bankdb;
+
+ALTER TABLE transaction_record
+    ADD COLUMN TXN_COUNTERPARTY VARCHAR(32) NULL,
+    ALGORITHM = INSTANT;
+
+CREATE TABLE IF NOT EXISTS transfer_outbox (
+    OUT_TXN_ID INT PRIMARY KEY,
+    OUT_SOURCE_UNAME VARCHAR(32) NOT NULL,
+    OUT_DEST_UNAME VARCHAR(32) NOT NULL,
+    OUT_AMOUNT DECIMAL(15, 2) NOT NULL,
+    OUT_CREATED DATETIME NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS transfer_inbox (
+    IN_SOURCE_SHARD VARCHAR(32) NOT NULL,
+    IN_SOURCE_TXN_ID INT NOT NULL,
+    IN_TXN_ID INT NOT NULL,
+    IN_RECEIVED DATETIME NOT NULL,
+    PRIMARY KEY (IN_SOURCE_SHARD, IN_SOURCE_TXN_ID)
+);
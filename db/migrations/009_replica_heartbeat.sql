@@ -0,0 +1,13 @@
+-- Adds replica_heartbeat, which measures how far read replicas trail the primary
+-- (DB_REPLICA_URLS). Every server stamps HB_TIME on the primary with the primary's clock
+-- every DB_REPLICA_CHECK_INTERVAL_MS and reads it back from each replica; the difference
+-- is the replica's lag, without relying on SHOW REPLICA STATUS privileges or on the
+-- servers' clocks agreeing. The table has a single row (HB_ID = 1), written by the first
+-- check. It replicates like any other table, so it must not be excluded from replication.
+
+USE bankdb;
+
+CREATE TABLE IF NOT EXISTS replica_heartbeat (
+    HB_ID TINYINT PRIMARY KEY,
+    HB_TIME DATETIME(6) NOT NULL
+);
@@ -0,0 +1,44 @@
+-- Adds statement_rollup, each account's daily count and sum of transactions by type
+-- (DEPOSIT, WITHDRAW, TRANSFER_IN, TRANSFER_OUT), from which GET /summary adds up a date
+-- range. Every transaction that inserts transaction_record rows updates it in the same
+-- transaction. Credits to hot accounts land in one of HOT_ACCOUNT_SLOTS rows (ROLL_SLOT) so
+-- they do not queue on one row; everything else uses slot 0.
+--
+-- Stop every server running the previous version, run this, then start the new version:
+-- the backfill reads all of transaction_record and must not miss or double count rows
+-- written meanwhile. It takes about as long as a full scan of transaction_record.
+
+USE bankdb;
+
+CREATE TABLE IF NOT EXISTS statement_rollup (
+    CUS_ID BIGINT NOT NULL,
+    ROLL_DAY DATE NOT NULL,
+    ROLL_TYPE VARCHAR(12) NOT NULL,
+    ROLL_SLOT SMALLINT NOT NULL,
+    ROLL_COUNT INT NOT NULL,
+    ROLL_SUM DECIMAL(17, 2) NOT NULL,
+    PRIMARY KEY (CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT),
+    FOREIGN KEY (CUS_ID)
+        REFERENCES customer (CUS_ID)
+);
+
+DELETE FROM statement_rollup;
+
+-- A row without the other party's id is a transfer between shards if it names one in
+-- TXN_COUNTERPARTY, otherwise a deposit or withdrawal
+INSERT INTO statement_rollup (CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT, ROLL_COUNT, ROLL_SUM)
+SELECT CUS_ID, ROLL_DAY, ROLL_TYPE, 0, COUNT(*), SUM(TXN_AMOUNT)
+FROM (
+    SELECT TXN_SOURCE_ID AS CUS_ID, CAST(TXN_DATETIME AS DATE) AS ROLL_DAY,
+           CASE WHEN TXN_DEST_ID IS NULL AND TXN_COUNTERPARTY IS NULL THEN 'WITHDRAW'
+                ELSE 'TRANSFER_OUT' END AS ROLL_TYPE,
+           TXN_AMOUNT
+    FROM transaction_record WHERE TXN_SOURCE_ID IS NOT NULL
+    UNION ALL
+    SELECT TXN_DEST_ID, CAST(TXN_DATETIME AS DATE),
+           CASE WHEN TXN_SOURCE_ID IS NULL AND TXN_COUNTERPARTY IS NULL THEN 'DEPOSIT'
+                ELSE 'TRANSFER_IN' END,
+           TXN_AMOUNT
+    FROM transaction_record WHERE TXN_DEST_ID IS NOT NULL
+) t
+GROUP BY CUS_ID, ROLL_DAY, ROLL_TYPE;
@@ -1,25 +1,112 @@
 CREATE DATABASE IF NOT EXISTS bankdb;
 USE bankdb;
 
+DROP TABLE IF EXISTS statement_rollup;
+DROP TABLE IF EXISTS replica_heartbeat;
+DROP TABLE IF EXISTS transfer_inbox;
+DROP TABLE IF EXISTS transfer_outbox;
+DROP TABLE IF EXISTS ledger_projection;
+DROP TABLE IF EXISTS idempotency_key;
+DROP TABLE IF EXISTS customer_balance_slot;
 DROP TABLE IF EXISTS transaction_record;
 DROP TABLE IF EXISTS customer;
 
 -- Customer table
+-- Accounts are referenced by CUS_ID; usernames are only looked up at the edge
+-- (see db/migrations/005_account_ids.sql)
 CREATE TABLE customer (
-    CUS_UNAME VARCHAR(32) PRIMARY KEY,
+    CUS_ID BIGINT PRIMARY KEY AUTO_INCREMENT,
+    CUS_UNAME VARCHAR(32) NOT NULL,
     CUS_PASSWD_HASH VARCHAR(255) NOT NULL,
-    CUS_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00
+    CUS_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00,
+    UNIQUE KEY uq_cus_uname (CUS_UNAME)
 );
 
 -- Transaction record table
 CREATE TABLE transaction_record (
     TXN_ID INT PRIMARY KEY AUTO_INCREMENT,
-    CUS_ID_SOURCE VARCHAR(32) NULL,
-    CUS_ID_DEST VARCHAR(32) NULL,
+    TXN_SOURCE_ID BIGINT NULL,
+    TXN_DEST_ID BIGINT NULL,
     TXN_AMOUNT DECIMAL(15, 2) NOT NULL,
     TXN_DATETIME DATETIME DEFAULT CURRENT_TIMESTAMP,
-    FOREIGN KEY (CUS_ID_SOURCE)
-        REFERENCES customer (CUS_UNAME),
-    FOREIGN KEY (CUS_ID_DEST)
-        REFERENCES customer (CUS_UNAME)
-);
\ No newline at end of file
+    -- Username of the other party of a transfer between shards, whose side is recorded on
+    -- its own shard (see db/migrations/008_cross_shard_transfers.sql)
+    TXN_COUNTERPARTY VARCHAR(32) NULL,
+    -- History is read per party in TXN_ID order (see db/migrations/001_history_indexes.sql)
+    INDEX idx_txn_source_acct (TXN_SOURCE_ID, TXN_ID),
+    INDEX idx_txn_dest_acct (TXN_DEST_ID, TXN_ID),
+    FOREIGN KEY (TXN_SOURCE_ID)
+        REFERENCES customer (CUS_ID),
+    FOREIGN KEY (TXN_DEST_ID)
+        REFERENCES customer (CUS_ID)
+);
+
+-- Striped sub-balances of hot accounts (see db/migrations/002_hot_account_slots.sql)
+CREATE TABLE customer_balance_slot (
+    CUS_ID BIGINT NOT NULL,
+    SLOT_NO SMALLINT NOT NULL,
+    SLOT_BALANCE DECIMAL(15, 2) NOT NULL DEFAULT 0.00,
+    PRIMARY KEY (CUS_ID, SLOT_NO),
+    FOREIGN KEY (CUS_ID)
+        REFERENCES customer (CUS_ID)
+);
+
+-- Idempotency-Key of each successful deposit, withdrawal and transfer
+-- (see db/migrations/003_idempotency_keys.sql)
+CREATE TABLE idempotency_key (
+    IDEM_UNAME VARCHAR(32) NOT NULL,
+    IDEM_KEY VARCHAR(64) NOT NULL,
+    IDEM_REQUEST VARCHAR(128) NOT NULL,
+    IDEM_RESPONSE VARCHAR(255) NOT NULL,
+    IDEM_CREATED DATETIME NOT NULL,
+    PRIMARY KEY (IDEM_UNAME, IDEM_KEY),
+    INDEX idx_idem_created (IDEM_CREATED)
+);
+
+-- Position of the in-memory ledger's projection into this database
+-- (see db/migrations/004_ledger_projection.sql)
+CREATE TABLE ledger_projection (
+    PROJ_ID TINYINT PRIMARY KEY,
+    PROJ_LAST_SEQ BIGINT NOT NULL
+);
+
+-- Transfers to accounts on other shards whose credit has not been confirmed yet
+-- (see db/migrations/008_cross_shard_transfers.sql)
+CREATE TABLE transfer_outbox (
+    OUT_TXN_ID INT PRIMARY KEY,
+    OUT_SOURCE_UNAME VARCHAR(32) NOT NULL,
+    OUT_DEST_UNAME VARCHAR(32) NOT NULL,
+    OUT_AMOUNT DECIMAL(15, 2) NOT NULL,
+    OUT_CREATED DATETIME NOT NULL
+);
+
+-- Transfers from other shards that have been credited here, so none is credited twice.
+-- IN_TXN_ID is 0 for a transfer refused here and refunded to its sender instead.
+CREATE TABLE transfer_inbox (
+    IN_SOURCE_SHARD VARCHAR(32) NOT NULL,
+    IN_SOURCE_TXN_ID INT NOT NULL,
+    IN_TXN_ID INT NOT NULL,
+    IN_RECEIVED DATETIME NOT NULL,
+    PRIMARY KEY (IN_SOURCE_SHARD, IN_SOURCE_TXN_ID)
+);
+
+-- Primary's clock as last seen by each read replica, for measuring their lag
+-- (see db/migrations/009_replica_heartbeat.sql)
+CREATE TABLE replica_heartbeat (
+    HB_ID TINYINT PRIMARY KEY,
+    HB_TIME DATETIME(6) NOT NULL
+);
+
+-- Daily count and sum of each account's transactions by type, for /summary
+-- (see db/migrations/010_statement_rollups.sql)
+CREATE TABLE statement_rollup (
+    CUS_ID BIGINT NOT NULL,
+    ROLL_DAY DATE NOT NULL,
+    ROLL_TYPE VARCHAR(12) NOT NULL,
+    ROLL_SLOT SMALLINT NOT NULL,
+    ROLL_COUNT INT NOT NULL,
+    ROLL_SUM DECIMAL(17, 2) NOT NULL,
+    PRIMARY KEY (CUS_ID, ROLL_DAY, ROLL_TYPE, ROLL_SLOT),
+    FOREIGN KEY (CUS_ID)
+        REFERENCES customer (CUS_ID)
+);
@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+# Starts one local mysqld per shard for trying DB_SHARDS on a single machine, each with
+# its own data directory and port, and loads db/schema.sql into each. Needs a MySQL 8
+# server installation (mysqld and mysql on PATH); nothing is shared with a system MySQL.
+#
+#   db/shards/local.sh start a b c     # ports 3307, 3308, 3309; prints the settings to use
+#   db/shards/local.sh stop            # stops every instance started here
+#   db/shards/local.sh clean           # stops them and deletes their data
+#
+# SHARD_DATA_DIR (default /tmp/bankdb-shards) holds the instances; SHARD_BASE_PORT
+# (default 3307) is the first port. Data survives a stop; starting the same shards in
+# the same order reuses it.
+set -euo pipefail
+
+DATA_DIR=${SHARD_DATA_DIR:-/tmp/bankdb-shards}
+BASE_PORT=${SHARD_BASE_PORT:-3307}
+SCHEMA="$(cd "$(dirname "$0")/.." && pwd)/schema.sql"
+
+start() {
+    [ $# -gt 0 ] || { echo "usage: $0 start <shard>..." >&2; exit 1; }
+    local port=$BASE_PORT shards="" settings=""
+    for shard in "$@"; do
+        local dir="$DATA_DIR/$shard"
+        local fresh=false
+        if [ ! -d "$dir/data" ]; then
+            mkdir -p "$dir"
+            mysqld --no-defaults --initialize-insecure --datadir="$dir/data" --log-error="$dir/error.log"
+            fresh=true
+        fi
+
+        mysqld --no-defaults --datadir="$dir/data" --port="$port" --bind-address=127.0.0.1 \
+            --socket="$dir/mysqld.sock" --mysqlx=OFF --pid-file="$dir/mysqld.pid" \
+            --log-error="$dir/error.log" --daemonize
+
+        if $fresh; then
+            mysql --no-defaults -uroot -S "$dir/mysqld.sock" < "$SCHEMA"
+        fi
+
+        settings="${settings}DB_SHARD_${shard^^}_URL=jdbc:mysql://127.0.0.1:$port/bankdb"$'\n'
+        shards="$shards${shards:+,}$shard"
+        port=$((port + 1))
+    done
+
+    echo "Started. Add these settings (DB_USER=root, DB_PASSWORD empty):"
+    echo "DB_SHARDS=$shards"
+    printf '%s' "$settings"
+}
+
+stop() {
+    for pid in "$DATA_DIR"/*/mysqld.pid; do
+        [ -e "$pid" ] || continue
+        kill "$(cat "$pid")" 2>/dev/null || true
+    done
+}
+
+case "${1:-}" in
+    start) shift; start "$@" ;;
+    stop) stop ;;
+    clean) stop; sleep 2; rm -rf "$DATA_DIR" ;;
+    *) echo "usage: $0 start <shard>... | stop | clean" >&2; exit 1 ;;
+esac
@@ -25,12 +25,12 @@ function login(event) {
         .then(data => {
             // Display result message
             const message = document.getElementById('loginMessage');
-            message.textContent = data.message;
+            message.textContent = data.message || data.error;
             clearAfter("loginMessage", 4000);
 
             if(data.success){
                 localStorage.setItem("token", data.token);
-                localStorage.setItem("username", username);
+                localStorage.setItem("username", data.username || username);
                 window.location.href = "dashboard.html";
             }
         })
@@ -64,7 +64,7 @@ function register(event) {
         .then(data => {
             // Display result message
             const message = document.getElementById('registerMessage');
-            message.textContent = data.message;
+            message.textContent = data.message || data.error;
             clearAfter("registerMessage", 4000);
 
             // Clear fields if successful
@@ -4,10 +4,20 @@ if (!token) window.location.href = "index.html";
 
 const username = localStorage.getItem("username");
 
+// True while the /events stream is connected; the server then pushes every change
+let liveUpdates = false;
+
+// Version of the last balance event applied, so an older event never overwrites a newer one
+let balanceVersion = 0;
+
+// Transactions shown in the preview, newest first
+let recent = [];
+
 window.addEventListener('DOMContentLoaded', function () {
     document.getElementById('username').textContent = username;
     getBalance();
     recentHistory();
+    openEvents(false);
 
     document.getElementById("deposit-form").addEventListener("submit", deposit);
     document.getElementById("withdraw-form").addEventListener("submit", withdraw);
@@ -22,12 +32,8 @@ function updateBalance(el, newText) {
 }
 
 function getBalance() {
-    fetch("http://localhost:5230/balance", {
-        headers: {
-            "Authorization": `Bearer ${token}`
-        }
-    })
-        .then(response => response.json())
+    // Revalidated with If-None-Match; unchanged balances come back as an empty 304
+    fetchJsonCached("http://localhost:5230/balance", token)
         .then(data => {
             const balanceDisplay = document.getElementById('balanceDisplay');
 
@@ -55,24 +61,28 @@ function deposit(event) {
 
     const amount = document.getElementById('depositAmount').value;
 
+    const body = JSON.stringify({
+        amount: amount
+    });
+
     fetch("http://localhost:5230/deposit", {
         method: "POST",
         headers: {
             "Content-Type": "application/json",
-            "Authorization": `Bearer ${token}`
+            "Authorization": `Bearer ${token}`,
+            "Idempotency-Key": idempotencyKey("deposit", body)
         },
-        body: JSON.stringify({
-            amount: amount
-        })
+        body: body
     })
         .then(response => response.json())
         .then(data => {
             const message = document.getElementById('depositMessage');
-            message.textContent = data.message;
+            message.textContent = data.message || data.error;
             clearAfter("depositMessage", 4000);
 
             if (data.success) {
-                getBalance();
+                settleKey("deposit");
+                if (!liveUpdates) getBalance();
                 document.getElementById('depositAmount').value = '';
             }
         })
@@ -89,24 +99,28 @@ function withdraw(event) {
 
     const amount = document.getElementById('withdrawAmount').value;
 
+    const body = JSON.stringify({
+        amount: amount
+    });
+
     fetch("http://localhost:5230/withdraw", {
         method: "POST",
         headers: {
             "Content-Type": "application/json",
-            "Authorization": `Bearer ${token}`
+            "Authorization": `Bearer ${token}`,
+            "Idempotency-Key": idempotencyKey("withdraw", body)
         },
-        body: JSON.stringify({
-            amount: amount
-        })
+        body: body
     })
         .then(response => response.json())
         .then(data => {
             const message = document.getElementById('withdrawMessage');
-            message.textContent = data.message;
+            message.textContent = data.message || data.error;
             clearAfter("withdrawMessage", 4000);
 
             if (data.success) {
-                getBalance();
+                settleKey("withdraw");
+                if (!liveUpdates) getBalance();
                 document.getElementById('withdrawAmount').value = '';
             }
         })
@@ -123,25 +137,29 @@ function transfer(event) {
     const toUser = document.getElementById('transferTo').value;
     const amount = document.getElementById('transferAmount').value;
 
+    const body = JSON.stringify({
+        toUser: toUser,
+        amount: amount
+    });
+
     fetch("http://localhost:5230/transfer", {
         method: "POST",
         headers: {
             "Content-Type": "application/json",
-            "Authorization": `Bearer ${token}`
+            "Authorization": `Bearer ${token}`,
+            "Idempotency-Key": idempotencyKey("transfer", body)
         },
-        body: JSON.stringify({
-            toUser: toUser,
-            amount: amount
-        })
+        body: body
     })
         .then(response => response.json())
         .then(data => {
             const message = document.getElementById('transferMessage');
-            message.textContent = data.message;
+            message.textContent = data.message || data.error;
             clearAfter("transferMessage", 4000);
 
             if (data.success) {
-                getBalance();
+                settleKey("transfer");
+                if (!liveUpdates) getBalance();
                 document.getElementById('transferAmount').value = '';
             }
         })
@@ -154,12 +172,7 @@ function transfer(event) {
 }
 
 function recentHistory() {
-    fetch("http://localhost:5230/history", {
-        headers: {
-            "Authorization": `Bearer ${token}`
-        }
-    })
-        .then(response => response.json())
+    fetchJsonCached("http://localhost:5230/history?order=desc&limit=3", token)
         .then(data => {
             const historyDiv = document.getElementById('recentHistory');
 
@@ -169,44 +182,131 @@ function recentHistory() {
                 return;
             }
 
-            // Take last 3 transactions (newest first)
-            const recent = data.transactions.slice(-3).reverse();
+            // Server returns the last 3 transactions, newest first
+            recent = data.transactions;
+            renderRecent();
+        })
+        .catch(error => {
+            console.error('Error:', error);
+            document.getElementById('recentHistory').innerHTML =
+                '<p id="historyPreviewMessage">Error loading history</p>';
+        });
+}
+
+function renderRecent() {
+    const historyDiv = document.getElementById('recentHistory');
+    historyDiv.innerHTML = '';
+
+    recent.forEach(tx => {
+        const isIncoming = tx.type === "DEPOSIT" || tx.type === "TRANSFER_IN";
 
-            historyDiv.innerHTML = '';
+        const amountText =
+            (isIncoming ? "+" : "-") +
+            Number(tx.amount).toLocaleString("en-US", {
+                style: "currency",
+                currency: "USD"
+            });
+
+        const div = document.createElement('div');
+        div.className = 'mini-transaction';
 
-            recent.forEach(tx => {
-                const isIncoming = tx.type === "DEPOSIT" || tx.type === "TRANSFER_IN";
+        div.innerHTML = `
+            <div class="mini-transaction-amount ${isIncoming ? 'positive' : 'negative'}">
+                ${amountText}
+            </div>
+            <div style="font-size: 0.85em; color: rgba(255,255,255,0.6); margin-top: 5px;">
+                ${tx.type}
+            </div>
+        `;
+
+        historyDiv.appendChild(div);
+    });
+}
 
-                const amountText =
-                    (isIncoming ? "+" : "-") +
-                    Number(tx.amount).toLocaleString("en-US", {
-                        style: "currency",
-                        currency: "USD"
-                    });
+// Reads the /events stream. EventSource cannot send the Authorization header,
+// so the stream is read with fetch and split into events by hand.
+function openEvents(reconnecting) {
+    fetch("http://localhost:5230/events", {
+        headers: {
+            "Authorization": `Bearer ${token}`
+        }
+    })
+        .then(response => {
+            if (response.status === 401) return;
+            if (!response.ok) throw new Error(`Event stream failed: ${response.status}`);
+
+            liveUpdates = true;
+
+            // Changes made while disconnected were not pushed
+            if (reconnecting) {
+                getBalance();
+                recentHistory();
+            }
 
-                const div = document.createElement('div');
-                div.className = 'mini-transaction';
+            const reader = response.body.pipeThrough(new TextDecoderStream()).getReader();
+            let buffer = "";
 
-                div.innerHTML = `
-                    <div class="mini-transaction-amount ${isIncoming ? 'positive' : 'negative'}">
-                        ${amountText}
-                    </div>
-                    <div style="font-size: 0.85em; color: rgba(255,255,255,0.6); margin-top: 5px;">
-                        ${tx.type}
-                    </div>
-                `;
+            const read = () => reader.read().then(({ value, done }) => {
+                if (done) throw new Error("Event stream closed");
 
-                historyDiv.appendChild(div);
+                buffer += value;
+                let end;
+                while ((end = buffer.indexOf("\n\n")) >= 0) {
+                    handleEvent(buffer.slice(0, end));
+                    buffer = buffer.slice(end + 2);
+                }
+                return read();
             });
+            return read();
         })
         .catch(error => {
             console.error('Error:', error);
-            document.getElementById('recentHistory').innerHTML =
-                '<p id="historyPreviewMessage">Error loading history</p>';
+            liveUpdates = false;
+            setTimeout(() => openEvents(true), 3000);
         });
 }
 
+function handleEvent(block) {
+    let event = "message";
+    let data = "";
+
+    block.split("\n").forEach(line => {
+        if (line.startsWith("event: ")) event = line.slice(7);
+        else if (line.startsWith("data: ")) data += line.slice(6);
+    });
+
+    if (!data) return; // comment or retry hint
+
+    const payload = JSON.parse(data);
+
+    if (event === "balance" && payload.version > balanceVersion) {
+        balanceVersion = payload.version;
+        updateBalance(
+            document.getElementById('balanceDisplay'),
+            payload.balance.toLocaleString("en-US", {
+                style: "currency",
+                currency: "USD"
+            })
+        );
+    } else if (event === "transaction") {
+        recent = [payload, ...recent.filter(tx => tx.id !== payload.id)].slice(0, 3);
+        renderRecent();
+    }
+}
+
 function logout() {
-    localStorage.removeItem("username");
-    window.location.href = "index.html";
+    // Revoke the token server-side so it stops working even before it expires
+    fetch("http://localhost:5230/logout", {
+        method: "POST",
+        headers: {
+            "Authorization": `Bearer ${token}`
+        }
+    })
+        .catch(error => console.error('Error:', error))
+        .finally(() => {
+            localStorage.removeItem("token");
+            localStorage.removeItem("username");
+            sessionStorage.clear();
+            window.location.href = "index.html";
+        });
 }
\ No newline at end of file
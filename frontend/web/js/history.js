@@ -4,30 +4,36 @@ if (!token) window.location.href = "index.html";
 
 const username = localStorage.getItem("username");
 
+const PAGE_SIZE = 50;
+
+// Cursor for the next page, null once everything has been loaded
+let nextCursor = null;
+
 window.addEventListener('DOMContentLoaded', function () {
-    loadHistory();
+    document.getElementById('loadMore').addEventListener('click', () => loadHistory(nextCursor));
+    loadHistory(null);
 });
 
-function loadHistory() {
-    fetch("http://localhost:5230/history", {
-        headers: {
-            "Authorization": `Bearer ${token}`
-        }
-    })
-        .then(response => response.json())
+function loadHistory(after) {
+    let url = `http://localhost:5230/history?order=desc&limit=${PAGE_SIZE}`;
+    if (after !== null) url += `&after=${after}`;
+
+    fetchJsonCached(url, token)
         .then(data => {
             const historyContent = document.getElementById('historyContent');
+            const loadMore = document.getElementById('loadMore');
 
-            if (!data.success || !data.transactions || data.transactions.length === 0) {
+            if (after === null && (!data.success || !data.transactions || data.transactions.length === 0)) {
                 historyContent.innerHTML =
                     '<p id="historyMessage">No transaction history found.</p>';
+                loadMore.hidden = true;
                 return;
             }
 
-            historyContent.innerHTML = '';
+            if (after === null) historyContent.innerHTML = '';
 
-            // Newest first
-            const transactions = data.transactions.slice().reverse();
+            // Server returns newest first
+            const transactions = data.transactions || [];
 
             transactions.forEach(tx => {const isIncoming = tx.type === "DEPOSIT" || tx.type === "TRANSFER_IN";
 
@@ -53,10 +59,13 @@ function loadHistory() {
 
                 historyContent.appendChild(div);
             });
+
+            nextCursor = data.nextCursor ?? null;
+            loadMore.hidden = nextCursor === null;
         })
         .catch(error => {
             console.error('Error:', error);
             document.getElementById('historyContent').innerHTML =
                 '<p id="historyMessage">Error loading history</p>';
         });
-}
\ No newline at end of file
+}
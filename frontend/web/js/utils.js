@@ -11,4 +11,45 @@ function clearAfter(id, ms = 4000) {
             el.classList.remove("out");
         }, 400);
     }, ms);
-}
\ No newline at end of file
+}
+// GETs a JSON resource and keeps the last successful response with its ETag in
+// sessionStorage. The next request sends If-None-Match, and a 304 reuses the stored
+// body instead of downloading it again.
+function fetchJsonCached(url, token) {
+    const key = "etag:" + url;
+    const cached = JSON.parse(sessionStorage.getItem(key) || "null");
+
+    const headers = { "Authorization": `Bearer ${token}` };
+    if (cached) headers["If-None-Match"] = cached.etag;
+
+    return fetch(url, { headers }).then(response => {
+        if (response.status === 304 && cached) return cached.body;
+
+        const etag = response.headers.get("ETag");
+        return response.json().then(body => {
+            if (etag && body.success) {
+                sessionStorage.setItem(key, JSON.stringify({ etag, body }));
+            } else {
+                sessionStorage.removeItem(key);
+            }
+            return body;
+        });
+    });
+}
+// One Idempotency-Key per intended action. Submitting the same form values again (a double
+// click, or a retry after a connection error) reuses the key, so the server applies the
+// action at most once; call settleKey once the action succeeded so the next one is new.
+const pendingKeys = {};
+
+function idempotencyKey(action, body) {
+    const pending = pendingKeys[action];
+    if (pending && pending.body === body) return pending.key;
+
+    const key = crypto.randomUUID();
+    pendingKeys[action] = { body, key };
+    return key;
+}
+
+function settleKey(action) {
+    delete pendingKeys[action];
+}